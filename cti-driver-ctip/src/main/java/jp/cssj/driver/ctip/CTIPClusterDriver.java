@@ -0,0 +1,140 @@
+package jp.cssj.driver.ctip;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.cssj.cti2.CTIDriver;
+import jp.cssj.cti2.CTISession;
+import jp.cssj.driver.ctip.cluster.Backend;
+import jp.cssj.driver.ctip.cluster.BackendSession;
+import jp.cssj.driver.ctip.cluster.Cluster;
+import jp.cssj.driver.ctip.v2.V2ConnectionPool;
+import jp.cssj.driver.ctip.v2.V2HedgePolicy;
+import jp.cssj.driver.ctip.v2.V2HedgedSession;
+import jp.cssj.plugin.Plugin;
+
+/**
+ * <p>
+ * 複数のサーバーに負荷を分散するドライバです。
+ * </p>
+ * <p>
+ * URIの形式は <tt>ctip-cluster://ホスト名:ポート番号,ホスト名:ポート番号/</tt> です。 TLSで接続する場合は
+ * <tt>ctips-cluster:</tt> で始めてください。 パスとクエリは各サーバーへの <tt>ctip://</tt> または
+ * <tt>ctips://</tt> のURIにそのまま引き継がれます（{@link CTIPDriver}を参照）。
+ * </p>
+ * <p>
+ * セッションは作成時に1つのサーバーに割り当てられ、接続できなかった場合は他のサーバーに割り当て直されます。
+ * サーバーの選択と、障害が発生したサーバーの切り離しについては{@link Cluster}を参照してください。 同じURIに対するセッションは統計を共有します。
+ * </p>
+ * <p>
+ * クエリに <tt>hedge=true</tt> を指定すると、応答の遅い変換を別のサーバーでも同時に行います（{@link V2HedgedSession}を参照）。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class CTIPClusterDriver implements CTIDriver, Plugin<URI> {
+	private static final String SUFFIX = "-cluster";
+
+	private final V2ConnectionPool pool = new V2ConnectionPool();
+
+	private final Map<String, Cluster> uriToCluster = new HashMap<String, Cluster>();
+
+	private final V2HedgePolicy hedgePolicy = new V2HedgePolicy();
+
+	/**
+	 * CTIP 2.0の接続プールを返します。 接続は各サーバーごとに再利用されます。
+	 *
+	 * @return 接続プール。
+	 */
+	public V2ConnectionPool getConnectionPool() {
+		return this.pool;
+	}
+
+	/**
+	 * <tt>hedge=true</tt> を指定したセッションが使うポリシーを返します。
+	 *
+	 * @return ポリシー。
+	 */
+	public V2HedgePolicy getHedgePolicy() {
+		return this.hedgePolicy;
+	}
+
+	/**
+	 * URIに対応するクラスタを返します。 サーバーごとの統計を得ることができます。
+	 *
+	 * @param uri
+	 *            ctip-cluster:またはctips-cluster:のURI。
+	 * @return クラスタ。
+	 */
+	public synchronized Cluster getCluster(URI uri) {
+		String key = uri.toString();
+		Cluster cluster = this.uriToCluster.get(key);
+		if (cluster == null) {
+			cluster = new Cluster(toBackendURIs(uri), CTIPDriver.ENCODING);
+			this.uriToCluster.put(key, cluster);
+		}
+		return cluster;
+	}
+
+	/**
+	 * クラスタのURIを各サーバーのURIに分解します。
+	 */
+	private static List<URI> toBackendURIs(URI uri) {
+		String scheme = uri.getScheme();
+		scheme = scheme.substring(0, scheme.length() - SUFFIX.length());
+		String authority = uri.getRawAuthority();
+		if (authority == null) {
+			throw new IllegalArgumentException("サーバーが指定されていません: " + uri);
+		}
+		String path = uri.getRawPath() == null ? "" : uri.getRawPath();
+		String query = uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery();
+		String[] hosts = authority.split(",");
+		List<URI> uris = new ArrayList<URI>(hosts.length);
+		for (int i = 0; i < hosts.length; ++i) {
+			String host = hosts[i].trim();
+			if (host.length() > 0) {
+				uris.add(URI.create(scheme + "://" + host + path + query));
+			}
+		}
+		if (uris.isEmpty()) {
+			throw new IllegalArgumentException("サーバーが指定されていません: " + uri);
+		}
+		return uris;
+	}
+
+	public boolean match(URI uri) {
+		if (uri == null) {
+			return false;
+		}
+		// ctip-cluster: または ctips-cluster:で始まる透明URI
+		return !uri.isOpaque() && ("ctip-cluster".equals(uri.getScheme()) || "ctips-cluster".equals(uri.getScheme()));
+	}
+
+	public CTISession getSession(URI uri, Map<String, String> props) throws IOException {
+		String user = null;
+		String password = null;
+		if (props != null) {
+			user = (String) props.get("user");
+			password = (String) props.get("password");
+		}
+		final Cluster cluster = this.getCluster(uri);
+		final String fuser = user, fpassword = password;
+		final V2ConnectionPool pool = this.pool.isEnabled() ? this.pool : null;
+		if (CTIPDriver.isHedged(uri)) {
+			return new V2HedgedSession(new V2HedgedSession.Factory() {
+				public CTISession newSession(CTISession previous) throws IOException {
+					// 2つ目の変換は別のサーバーで行う
+					Backend excluded = previous instanceof BackendSession ? ((BackendSession) previous).getBackend()
+							: null;
+					return cluster.getSession(fuser, fpassword, pool, excluded);
+				}
+			}, this.hedgePolicy);
+		}
+		return cluster.getSession(user, password, pool, null);
+	}
+}
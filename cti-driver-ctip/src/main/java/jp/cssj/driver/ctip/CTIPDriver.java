@@ -7,6 +7,10 @@ import java.util.Map;
 import jp.cssj.cti2.CTIDriver;
 import jp.cssj.cti2.CTISession;
 import jp.cssj.driver.ctip.v1.V1Session;
+import jp.cssj.driver.ctip.v2.TLSContext;
+import jp.cssj.driver.ctip.v2.V2ConnectionPool;
+import jp.cssj.driver.ctip.v2.V2HedgePolicy;
+import jp.cssj.driver.ctip.v2.V2HedgedSession;
 import jp.cssj.driver.ctip.v2.V2Session;
 import jp.cssj.plugin.Plugin;
 
@@ -16,6 +20,25 @@ import jp.cssj.plugin.Plugin;
  * </p>
  * <p>
  * URIの形式は <tt>ctip://ホスト名:ポート番号/</tt> です。
+ * 同じホストのサーバーには <tt>ctip+unix:///ソケットファイルのパス</tt> の形式でUnixドメインソケットを使って接続することができます（JDK 16以降）。
+ * クエリに <tt>timeout=ミリ秒</tt> を指定すると通信のタイムアウトを設定します。
+ * <tt>blocking=true</tt> を指定するとセレクタを使わないブロッキングI/Oで通信します。
+ * JDK 21以降で仮想スレッドからセッションを作成した場合は、指定しなくてもブロッキングI/Oを使います。
+ * <tt>ext=cas</tt> のように指定すると、CTIP 2.0の拡張機能をサーバーに要求します
+ * （{@link jp.cssj.driver.ctip.v2.V2Extensions}を参照）。 拡張機能に対応していないサーバーには指定しないでください。
+ * <tt>ext=deflate=6</tt> のように指定すると、指定した圧縮レベルでデータを圧縮して送受信します。
+ * <tt>ext=frame=262144</tt> のように指定すると、1つのパケットで送受信するデータの上限を大きくします。
+ * <tt>ext=frame=auto</tt> とするとソケットのバッファの大きさに合わせます。
+ * <tt>hedge=true</tt> を指定すると、応答の遅い変換を別の接続でも同時に行います（{@link V2HedgedSession}を参照）。
+ * <tt>mux=true</tt> を指定すると、同じURIのセッションが1つの接続を共有します（{@link jp.cssj.driver.ctip.v2.MuxV2ContentProducer}を参照）。
+ * サーバーには{@link jp.cssj.driver.ctip.mux.MuxFrames#HEADER}の接続を受け付けるプロトコルハンドラが必要です。
+ * </p>
+ * <p>
+ * CTIP 2.0の接続は{@link #getConnectionPool()}で得られるプールにより再利用することができます。
+ * 接続の再利用はデフォルトでは無効です。
+ * </p>
+ * <p>
+ * ctips接続のSSLContextは共有され、同じサーバーへの接続ではTLSセッションが再開されます（{@link #getTLSContext()}を参照）。
  * </p>
  * 
  * @author MIYABE Tatsuhiko
@@ -24,12 +47,45 @@ import jp.cssj.plugin.Plugin;
 public class CTIPDriver implements CTIDriver, Plugin<URI> {
 	public static final String ENCODING = "UTF-8";
 
+	private final V2ConnectionPool pool = new V2ConnectionPool();
+
+	private final V2HedgePolicy hedgePolicy = new V2HedgePolicy();
+
+	/**
+	 * CTIP 2.0の接続プールを返します。
+	 * 
+	 * @return 接続プール。
+	 */
+	public V2ConnectionPool getConnectionPool() {
+		return this.pool;
+	}
+
+	/**
+	 * <tt>hedge=true</tt> を指定したセッションが使うポリシーを返します。
+	 * 
+	 * @return ポリシー。
+	 */
+	public V2HedgePolicy getHedgePolicy() {
+		return this.hedgePolicy;
+	}
+
+	/**
+	 * ctips接続で共有されるTLSContextを返します。 ハンドシェイクの統計を得ることができます。
+	 * 
+	 * @return TLSContext。
+	 * @throws IOException
+	 */
+	public TLSContext getTLSContext() throws IOException {
+		return TLSContext.getInstance();
+	}
+
 	public boolean match(URI uri) {
 		if (uri == null) {
 			return false;
 		}
-		// ctip: または ctips:で始まる透明URI
-		return !uri.isOpaque() && ("ctip".equals(uri.getScheme()) || "ctips".equals(uri.getScheme()));
+		// ctip:、ctips: または ctip+unix:で始まる透明URI
+		return !uri.isOpaque() && ("ctip".equals(uri.getScheme()) || "ctips".equals(uri.getScheme())
+				|| "ctip+unix".equals(uri.getScheme()));
 	}
 
 	public CTISession getSession(URI uri, Map<String, String> props) throws IOException {
@@ -48,6 +104,37 @@ public class CTIPDriver implements CTIDriver, Plugin<URI> {
 				}
 			}
 		}
-		return new V2Session(uri, ENCODING, user, password);
+		final String fuser = user, fpassword = password;
+		final V2ConnectionPool pool = this.pool.isEnabled() ? this.pool : null;
+		if (isHedged(uri)) {
+			final URI furi = uri;
+			return new V2HedgedSession(new V2HedgedSession.Factory() {
+				public CTISession newSession(CTISession previous) throws IOException {
+					return new V2Session(furi, ENCODING, fuser, fpassword, pool);
+				}
+			}, this.hedgePolicy);
+		}
+		return new V2Session(uri, ENCODING, user, password, pool);
+	}
+
+	/**
+	 * URIのクエリに <tt>hedge=true</tt> が指定されていればtrueを返します。
+	 * 
+	 * @param uri
+	 *            接続先のURI。
+	 * @return ヘッジする場合はtrue。
+	 */
+	static boolean isHedged(URI uri) {
+		String query = uri.getQuery();
+		if (query == null) {
+			return false;
+		}
+		String[] params = query.split("&");
+		for (int i = 0; i < params.length; ++i) {
+			if (params[i].equals("hedge=true")) {
+				return true;
+			}
+		}
+		return false;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,225 @@
+package jp.cssj.driver.ctip.cluster;
+
+import java.net.URI;
+
+/**
+ * <p>
+ * クラスタを構成する1つのサーバーと、その統計です。
+ * </p>
+ * <p>
+ * 変換に要した時間は指数加重移動平均（EWMA）で保持され、サーバーの選択に使われます。
+ * 連続して通信に失敗したサーバーは一定時間切り離され、 ヘルスチェックに成功するまで新しいセッションに割り当てられません。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class Backend {
+	/** 移動平均に新しい計測値を反映する割合です。 */
+	private static final double ALPHA = 0.3;
+
+	/**
+	 * 移動平均を事前の値に近づける時定数(ナノ秒)です。 しばらく使われていないサーバーは、他のサーバーと同程度に評価され、再び選択されて計測し直されます。
+	 */
+	private static final double DECAY = 10 * 1000000000.0;
+
+	/**
+	 * 評価に使う変換時間の下限(ナノ秒)です。 変換時間が0に近くても、処理中のセッションの数が評価値に反映されるようにします。
+	 */
+	private static final double MIN_LATENCY = 1000000.0;
+
+	private final URI uri;
+
+	private int outstanding = 0;
+
+	private double latency = 0;
+
+	private long measured = 0;
+
+	private int failures = 0;
+
+	private long ejectedUntil = 0, backoff = 0;
+
+	private long sessions = 0, errors = 0, ejections = 0;
+
+	Backend(URI uri) {
+		this.uri = uri;
+	}
+
+	/**
+	 * サーバーのURIを返します。
+	 *
+	 * @return ctip:またはctips:のURI。
+	 */
+	public URI getURI() {
+		return this.uri;
+	}
+
+	/**
+	 * サーバーに割り当てられ、まだクローズされていないセッションの数を返します。
+	 *
+	 * @return セッションの数。
+	 */
+	public synchronized int getOutstandingCount() {
+		return this.outstanding;
+	}
+
+	/**
+	 * 変換に要した時間の移動平均を返します。
+	 *
+	 * @return ミリ秒。まだ変換していない場合は0。
+	 */
+	public synchronized double getLatency() {
+		return this.latency / 1000000.0;
+	}
+
+	/**
+	 * サーバーに割り当てたセッションの数を返します。
+	 *
+	 * @return セッションの数。
+	 */
+	public synchronized long getSessionCount() {
+		return this.sessions;
+	}
+
+	/**
+	 * 通信に失敗した回数を返します。
+	 *
+	 * @return 回数。
+	 */
+	public synchronized long getErrorCount() {
+		return this.errors;
+	}
+
+	/**
+	 * サーバーを切り離した回数を返します。
+	 *
+	 * @return 回数。
+	 */
+	public synchronized long getEjectionCount() {
+		return this.ejections;
+	}
+
+	/**
+	 * サーバーが切り離されていなければtrueを返します。
+	 *
+	 * @return 新しいセッションに割り当てられる場合はtrue。
+	 */
+	public synchronized boolean isAvailable() {
+		return this.ejectedUntil == 0;
+	}
+
+	/**
+	 * 変換に要した時間の移動平均を返します。
+	 *
+	 * @return ナノ秒。まだ変換していない場合は0。
+	 */
+	synchronized double getSampledLatency() {
+		return this.latency;
+	}
+
+	/**
+	 * サーバーを選択するための評価値を返します。 処理中のセッションが全て終わるまでの予想時間で、小さいほど優先されます。
+	 * 
+	 * @param prior
+	 *            まだ計測していない場合に使う変換時間(ナノ秒)。 計測値は時間の経過とともにこの値に近づきます。
+	 */
+	synchronized double score(double prior) {
+		double latency = prior;
+		if (this.latency > 0) {
+			latency += (this.latency - prior) * Math.exp(-(System.nanoTime() - this.measured) / DECAY);
+		}
+		return (this.outstanding + 1) * Math.max(latency, MIN_LATENCY);
+	}
+
+	/**
+	 * 次にヘルスチェックを行う時刻を返します。
+	 *
+	 * @return 時刻(ミリ秒)。 切り離されていなければ0。
+	 */
+	synchronized long getEjectedUntil() {
+		return this.ejectedUntil;
+	}
+
+	/**
+	 * セッションを割り当てたときに呼ばれます。
+	 */
+	synchronized void open() {
+		++this.outstanding;
+		++this.sessions;
+	}
+
+	/**
+	 * セッションがクローズされたときに呼ばれます。
+	 */
+	synchronized void close() {
+		--this.outstanding;
+	}
+
+	/**
+	 * 変換が正常に終了したときに呼ばれます。
+	 *
+	 * @param nanos
+	 *            変換に要した時間(ナノ秒)。
+	 */
+	synchronized void succeeded(long nanos) {
+		this.sampled(nanos);
+		this.failures = 0;
+	}
+
+	/**
+	 * 変換に要した時間を移動平均に反映します。
+	 *
+	 * @param nanos
+	 *            変換に要した時間(ナノ秒)。
+	 */
+	synchronized void sampled(long nanos) {
+		this.latency = this.latency == 0 ? nanos : this.latency + ALPHA * (nanos - this.latency);
+		this.measured = System.nanoTime();
+	}
+
+	/**
+	 * 通信に失敗したときに呼ばれます。
+	 *
+	 * @param maxFailures
+	 *            サーバーを切り離すまでの連続した失敗の回数。
+	 * @param backoff
+	 *            最初にサーバーを切り離す時間(ミリ秒)。
+	 * @return サーバーを新たに切り離した場合はtrue。
+	 */
+	synchronized boolean failed(int maxFailures, long backoff) {
+		++this.errors;
+		++this.failures;
+		if (this.ejectedUntil != 0 || this.failures < maxFailures) {
+			return false;
+		}
+		++this.ejections;
+		this.backoff = backoff;
+		this.ejectedUntil = System.currentTimeMillis() + backoff;
+		return true;
+	}
+
+	/**
+	 * ヘルスチェックの結果を反映します。 失敗した場合は、切り離す時間を倍にします。
+	 *
+	 * @param healthy
+	 *            ヘルスチェックに成功した場合はtrue。
+	 * @param maxBackoff
+	 *            サーバーを切り離す時間の上限(ミリ秒)。
+	 */
+	synchronized void probed(boolean healthy, long maxBackoff) {
+		if (healthy) {
+			this.failures = 0;
+			this.ejectedUntil = 0;
+			return;
+		}
+		this.backoff = Math.min(this.backoff * 2, maxBackoff);
+		this.ejectedUntil = System.currentTimeMillis() + this.backoff;
+	}
+
+	public synchronized String toString() {
+		return super.toString() + "[uri=" + this.uri + ",available=" + this.isAvailable() + ",outstanding="
+				+ this.outstanding + ",latency=" + Math.round(this.getLatency()) + "ms,sessions=" + this.sessions
+				+ ",errors=" + this.errors + ",ejections=" + this.ejections + "]";
+	}
+}
@@ -0,0 +1,159 @@
+package jp.cssj.driver.ctip.cluster;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import jp.cssj.cti2.TranscoderException;
+import jp.cssj.driver.ctip.v2.V2ConnectionPool;
+import jp.cssj.driver.ctip.v2.V2Session;
+import jp.cssj.resolver.MetaSource;
+import jp.cssj.resolver.Source;
+
+/**
+ * クラスタのサーバーに割り当てられたセッションです。 変換に要した時間と通信の失敗をサーバーの統計に反映します。
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class BackendSession extends V2Session {
+	private final Cluster cluster;
+
+	private final Backend backend;
+
+	/** 変換を開始した時刻(ナノ秒)。変換中でなければ0。 */
+	private long start = 0;
+
+	private boolean closed = false;
+
+	/** 変換を中断した場合にtrue。 中断による通信の失敗はサーバーの障害として扱いません。 */
+	private volatile boolean aborted = false;
+
+	BackendSession(Cluster cluster, Backend backend, String encoding, String user, String password,
+			V2ConnectionPool pool) throws IOException {
+		super(backend.getURI(), encoding, user, password, pool);
+		this.cluster = cluster;
+		this.backend = backend;
+		backend.open();
+	}
+
+	/**
+	 * セッションが割り当てられたサーバーを返します。
+	 *
+	 * @return サーバー。
+	 */
+	public Backend getBackend() {
+		return this.backend;
+	}
+
+	/**
+	 * サーバーに接続し、認証します。
+	 *
+	 * @throws IOException
+	 */
+	void connect() throws IOException {
+		this.init();
+	}
+
+	protected void init() throws IOException {
+		try {
+			super.init();
+		} catch (IOException e) {
+			this.started();
+			this.finished(e);
+			throw e;
+		}
+	}
+
+	public OutputStream transcode(MetaSource metaSource) throws IOException, TranscoderException {
+		this.started();
+		try {
+			return super.transcode(metaSource);
+		} catch (IOException | RuntimeException e) {
+			this.finished(e);
+			throw e;
+		}
+	}
+
+	public void transcode(URI uri) throws IOException, TranscoderException {
+		this.started();
+		try {
+			super.transcode(uri);
+		} catch (IOException | RuntimeException e) {
+			this.finished(e);
+			throw e;
+		}
+	}
+
+	public CompletableFuture<Void> transcodeAsync(Source source) {
+		this.started();
+		return this.finishAsync(super.transcodeAsync(source));
+	}
+
+	public CompletableFuture<Void> transcodeAsync(URI uri) {
+		this.started();
+		return this.finishAsync(super.transcodeAsync(uri));
+	}
+
+	protected void next() throws IOException {
+		try {
+			super.next();
+		} catch (IOException e) {
+			this.finished(e);
+			throw e;
+		}
+		this.finished(null);
+	}
+
+	public void abort(byte mode) throws IOException {
+		this.aborted = true;
+		super.abort(mode);
+	}
+
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			if (!this.closed) {
+				this.closed = true;
+				this.backend.close();
+			}
+		}
+	}
+
+	private CompletableFuture<Void> finishAsync(CompletableFuture<Void> future) {
+		future.whenComplete(new BiConsumer<Void, Throwable>() {
+			public void accept(Void v, Throwable e) {
+				BackendSession.this.finished(e);
+			}
+		});
+		return future;
+	}
+
+	private void started() {
+		if (this.start == 0) {
+			this.start = System.nanoTime();
+		}
+	}
+
+	/**
+	 * 変換の結果をサーバーの統計に反映します。 同じ変換に対して2回目以降の呼び出しは無視されます。
+	 */
+	private void finished(Throwable e) {
+		if (this.start == 0) {
+			return;
+		}
+		long nanos = System.nanoTime() - this.start;
+		this.start = 0;
+		if (e == null) {
+			this.backend.succeeded(nanos);
+		} else if (this.aborted) {
+			// 中断した変換にも、少なくともこれだけの時間がかかった
+			this.backend.sampled(nanos);
+		} else if (e instanceof IOException && !(e instanceof TranscoderException)) {
+			this.cluster.failed(this.backend, (IOException) e);
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package jp.cssj.driver.ctip.cluster;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.cssj.driver.ctip.v2.V2ConnectionPool;
+import jp.cssj.driver.ctip.v2.V2Session;
+
+/**
+ * <p>
+ * 同じ文書を変換できる複数のサーバーの集まりです。
+ * </p>
+ * <p>
+ * 新しいセッションは、切り離されていないサーバーから無作為に2つを選び、 処理中のセッション数と変換時間の移動平均から評価した負荷の小さい方に割り当てます（power
+ * of two choices）。
+ * </p>
+ * <p>
+ * 通信に連続して{@link #MAX_FAILURES}回失敗したサーバーは切り離され、 {@link #BACKOFF}ミリ秒後からサーバー情報の要求（SERVER_INFO）によるヘルスチェックを受けます。
+ * ヘルスチェックに失敗するたびに、次のヘルスチェックまでの時間は{@link #MAX_BACKOFF}ミリ秒まで倍になります。
+ * 全てのサーバーが切り離されている場合は、最も早くヘルスチェックを受けるサーバーに割り当てます。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class Cluster {
+	private static final Logger LOG = Logger.getLogger(Cluster.class.getName());
+
+	/**
+	 * サーバーを切り離すまでの連続した失敗の回数を設定するシステムプロパティです。
+	 */
+	public static final String MAX_FAILURES = "jp.cssj.driver.ctip.cluster.maxFailures";
+
+	/**
+	 * サーバーを切り離してから最初のヘルスチェックまでの時間（ミリ秒）を設定するシステムプロパティです。
+	 */
+	public static final String BACKOFF = "jp.cssj.driver.ctip.cluster.backoff";
+
+	/**
+	 * ヘルスチェックの間隔の上限（ミリ秒）を設定するシステムプロパティです。
+	 */
+	public static final String MAX_BACKOFF = "jp.cssj.driver.ctip.cluster.maxBackoff";
+
+	/** ヘルスチェックで要求するサーバー情報のURIです。 */
+	private static final URI VERSION_URI = URI.create("http://www.cssj.jp/ns/ctip/version");
+
+	private final List<Backend> backends;
+
+	private final String encoding;
+
+	private final int maxFailures;
+
+	private final long backoff, maxBackoff;
+
+	private String user = "", password = "";
+
+	private Thread prober = null;
+
+	/**
+	 * @param uris
+	 *            サーバーのURI。
+	 * @param encoding
+	 *            通信に使うキャラクタ・エンコーディング。
+	 */
+	public Cluster(List<URI> uris, String encoding) {
+		List<Backend> backends = new ArrayList<Backend>(uris.size());
+		for (int i = 0; i < uris.size(); ++i) {
+			backends.add(new Backend(uris.get(i)));
+		}
+		this.backends = Collections.unmodifiableList(backends);
+		this.encoding = encoding;
+		this.maxFailures = Math.max(1, Integer.getInteger(MAX_FAILURES, 2));
+		this.backoff = Math.max(1L, Long.getLong(BACKOFF, 1000L));
+		this.maxBackoff = Math.max(this.backoff, Long.getLong(MAX_BACKOFF, 60000L));
+	}
+
+	/**
+	 * クラスタを構成するサーバーを返します。
+	 *
+	 * @return サーバーのリスト。
+	 */
+	public List<Backend> getBackends() {
+		return this.backends;
+	}
+
+	/**
+	 * サーバーを選択してセッションを作成し、接続します。 接続できなかった場合は他のサーバーを選択し直します。
+	 *
+	 * @param user
+	 *            ユーザー。 ヘルスチェックにも使われます。
+	 * @param password
+	 *            パスワード。
+	 * @param pool
+	 *            接続プール。nullであれば接続を再利用しません。
+	 * @param excluded
+	 *            他に切り離されていないサーバーがあれば選択しないサーバー。nullであれば全てのサーバーから選択します。
+	 * @return 接続済みのセッション。
+	 * @throws IOException
+	 *             全てのサーバーに接続できなかった場合。
+	 */
+	public BackendSession getSession(String user, String password, V2ConnectionPool pool, Backend excluded)
+			throws IOException {
+		synchronized (this) {
+			this.user = user == null ? "" : user;
+			this.password = password == null ? "" : password;
+		}
+		Set<Backend> tried = new HashSet<Backend>();
+		if (excluded != null) {
+			for (int i = 0; i < this.backends.size(); ++i) {
+				Backend backend = this.backends.get(i);
+				if (backend != excluded && backend.isAvailable()) {
+					tried.add(excluded);
+					break;
+				}
+			}
+		}
+		IOException error = null;
+		for (Backend backend = this.choose(tried); backend != null; backend = this.choose(tried)) {
+			tried.add(backend);
+			BackendSession session = new BackendSession(this, backend, this.encoding, user, password, pool);
+			try {
+				session.connect();
+				return session;
+			} catch (IOException e) {
+				session.close();
+				error = e;
+			} catch (RuntimeException e) {
+				// 認証の失敗などでも、サーバーに割り当てたセッションを戻す
+				try {
+					session.close();
+				} catch (IOException e2) {
+					LOG.log(Level.FINE, "セッションを閉じることができませんでした: " + backend.getURI(), e2);
+				}
+				throw e;
+			}
+		}
+		throw error;
+	}
+
+	/**
+	 * 新しいセッションを割り当てるサーバーを選択します。
+	 *
+	 * @param excluded
+	 *            選択しないサーバー。
+	 * @return サーバー。 選択できるサーバーがなければnull。
+	 */
+	private Backend choose(Collection<Backend> excluded) {
+		List<Backend> candidates = new ArrayList<Backend>(this.backends.size());
+		Backend fallback = null;
+		for (int i = 0; i < this.backends.size(); ++i) {
+			Backend backend = this.backends.get(i);
+			if (excluded.contains(backend)) {
+				continue;
+			}
+			if (backend.isAvailable()) {
+				candidates.add(backend);
+			} else if (fallback == null || backend.getEjectedUntil() < fallback.getEjectedUntil()) {
+				fallback = backend;
+			}
+		}
+		if (candidates.isEmpty()) {
+			return fallback;
+		}
+		if (candidates.size() == 1) {
+			return candidates.get(0);
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int i = random.nextInt(candidates.size());
+		int j = random.nextInt(candidates.size() - 1);
+		if (j >= i) {
+			++j;
+		}
+		Backend a = candidates.get(i), b = candidates.get(j);
+		double prior = prior(candidates);
+		return a.score(prior) <= b.score(prior) ? a : b;
+	}
+
+	/**
+	 * まだ計測していないサーバーの変換時間とみなす値を返します。 計測済みのサーバーの移動平均の平均です。
+	 *
+	 * @param backends
+	 *            サーバー。
+	 * @return ナノ秒。 計測済みのサーバーがなければ0。
+	 */
+	private static double prior(List<Backend> backends) {
+		double sum = 0;
+		int count = 0;
+		for (int i = 0; i < backends.size(); ++i) {
+			double latency = backends.get(i).getSampledLatency();
+			if (latency > 0) {
+				sum += latency;
+				++count;
+			}
+		}
+		return count == 0 ? 0 : sum / count;
+	}
+
+	/**
+	 * サーバーとの通信に失敗したときに呼ばれます。
+	 *
+	 * @param backend
+	 *            サーバー。
+	 * @param e
+	 *            発生した例外。
+	 */
+	void failed(Backend backend, IOException e) {
+		if (!backend.failed(this.maxFailures, this.backoff)) {
+			return;
+		}
+		LOG.log(Level.WARNING, "サーバーを切り離します: " + backend.getURI(), e);
+		synchronized (this) {
+			if (this.prober == null) {
+				this.startProber();
+			} else {
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * サーバー情報を要求し、サーバーが応答するかどうかを調べます。
+	 */
+	private boolean probe(Backend backend) {
+		String user, password;
+		synchronized (this) {
+			user = this.user;
+			password = this.password;
+		}
+		try (V2Session session = new V2Session(backend.getURI(), this.encoding, user, password)) {
+			try (InputStream in = session.getServerInfo(VERSION_URI)) {
+				while (in.read() != -1) {
+					// 読み捨てる
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "ヘルスチェックに失敗しました: " + backend.getURI(), e);
+			return false;
+		}
+	}
+
+	private void startProber() {
+		assert Thread.holdsLock(this);
+		this.prober = new Thread(Cluster.class.getName()) {
+			public void run() {
+				List<Backend> due = new ArrayList<Backend>();
+				for (;;) {
+					synchronized (Cluster.this) {
+						long now = System.currentTimeMillis();
+						long next = 0;
+						for (int i = 0; i < Cluster.this.backends.size(); ++i) {
+							Backend backend = Cluster.this.backends.get(i);
+							long until = backend.getEjectedUntil();
+							if (until == 0) {
+								continue;
+							}
+							if (until <= now) {
+								due.add(backend);
+							} else if (next == 0 || until < next) {
+								next = until;
+							}
+						}
+						if (due.isEmpty()) {
+							if (next == 0) {
+								Cluster.this.prober = null;
+								return;
+							}
+							try {
+								Cluster.this.wait(next - now);
+							} catch (InterruptedException e) {
+								Cluster.this.prober = null;
+								return;
+							}
+							continue;
+						}
+					}
+					for (int i = 0; i < due.size(); ++i) {
+						Backend backend = due.get(i);
+						boolean healthy = Cluster.this.probe(backend);
+						backend.probed(healthy, Cluster.this.maxBackoff);
+						if (healthy) {
+							LOG.info("サーバーを復帰します: " + backend.getURI());
+						}
+					}
+					due.clear();
+				}
+			}
+		};
+		this.prober.setDaemon(true);
+		this.prober.start();
+	}
+
+	public String toString() {
+		return super.toString() + this.backends;
+	}
+}
@@ -0,0 +1,33 @@
+package jp.cssj.driver.ctip.common;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * 下層のソケットとの間にバッファを持つチャネルです。
+ * </p>
+ * <p>
+ * TLSのように、書き込んだデータを変換してから送るチャネルは、非ブロッキングI/Oでは変換後のデータを送りきれずに保持することがあります。
+ * また、読み込んだデータを変換した結果を保持している間は、ソケットが読み込み可能になりません。 {@link ChannelIO}はこのインターフェースにより、
+ * 保持しているデータを書き出し、セレクタで待機する前に保持しているデータを読み込みます。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public interface BufferedChannel {
+	/**
+	 * 保持している書き込みデータを、ブロックせずに書き出せるだけ書き出します。
+	 *
+	 * @return 全て書き出した場合はtrue。
+	 * @throws IOException
+	 */
+	public boolean flush() throws IOException;
+
+	/**
+	 * ソケットから読み込まずに返すことができるデータを保持していればtrueを返します。
+	 *
+	 * @return 読み込み可能なデータがあればtrue。
+	 */
+	public boolean hasBufferedInput();
+}
@@ -2,39 +2,67 @@ package jp.cssj.driver.ctip.common;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import jp.cssj.cti2.TranscoderException;
 
 /**
  * SocketChannelから各種データを取得します。
  * それぞれのメソッドは非ブロッキングI/Oに対して動作しますが、データの取得が完了するまでブロックします。
+ * 非ブロッキングI/Oでは、読み書きを先に試み、進まない場合だけ接続ごとに1つのセレクタで待機します。 セレクタは必要になった時点で作成します。
+ * ブロッキングI/Oのソケットではセレクタを使わず、読み込みのタイムアウトにはソケットのタイムアウトを使います。
+ * チャネルが{@link BufferedChannel}であれば、保持している書き込みデータを書き出してから戻ります。
+ * チャネルが{@link WaitableChannel}であれば、セレクタの代わりにチャネル自身で待機します。
  * 
  * @author MIYABE Tatsuhiko
  * @version $Id: ChannelIO.java 1552 2018-04-26 01:43:24Z miyabe $
  */
 public final class ChannelIO {
+	/**
+	 * 書き込みの途中で読み込み可能なデータが届いたことを通知するためのインターフェースです。
+	 * 
+	 * @see ChannelIO#writeAll(ByteBuffer[], int, int, ReadListener)
+	 */
+	public static interface ReadListener {
+		/**
+		 * 読み込み可能なデータがあります。
+		 * 
+		 * @throws IOException
+		 */
+		public void readable() throws IOException;
+	}
+
 	private final ByteChannel channel;
 	private final long timeout;
-	private final Selector rwselector, rselector, wselector;
+	private Selector selector = null;
+	private SelectionKey key = null;
+	private InputStream in = null;
+	private BufferedChannel buffered = null;
+	private boolean failed = false;
 
 	public ChannelIO(ByteChannel channel, long timeout) throws IOException {
 		this.channel = channel;
 		this.timeout = timeout;
+		if (channel instanceof BufferedChannel) {
+			this.buffered = (BufferedChannel) channel;
+		}
 
-		if (this.getSelectable().isBlocking()) {
-			this.rwselector = this.rselector = this.wselector = null;
-		} else {
-			this.rwselector = this.getSelectable().provider().openSelector();
-			this.getSelectable().register(this.rwselector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-
-			this.rselector = this.getSelectable().provider().openSelector();
-			this.getSelectable().register(this.rselector, SelectionKey.OP_READ);
-
-			this.wselector = this.getSelectable().provider().openSelector();
-			this.getSelectable().register(this.wselector, SelectionKey.OP_WRITE);
+		if (channel instanceof SocketChannel && ((SocketChannel) channel).isBlocking()
+				&& ((SocketChannel) channel).getRemoteAddress() instanceof InetSocketAddress) {
+			// Unixドメインソケットはjava.net.Socketとして扱えない
+			Socket socket = ((SocketChannel) channel).socket();
+			socket.setSoTimeout((int) timeout);
+			// ソケットのタイムアウトはストリームを経由した読み込みにのみ適用される
+			this.in = socket.getInputStream();
 		}
 	}
 
@@ -48,20 +76,61 @@ public final class ChannelIO {
 
 	public void close() throws IOException {
 		try {
-			if (this.rwselector != null) {
-				this.rwselector.close();
-			}
-			if (this.rselector != null) {
-				this.rselector.close();
-			}
-			if (this.wselector != null) {
-				this.wselector.close();
+			if (this.selector != null) {
+				this.selector.close();
+				this.selector = null;
 			}
 		} finally {
 			this.channel.close();
 		}
 	}
 
+	/**
+	 * 他のスレッドから接続を切断します。 読み書きを待っているスレッドでは例外が発生します。
+	 * 
+	 * @throws IOException
+	 */
+	public void shutdown() throws IOException {
+		this.failed = true;
+		Selector selector = this.selector;
+		try {
+			this.channel.close();
+		} finally {
+			if (selector != null) {
+				selector.wakeup();
+			}
+		}
+	}
+
+	/**
+	 * 接続が再利用可能な状態かどうかを検査します。
+	 * 入出力エラーが起きていた場合、接続が切断されている場合、または読み込まれていないデータが残っている場合はfalseを返します。
+	 * このメソッドはブロックしません。
+	 * 
+	 * @return 接続が再利用可能であればtrue。
+	 */
+	public boolean isAlive() {
+		if (this.failed || !this.channel.isOpen()) {
+			return false;
+		}
+		SelectableChannel channel = this.getSelectable();
+		try {
+			boolean blocking = channel.isBlocking();
+			if (blocking) {
+				channel.configureBlocking(false);
+			}
+			try {
+				return this.channel.read(ByteBuffer.allocate(1)) == 0;
+			} finally {
+				if (blocking) {
+					channel.configureBlocking(true);
+				}
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
 	/**
 	 * 1バイト整数を読み込みます。
 	 * 
@@ -143,18 +212,72 @@ public final class ChannelIO {
 	}
 
 	/**
-	 * 読み込みまたは書き込みが可能になるまで待ちます。
+	 * 読み込みまたは書き込みが可能になるまで待ちます。 ブロッキングI/Oの場合は何もしません。
+	 * 
+	 * @param ops
+	 *            待機する操作。
+	 * @return 可能になった操作。
+	 * @throws IOException
+	 */
+	private int await(int ops) throws IOException {
+		if (this.channel instanceof WaitableChannel) {
+			return ((WaitableChannel) this.channel).await(ops, this.timeout);
+		}
+		SelectableChannel channel = this.getSelectable();
+		if (channel.isBlocking()) {
+			return ops;
+		}
+		if (this.selector == null) {
+			this.selector = channel.provider().openSelector();
+		}
+		if (this.key == null) {
+			this.key = channel.register(this.selector, ops);
+		} else if (this.key.interestOps() != ops) {
+			this.key.interestOps(ops);
+		}
+		if (this.selector.select(this.timeout) <= 0) {
+			throw new IOException((ops & SelectionKey.OP_WRITE) != 0 ? "Write timeout" : "Read timeout");
+		}
+		this.selector.selectedKeys().clear();
+		return this.key.readyOps();
+	}
+
+	private int read(ByteBuffer dest) throws IOException {
+		if (this.in != null && dest.hasArray() && this.getSelectable().isBlocking()) {
+			int len = this.in.read(dest.array(), dest.arrayOffset() + dest.position(), dest.remaining());
+			if (len > 0) {
+				dest.position(dest.position() + len);
+			}
+			return len;
+		}
+		return this.channel.read(dest);
+	}
+
+	/**
+	 * 読み込み可能なデータをバッファに読み込みます。
 	 * 
-	 * @return チャンネルの状態のキー。
+	 * @param dest
+	 * @param block
+	 *            trueであれば、少なくとも1バイトを読み込むまでブロックします。
+	 * @return 読み込んだバイト数。
 	 * @throws IOException
 	 */
-	public SelectionKey rwselect() throws IOException {
-		if (this.rwselector.select(this.timeout) <= 0) {
-			throw new IOException("Read-write timeout");
+	public int read(ByteBuffer dest, boolean block) throws IOException {
+		try {
+			for (;;) {
+				int len = this.read(dest);
+				if (len == -1) {
+					throw new EOFException();
+				}
+				if (len > 0 || !block) {
+					return len;
+				}
+				this.await(SelectionKey.OP_READ);
+			}
+		} catch (IOException e) {
+			this.failed = true;
+			throw e;
 		}
-		SelectionKey key = this.rwselector.selectedKeys().iterator().next();
-		this.rwselector.selectedKeys().clear();
-		return key;
 	}
 
 	/**
@@ -165,17 +288,20 @@ public final class ChannelIO {
 	 */
 	public void readAll(ByteBuffer dest) throws IOException {
 		dest.position(0);
-		do {
-			if (this.rselector != null) {
-				if (this.rselector.select(this.timeout) <= 0) {
-					throw new IOException("Read timeout");
+		try {
+			while (dest.remaining() > 0) {
+				int len = this.read(dest);
+				if (len == -1) {
+					throw new EOFException();
+				}
+				if (len == 0) {
+					this.await(SelectionKey.OP_READ);
 				}
-				this.rselector.selectedKeys().clear();
-			}
-			if (this.channel.read(dest) == -1) {
-				throw new EOFException();
 			}
-		} while (dest.remaining() > 0);
+		} catch (IOException e) {
+			this.failed = true;
+			throw e;
+		}
 	}
 
 	/**
@@ -186,15 +312,93 @@ public final class ChannelIO {
 	 */
 	public void writeAll(ByteBuffer src) throws IOException {
 		src.position(0);
-		do {
-			if (this.wselector != null) {
-				if (this.wselector.select(this.timeout) <= 0) {
-					throw new IOException("Write timeout");
+		try {
+			while (src.remaining() > 0) {
+				if (this.channel.write(src) == 0) {
+					this.await(SelectionKey.OP_WRITE);
 				}
-				this.wselector.selectedKeys().clear();
 			}
-			this.channel.write(src);
-		} while (src.remaining() > 0);
+			while (this.buffered != null && !this.buffered.flush()) {
+				this.await(SelectionKey.OP_WRITE);
+			}
+		} catch (IOException e) {
+			this.failed = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * 複数のバッファが空になるまでデータを書き込みます。
+	 * 書き込みが進まない間に読み込み可能なデータが届いた場合は、デッドロックを防ぐためにlistenerに処理させます。
+	 * ブロッキングI/Oの場合は、書き込みの間だけ非ブロッキングI/Oに切り替えます。
+	 * ブロックする書き込みの間に相手も書き込み待ちになると、互いに受信しなくなるためです。
+	 * 
+	 * @param srcs
+	 *            バッファの配列。
+	 * @param offset
+	 *            最初のバッファの位置。
+	 * @param length
+	 *            バッファの数。
+	 * @param listener
+	 *            読み込み可能なデータを処理するオブジェクト。
+	 * @throws IOException
+	 */
+	public void writeAll(ByteBuffer[] srcs, int offset, int length, ReadListener listener) throws IOException {
+		ByteBuffer last = srcs[offset + length - 1];
+		SelectableChannel channel = this.getSelectable();
+		boolean blocking = channel.isBlocking();
+		try {
+			if (blocking) {
+				channel.configureBlocking(false);
+			}
+			try {
+				for (;;) {
+					this.gather(srcs, offset, length);
+					if (last.remaining() <= 0 && (this.buffered == null || this.buffered.flush())) {
+						break;
+					}
+					if (this.buffered != null && this.buffered.hasBufferedInput()) {
+						// 受信済みのデータはセレクタでは検出できない
+						listener.readable();
+						continue;
+					}
+					if ((this.await(SelectionKey.OP_READ | SelectionKey.OP_WRITE) & SelectionKey.OP_READ) != 0) {
+						listener.readable();
+					}
+				}
+			} finally {
+				if (blocking) {
+					if (this.key != null) {
+						// 登録を解除しないとブロッキングI/Oに戻せない
+						this.key.cancel();
+						this.key = null;
+						this.selector.selectNow();
+					}
+					channel.configureBlocking(true);
+				}
+			}
+		} catch (TranscoderException e) {
+			throw e;
+		} catch (IOException e) {
+			this.failed = true;
+			throw e;
+		}
+	}
+
+	private void gather(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		if (this.channel instanceof GatheringByteChannel) {
+			((GatheringByteChannel) this.channel).write(srcs, offset, length);
+			return;
+		}
+		for (int i = 0; i < length; ++i) {
+			ByteBuffer src = srcs[offset + i];
+			if (src.remaining() > 0) {
+				this.channel.write(src);
+				if (src.remaining() > 0) {
+					break;
+				}
+			}
+		}
 	}
 
 	/**
@@ -0,0 +1,127 @@
+package jp.cssj.driver.ctip.common;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * <p>
+ * 実行環境のJavaのバージョンによって異なる処理をまとめたクラスです。
+ * </p>
+ * <p>
+ * このクラスはJava 8向けの実装です。 JDK 21以降では、Multi-Release JARのMETA-INF/versions/21にある実装に置き換えられます。
+ * Unixドメインソケットは、JDK 16以降で実行されている場合にリフレクションを使って開きます。
+ * </p>
+ * 
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public final class Platform {
+	private Platform() {
+		// unused
+	}
+
+	/**
+	 * 現在のスレッドが仮想スレッドであるかどうかを返します。
+	 * 
+	 * @return 仮想スレッドであればtrue。
+	 */
+	public static boolean isVirtualThread() {
+		return false;
+	}
+
+	/**
+	 * タスクごとに新しい仮想スレッドで実行するExecutorServiceを作成します。
+	 * 
+	 * @param name
+	 *            スレッドの名前。
+	 * @return ExecutorService。
+	 * @throws UnsupportedOperationException
+	 *             JDK 21より前の実行環境では常に発生します。
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+		throw new UnsupportedOperationException("仮想スレッドを使うにはJDK 21以降が必要です");
+	}
+
+	/**
+	 * Unixドメインソケットでサーバーに接続します。
+	 * 
+	 * @param path
+	 *            ソケットファイルのパス。
+	 * @return ブロッキングモードのSocketChannel。
+	 * @throws IOException
+	 *             接続できない場合。 JDK 16より前の実行環境では常に発生します。
+	 */
+	public static SocketChannel openUnixSocketChannel(String path) throws IOException {
+		SocketChannel channel = (SocketChannel) invoke(SocketChannel.class, "open", unixProtocolFamily());
+		try {
+			channel.connect(unixSocketAddress(path));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Unixドメインソケットで待ち受けます。
+	 * 
+	 * @param path
+	 *            ソケットファイルのパス。
+	 * @param backlog
+	 *            接続待ちのキューのサイズ。
+	 * @return ブロッキングモードのServerSocketChannel。
+	 * @throws IOException
+	 *             待ち受けできない場合。 JDK 16より前の実行環境では常に発生します。
+	 */
+	public static ServerSocketChannel openUnixServerSocketChannel(String path, int backlog) throws IOException {
+		ServerSocketChannel channel = (ServerSocketChannel) invoke(ServerSocketChannel.class, "open",
+				unixProtocolFamily());
+		try {
+			channel.bind(unixSocketAddress(path), backlog);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	// JDK 16以降のAPIをリフレクションで呼び出す
+
+	private static ProtocolFamily unixProtocolFamily() throws IOException {
+		try {
+			return StandardProtocolFamily.valueOf("UNIX");
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unixドメインソケットを使うにはJDK 16以降が必要です");
+		}
+	}
+
+	private static SocketAddress unixSocketAddress(String path) throws IOException {
+		try {
+			Class<?> clazz = Class.forName("java.net.UnixDomainSocketAddress");
+			return (SocketAddress) clazz.getMethod("of", String.class).invoke(null, path);
+		} catch (InvocationTargetException e) {
+			throw new IOException("不正なソケットファイルのパスです:" + path, e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Unixドメインソケットを使うにはJDK 16以降が必要です", e);
+		}
+	}
+
+	private static Object invoke(Class<?> clazz, String name, ProtocolFamily family) throws IOException {
+		try {
+			return clazz.getMethod(name, ProtocolFamily.class).invoke(null, family);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Unixドメインソケットを使うにはJDK 16以降が必要です", e);
+		}
+	}
+}
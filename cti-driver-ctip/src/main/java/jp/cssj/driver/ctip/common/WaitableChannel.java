@@ -0,0 +1,32 @@
+package jp.cssj.driver.ctip.common;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * セレクタを使わずに、読み込みまたは書き込みが可能になるまで待つことができるチャネルです。
+ * </p>
+ * <p>
+ * 1つの接続の上に作られるチャネルのように、セレクタに登録できないチャネルはこのインターフェースを実装します。
+ * {@link ChannelIO}は、このチャネルの読み書きが進まない場合にセレクタの代わりに{@link #await(int, long)}で待機します。
+ * チャネルの読み書きは、ブロッキングI/Oの設定に関わらずブロックしてはいけません。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public interface WaitableChannel {
+	/**
+	 * 読み込みまたは書き込みが可能になるまで待ちます。
+	 *
+	 * @param ops
+	 *            待機する操作（{@link java.nio.channels.SelectionKey#OP_READ}、
+	 *            {@link java.nio.channels.SelectionKey#OP_WRITE}）。
+	 * @param timeout
+	 *            タイムアウト（ミリ秒）。 0であれば無制限です。
+	 * @return 可能になった操作。
+	 * @throws IOException
+	 *             タイムアウトした場合。
+	 */
+	public int await(int ops, long timeout) throws IOException;
+}
@@ -0,0 +1,304 @@
+package jp.cssj.driver.ctip.mux;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * 1つの接続の上で、複数のストリームを送受信します（{@link MuxFrames}を参照）。
+ * </p>
+ * <p>
+ * 受信は{@link #serve()}を呼び出した1つのスレッドが行い、受信したデータをストリームごとに保持します。
+ * 送信はストリームを使うそれぞれのスレッドが行います。 フレームは公平なロックの下で1つずつ送られるため、
+ * 大きなデータを送っているストリームがあっても、他のストリームのフレームはその間に送られます。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class MuxConnection implements Closeable {
+	private static final Logger LOG = Logger.getLogger(MuxConnection.class.getName());
+
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * 相手側から開始されたストリームを受け付けるためのインターフェースです。
+	 */
+	public static interface Acceptor {
+		/**
+		 * 新しいストリームを受け付けます。 このメソッドは受信を行うスレッドから呼ばれるため、ストリームの処理は別のスレッドで行ってください。
+		 *
+		 * @param stream
+		 *            ストリーム。
+		 * @throws IOException
+		 */
+		public void accept(MuxStream stream) throws IOException;
+	}
+
+	private final DataInputStream in;
+
+	private final DataOutputStream out;
+
+	private final long timeout;
+
+	private final Acceptor acceptor;
+
+	private final ReentrantLock writeLock = new ReentrantLock(true);
+
+	private final Map<Integer, MuxStream> streams = new HashMap<Integer, MuxStream>();
+
+	/** 最後に開始したストリームのID。 */
+	private int lastId = 0;
+
+	private volatile boolean open = true;
+
+	/**
+	 * @param in
+	 *            接続からの入力。
+	 * @param out
+	 *            接続への出力。
+	 * @param timeout
+	 *            ストリームの読み書きのタイムアウト（ミリ秒）。 0であれば無制限です。
+	 * @param acceptor
+	 *            相手側から開始されたストリームを受け付けるオブジェクト。 nullであればストリームを受け付けません。
+	 */
+	public MuxConnection(InputStream in, OutputStream out, long timeout, Acceptor acceptor) {
+		this.in = new DataInputStream(new BufferedInputStream(in, MuxFrames.MAX_DATA + 9));
+		this.out = new DataOutputStream(new BufferedOutputStream(out, MuxFrames.MAX_DATA + 9));
+		this.timeout = timeout;
+		this.acceptor = acceptor;
+	}
+
+	/**
+	 * ストリームの読み書きのタイムアウトを返します。
+	 *
+	 * @return ミリ秒。 0であれば無制限です。
+	 */
+	public long getTimeout() {
+		return this.timeout;
+	}
+
+	/**
+	 * 接続が使用可能であればtrueを返します。
+	 *
+	 * @return 接続が使用可能であればtrue。
+	 */
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	/**
+	 * 使用中のストリームの数を返します。
+	 *
+	 * @return ストリームの数。
+	 */
+	public synchronized int getStreamCount() {
+		return this.streams.size();
+	}
+
+	/**
+	 * 新しいストリームを開始します。
+	 *
+	 * @return ストリーム。
+	 * @throws IOException
+	 *             接続が既に使用できない場合。
+	 */
+	public MuxStream openStream() throws IOException {
+		// 相手側はそれまでより大きなIDのフレームだけを新しいストリームとみなすため、IDの割り当てと最初のフレームの送信を同じロックの下で行う
+		this.writeLock.lock();
+		try {
+			MuxStream stream;
+			synchronized (this) {
+				if (!this.open) {
+					throw new IOException("接続はクローズされています");
+				}
+				stream = new MuxStream(this, ++this.lastId);
+				this.streams.put(stream.getId(), stream);
+			}
+			this.writeFrame(stream.getId(), MuxFrames.DATA, EMPTY, 0, 0);
+			return stream;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 接続が終了するまでフレームを受信します。 受信中のストリームがないまま接続のタイムアウトに達した場合も終了します。
+	 *
+	 * @throws IOException
+	 */
+	public void serve() throws IOException {
+		byte[] data = new byte[MuxFrames.MAX_DATA];
+		IOException error = null;
+		try {
+			for (;;) {
+				int b;
+				try {
+					b = this.in.read();
+				} catch (SocketTimeoutException e) {
+					if (this.getStreamCount() == 0) {
+						LOG.fine("待機中のストリームがないため接続を終了します");
+						break;
+					}
+					continue;
+				}
+				if (b == -1) {
+					break;
+				}
+				int id = (b << 24) | (this.in.readUnsignedByte() << 16) | (this.in.readUnsignedByte() << 8)
+						| this.in.readUnsignedByte();
+				byte type = this.in.readByte();
+				int length = this.in.readInt();
+				if (length < 0 || length > MuxFrames.MAX_DATA) {
+					throw new IOException("不正なフレームです: " + length);
+				}
+				this.in.readFully(data, 0, length);
+				this.received(id, type, data, length);
+			}
+		} catch (IOException e) {
+			error = e;
+			throw e;
+		} finally {
+			this.shutdown(error != null ? error : new EOFException("接続が終了しました"));
+		}
+	}
+
+	private void received(int id, byte type, byte[] data, int length) throws IOException {
+		MuxStream stream;
+		boolean accepted = false;
+		synchronized (this) {
+			stream = this.streams.get(id);
+			if (stream == null && type == MuxFrames.DATA && this.acceptor != null && id > this.lastId) {
+				this.lastId = id;
+				stream = new MuxStream(this, id);
+				this.streams.put(id, stream);
+				accepted = true;
+			}
+			if (stream != null && type == MuxFrames.CLOSE) {
+				this.streams.remove(id);
+			}
+		}
+		if (stream == null) {
+			// 既に終了したストリーム
+			return;
+		}
+		switch (type) {
+		case MuxFrames.DATA:
+			stream.received(data, 0, length);
+			break;
+		case MuxFrames.WINDOW:
+			if (length != 4) {
+				throw new IOException("不正なフレームです: " + length);
+			}
+			stream.credited(((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8)
+					| (data[3] & 0xFF));
+			break;
+		case MuxFrames.CLOSE:
+			stream.remoteClosed();
+			break;
+		default:
+			throw new IOException("不正なフレームです: " + Integer.toHexString(type));
+		}
+		if (accepted) {
+			this.acceptor.accept(stream);
+		}
+	}
+
+	/**
+	 * ストリームのデータを送ります。 データは{@link MuxFrames#MAX_DATA}バイトごとのフレームに分けて送られます。
+	 */
+	void writeData(int id, byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, MuxFrames.MAX_DATA);
+			this.writeFrame(id, MuxFrames.DATA, b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	void writeWindow(int id, int increment) throws IOException {
+		byte[] b = { (byte) (increment >>> 24), (byte) (increment >>> 16), (byte) (increment >>> 8),
+				(byte) increment };
+		this.writeFrame(id, MuxFrames.WINDOW, b, 0, b.length);
+	}
+
+	void writeClose(int id) throws IOException {
+		this.writeFrame(id, MuxFrames.CLOSE, EMPTY, 0, 0);
+	}
+
+	private void writeFrame(int id, byte type, byte[] b, int off, int len) throws IOException {
+		this.writeLock.lock();
+		try {
+			if (!this.open) {
+				throw new IOException("接続はクローズされています");
+			}
+			this.out.writeInt(id);
+			this.out.writeByte(type);
+			this.out.writeInt(len);
+			this.out.write(b, off, len);
+			if (!this.writeLock.hasQueuedThreads()) {
+				// 送信を待っているスレッドがあれば、最後のスレッドがまとめて送る
+				this.out.flush();
+			}
+		} catch (IOException e) {
+			this.shutdown(e);
+			throw e;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	synchronized void remove(MuxStream stream) {
+		if (this.streams.get(stream.getId()) == stream) {
+			this.streams.remove(stream.getId());
+		}
+	}
+
+	/**
+	 * 接続を終了し、使用中の全てのストリームを失敗させます。
+	 */
+	private void shutdown(IOException cause) {
+		MuxStream[] streams;
+		synchronized (this) {
+			if (!this.open) {
+				return;
+			}
+			this.open = false;
+			streams = this.streams.values().toArray(new MuxStream[this.streams.size()]);
+			this.streams.clear();
+		}
+		for (int i = 0; i < streams.length; ++i) {
+			streams[i].failed(cause);
+		}
+		try {
+			this.in.close();
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "接続をクローズできませんでした", e);
+		}
+		try {
+			this.out.close();
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "接続をクローズできませんでした", e);
+		}
+	}
+
+	/**
+	 * 接続をクローズします。 使用中のストリームは失敗します。
+	 */
+	public void close() {
+		this.shutdown(new IOException("接続はクローズされています"));
+	}
+}
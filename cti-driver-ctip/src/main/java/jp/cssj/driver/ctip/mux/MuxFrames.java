@@ -0,0 +1,51 @@
+package jp.cssj.driver.ctip.mux;
+
+/**
+ * <p>
+ * 1つの接続の上で複数のCTIP 2.0の通信を行うための、フレームの種類と大きさです。
+ * </p>
+ * <p>
+ * クライアントは接続直後に {@link #HEADER} の行を送り、その後は双方がフレームを送ります。
+ * フレームは4バイトのストリームID、1バイトの種類、4バイトのデータの長さ、データで構成されます。
+ * クライアントは、それまでに送ったどのストリームIDよりも大きなIDで長さ0の{@link #DATA}を送ってストリームを開始します。
+ * ストリームの中では通常の接続と同じように、<tt>CTIP/2.0</tt>の行から始まる通信が行われます。
+ * </p>
+ * <p>
+ * 受信側はストリームごとに{@link #WINDOW_SIZE}バイトまでのデータを保持します。 送信側は受信側から{@link #WINDOW}
+ * で通知されるまで、それ以上のデータを送りません。 このため、1つのストリームの受信が滞っても他のストリームの受信は妨げられません。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public interface MuxFrames {
+	/**
+	 * 接続の最初に送る行です。
+	 */
+	public static final String HEADER = "CTIPMUX/1.0";
+
+	/**
+	 * データフレームです。
+	 */
+	public static final byte DATA = 0x01;
+
+	/**
+	 * 受信側が読み込んだバイト数を4バイト整数で通知するフレームです。 送信側はその分だけ追加でデータを送ることができます。
+	 */
+	public static final byte WINDOW = 0x02;
+
+	/**
+	 * ストリームを終了するフレームです。 受信したストリームには、それ以上データを送ることはできません。
+	 */
+	public static final byte CLOSE = 0x03;
+
+	/**
+	 * 1つのフレームで送るデータの最大のバイト数です。
+	 */
+	public static final int MAX_DATA = 16 * 1024;
+
+	/**
+	 * 受信側がストリームごとに保持するデータの最大のバイト数です。
+	 */
+	public static final int WINDOW_SIZE = 256 * 1024;
+}
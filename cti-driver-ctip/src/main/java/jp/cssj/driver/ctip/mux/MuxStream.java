@@ -0,0 +1,457 @@
+package jp.cssj.driver.ctip.mux;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * {@link MuxConnection}の上の1つのストリームです。
+ * </p>
+ * <p>
+ * 受信したデータは{@link MuxFrames#WINDOW_SIZE}バイトまで保持され、読み込んだ分だけ相手側に追加の送信を許可します。
+ * 送信は相手側から許可された分だけ行い、それを超える場合は許可されるまで待ちます。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class MuxStream {
+	private static final Logger LOG = Logger.getLogger(MuxStream.class.getName());
+
+	private final MuxConnection connection;
+
+	private final int id;
+
+	/** 受信したデータ。 */
+	private final ArrayDeque<byte[]> received = new ArrayDeque<byte[]>();
+
+	/** 先頭のデータの読み込み位置。 */
+	private int pos = 0;
+
+	/** 保持しているデータのバイト数。 */
+	private int buffered = 0;
+
+	/** 相手側にまだ通知していない、読み込んだバイト数。 */
+	private int consumed = 0;
+
+	/** 相手側に送ることができるバイト数。 */
+	private int credit = MuxFrames.WINDOW_SIZE;
+
+	private boolean closed = false, remoteClosed = false;
+
+	private IOException error = null;
+
+	private InputStream input = null;
+
+	private Output output = null;
+
+	MuxStream(MuxConnection connection, int id) {
+		this.connection = connection;
+		this.id = id;
+	}
+
+	/**
+	 * ストリームIDを返します。
+	 *
+	 * @return ストリームID。
+	 */
+	public int getId() {
+		return this.id;
+	}
+
+	/**
+	 * ストリームを送受信する接続を返します。
+	 *
+	 * @return 接続。
+	 */
+	public MuxConnection getConnection() {
+		return this.connection;
+	}
+
+	synchronized void received(byte[] b, int off, int len) throws IOException {
+		if (this.closed || len == 0) {
+			return;
+		}
+		if (this.buffered + len > MuxFrames.WINDOW_SIZE) {
+			throw new IOException("ストリーム" + this.id + "の受信データが上限を超えました");
+		}
+		byte[] data = new byte[len];
+		System.arraycopy(b, off, data, 0, len);
+		this.received.addLast(data);
+		this.buffered += len;
+		this.notifyAll();
+	}
+
+	synchronized void credited(int increment) {
+		this.credit += increment;
+		if (this.credit < 0) {
+			this.credit = Integer.MAX_VALUE;
+		}
+		this.notifyAll();
+	}
+
+	synchronized void remoteClosed() {
+		this.remoteClosed = true;
+		this.notifyAll();
+	}
+
+	synchronized void failed(IOException e) {
+		if (this.error == null) {
+			this.error = e;
+		}
+		this.notifyAll();
+	}
+
+	/**
+	 * 受信したデータを読み込みます。
+	 *
+	 * @param b
+	 *            データを格納する配列。
+	 * @param off
+	 *            格納する位置。
+	 * @param len
+	 *            読み込む最大のバイト数。
+	 * @param block
+	 *            trueであれば、少なくとも1バイトを読み込むまでブロックします。
+	 * @return 読み込んだバイト数。 相手側がストリームを終了していれば-1。
+	 * @throws IOException
+	 */
+	public int read(byte[] b, int off, int len, boolean block) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int n = 0, increment = 0;
+		synchronized (this) {
+			long deadline = this.deadline();
+			while (this.buffered == 0) {
+				if (this.closed) {
+					throw new IOException("ストリームはクローズされています");
+				}
+				if (this.error != null) {
+					throw new IOException(this.error.getMessage(), this.error);
+				}
+				if (this.remoteClosed) {
+					return -1;
+				}
+				if (!block) {
+					return 0;
+				}
+				this.await(deadline, "Read timeout");
+			}
+			while (n < len && this.buffered > 0) {
+				byte[] data = this.received.getFirst();
+				int count = Math.min(len - n, data.length - this.pos);
+				System.arraycopy(data, this.pos, b, off + n, count);
+				n += count;
+				this.pos += count;
+				this.buffered -= count;
+				if (this.pos == data.length) {
+					this.received.removeFirst();
+					this.pos = 0;
+				}
+			}
+			if (!this.remoteClosed) {
+				// 保持できる量の4分の1を読み込むごとに通知する
+				this.consumed += n;
+				if (this.consumed >= MuxFrames.WINDOW_SIZE / 4) {
+					increment = this.consumed;
+					this.consumed = 0;
+				}
+			}
+		}
+		if (increment > 0) {
+			this.connection.writeWindow(this.id, increment);
+		}
+		return n;
+	}
+
+	/**
+	 * データを送ります。 相手側から許可された量を超える場合は、許可されるまでブロックします。
+	 *
+	 * @param b
+	 *            データ。
+	 * @param off
+	 *            データの開始位置。
+	 * @param len
+	 *            データの長さ。
+	 * @throws IOException
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = this.acquire(len, true);
+			this.connection.writeData(this.id, b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * ブロックせずに送ることができるだけデータを送ります。
+	 *
+	 * @param srcs
+	 *            バッファの配列。
+	 * @param offset
+	 *            最初のバッファの位置。
+	 * @param length
+	 *            バッファの数。
+	 * @return 送ったバイト数。
+	 * @throws IOException
+	 */
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long written = 0;
+		for (;;) {
+			long remaining = 0;
+			for (int i = 0; i < length; ++i) {
+				remaining += srcs[offset + i].remaining();
+			}
+			if (remaining <= 0) {
+				break;
+			}
+			int n = this.acquire((int) Math.min(remaining, MuxFrames.MAX_DATA), false);
+			if (n == 0) {
+				break;
+			}
+			byte[] frame = new byte[n];
+			for (int i = 0, pos = 0; pos < n; ++i) {
+				ByteBuffer src = srcs[offset + i];
+				int count = Math.min(src.remaining(), n - pos);
+				src.get(frame, pos, count);
+				pos += count;
+			}
+			this.connection.writeData(this.id, frame, 0, n);
+			written += n;
+		}
+		return written;
+	}
+
+	/**
+	 * 送ることができるバイト数を確保します。 一度に確保するのは1つのフレームで送ることができる量までです。
+	 *
+	 * @param block
+	 *            trueであれば、確保できるまでブロックします。
+	 * @return 確保したバイト数。
+	 */
+	private synchronized int acquire(int len, boolean block) throws IOException {
+		long deadline = this.deadline();
+		for (;;) {
+			if (this.closed) {
+				throw new IOException("ストリームはクローズされています");
+			}
+			if (this.error != null) {
+				throw new IOException(this.error.getMessage(), this.error);
+			}
+			if (this.remoteClosed) {
+				throw new IOException("ストリームは相手側でクローズされています");
+			}
+			if (this.credit > 0) {
+				break;
+			}
+			if (!block) {
+				return 0;
+			}
+			this.await(deadline, "Write timeout");
+		}
+		int n = Math.min(this.credit, Math.min(len, MuxFrames.MAX_DATA));
+		this.credit -= n;
+		return n;
+	}
+
+	/**
+	 * 読み込みまたは書き込みが可能になるまで待ちます。
+	 *
+	 * @param ops
+	 *            待機する操作（{@link SelectionKey#OP_READ}、{@link SelectionKey#OP_WRITE}）。
+	 * @param timeout
+	 *            タイムアウト（ミリ秒）。 0であれば無制限です。
+	 * @return 可能になった操作。 エラーが発生している場合は、操作を行うと例外が発生します。
+	 * @throws IOException
+	 *             タイムアウトした場合。
+	 */
+	public synchronized int await(int ops, long timeout) throws IOException {
+		long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+		for (;;) {
+			boolean done = this.closed || this.remoteClosed || this.error != null;
+			int ready = 0;
+			if ((ops & SelectionKey.OP_READ) != 0 && (this.buffered > 0 || done)) {
+				ready |= SelectionKey.OP_READ;
+			}
+			if ((ops & SelectionKey.OP_WRITE) != 0 && (this.credit > 0 || done)) {
+				ready |= SelectionKey.OP_WRITE;
+			}
+			if (ready != 0) {
+				return ready;
+			}
+			this.await(deadline, (ops & SelectionKey.OP_WRITE) != 0 ? "Write timeout" : "Read timeout");
+		}
+	}
+
+	private long deadline() {
+		long timeout = this.connection.getTimeout();
+		return timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+	}
+
+	private void await(long deadline, String message) throws IOException {
+		long rest = 0;
+		if (deadline != 0) {
+			rest = deadline - System.currentTimeMillis();
+			if (rest <= 0) {
+				throw new SocketTimeoutException(message);
+			}
+		}
+		try {
+			this.wait(rest);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * ストリームから読み込むInputStreamを返します。 データを受信するまでブロックする前に、{@link #getOutputStream()}
+	 * に書き込まれたデータを送ります。
+	 *
+	 * @return InputStream。
+	 */
+	public synchronized InputStream getInputStream() {
+		if (this.input == null) {
+			this.input = new InputStream() {
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return this.read(b, 0, 1) == -1 ? -1 : (b[0] & 0xFF);
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = MuxStream.this.read(b, off, len, false);
+					if (n != 0 || len == 0) {
+						return n;
+					}
+					MuxStream.this.flushOutput();
+					return MuxStream.this.read(b, off, len, true);
+				}
+
+				public int available() throws IOException {
+					synchronized (MuxStream.this) {
+						return MuxStream.this.buffered;
+					}
+				}
+
+				public void close() throws IOException {
+					MuxStream.this.close();
+				}
+			};
+		}
+		return this.input;
+	}
+
+	/**
+	 * ストリームに書き込むOutputStreamを返します。 書き込まれたデータは1つのフレームに収まるまで蓄積され、
+	 * {@link OutputStream#flush()}を呼び出すか、{@link #getInputStream()}から受信を待つときに送られます。
+	 *
+	 * @return OutputStream。
+	 */
+	public synchronized OutputStream getOutputStream() {
+		if (this.output == null) {
+			this.output = new Output();
+		}
+		return this.output;
+	}
+
+	private void flushOutput() throws IOException {
+		Output output;
+		synchronized (this) {
+			output = this.output;
+		}
+		if (output != null) {
+			output.flush();
+		}
+	}
+
+	/**
+	 * ストリームを終了します。 {@link #getOutputStream()}に書き込まれたデータは、終了する前に送られます。
+	 */
+	public void close() {
+		if (!this.connection.isOpen()) {
+			synchronized (this) {
+				this.closed = true;
+				this.notifyAll();
+			}
+			return;
+		}
+		try {
+			this.flushOutput();
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "ストリームのデータを送れませんでした", e);
+		}
+		boolean send;
+		synchronized (this) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			send = !this.remoteClosed && this.error == null;
+			this.received.clear();
+			this.buffered = 0;
+			this.notifyAll();
+		}
+		this.connection.remove(this);
+		if (send) {
+			try {
+				this.connection.writeClose(this.id);
+			} catch (IOException e) {
+				LOG.log(Level.FINE, "ストリームを終了できませんでした", e);
+			}
+		}
+	}
+
+	public String toString() {
+		return super.toString() + "[id=" + this.id + "]";
+	}
+
+	/**
+	 * 書き込まれたデータを1つのフレームに収まるまで蓄積します。
+	 */
+	private class Output extends OutputStream {
+		private final byte[] buff = new byte[MuxFrames.MAX_DATA];
+
+		private int count = 0;
+
+		public synchronized void write(int b) throws IOException {
+			if (this.count == this.buff.length) {
+				this.flush();
+			}
+			this.buff[this.count++] = (byte) b;
+		}
+
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			if (len >= this.buff.length) {
+				this.flush();
+				MuxStream.this.write(b, off, len);
+				return;
+			}
+			if (len > this.buff.length - this.count) {
+				this.flush();
+			}
+			System.arraycopy(b, off, this.buff, this.count, len);
+			this.count += len;
+		}
+
+		public synchronized void flush() throws IOException {
+			if (this.count > 0) {
+				int count = this.count;
+				this.count = 0;
+				MuxStream.this.write(this.buff, 0, count);
+			}
+		}
+
+		public void close() throws IOException {
+			MuxStream.this.close();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package jp.cssj.driver.ctip.mux;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+
+import jp.cssj.driver.ctip.common.WaitableChannel;
+
+/**
+ * <p>
+ * {@link MuxStream}を読み書きするチャネルです。
+ * </p>
+ * <p>
+ * 読み書きはブロッキングI/Oの設定に関わらずブロックせず、待機には{@link #await(int, long)}を使います。
+ * セレクタには登録できないため、ブロッキングI/Oのチャネルとして扱われるよう、デフォルトではブロッキングI/Oに設定されています。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class MuxStreamChannel extends SelectableChannel
+		implements ByteChannel, GatheringByteChannel, WaitableChannel {
+	private final MuxStream stream;
+
+	private final Object blockingLock = new Object();
+
+	private volatile boolean blocking = true;
+
+	public MuxStreamChannel(MuxStream stream) {
+		this.stream = stream;
+	}
+
+	/**
+	 * 読み書きするストリームを返します。
+	 *
+	 * @return ストリーム。
+	 */
+	public MuxStream getStream() {
+		return this.stream;
+	}
+
+	public int read(ByteBuffer dest) throws IOException {
+		if (!this.isOpen()) {
+			throw new ClosedChannelException();
+		}
+		if (dest.hasArray()) {
+			int len = this.stream.read(dest.array(), dest.arrayOffset() + dest.position(), dest.remaining(), false);
+			if (len > 0) {
+				dest.position(dest.position() + len);
+			}
+			return len;
+		}
+		byte[] b = new byte[Math.min(dest.remaining(), MuxFrames.MAX_DATA)];
+		int len = this.stream.read(b, 0, b.length, false);
+		if (len > 0) {
+			dest.put(b, 0, len);
+		}
+		return len;
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		return (int) this.write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return this.write(srcs, 0, srcs.length);
+	}
+
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		if (!this.isOpen()) {
+			throw new ClosedChannelException();
+		}
+		return this.stream.write(srcs, offset, length);
+	}
+
+	public int await(int ops, long timeout) throws IOException {
+		return this.stream.await(ops, timeout);
+	}
+
+	public SelectableChannel configureBlocking(boolean block) throws IOException {
+		this.blocking = block;
+		return this;
+	}
+
+	public Object blockingLock() {
+		return this.blockingLock;
+	}
+
+	public boolean isBlocking() {
+		return this.blocking;
+	}
+
+	public boolean isRegistered() {
+		return false;
+	}
+
+	public SelectionKey keyFor(Selector sel) {
+		return null;
+	}
+
+	public SelectorProvider provider() {
+		return SelectorProvider.provider();
+	}
+
+	public SelectionKey register(Selector sel, int ops, Object att) throws ClosedChannelException {
+		throw new IllegalBlockingModeException();
+	}
+
+	public int validOps() {
+		return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+	}
+
+	protected void implCloseChannel() throws IOException {
+		this.stream.close();
+	}
+}
@@ -3,7 +3,6 @@ package jp.cssj.driver.ctip.v1;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
 
 import jp.cssj.driver.ctip.common.ChannelIO;
 
@@ -177,18 +176,11 @@ public class V1RequestConsumer {
 
 			src.position(0);
 
-			for (;;) {
-				SelectionKey key = this.io.rwselect();
-				if (src.remaining() > 0 && key.isWritable()) {
-					this.io.getChannel().write(src);
+			this.io.writeAll(new ByteBuffer[] { src }, 0, 1, new ChannelIO.ReadListener() {
+				public void readable() throws IOException {
+					V1RequestConsumer.this.session.buildNext();
 				}
-				if (key.isReadable()) {
-					this.session.buildNext();
-				}
-				if (src.remaining() <= 0) {
-					break;
-				}
-			}
+			});
 
 			this.pos = 0;
 		}
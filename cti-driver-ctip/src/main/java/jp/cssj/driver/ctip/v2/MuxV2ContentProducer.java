@@ -0,0 +1,124 @@
+package jp.cssj.driver.ctip.v2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.NetworkChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.cssj.driver.ctip.common.ChannelIO;
+import jp.cssj.driver.ctip.mux.MuxConnection;
+import jp.cssj.driver.ctip.mux.MuxFrames;
+import jp.cssj.driver.ctip.mux.MuxStreamChannel;
+
+/**
+ * <p>
+ * 同じサーバーへの1つの接続の上で、複数のセッションの通信を行います（{@link MuxFrames}を参照）。
+ * </p>
+ * <p>
+ * 接続は同じURIのセッションで共有され、セッションごとに1つのストリームを使います。 接続が切断された場合は、次のセッションが新しく接続します。
+ * 接続自体の通信は、URIのスキームに対応するV2ContentProducerの接続で行います。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class MuxV2ContentProducer extends V2ContentProducer {
+	private static final Logger LOG = Logger.getLogger(MuxV2ContentProducer.class.getName());
+
+	/** URIごとの接続。 */
+	private static final Map<String, MuxConnection> CONNECTIONS = new HashMap<String, MuxConnection>();
+
+	private final V2ContentProducer transport;
+
+	/**
+	 * @param uri
+	 *            サーバーのURI。
+	 * @param encoding
+	 *            通信に使うキャラクタ・エンコーディング。
+	 * @param transport
+	 *            接続を行うV2ContentProducer。
+	 * @throws IOException
+	 */
+	public MuxV2ContentProducer(URI uri, String encoding, V2ContentProducer transport) throws IOException {
+		super(uri, encoding);
+		this.transport = transport;
+	}
+
+	protected ByteChannel createChannel() throws IOException {
+		return new MuxStreamChannel(this.getConnection().openStream());
+	}
+
+	private MuxConnection getConnection() throws IOException {
+		final String key = this.serverURI.toString();
+		synchronized (CONNECTIONS) {
+			MuxConnection connection = CONNECTIONS.get(key);
+			if (connection != null && connection.isOpen()) {
+				return connection;
+			}
+			// 受信は専用のスレッドで行うため、接続はブロッキングI/Oとする
+			this.transport.blocking = true;
+			ByteChannel channel = this.transport.createChannel();
+			if (channel instanceof NetworkChannel
+					&& ((NetworkChannel) channel).supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+				// フレームは送信側でまとめて書き込むため、小さなフレームを遅らせない
+				((NetworkChannel) channel).setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+			}
+			final ChannelIO io = new ChannelIO(channel, 0);
+			io.writeAll(ByteBuffer.wrap((MuxFrames.HEADER + "\n").getBytes("ISO-8859-1")));
+			InputStream in = new InputStream() {
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return this.read(b, 0, 1) == -1 ? -1 : (b[0] & 0xFF);
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException {
+					try {
+						return io.read(ByteBuffer.wrap(b, off, len), true);
+					} catch (EOFException e) {
+						return -1;
+					}
+				}
+
+				public void close() throws IOException {
+					io.close();
+				}
+			};
+			OutputStream out = new OutputStream() {
+				public void write(int b) throws IOException {
+					this.write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				public void write(byte[] b, int off, int len) throws IOException {
+					io.writeAll(ByteBuffer.wrap(b, off, len).slice());
+				}
+
+				public void close() throws IOException {
+					io.close();
+				}
+			};
+			final MuxConnection newConnection = new MuxConnection(in, out, 0, null);
+			Thread th = new Thread(MuxConnection.class.getName() + " " + key) {
+				public void run() {
+					try {
+						newConnection.serve();
+					} catch (IOException e) {
+						LOG.log(Level.FINE, key + "への接続が切断されました", e);
+					}
+				}
+			};
+			th.setDaemon(true);
+			th.start();
+			CONNECTIONS.put(key, newConnection);
+			return newConnection;
+		}
+	}
+}
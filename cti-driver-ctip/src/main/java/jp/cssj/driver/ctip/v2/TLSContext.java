@@ -0,0 +1,168 @@
+package jp.cssj.driver.ctip.v2;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * <p>
+ * TLS接続に使う{@link SSLContext}と、ハンドシェイクの統計です。
+ * </p>
+ * <p>
+ * SSLContextは設定ごとに1つだけ作成され、全ての接続で共有されます。
+ * 接続先のホスト名とポート番号を指定してSSLEngineを作成するため、 同じサーバーへの2回目以降の接続ではTLSセッションが再開され、
+ * ハンドシェイクが短縮されます。
+ * </p>
+ * <p>
+ * システムプロパティ <tt>jp.cssj.driver.tls.trust</tt> がtrue(デフォルト)であれば、サーバーの証明書を検証しません。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class TLSContext {
+	/**
+	 * サーバーの証明書を検証しない場合にtrueを設定するシステムプロパティです。
+	 */
+	public static final String TRUST = "jp.cssj.driver.tls.trust";
+
+	private static TLSContext trustAll = null, verify = null;
+
+	private final SSLContext sslContext;
+
+	private long fullHandshakes = 0, resumedHandshakes = 0, handshakeTime = 0;
+
+	private TLSContext(boolean trust) throws GeneralSecurityException {
+		this.sslContext = SSLContext.getInstance("TLS");
+		if (trust) {
+			TrustManager[] tm = { new X509TrustManager() {
+				public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+				}
+
+				public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+				}
+
+				public X509Certificate[] getAcceptedIssuers() {
+					return null;
+				}
+			} };
+			this.sslContext.init(null, tm, null);
+		} else {
+			this.sslContext.init(null, null, null);
+		}
+	}
+
+	/**
+	 * システムプロパティ{@link #TRUST}の設定に対応するTLSContextを返します。
+	 *
+	 * @return TLSContext。
+	 * @throws IOException
+	 *             SSLContextを作成できない場合。
+	 */
+	public static synchronized TLSContext getInstance() throws IOException {
+		boolean trust = System.getProperty(TRUST, "true").equalsIgnoreCase("true");
+		try {
+			if (trust) {
+				if (trustAll == null) {
+					trustAll = new TLSContext(true);
+				}
+				return trustAll;
+			}
+			if (verify == null) {
+				verify = new TLSContext(false);
+			}
+			return verify;
+		} catch (GeneralSecurityException e) {
+			IOException ioe = new IOException();
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+
+	/**
+	 * クライアントモードのSSLEngineを作成します。
+	 *
+	 * @param host
+	 *            接続先のホスト名。
+	 * @param port
+	 *            接続先のポート番号。
+	 * @return SSLEngine。
+	 */
+	SSLEngine createEngine(String host, int port) {
+		SSLEngine engine = this.sslContext.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		engine.setEnableSessionCreation(true);
+		return engine;
+	}
+
+	/**
+	 * ハンドシェイクが終了したときに呼ばれます。
+	 *
+	 * @param session
+	 *            確立したTLSセッション。
+	 * @param start
+	 *            ハンドシェイクを開始した時刻(ミリ秒)。
+	 * @param nanos
+	 *            ハンドシェイクに要した時間(ナノ秒)。
+	 */
+	void handshaked(SSLSession session, long start, long nanos) {
+		// 再開されたセッションは、以前のハンドシェイクで作成されたもの
+		boolean resumed = session.getCreationTime() < start;
+		synchronized (this) {
+			if (resumed) {
+				++this.resumedHandshakes;
+			} else {
+				++this.fullHandshakes;
+			}
+			this.handshakeTime += nanos;
+		}
+	}
+
+	/**
+	 * 共有されているSSLContextを返します。
+	 *
+	 * @return SSLContext。
+	 */
+	public SSLContext getSSLContext() {
+		return this.sslContext;
+	}
+
+	/**
+	 * 完全なハンドシェイクを行った回数を返します。
+	 *
+	 * @return 回数。
+	 */
+	public synchronized long getFullHandshakeCount() {
+		return this.fullHandshakes;
+	}
+
+	/**
+	 * TLSセッションを再開した回数を返します。
+	 *
+	 * @return 回数。
+	 */
+	public synchronized long getResumedHandshakeCount() {
+		return this.resumedHandshakes;
+	}
+
+	/**
+	 * ハンドシェイクに要した時間の合計を返します。
+	 *
+	 * @return ミリ秒。
+	 */
+	public synchronized long getHandshakeTime() {
+		return this.handshakeTime / 1000000L;
+	}
+
+	public synchronized String toString() {
+		return super.toString() + "[full=" + this.fullHandshakes + ",resumed=" + this.resumedHandshakes
+				+ ",handshakeTime=" + this.getHandshakeTime() + "ms]";
+	}
+}
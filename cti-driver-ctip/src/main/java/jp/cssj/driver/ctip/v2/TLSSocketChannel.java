@@ -1,210 +1,473 @@
 package jp.cssj.driver.ctip.v2;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLSession;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 
-public class TLSSocketChannel extends SelectableChannel implements ByteChannel {
-	private ByteBuffer peerAppData, appData, netData, peerNetData;
+import jp.cssj.driver.ctip.common.BufferedChannel;
+
+/**
+ * <p>
+ * SSLEngineによりTLSで通信するチャネルです。
+ * </p>
+ * <p>
+ * 受信したTLSレコードは、読み込み先のバッファに十分な空きがあれば直接復号し、そうでなければ内部のバッファに復号してからまとめて転送します。
+ * 書き込みでは複数のバッファをまとめて1つのレコードに暗号化します。 非ブロッキングI/Oで暗号化したデータを送りきれなかった場合は、
+ * 残りを保持して次の書き込みか{@link #flush()}で送ります。
+ * </p>
+ * <p>
+ * ハンドシェイクと切断は下層のソケットを非ブロッキングI/Oに切り替えてセレクタで待機し、{@link #setTimeout(long)}で設定した時間を超えると例外を発生します。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class TLSSocketChannel extends SelectableChannel implements ByteChannel, GatheringByteChannel, BufferedChannel {
+	private static final Logger LOG = Logger.getLogger(TLSSocketChannel.class.getName());
+
+	private static final ByteBuffer[] EMPTY = { ByteBuffer.allocate(0) };
+
+	/** 一度のシステムコールで読み書きするTLSレコードの最大数です。 */
+	private static final int RECORDS = 4;
+
+	/** 切断時にclose_notifyの送信を待つ最大のミリ秒です。 */
+	private static final long CLOSE_TIMEOUT = 1000L;
+
+	/**
+	 * 読み込みと書き込みをそれぞれ排他制御します。 SSLEngineのwrapとunwrapは並行して呼び出すことができます。
+	 * synchronizedと異なり、仮想スレッドがI/Oで待機している間もキャリアスレッドを占有しません。
+	 */
+	private final ReentrantLock readLock = new ReentrantLock(), writeLock = new ReentrantLock();
+
 	private final SocketChannel channel;
-	private SSLEngineResult res;
+	private TLSContext context;
 	private SSLEngine engine;
-	
+	private long timeout = 0;
+
+	/** 受信したが復号していないデータ。 位置から上限までが未処理です。 */
+	private ByteBuffer netIn;
+
+	/** 復号したがまだ読み込まれていないデータ。 位置から上限までが未処理です。 */
+	private ByteBuffer appIn;
+
+	/** 暗号化したがまだ送信していないデータ。 位置から上限までが未送信です。 */
+	private ByteBuffer netOut;
+
 	public TLSSocketChannel(SocketChannel sc) {
+		this(sc, null);
+	}
+
+	/**
+	 * @param sc
+	 *            下層のソケットチャネル。
+	 * @param context
+	 *            SSLEngineを作成するTLSContext。 nullであれば{@link TLSContext#getInstance()}。
+	 */
+	public TLSSocketChannel(SocketChannel sc, TLSContext context) {
+		super();
 		this.channel = sc;
+		this.context = context;
+	}
+
+	/**
+	 * ハンドシェイクと切断で待機する時間を設定します。
+	 *
+	 * @param timeout
+	 *            ミリ秒。 0であれば無制限。
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
 	}
 
 	public boolean connect(SocketAddress remote) throws IOException {
 		if (!this.channel.connect(remote)) {
 			return false;
 		}
-		SSLContext sslContext = null;
-		try {
-			sslContext = SSLContext.getInstance("TLS");
+		if (this.context == null) {
+			this.context = TLSContext.getInstance();
+		}
+		// ホスト名とポート番号により、以前のTLSセッションを再開できる
+		if (remote instanceof InetSocketAddress) {
+			InetSocketAddress address = (InetSocketAddress) remote;
+			this.engine = this.context.createEngine(address.getHostString(), address.getPort());
+		} else {
+			this.engine = this.context.createEngine(null, -1);
+		}
+		SSLSession session = this.engine.getSession();
+		this.netIn = (ByteBuffer) ByteBuffer.allocate(session.getPacketBufferSize() * RECORDS).limit(0);
+		this.netOut = (ByteBuffer) ByteBuffer.allocate(session.getPacketBufferSize() * RECORDS).limit(0);
+		this.appIn = (ByteBuffer) ByteBuffer.allocate(session.getApplicationBufferSize()).limit(0);
 
-			if (System.getProperty("jp.cssj.driver.tls.trust", "true").equalsIgnoreCase("true")) {
-				TrustManager[] tm = { new X509TrustManager() {
-					public void checkClientTrusted(X509Certificate[] chain, String authType)
-							throws CertificateException {
+		long start = System.currentTimeMillis();
+		long nanos = System.nanoTime();
+		this.readLock.lock();
+		this.writeLock.lock();
+		try {
+			boolean blocking = this.channel.isBlocking();
+			if (blocking) {
+				this.channel.configureBlocking(false);
+			}
+			Selector selector = null;
+			try {
+				this.engine.beginHandshake();
+				for (;;) {
+					if (!this.flushNet()) {
+						selector = this.await(selector, SelectionKey.OP_WRITE, this.timeout);
+						continue;
 					}
-
-					public void checkServerTrusted(X509Certificate[] chain, String authType)
-							throws CertificateException {
+					SSLEngineResult.HandshakeStatus hs = this.engine.getHandshakeStatus();
+					if (hs == SSLEngineResult.HandshakeStatus.FINISHED
+							|| hs == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+						break;
 					}
+					switch (hs) {
+					case NEED_TASK:
+						this.runTasks();
+						break;
+
+					case NEED_WRAP:
+						this.wrap(EMPTY, 0, 1);
+						break;
 
-					public X509Certificate[] getAcceptedIssuers() {
-						return null;
+					default:
+						// NEED_UNWRAP
+						if (this.unwrap(this.appIn).getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+							int len = this.fillNet();
+							if (len == -1) {
+								throw new EOFException();
+							}
+							if (len == 0) {
+								selector = this.await(selector, SelectionKey.OP_READ, this.timeout);
+							}
+						}
+						break;
 					}
-				} };
-				sslContext.init(null, tm, null);
-			} else {
-				sslContext.init(null, null, null);
+				}
+			} finally {
+				if (selector != null) {
+					selector.close();
+				}
+				if (blocking) {
+					this.channel.configureBlocking(true);
+				}
 			}
+		} finally {
+			this.writeLock.unlock();
+			this.readLock.unlock();
+		}
+		this.context.handshaked(this.engine.getSession(), start, System.nanoTime() - nanos);
+		return true;
+	}
 
-			this.engine = sslContext.createSSLEngine();
-			this.engine.setUseClientMode(true);
-			this.engine.setEnableSessionCreation(true);
-			SSLSession session = this.engine.getSession();
-			int appBufferMax = session.getApplicationBufferSize();
-			int netBufferMax = session.getPacketBufferSize();
-
-			this.appData = ByteBuffer.allocate(appBufferMax);
-			this.netData = ByteBuffer.allocate(netBufferMax);
-			this.peerAppData = ByteBuffer.allocate(appBufferMax);
-			this.peerNetData = ByteBuffer.allocate(netBufferMax);
-			this.appData.clear();
-
-			this.engine.beginHandshake();
-			SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
-			LOOP: for (;;) {
-				switch (hs) {
-				case NEED_UNWRAP:
-					this.peerNetData.clear();
-					while (this.channel.read(this.peerNetData) < 1) {
-						Thread.sleep(30);
-					}
-					this.peerNetData.flip();
-					this.unwrap(this.peerNetData);
-					if (this.res.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED) {
-						this.appData.clear();
-						this.write(this.appData);
-					}
-					break;
+	/**
+	 * 下層のソケットが読み込みまたは書き込み可能になるまで待ちます。
+	 */
+	private Selector await(Selector selector, int ops, long timeout) throws IOException {
+		if (selector == null) {
+			selector = this.channel.provider().openSelector();
+			this.channel.register(selector, ops);
+		} else {
+			selector.keys().iterator().next().interestOps(ops);
+		}
+		if (selector.select(timeout) <= 0) {
+			throw new IOException((ops & SelectionKey.OP_WRITE) != 0 ? "Write timeout" : "Read timeout");
+		}
+		selector.selectedKeys().clear();
+		return selector;
+	}
 
-				case NEED_WRAP:
-					this.appData.clear();
-					this.write(this.appData);
-					break;
+	private void runTasks() {
+		Runnable task;
+		while ((task = this.engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
 
-				case NEED_TASK:
-					Runnable task;
-					while ((task = this.engine.getDelegatedTask()) != null) {
-						task.run();
-					}
-					break;
+	/**
+	 * ハンドシェイク以外で要求された処理を行います。 TLS 1.3の鍵の更新などで、読み込み中に送信が必要になることがあります。
+	 */
+	private void handshakeStatus(SSLEngineResult res) throws IOException {
+		SSLEngineResult.HandshakeStatus hs = res.getHandshakeStatus();
+		if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+			this.runTasks();
+			hs = this.engine.getHandshakeStatus();
+		}
+		if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+			this.writeLock.lock();
+			try {
+				if (this.netOut.hasRemaining()) {
+					this.flushNet();
+				}
+				if (!this.netOut.hasRemaining()) {
+					this.wrap(EMPTY, 0, 1);
+					this.flushNet();
+				}
+			} finally {
+				this.writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * 受信したデータを1つのTLSレコードの分だけ復号します。
+	 *
+	 * @param dest
+	 *            復号したデータの格納先。 appInであれば、格納したデータは位置から上限までになります。
+	 */
+	private SSLEngineResult unwrap(ByteBuffer dest) throws IOException {
+		boolean internal = dest == this.appIn;
+		for (;;) {
+			if (internal) {
+				this.appIn.compact();
+			}
+			SSLEngineResult res;
+			try {
+				res = this.engine.unwrap(this.netIn, internal ? this.appIn : dest);
+			} finally {
+				if (internal) {
+					this.appIn.flip();
+				}
+			}
+			switch (res.getStatus()) {
+			case BUFFER_OVERFLOW:
+				if (!internal) {
+					return res;
+				}
+				ByteBuffer appIn = ByteBuffer
+						.allocate(this.appIn.remaining() + this.engine.getSession().getApplicationBufferSize());
+				appIn.put(this.appIn);
+				appIn.flip();
+				this.appIn = appIn;
+				continue;
 
-				case FINISHED:
-				case NOT_HANDSHAKING:
-					break LOOP;
+			case BUFFER_UNDERFLOW:
+				int packetSize = this.engine.getSession().getPacketBufferSize();
+				if (this.netIn.capacity() < packetSize) {
+					ByteBuffer netIn = ByteBuffer.allocate(packetSize);
+					netIn.put(this.netIn);
+					netIn.flip();
+					this.netIn = netIn;
+				}
+				return res;
 
-				default:
-					throw new IllegalStateException();
+			default:
+				if (res.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					this.runTasks();
 				}
-				hs = this.res.getHandshakeStatus();
+				return res;
 			}
-			this.peerAppData.clear();
-			this.peerAppData.flip();
-		} catch (Exception e) {
-			IOException ioe = new IOException();
-			ioe.initCause(e);
-			throw ioe;
 		}
-		return true;
 	}
 
-	private synchronized ByteBuffer unwrap(ByteBuffer b) throws SSLException, IOException {
-		this.peerAppData.clear();
-		LOOP: while (b.hasRemaining()) {
-			this.res = this.engine.unwrap(b, this.peerAppData);
-			switch (this.res.getHandshakeStatus()) {
-			case NEED_TASK:
-				Runnable task;
-				while ((task = this.engine.getDelegatedTask()) != null) {
-					task.run();
-				}
-				break;
-			case FINISHED:
-			case NOT_HANDSHAKING:
-			case NEED_UNWRAP:
-			case NEED_WRAP:
-				switch (this.res.getStatus()) {
-				case BUFFER_OVERFLOW:
-					ByteBuffer tmp = ByteBuffer.allocate(this.peerAppData.capacity() * 3 / 2);
-					this.peerAppData.flip();
-					tmp.put(this.peerAppData);
-					this.peerAppData = tmp;
-					break;
-				case BUFFER_UNDERFLOW:
-					break LOOP;
-				default:
-					break;
+	/**
+	 * データを1つのTLSレコードに暗号化してnetOutに追加します。 netOutに空きがなければBUFFER_OVERFLOWを返します。
+	 */
+	private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		for (;;) {
+			this.netOut.compact();
+			SSLEngineResult res;
+			try {
+				res = this.engine.wrap(srcs, offset, length, this.netOut);
+			} finally {
+				this.netOut.flip();
+			}
+			switch (res.getStatus()) {
+			case BUFFER_OVERFLOW:
+				if (this.netOut.hasRemaining()) {
+					// 送信してから続ける
+					return res;
 				}
-				break;
+				this.netOut = (ByteBuffer) ByteBuffer
+						.allocate(this.netOut.capacity() + this.engine.getSession().getPacketBufferSize()).limit(0);
+				continue;
+
 			default:
-				throw new IllegalStateException(String.valueOf(this.res.getHandshakeStatus()));
+				if (res.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					this.runTasks();
+				}
+				return res;
 			}
 		}
-		return this.peerAppData;
 	}
 
-	public synchronized int write(ByteBuffer src) throws IOException {
-		this.netData.clear();
-		this.res = this.engine.wrap(src, this.netData);
-		this.netData.flip();
-		return this.channel.write(this.netData);
+	/**
+	 * ソケットからnetInにデータを読み込みます。
+	 */
+	private int fillNet() throws IOException {
+		this.netIn.compact();
+		try {
+			return this.channel.read(this.netIn);
+		} finally {
+			this.netIn.flip();
+		}
 	}
 
-	public synchronized int read(ByteBuffer dest) throws IOException {
-		int amount = 0, limit;
-		if (this.peerAppData.hasRemaining()) {
-			limit = Math.min(this.peerAppData.remaining(), dest.remaining());
-			for (int i = 0; i < limit; i++) {
-				dest.put(this.peerAppData.get());
-				amount++;
+	/**
+	 * netOutのデータをソケットに書き込みます。
+	 *
+	 * @return 全て書き込んだ場合はtrue。
+	 */
+	private boolean flushNet() throws IOException {
+		while (this.netOut.hasRemaining()) {
+			if (this.channel.write(this.netOut) <= 0) {
+				return false;
 			}
-			return amount;
 		}
-		if (this.peerNetData.hasRemaining()) {
-			this.unwrap(this.peerNetData);
-			this.peerAppData.flip();
-			limit = Math.min(this.peerAppData.limit(), dest.remaining());
-			for (int i = 0; i < limit; i++) {
-				dest.put(this.peerAppData.get());
-				amount++;
+		return true;
+	}
+
+	/**
+	 * appInからdestへ転送できるだけ転送します。
+	 */
+	private int transfer(ByteBuffer dest) {
+		int len = Math.min(this.appIn.remaining(), dest.remaining());
+		if (len == this.appIn.remaining()) {
+			dest.put(this.appIn);
+		} else {
+			int limit = this.appIn.limit();
+			this.appIn.limit(this.appIn.position() + len);
+			dest.put(this.appIn);
+			this.appIn.limit(limit);
+		}
+		return len;
+	}
+
+	public int read(ByteBuffer dest) throws IOException {
+		this.readLock.lock();
+		try {
+			if (this.appIn.hasRemaining()) {
+				return this.transfer(dest);
 			}
-			if (this.res.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW) {
-				this.peerNetData.clear();
-				this.peerNetData.flip();
-				return amount;
+			int total = 0;
+			for (;;) {
+				if (this.netIn.hasRemaining()) {
+					// 十分な空きがあれば、読み込み先に直接復号する
+					boolean direct = dest.remaining() >= this.engine.getSession().getApplicationBufferSize();
+					int pos = dest.position();
+					SSLEngineResult res = this.unwrap(direct ? dest : this.appIn);
+					if (res.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+						// 直接復号できなかった
+						res = this.unwrap(this.appIn);
+						direct = false;
+					}
+					this.handshakeStatus(res);
+					int len = direct ? dest.position() - pos : this.transfer(dest);
+					total += len;
+					if (res.getStatus() == SSLEngineResult.Status.CLOSED) {
+						return total > 0 ? total : -1;
+					}
+					if (res.getStatus() == SSLEngineResult.Status.OK
+							&& (len == 0 || (direct && this.hasRecord()))) {
+						// 受信済みのレコードを続けて復号する
+						continue;
+					}
+				}
+				if (total > 0) {
+					return total;
+				}
+				int len = this.fillNet();
+				if (len <= 0) {
+					return len;
+				}
 			}
+		} finally {
+			this.readLock.unlock();
 		}
-		if (!this.peerNetData.hasRemaining()) {
-			this.peerNetData.clear();
-		} else {
-			this.peerNetData.compact();
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		return (int) this.write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return this.write(srcs, 0, srcs.length);
+	}
+
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		this.writeLock.lock();
+		try {
+			if (!this.flushNet()) {
+				return 0;
+			}
+			long written = 0;
+			for (;;) {
+				boolean remaining = false;
+				for (int i = 0; i < length; ++i) {
+					if (srcs[offset + i].hasRemaining()) {
+						remaining = true;
+						break;
+					}
+				}
+				if (!remaining) {
+					this.flushNet();
+					return written;
+				}
+				SSLEngineResult res = this.wrap(srcs, offset, length);
+				if (res.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new SSLException("Outbound closed");
+				}
+				written += res.bytesConsumed();
+				if (res.getStatus() == SSLEngineResult.Status.OK) {
+					// 空きがあれば複数のレコードをまとめて送る
+					continue;
+				}
+				if (!this.flushNet()) {
+					// 送りきれなかったデータは次の書き込みで送る
+					return written;
+				}
+			}
+		} finally {
+			this.writeLock.unlock();
 		}
+	}
 
-		if (this.channel.read(this.peerNetData) == -1) {
-			this.peerNetData.clear();
-			this.peerNetData.flip();
-			return -1;
+	public boolean flush() throws IOException {
+		this.writeLock.lock();
+		try {
+			return this.flushNet();
+		} finally {
+			this.writeLock.unlock();
 		}
-		this.peerNetData.flip();
-		this.unwrap(this.peerNetData);
-		this.peerAppData.flip();
-		limit = Math.min(this.peerAppData.limit(), dest.remaining());
-		for (int i = 0; i < limit; i++) {
-			dest.put(this.peerAppData.get());
-			amount++;
+	}
+
+	public boolean hasBufferedInput() {
+		this.readLock.lock();
+		try {
+			return this.appIn.hasRemaining() || this.hasRecord();
+		} finally {
+			this.readLock.unlock();
 		}
-		return amount;
+	}
+
+	/**
+	 * 完全なTLSレコードを受信済みであればtrueを返します。
+	 */
+	private boolean hasRecord() {
+		ByteBuffer netIn = this.netIn;
+		if (netIn.remaining() < 5) {
+			return false;
+		}
+		int pos = netIn.position();
+		int length = ((netIn.get(pos + 3) & 0xFF) << 8) | (netIn.get(pos + 4) & 0xFF);
+		return netIn.remaining() >= 5 + length;
 	}
 
 	public boolean isConnected() {
@@ -243,39 +506,39 @@ public class TLSSocketChannel extends SelectableChannel implements ByteChannel {
 		return this.channel.validOps();
 	}
 
-	protected synchronized void implCloseChannel() throws IOException {
-		this.engine.closeOutbound();
-		LOOP: while (!this.engine.isOutboundDone()) {
-			this.appData.clear();
-			this.netData.clear();
-			SSLEngineResult res = this.engine.wrap(this.appData, this.netData);
-			switch (res.getStatus()) {
-			case BUFFER_OVERFLOW:
-				ByteBuffer tmp = ByteBuffer.allocate(this.netData.capacity() * 3 / 2);
-				this.netData.flip();
-				tmp.put(this.netData);
-				this.netData = tmp;
-				break;
-			case CLOSED:
-				break LOOP;
-			default:
-				break;
-			}
-
-			while (this.netData.hasRemaining()) {
-				int num = this.channel.write(this.netData);
-				if (num == -1) {
-					break;
-				} else if (num == 0) {
-					try {
-						Thread.sleep(30);
-					} catch (InterruptedException e) {
-						continue;
+	protected void implCloseChannel() throws IOException {
+		this.writeLock.lock();
+		try {
+			if (this.engine != null && this.channel.isOpen()) {
+				// close_notifyを送る
+				Selector selector = null;
+				try {
+					if (this.channel.isBlocking() && !this.channel.isRegistered()) {
+						this.channel.configureBlocking(false);
+					}
+					this.engine.closeOutbound();
+					while (!this.engine.isOutboundDone() || this.netOut.hasRemaining()) {
+						if (!this.flushNet()) {
+							long timeout = this.timeout > 0 ? Math.min(this.timeout, CLOSE_TIMEOUT) : CLOSE_TIMEOUT;
+							selector = this.await(selector, SelectionKey.OP_WRITE, timeout);
+							continue;
+						}
+						if (this.engine.isOutboundDone()) {
+							break;
+						}
+						this.wrap(EMPTY, 0, 1);
+					}
+				} catch (IOException e) {
+					LOG.log(Level.FINE, "close_notifyを送信できませんでした", e);
+				} finally {
+					if (selector != null) {
+						selector.close();
 					}
 				}
-				this.netData.compact();
 			}
+			this.channel.close();
+		} finally {
+			this.writeLock.unlock();
 		}
-		this.channel.close();
 	}
-}
\ No newline at end of file
+}
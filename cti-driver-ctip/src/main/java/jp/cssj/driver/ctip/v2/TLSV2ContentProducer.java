@@ -15,8 +15,9 @@ public class TLSV2ContentProducer extends V2ContentProducer {
 	protected ByteChannel createChannel(InetSocketAddress address) throws IOException {
 		SocketChannel socketChannel = SelectorProvider.provider().openSocketChannel();
 		TLSSocketChannel channel = new TLSSocketChannel(socketChannel);
+		channel.setTimeout(this.timeout);
 		channel.connect(address);
-		channel.configureBlocking(true);
+		channel.configureBlocking(this.blocking);
 		return channel;
 	}
 }
@@ -0,0 +1,35 @@
+package jp.cssj.driver.ctip.v2;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+import jp.cssj.driver.ctip.common.Platform;
+
+/**
+ * <p>
+ * Unixドメインソケットでサーバーに接続します。
+ * </p>
+ * <p>
+ * URIのパスがソケットファイルのパスになります。 JDK 16以降で動作します。
+ * </p>
+ * 
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class UnixV2ContentProducer extends V2ContentProducer {
+	public UnixV2ContentProducer(URI uri, String encoding) throws IOException {
+		super(uri, encoding);
+	}
+
+	protected ByteChannel createChannel() throws IOException {
+		String path = this.serverURI.getPath();
+		if (path == null || path.length() == 0) {
+			throw new IOException("ソケットファイルのパスが指定されていません:" + this.serverURI);
+		}
+		SocketChannel socketChannel = Platform.openUnixSocketChannel(path);
+		socketChannel.configureBlocking(this.blocking);
+		return socketChannel;
+	}
+}
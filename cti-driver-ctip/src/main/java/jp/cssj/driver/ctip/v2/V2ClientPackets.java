@@ -47,6 +47,14 @@ public interface V2ClientPackets {
 	 */
 	public static final byte MISSING_RESOURCE = 0x22;
 
+	/**
+	 * リソースの本体の代わりに、内容のダイジェストと長さを送るパケットです。
+	 * サーバーは{@link V2ServerPackets#RESOURCE_STATUS}で応答します。
+	 * 
+	 * @see V2Extensions#CONTENT_ADDRESSED
+	 */
+	public static final byte RESOURCE_DIGEST = 0x23;
+
 	/**
 	 * データの終了を示すパケットです。
 	 */
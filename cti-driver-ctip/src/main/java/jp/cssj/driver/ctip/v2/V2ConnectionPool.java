@@ -0,0 +1,488 @@
+package jp.cssj.driver.ctip.v2;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * 認証済みのCTIP 2.0接続を再利用するためのプールです。
+ * </p>
+ * <p>
+ * セッションをクローズすると、接続はRESETパケットでサーバー側の状態をリセットした上でプールに戻されます。
+ * 接続は、サーバーのURI、ユーザー、パスワードが全て一致するセッションの間でのみ再利用されます。
+ * プールから接続を取り出す際には、接続が切断されていないか、未読のデータが残っていないかを検査します。
+ * </p>
+ * <p>
+ * 待機中の接続はサーバーのワーカースレッドを占有し続けるため、デフォルトでは接続を保持しません（{@link #getMaxIdle()}が0）。
+ * 待機時間の上限（{@link #getIdleTimeout()}）は、サーバーのタイムアウトよりも短くしてください。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class V2ConnectionPool {
+	/**
+	 * 同じ接続先に対して保持する待機中の接続の最大数を設定するシステムプロパティです。
+	 */
+	public static final String MAX_IDLE = "jp.cssj.driver.ctip.pool.maxIdle";
+
+	/**
+	 * 同じ接続先に対する接続（使用中と待機中の合計）の最大数を設定するシステムプロパティです。
+	 */
+	public static final String MAX_TOTAL = "jp.cssj.driver.ctip.pool.maxTotal";
+
+	/**
+	 * 待機中の接続を破棄するまでの時間（ミリ秒）を設定するシステムプロパティです。
+	 */
+	public static final String IDLE_TIMEOUT = "jp.cssj.driver.ctip.pool.idleTimeout";
+
+	/**
+	 * 接続数が上限に達している場合に待つ時間（ミリ秒）を設定するシステムプロパティです。
+	 */
+	public static final String MAX_WAIT = "jp.cssj.driver.ctip.pool.maxWait";
+
+	/**
+	 * プールされる接続です。
+	 */
+	static class Connection {
+		final String key;
+
+		final V2ContentProducer producer;
+
+		final V2RequestConsumer request;
+
+		long lastUsed;
+
+		Connection(String key, V2ContentProducer producer, V2RequestConsumer request) {
+			this.key = key;
+			this.producer = producer;
+			this.request = request;
+		}
+	}
+
+	/**
+	 * 同じ接続先に対する接続の集まりです。
+	 */
+	private static class Entry {
+		/** 待機中の接続。最後に使われたものが先頭です。 */
+		final LinkedList<Connection> idle = new LinkedList<Connection>();
+
+		/** 使用中と待機中の接続の合計。 */
+		int total = 0;
+	}
+
+	private final Map<String, Entry> keyToEntry = new HashMap<String, Entry>();
+
+	private int maxIdle, maxTotal;
+
+	private long idleTimeout, maxWait;
+
+	private long created = 0, reused = 0, destroyed = 0, invalid = 0;
+
+	private Thread evictor = null;
+
+	/**
+	 * システムプロパティの設定でプールを構築します。
+	 */
+	public V2ConnectionPool() {
+		this.maxIdle = Integer.getInteger(MAX_IDLE, 0);
+		this.maxTotal = Integer.getInteger(MAX_TOTAL, 0);
+		this.idleTimeout = Long.getLong(IDLE_TIMEOUT, 60000L);
+		this.maxWait = Long.getLong(MAX_WAIT, 30000L);
+	}
+
+	/**
+	 * 接続を再利用するかどうかを返します。
+	 *
+	 * @return 待機中の接続を保持する場合はtrue。
+	 */
+	public synchronized boolean isEnabled() {
+		return this.maxIdle > 0;
+	}
+
+	/**
+	 * 同じ接続先に対して保持する待機中の接続の最大数を返します。
+	 *
+	 * @return 待機中の接続の最大数。0であれば接続を再利用しません。
+	 */
+	public synchronized int getMaxIdle() {
+		return this.maxIdle;
+	}
+
+	/**
+	 * 同じ接続先に対して保持する待機中の接続の最大数を設定します。
+	 *
+	 * @param maxIdle
+	 *            待機中の接続の最大数。0であれば接続を再利用しません。
+	 */
+	public synchronized void setMaxIdle(int maxIdle) {
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * 同じ接続先に対する接続（使用中と待機中の合計）の最大数を返します。
+	 *
+	 * @return 接続の最大数。0以下であれば制限しません。
+	 */
+	public synchronized int getMaxTotal() {
+		return this.maxTotal;
+	}
+
+	/**
+	 * 同じ接続先に対する接続（使用中と待機中の合計）の最大数を設定します。
+	 *
+	 * @param maxTotal
+	 *            接続の最大数。0以下であれば制限しません。
+	 */
+	public synchronized void setMaxTotal(int maxTotal) {
+		this.maxTotal = maxTotal;
+		this.notifyAll();
+	}
+
+	/**
+	 * 待機中の接続を破棄するまでの時間を返します。
+	 *
+	 * @return ミリ秒。
+	 */
+	public synchronized long getIdleTimeout() {
+		return this.idleTimeout;
+	}
+
+	/**
+	 * 待機中の接続を破棄するまでの時間を設定します。
+	 *
+	 * @param idleTimeout
+	 *            ミリ秒。
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * 接続数が上限に達している場合に、接続が返却されるのを待つ時間を返します。
+	 *
+	 * @return ミリ秒。
+	 */
+	public synchronized long getMaxWait() {
+		return this.maxWait;
+	}
+
+	/**
+	 * 接続数が上限に達している場合に、接続が返却されるのを待つ時間を設定します。
+	 *
+	 * @param maxWait
+	 *            ミリ秒。
+	 */
+	public synchronized void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * 新たに作成した接続の数を返します。
+	 *
+	 * @return 接続の数。
+	 */
+	public synchronized long getCreatedCount() {
+		return this.created;
+	}
+
+	/**
+	 * プールから再利用した接続の数を返します。
+	 *
+	 * @return 接続の数。
+	 */
+	public synchronized long getReusedCount() {
+		return this.reused;
+	}
+
+	/**
+	 * 破棄した接続の数を返します。
+	 *
+	 * @return 接続の数。
+	 */
+	public synchronized long getDestroyedCount() {
+		return this.destroyed;
+	}
+
+	/**
+	 * 取り出す際の検査で無効と判断された接続の数を返します。
+	 *
+	 * @return 接続の数。
+	 */
+	public synchronized long getInvalidCount() {
+		return this.invalid;
+	}
+
+	/**
+	 * 待機中の接続の数を返します。
+	 *
+	 * @return 接続の数。
+	 */
+	public synchronized int getIdleCount() {
+		int count = 0;
+		for (Entry entry : this.keyToEntry.values()) {
+			count += entry.idle.size();
+		}
+		return count;
+	}
+
+	/**
+	 * 使用中の接続の数を返します。
+	 *
+	 * @return 接続の数。
+	 */
+	public synchronized int getActiveCount() {
+		int count = 0;
+		for (Entry entry : this.keyToEntry.values()) {
+			count += entry.total - entry.idle.size();
+		}
+		return count;
+	}
+
+	/**
+	 * 待機中の接続を全て破棄します。
+	 */
+	public void clear() {
+		List<Connection> expired = new ArrayList<Connection>();
+		synchronized (this) {
+			for (Iterator<Entry> i = this.keyToEntry.values().iterator(); i.hasNext();) {
+				Entry entry = i.next();
+				entry.total -= entry.idle.size();
+				this.destroyed += entry.idle.size();
+				expired.addAll(entry.idle);
+				entry.idle.clear();
+				if (entry.total <= 0) {
+					i.remove();
+				}
+			}
+			this.notifyAll();
+		}
+		this.close(expired);
+	}
+
+	public synchronized String toString() {
+		return super.toString() + "[created=" + this.created + ",reused=" + this.reused + ",destroyed="
+				+ this.destroyed + ",invalid=" + this.invalid + ",idle=" + this.getIdleCount() + ",active="
+				+ this.getActiveCount() + "]";
+	}
+
+	/**
+	 * 接続を取り出します。再利用できる接続がなければ新たに接続します。
+	 *
+	 * @param uri
+	 *            サーバーのURI。
+	 * @param encoding
+	 *            通信に使うキャラクタ・エンコーディング。
+	 * @param user
+	 *            ユーザー。
+	 * @param password
+	 *            パスワード。
+	 * @return 接続。
+	 * @throws IOException
+	 */
+	Connection borrow(URI uri, String encoding, String user, String password) throws IOException {
+		String key = uri + "\n" + encoding + "\n" + user + "\n" + password;
+		long limit = System.currentTimeMillis() + this.getMaxWait();
+		for (;;) {
+			Connection conn = null;
+			List<Connection> expired = new ArrayList<Connection>();
+			try {
+				synchronized (this) {
+					for (;;) {
+						Entry entry = this.keyToEntry.get(key);
+						if (entry == null) {
+							entry = new Entry();
+							this.keyToEntry.put(key, entry);
+						}
+						long now = System.currentTimeMillis();
+						for (conn = entry.idle.poll(); conn != null; conn = entry.idle.poll()) {
+							if (now - conn.lastUsed < this.idleTimeout) {
+								break;
+							}
+							--entry.total;
+							++this.destroyed;
+							expired.add(conn);
+						}
+						if (conn != null) {
+							break;
+						}
+						if (this.maxTotal <= 0 || entry.total < this.maxTotal) {
+							++entry.total;
+							break;
+						}
+						long wait = limit - now;
+						if (wait <= 0) {
+							throw new IOException("接続数が上限に達しています: " + uri);
+						}
+						try {
+							this.wait(wait);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new IOException("接続の待機中に割り込まれました");
+						}
+					}
+				}
+			} finally {
+				this.close(expired);
+			}
+			if (conn == null) {
+				break;
+			}
+			// 検査はソケットを読み込むため、ロックを解放してから行う
+			if (conn.producer.isAlive()) {
+				synchronized (this) {
+					++this.reused;
+				}
+				return conn;
+			}
+			synchronized (this) {
+				++this.invalid;
+				++this.destroyed;
+				this.release(key);
+			}
+			this.close(conn);
+		}
+
+		V2ContentProducer producer = null;
+		try {
+			producer = V2ContentProducer.newProducer(uri, encoding);
+			V2RequestConsumer request = producer.connect(user, password);
+			synchronized (this) {
+				++this.created;
+			}
+			return new Connection(key, producer, request);
+		} catch (IOException | RuntimeException e) {
+			synchronized (this) {
+				this.release(key);
+			}
+			if (producer != null) {
+				try {
+					producer.close();
+				} catch (IOException e2) {
+					// ignore
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * 使い終わった接続をプールに戻します。接続はリセット済みでなければなりません。
+	 *
+	 * @param conn
+	 *            接続。
+	 */
+	void giveBack(Connection conn) {
+		synchronized (this) {
+			Entry entry = this.keyToEntry.get(conn.key);
+			if (entry != null && entry.idle.size() < this.maxIdle) {
+				conn.lastUsed = System.currentTimeMillis();
+				entry.idle.addFirst(conn);
+				this.notifyAll();
+				if (this.evictor == null) {
+					this.startEvictor();
+				}
+				return;
+			}
+			++this.destroyed;
+			this.release(conn.key);
+		}
+		this.close(conn);
+	}
+
+	/**
+	 * 使用できなくなった接続を破棄します。
+	 *
+	 * @param conn
+	 *            接続。
+	 */
+	void invalidate(Connection conn) {
+		synchronized (this) {
+			++this.destroyed;
+			this.release(conn.key);
+		}
+		try {
+			conn.producer.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	private void release(String key) {
+		assert Thread.holdsLock(this);
+		Entry entry = this.keyToEntry.get(key);
+		if (entry != null) {
+			--entry.total;
+			if (entry.total <= 0) {
+				this.keyToEntry.remove(key);
+			}
+		}
+		this.notifyAll();
+	}
+
+	private void close(List<Connection> conns) {
+		for (int i = 0; i < conns.size(); ++i) {
+			this.close(conns.get(i));
+		}
+	}
+
+	private void close(Connection conn) {
+		try {
+			try {
+				conn.request.close();
+			} finally {
+				conn.producer.close();
+			}
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	private void startEvictor() {
+		assert Thread.holdsLock(this);
+		this.evictor = new Thread(V2ConnectionPool.class.getName()) {
+			public void run() {
+				List<Connection> expired = new ArrayList<Connection>();
+				for (boolean running = true; running;) {
+					synchronized (V2ConnectionPool.this) {
+						try {
+							V2ConnectionPool.this.wait(Math.max(1000L, V2ConnectionPool.this.idleTimeout / 2));
+						} catch (InterruptedException e) {
+							V2ConnectionPool.this.evictor = null;
+							return;
+						}
+						long now = System.currentTimeMillis();
+						for (Iterator<Entry> i = V2ConnectionPool.this.keyToEntry.values().iterator(); i
+								.hasNext();) {
+							Entry entry = i.next();
+							// 待機中の接続は最後に使われた順に並んでいる
+							while (!entry.idle.isEmpty()
+									&& now - entry.idle.getLast().lastUsed >= V2ConnectionPool.this.idleTimeout) {
+								expired.add(entry.idle.removeLast());
+								--entry.total;
+								++V2ConnectionPool.this.destroyed;
+							}
+							if (entry.total <= 0) {
+								i.remove();
+							}
+						}
+						if (V2ConnectionPool.this.keyToEntry.isEmpty()) {
+							V2ConnectionPool.this.evictor = null;
+							running = false;
+						}
+					}
+					V2ConnectionPool.this.close(expired);
+					expired.clear();
+				}
+			}
+		};
+		this.evictor.setDaemon(true);
+		this.evictor.start();
+	}
+}
@@ -2,16 +2,17 @@ package jp.cssj.driver.ctip.v2;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.NetworkChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.ArrayList;
-import java.util.List;
 
 import jp.cssj.driver.ctip.common.ChannelIO;
+import jp.cssj.driver.ctip.common.Platform;
 import jp.cssj.resolver.helpers.URIHelper;
 
 /**
@@ -25,11 +26,84 @@ public class V2ContentProducer {
 
 	protected ChannelIO io;
 
+	/**
+	 * ブロッキングI/Oで通信する場合はtrue。 URIのクエリでblocking=trueを指定するとtrueになります。
+	 * 指定しない場合、仮想スレッドから接続するときはtrue、そうでなければfalseです。
+	 */
+	protected boolean blocking = Platform.isVirtualThread();
+
+	/**
+	 * 通信のタイムアウト(ミリ秒)。 URIのクエリでtimeout=ミリ秒を指定します。 0であれば無制限です。
+	 */
+	protected long timeout = 0;
+
+	/**
+	 * サーバーに要求する拡張機能。 URIのクエリで <tt>ext=cas</tt> のように指定します。
+	 */
+	protected final V2Extensions requested = new V2Extensions();
+
+	private V2Extensions extensions = new V2Extensions();
+
+	/** 圧縮されたパケットを展開します。 圧縮が受け入れられていなければnull。 */
+	private V2PacketInflater inflater = null;
+
+	/** 送信するパケットを圧縮します。 圧縮が受け入れられていなければnull。 */
+	private V2PacketDeflater deflater = null;
+
 	public V2ContentProducer(URI uri, String encoding) throws IOException {
 		this.charset = encoding;
 		this.serverURI = uri;
 	}
 
+	/**
+	 * URIのスキームに対応するV2ContentProducerを作成します。 URIのクエリに <tt>mux=true</tt>
+	 * が指定されていれば、1つの接続を複数のセッションで共有します（{@link MuxV2ContentProducer}を参照）。
+	 * 
+	 * @param uri
+	 *            サーバーのURI。
+	 * @param encoding
+	 *            通信に使うキャラクタ・エンコーディング。
+	 * @return V2ContentProducer
+	 * @throws IOException
+	 */
+	public static V2ContentProducer newProducer(URI uri, String encoding) throws IOException {
+		V2ContentProducer producer;
+		if (uri.getScheme().equals("ctips")) {
+			producer = new TLSV2ContentProducer(uri, encoding);
+		} else if (uri.getScheme().equals("ctip+unix")) {
+			producer = new UnixV2ContentProducer(uri, encoding);
+		} else {
+			producer = new V2ContentProducer(uri, encoding);
+		}
+		if (isMultiplexed(uri)) {
+			return new MuxV2ContentProducer(uri, encoding, producer);
+		}
+		return producer;
+	}
+
+	private static boolean isMultiplexed(URI uri) {
+		String query = uri.getQuery();
+		if (query == null) {
+			return false;
+		}
+		String[] params = query.split("&");
+		for (int i = 0; i < params.length; ++i) {
+			if (params[i].equals("mux=true")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * サーバーに受け入れられた拡張機能を返します。
+	 * 
+	 * @return 拡張機能の一覧。
+	 */
+	public V2Extensions getExtensions() {
+		return this.extensions;
+	}
+
 	/**
 	 * サーバーに接続し、リクエストを開始します。
 	 * 
@@ -38,28 +112,34 @@ public class V2ContentProducer {
 	 * @throws IOException
 	 */
 	public V2RequestConsumer connect(String user, String password) throws IOException {
-		String host = this.serverURI.getHost();
-		int port = this.serverURI.getPort();
-		if (port == -1) {
-			port = 8099;
-		}
-
-		long timeout = 0;
 		String query = this.serverURI.getQuery();
 		if (query != null) {
 			String[] params = query.split("&");
 			for (int i = 0; i < params.length; ++i) {
-				if (params[0].startsWith("timeout=")) {
-					timeout = Long.parseLong(params[0].substring(8));
+				if (params[i].startsWith("timeout=")) {
+					this.timeout = Long.parseLong(params[i].substring(8));
+				} else if (params[i].startsWith("blocking=")) {
+					this.blocking = Boolean.valueOf(params[i].substring(9)).booleanValue();
+				} else if (params[i].startsWith("ext=")) {
+					V2Extensions ext = V2Extensions.parse(params[i].substring(4));
+					for (String name : ext.names()) {
+						this.requested.put(name, ext.get(name));
+					}
 				}
 			}
 		}
 
-		InetSocketAddress address = new InetSocketAddress(host, port);
-		ByteChannel channel = this.createChannel(address);
-		this.io = new ChannelIO(channel, timeout);
+		ByteChannel channel = this.createChannel();
+		this.io = new ChannelIO(channel, this.timeout);
+		if ("auto".equals(this.requested.get(V2Extensions.FRAME))) {
+			this.requested.put(V2Extensions.FRAME, String.valueOf(autoFrameSize(channel)));
+		}
 
-		byte[] header = ("CTIP/2.0 " + this.charset + "\n").getBytes("ISO-8859-1");
+		String line = "CTIP/2.0 " + this.charset;
+		if (!this.requested.isEmpty()) {
+			line += " " + this.requested;
+		}
+		byte[] header = (line + "\n").getBytes("ISO-8859-1");
 		this.io.writeAll(ByteBuffer.wrap(header));
 
 		String message = "PLAIN: " + user + " " + password + "\n";
@@ -72,17 +152,75 @@ public class V2ContentProducer {
 		if (response.equals("NG \n")) {
 			throw new SecurityException("認証に失敗しました");
 		}
+		if (response.equals("BY \n")) {
+			// サーバーが処理できる接続数を超えている
+			this.io.close();
+			throw new IOException("サーバーが混雑しているため接続できません");
+		}
 		if (!response.equals("OK \n")) {
 			throw new IOException("不正なレスポンスです:" + response);
 		}
+		if (!this.requested.isEmpty()) {
+			// 受け入れられた拡張機能
+			ByteBuffer destByte = ByteBuffer.allocate(1);
+			StringBuffer buff = new StringBuffer();
+			for (byte b = this.io.readByte(destByte); b != '\n'; b = this.io.readByte(destByte)) {
+				buff.append((char) b);
+			}
+			this.extensions = V2Extensions.parse(buff.toString());
+			if (this.extensions.contains(V2Extensions.DEFLATE)) {
+				this.inflater = new V2PacketInflater();
+				this.deflater = new V2PacketDeflater(
+						V2PacketDeflater.toLevel(this.requested.get(V2Extensions.DEFLATE)));
+			}
+		}
 
-		return new V2RequestConsumer(this.io, this.charset);
+		int frameSize = V2Extensions.toFrameSize(this.extensions.get(V2Extensions.FRAME));
+		return new V2RequestConsumer(this.io, this.charset, this.deflater, frameSize);
+	}
+
+	/**
+	 * ソケットの送受信バッファの大きさから、{@link V2Extensions#FRAME}で要求するバイト数を決めます。
+	 * バッファより大きなパケットは一度に送受信できないため、バッファに収まる最大の2のべき乗とします。
+	 * 
+	 * @param channel
+	 *            接続したチャネル。
+	 * @return バイト数。
+	 */
+	private static int autoFrameSize(ByteChannel channel) {
+		int size = 64 * 1024;
+		if (channel instanceof NetworkChannel) {
+			try {
+				NetworkChannel nc = (NetworkChannel) channel;
+				size = Math.max(nc.getOption(StandardSocketOptions.SO_SNDBUF).intValue(),
+						nc.getOption(StandardSocketOptions.SO_RCVBUF).intValue());
+				size = Integer.highestOneBit(size);
+			} catch (IOException | UnsupportedOperationException e) {
+				// デフォルトの値を使う
+			}
+		}
+		return Math.max(V2Session.BUFFER_SIZE, Math.min(V2Extensions.MAX_FRAME_SIZE, size));
+	}
+
+	/**
+	 * サーバーのURIのホスト名とポート番号に接続します。
+	 * 
+	 * @return 接続したチャネル。
+	 * @throws IOException
+	 */
+	protected ByteChannel createChannel() throws IOException {
+		String host = this.serverURI.getHost();
+		int port = this.serverURI.getPort();
+		if (port == -1) {
+			port = 8099;
+		}
+		return this.createChannel(new InetSocketAddress(host, port));
 	}
 
 	protected ByteChannel createChannel(InetSocketAddress address) throws IOException {
 		SocketChannel socketChannel = SelectorProvider.provider().openSocketChannel();
 		socketChannel.connect(address);
-		socketChannel.configureBlocking(false);
+		socketChannel.configureBlocking(this.blocking);
 		return socketChannel;
 	}
 
@@ -102,58 +240,199 @@ public class V2ContentProducer {
 
 	private String encoding;
 
-	private List<String> args = new ArrayList<String>();
+	private String[] args;
+
+	/** 受信バッファ。 大きなパケットを受信した場合は拡張されます。 */
+	private byte[] buff = new byte[V2Session.BUFFER_SIZE * 2];
+
+	/** 受信したデータ。 位置から上限までが未処理のデータです。 */
+	private ByteBuffer recv = (ByteBuffer) ByteBuffer.wrap(this.buff).limit(0);
+
+	/** 受信バッファ上のパケットの本体。 */
+	private ByteBuffer raw = ByteBuffer.wrap(this.buff);
+
+	private ByteBuffer rawView = this.raw.asReadOnlyBuffer();
 
-	private ByteBuffer data;
+	/** 展開したパケットの本体。 */
+	private ByteBuffer inflated = null;
 
-	private ByteBuffer destLong = ByteBuffer.allocate(8);
+	private ByteBuffer inflatedView = null;
 
-	private ByteBuffer destInt = ByteBuffer.allocate(4);
+	/** 現在のパケットの本体と、それを格納した配列。 */
+	private ByteBuffer packet = this.raw;
 
-	private ByteBuffer destShort = ByteBuffer.allocate(2);
+	private ByteBuffer view = this.rawView;
 
-	private ByteBuffer destByte = ByteBuffer.allocate(1);
+	private byte[] data = this.buff;
+
+	/** メッセージの開始位置。 メッセージが未解析であれば0以上の値。 */
+	private int messageOffset = -1;
+
+	private int dataOffset, dataLength, dataPos;
+
+	/**
+	 * 接続が再利用可能な状態かどうかを返します。
+	 * 
+	 * @return 接続が再利用可能であればtrue。
+	 */
+	boolean isAlive() {
+		return this.io != null && this.recv.remaining() == 0 && this.io.isAlive();
+	}
 
 	protected void close() throws IOException {
 		if (this.io != null) {
 			this.io.close();
 			this.io = null;
 		}
+		if (this.inflater != null) {
+			this.inflater.end();
+			this.inflater = null;
+		}
+		if (this.deflater != null) {
+			this.deflater.end();
+			this.deflater = null;
+		}
 	}
 
 	/**
-	 * 次のパケットにカーソルを移します。
+	 * 次のパケットにカーソルを移します。 パケットを全て受信するまでブロックします。
 	 * 
 	 * @throws IOException
 	 */
 	public void next() throws IOException {
-		int payload = this.io.readInt(this.destInt);
-		this.type = this.io.readByte(this.destByte);
+		while (!this.parse()) {
+			this.fill(true);
+		}
+	}
+
+	/**
+	 * 受信済みのデータから次のパケットを取り出します。 パケットが揃っていなければ、ブロックせずに読み込めるだけのデータを読み込みます。
+	 * 非ブロッキングI/Oの接続に対して使用してください。
+	 * 
+	 * @return 次のパケットにカーソルを移した場合はtrue、パケットがまだ揃っていなければfalse。
+	 * @throws IOException
+	 */
+	public boolean poll() throws IOException {
+		while (!this.parse()) {
+			if (!this.fill(false)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 受信バッファにデータを読み込みます。
+	 * 
+	 * @param block
+	 *            trueであれば少なくとも1バイト読み込むまでブロックします。
+	 * @return データを読み込んだ場合はtrue。
+	 * @throws IOException
+	 */
+	private boolean fill(boolean block) throws IOException {
+		ByteBuffer recv = this.recv;
+		int pos = recv.position();
+		int remaining = recv.remaining();
+		// パケット全体が収まるように領域を確保する
+		int need = remaining >= 4 ? 4 + recv.getInt(pos) : 4 + 1;
+		if (need > this.buff.length) {
+			byte[] buff = new byte[Math.max(need, this.buff.length * 3 / 2)];
+			System.arraycopy(this.buff, pos, buff, 0, remaining);
+			this.buff = buff;
+			this.recv = recv = ByteBuffer.wrap(this.buff);
+			this.raw = ByteBuffer.wrap(this.buff);
+			this.rawView = this.raw.asReadOnlyBuffer();
+			pos = 0;
+		} else if (pos + need > this.buff.length || remaining == 0) {
+			System.arraycopy(this.buff, pos, this.buff, 0, remaining);
+			pos = 0;
+		}
+		recv.limit(recv.capacity());
+		recv.position(pos + remaining);
+		int len;
+		try {
+			len = this.io.read(recv, block);
+		} finally {
+			recv.limit(recv.position());
+			recv.position(pos);
+		}
+		return len > 0;
+	}
+
+	/**
+	 * 受信済みのデータにパケット全体が揃っていれば、そのパケットを解析します。
+	 * 
+	 * @return パケットを解析した場合はtrue。
+	 * @throws IOException
+	 */
+	private boolean parse() throws IOException {
+		ByteBuffer recv = this.recv;
+		if (recv.remaining() < 4 + 1) {
+			return false;
+		}
+		int pos = recv.position();
+		int payload = recv.getInt(pos);
+		if (payload < 1) {
+			throw new IOException("Bad response: length " + payload);
+		}
+		if (recv.remaining() < 4 + payload) {
+			return false;
+		}
+		recv.position(pos + 4 + payload);
+		this.type = recv.get(pos + 4);
 		// System.err.println(Integer.toHexString(this.type));
+		ByteBuffer packet;
+		if ((this.type & V2Extensions.COMPRESSED) != 0) {
+			if (this.inflater == null) {
+				throw new IOException("Bad response: type " + Integer.toHexString(this.type));
+			}
+			this.type &= ~V2Extensions.COMPRESSED;
+			int len = this.inflater.inflate(this.buff, pos + 4 + 1, payload - 1);
+			byte[] data = this.inflater.getBuffer();
+			if (this.inflated == null || this.inflated.array() != data) {
+				this.inflated = ByteBuffer.wrap(data);
+				this.inflatedView = this.inflated.asReadOnlyBuffer();
+			}
+			packet = this.inflated;
+			packet.limit(len);
+			packet.position(0);
+			this.view = this.inflatedView;
+			this.data = data;
+		} else {
+			packet = this.raw;
+			packet.limit(pos + 4 + payload);
+			packet.position(pos + 4 + 1);
+			this.view = this.rawView;
+			this.data = this.buff;
+		}
+		this.packet = packet;
+		this.messageOffset = -1;
+		this.message = null;
+		this.args = null;
+		this.dataLength = this.dataPos = this.dataOffset = 0;
+
 		switch (this.type) {
 		case V2ServerPackets.START_DATA:
 			try {
-				this.uri = URIHelper.create(this.charset, this.io.readString(this.destShort, this.charset));
+				this.uri = URIHelper.create(this.charset, this.getString());
 			} catch (URISyntaxException e) {
 				throw new IOException(e.getMessage());
 			}
-			this.mimeType = this.io.readString(this.destShort, this.charset);
+			this.mimeType = this.getString();
 			if (this.mimeType.length() == 0) {
 				this.mimeType = null;
 			}
-			this.encoding = this.io.readString(this.destShort, this.charset);
+			this.encoding = this.getString();
 			if (this.encoding.length() == 0) {
 				this.encoding = null;
 			}
-			this.length = this.io.readLong(this.destLong);
+			this.length = packet.getLong();
 			break;
 
 		case V2ServerPackets.BLOCK_DATA:
-			this.blockId = this.io.readInt(this.destInt);
-			payload -= 1 + 4;
-			this.data = ByteBuffer.allocate(payload);
-			this.io.readAll(this.data);
-			this.data.position(0);
+			this.blockId = packet.getInt();
+			this.dataOffset = this.dataPos = packet.position();
+			this.dataLength = packet.remaining();
 			break;
 
 		case V2ServerPackets.ADD_BLOCK:
@@ -161,74 +440,43 @@ public class V2ContentProducer {
 
 		case V2ServerPackets.INSERT_BLOCK:
 		case V2ServerPackets.CLOSE_BLOCK:
-			this.anchorId = this.io.readInt(this.destInt);
+			this.anchorId = packet.getInt();
 			break;
 
 		case V2ServerPackets.MESSAGE:
-			this.code = this.io.readShort(this.destShort);
-			payload -= 1 + 2; {
-			short len = this.io.readShort(this.destShort);
-			byte[] buff = new byte[len];
-			ByteBuffer dest = ByteBuffer.wrap(buff);
-			this.io.readAll(dest);
-			this.message = new String(buff, this.charset);
-			payload -= 2 + len;
-		}
-			this.args.clear();
-			while (payload > 0) {
-				short len = this.io.readShort(this.destShort);
-				byte[] buff = new byte[len];
-				ByteBuffer dest = ByteBuffer.wrap(buff);
-				this.io.readAll(dest);
-				String arg = new String(buff, this.charset);
-				this.args.add(arg);
-				payload -= 2 + len;
-			}
-
+			this.code = packet.getShort();
+			// メッセージと引数は必要になるまで文字列に変換しない
+			this.messageOffset = packet.position();
 			break;
-		case V2ServerPackets.ABORT:
-			this.mode = this.io.readByte(this.destByte);
-			this.code = this.io.readShort(this.destShort);
-			payload -= 1 + 3; {
-			short len = this.io.readShort(this.destShort);
-			byte[] buff = new byte[len];
-			ByteBuffer dest = ByteBuffer.wrap(buff);
-			this.io.readAll(dest);
-			this.message = new String(buff, this.charset);
-			payload -= 2 + len;
-		}
-			while (payload > 0) {
-				short len = this.io.readShort(this.destShort);
-				byte[] buff = new byte[len];
-				ByteBuffer dest = ByteBuffer.wrap(buff);
-				this.io.readAll(dest);
-				String arg = new String(buff, this.charset);
-				this.args.add(arg);
-				payload -= 2 + len;
-			}
 
+		case V2ServerPackets.ABORT:
+			this.mode = packet.get();
+			this.code = packet.getShort();
+			this.messageOffset = packet.position();
 			break;
 
 		case V2ServerPackets.MAIN_LENGTH:
 		case V2ServerPackets.MAIN_READ:
-			this.length = this.io.readLong(this.destLong);
+			this.length = packet.getLong();
 			break;
 
 		case V2ServerPackets.DATA:
-			payload -= 1;
-			this.data = ByteBuffer.allocate(payload);
-			this.io.readAll(this.data);
-			this.data.position(0);
+			this.dataOffset = this.dataPos = packet.position();
+			this.dataLength = packet.remaining();
 			break;
 
 		case V2ServerPackets.RESOURCE_REQUEST:
 			try {
-				this.uri = URIHelper.create(this.charset, this.io.readString(this.destShort, this.charset));
+				this.uri = URIHelper.create(this.charset, this.getString());
 			} catch (URISyntaxException e) {
 				throw new IOException(e.getMessage());
 			}
 			break;
 
+		case V2ServerPackets.RESOURCE_STATUS:
+			this.mode = packet.get();
+			break;
+
 		case V2ServerPackets.EOF:
 		case V2ServerPackets.NEXT:
 			break;
@@ -236,6 +484,47 @@ public class V2ContentProducer {
 		default:
 			throw new IOException("Bad response: type " + Integer.toHexString(this.type));
 		}
+		return true;
+	}
+
+	/**
+	 * パケットの本体の現在の位置から文字列を読み込みます。
+	 * 文字列は2バイトの文字列長(バイト数)に続く文字列本体のバイト列で構成されます。
+	 * 
+	 * @return 読み込んだ文字列。
+	 * @throws IOException
+	 */
+	private String getString() throws IOException {
+		int len = this.packet.getShort() & 0xFFFF;
+		if (len == 0) {
+			return "";
+		}
+		int off = this.packet.position();
+		this.packet.position(off + len);
+		return new String(this.data, off, len, this.charset);
+	}
+
+	/**
+	 * メッセージと引数を文字列に変換します。
+	 * 
+	 * @throws IOException
+	 */
+	private void decodeMessage() throws IOException {
+		if (this.messageOffset < 0) {
+			return;
+		}
+		this.packet.position(this.messageOffset);
+		this.messageOffset = -1;
+		this.message = this.getString();
+		int count = 0;
+		for (int pos = this.packet.position(); pos < this.packet.limit(); pos += 2
+				+ (this.packet.getShort(pos) & 0xFFFF)) {
+			++count;
+		}
+		this.args = new String[count];
+		for (int i = 0; i < count; ++i) {
+			this.args[i] = this.getString();
+		}
 	}
 
 	/**
@@ -285,6 +574,7 @@ public class V2ContentProducer {
 	 * @throws IOException
 	 */
 	public String getMessage() throws IOException {
+		this.decodeMessage();
 		return this.message;
 	}
 
@@ -295,7 +585,8 @@ public class V2ContentProducer {
 	 * @throws IOException
 	 */
 	public String[] getArgs() throws IOException {
-		return (String[]) this.args.toArray(new String[this.args.size()]);
+		this.decodeMessage();
+		return this.args == null ? null : (String[]) this.args.clone();
 	}
 
 	/**
@@ -361,11 +652,52 @@ public class V2ContentProducer {
 	 * @throws IOException
 	 */
 	public int read(byte[] b, int off, int len) throws IOException {
-		if (this.data.remaining() <= 0) {
+		int remaining = this.dataOffset + this.dataLength - this.dataPos;
+		if (remaining <= 0) {
 			return -1;
 		}
-		len = Math.min(len, this.data.remaining());
-		this.data.get(b, off, len);
+		len = Math.min(len, remaining);
+		System.arraycopy(this.data, this.dataPos, b, off, len);
+		this.dataPos += len;
 		return len;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * 現在のパケットのデータを読み込み専用のバッファとして返します。
+	 * バッファの位置と上限はデータの範囲を示します。 バッファの内容は次に{@link #next()}を呼び出すまで有効です。
+	 * 
+	 * @return データのバッファ。
+	 */
+	public ByteBuffer getData() {
+		this.view.limit(this.dataOffset + this.dataLength);
+		this.view.position(this.dataOffset);
+		return this.view;
+	}
+
+	/**
+	 * 現在のパケットのデータが格納された配列を返します。 配列の内容は次に{@link #next()}を呼び出すまで有効です。
+	 * 
+	 * @return データのバッファ。
+	 */
+	public byte[] getDataBuffer() {
+		return this.data;
+	}
+
+	/**
+	 * {@link #getDataBuffer()}の配列内のデータの開始位置を返します。
+	 * 
+	 * @return データの開始位置。
+	 */
+	public int getDataOffset() {
+		return this.dataOffset;
+	}
+
+	/**
+	 * 現在のパケットのデータの長さを返します。
+	 * 
+	 * @return データの長さ。
+	 */
+	public int getDataLength() {
+		return this.dataLength;
+	}
+}
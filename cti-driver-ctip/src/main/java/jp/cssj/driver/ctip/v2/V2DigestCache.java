@@ -0,0 +1,148 @@
+package jp.cssj.driver.ctip.v2;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jp.cssj.resolver.Source;
+import jp.cssj.resolver.SourceValidity;
+
+/**
+ * <p>
+ * リソースの内容のダイジェストを、URIと{@link SourceValidity}により保持するキャッシュです。
+ * </p>
+ * <p>
+ * データソースが更新されていないことを{@link SourceValidity#getValid(SourceValidity)}で確認できる場合は、
+ * 内容を読み込まずにダイジェストを得ることができます。 更新状況を確認できないデータソースはキャッシュしません。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class V2DigestCache {
+	/**
+	 * キャッシュするリソースの最大数を設定するシステムプロパティです。
+	 */
+	public static final String MAX_ENTRIES = "jp.cssj.driver.ctip.digestCache.maxEntries";
+
+	private static V2DigestCache sharedInstance = null;
+
+	/**
+	 * キャッシュされたダイジェストです。
+	 */
+	public static class Digest {
+		final SourceValidity validity;
+
+		final byte[] digest;
+
+		final long length;
+
+		Digest(SourceValidity validity, byte[] digest, long length) {
+			this.validity = validity;
+			this.digest = digest;
+			this.length = length;
+		}
+
+		/**
+		 * ダイジェストを返します。
+		 *
+		 * @return ダイジェスト。
+		 */
+		public byte[] getDigest() {
+			return this.digest;
+		}
+
+		/**
+		 * リソースのバイト数を返します。
+		 *
+		 * @return バイト数。
+		 */
+		public long getLength() {
+			return this.length;
+		}
+	}
+
+	private final Map<URI, Digest> digests;
+
+	/**
+	 * @param maxEntries
+	 *            キャッシュするリソースの最大数。
+	 */
+	public V2DigestCache(final int maxEntries) {
+		this.digests = new LinkedHashMap<URI, Digest>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<URI, Digest> eldest) {
+				return this.size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * JVM全体で共有されるキャッシュを返します。 最大数はシステムプロパティ{@link #MAX_ENTRIES}で設定でき、デフォルトは1024です。
+	 *
+	 * @return キャッシュ。
+	 */
+	public static synchronized V2DigestCache getSharedInstance() {
+		if (sharedInstance == null) {
+			sharedInstance = new V2DigestCache(Integer.getInteger(MAX_ENTRIES, 1024).intValue());
+		}
+		return sharedInstance;
+	}
+
+	/**
+	 * データソースのダイジェストを返します。
+	 *
+	 * @param source
+	 *            データソース。
+	 * @return キャッシュされたダイジェスト。キャッシュされていないか、データソースが更新されている場合はnull。
+	 * @throws IOException
+	 */
+	public Digest get(Source source) throws IOException {
+		Digest digest;
+		synchronized (this) {
+			digest = this.digests.get(source.getURI());
+		}
+		if (digest == null) {
+			return null;
+		}
+		SourceValidity validity = source.getValidity();
+		if (validity == null || validity.getClass() != digest.validity.getClass()
+				|| digest.validity.getValid(validity) != SourceValidity.VALID) {
+			synchronized (this) {
+				this.digests.remove(source.getURI());
+			}
+			return null;
+		}
+		return digest;
+	}
+
+	/**
+	 * データソースのダイジェストをキャッシュします。 更新状況を確認できないデータソースに対しては何もしません。
+	 *
+	 * @param source
+	 *            データソース。
+	 * @param digest
+	 *            内容のダイジェスト。
+	 * @param length
+	 *            内容のバイト数。
+	 * @throws IOException
+	 */
+	public void put(Source source, byte[] digest, long length) throws IOException {
+		SourceValidity validity = source.getValidity();
+		if (validity == null || validity.getValid(validity) != SourceValidity.VALID) {
+			return;
+		}
+		synchronized (this) {
+			this.digests.put(source.getURI(), new Digest(validity, digest, length));
+		}
+	}
+
+	/**
+	 * キャッシュを空にします。
+	 */
+	public synchronized void clear() {
+		this.digests.clear();
+	}
+}
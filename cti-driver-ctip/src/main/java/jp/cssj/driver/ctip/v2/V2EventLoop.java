@@ -0,0 +1,245 @@
+package jp.cssj.driver.ctip.v2;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * 少数のスレッドで多数の非ブロッキングI/Oの接続からの受信を処理するイベントループです。
+ * </p>
+ * <p>
+ * 接続ごとに{@link Handler}を登録すると、データが読み込み可能になった時点でイベントループのスレッドから呼び出されます。
+ * リソースの解決のようにブロックする処理は、{@link #getExecutor()}のスレッドで行ってください。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class V2EventLoop {
+	private static final Logger LOG = Logger.getLogger(V2EventLoop.class.getName());
+
+	/**
+	 * デフォルトのイベントループのスレッド数を設定するシステムプロパティです。
+	 */
+	public static final String THREADS = "jp.cssj.driver.ctip.eventLoop.threads";
+
+	private static V2EventLoop defaultLoop = null;
+
+	/**
+	 * 読み込み可能になったことを通知されるオブジェクトです。
+	 */
+	public static interface Handler {
+		/**
+		 * データが読み込み可能になりました。 このメソッドはイベントループのスレッドから呼ばれます。
+		 *
+		 * @param key
+		 *            接続の選択キー。
+		 */
+		public void readable(SelectionKey key);
+
+		/**
+		 * 接続を登録できませんでした。
+		 *
+		 * @param e
+		 *            原因となった例外。
+		 */
+		public void failed(IOException e);
+	}
+
+	private class Worker extends Thread {
+		final Selector selector;
+
+		final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		Worker(String name) throws IOException {
+			super(name);
+			this.selector = Selector.open();
+			this.setDaemon(true);
+		}
+
+		void execute(Runnable task) {
+			this.tasks.add(task);
+			this.selector.wakeup();
+		}
+
+		public void run() {
+			while (!V2EventLoop.this.shutdown) {
+				try {
+					this.selector.select();
+					for (Runnable task = this.tasks.poll(); task != null; task = this.tasks.poll()) {
+						task.run();
+					}
+					for (Iterator<SelectionKey> i = this.selector.selectedKeys().iterator(); i.hasNext();) {
+						SelectionKey key = i.next();
+						i.remove();
+						if (key.isValid() && key.isReadable()) {
+							((Handler) key.attachment()).readable(key);
+						}
+					}
+				} catch (Throwable t) {
+					LOG.log(Level.WARNING, "イベントループでエラーが発生しました", t);
+				}
+			}
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private final Worker[] workers;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	private final ExecutorService executor;
+
+	private volatile boolean shutdown = false;
+
+	/**
+	 * 指定した数のスレッドでイベントループを開始します。
+	 *
+	 * @param threads
+	 *            イベントループのスレッド数。
+	 * @throws IOException
+	 */
+	public V2EventLoop(int threads) throws IOException {
+		final String name = V2EventLoop.class.getName();
+		this.workers = new Worker[Math.max(1, threads)];
+		for (int i = 0; i < this.workers.length; ++i) {
+			this.workers[i] = new Worker(name + "-" + (i + 1));
+		}
+		for (int i = 0; i < this.workers.length; ++i) {
+			this.workers[i].start();
+		}
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-executor-" + this.count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * デフォルトのイベントループを返します。 スレッド数はシステムプロパティ{@link #THREADS}で設定でき、デフォルトはプロセッサ数（最大4）です。
+	 *
+	 * @return イベントループ。
+	 * @throws IOException
+	 */
+	public static synchronized V2EventLoop getDefault() throws IOException {
+		if (defaultLoop == null) {
+			int threads = Integer.getInteger(THREADS, Math.min(4, Runtime.getRuntime().availableProcessors()));
+			defaultLoop = new V2EventLoop(threads);
+		}
+		return defaultLoop;
+	}
+
+	/**
+	 * ブロックする処理を実行するためのExecutorを返します。
+	 *
+	 * @return Executor。
+	 */
+	public ExecutorService getExecutor() {
+		return this.executor;
+	}
+
+	/**
+	 * 接続を登録します。 登録した直前にも、受信済みのデータを処理させるためにhandlerが一度呼ばれます。
+	 *
+	 * @param channel
+	 *            非ブロッキングI/Oの接続。
+	 * @param handler
+	 *            データが読み込み可能になったことを通知されるオブジェクト。
+	 */
+	public void register(final SelectableChannel channel, final Handler handler) {
+		final Worker worker = this.workers[(this.next.getAndIncrement() & Integer.MAX_VALUE) % this.workers.length];
+		worker.execute(new Runnable() {
+			public void run() {
+				SelectionKey key;
+				try {
+					key = channel.register(worker.selector, SelectionKey.OP_READ, handler);
+				} catch (ClosedChannelException e) {
+					handler.failed(e);
+					return;
+				} catch (RuntimeException e) {
+					handler.failed(new IOException(e));
+					return;
+				}
+				handler.readable(key);
+			}
+		});
+	}
+
+	/**
+	 * 一時的に受信を止めます。 イベントループのスレッドから呼び出してください。
+	 *
+	 * @param key
+	 *            接続の選択キー。
+	 */
+	public void suspend(SelectionKey key) {
+		if (key.isValid()) {
+			key.interestOps(0);
+		}
+	}
+
+	/**
+	 * {@link #suspend(SelectionKey)}により止めた受信を再開します。 どのスレッドから呼び出しても構いません。
+	 * 受信済みのデータを処理させるために、handlerが一度呼ばれます。
+	 *
+	 * @param key
+	 *            接続の選択キー。
+	 */
+	public void resume(final SelectionKey key) {
+		for (int i = 0; i < this.workers.length; ++i) {
+			if (this.workers[i].selector == key.selector()) {
+				this.workers[i].execute(new Runnable() {
+					public void run() {
+						if (key.isValid()) {
+							key.interestOps(SelectionKey.OP_READ);
+							((Handler) key.attachment()).readable(key);
+						}
+					}
+				});
+				return;
+			}
+		}
+		throw new IllegalArgumentException();
+	}
+
+	/**
+	 * 接続の登録を解除します。 どのスレッドから呼び出しても構いません。
+	 *
+	 * @param key
+	 *            接続の選択キー。
+	 */
+	public void cancel(SelectionKey key) {
+		key.cancel();
+		key.selector().wakeup();
+	}
+
+	/**
+	 * イベントループを停止します。
+	 */
+	public void shutdown() {
+		this.shutdown = true;
+		for (int i = 0; i < this.workers.length; ++i) {
+			this.workers[i].selector.wakeup();
+		}
+		this.executor.shutdown();
+	}
+}
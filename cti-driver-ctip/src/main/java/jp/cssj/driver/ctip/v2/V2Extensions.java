@@ -0,0 +1,183 @@
+package jp.cssj.driver.ctip.v2;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * CTIP 2.0の拡張機能の一覧です。
+ * </p>
+ * <p>
+ * クライアントは使用したい拡張機能を <tt>CTIP/2.0 UTF-8 cas</tt> のようにヘッダの文字コードに続けて空白区切りで送ります。
+ * 拡張機能に値がある場合は <tt>名前=値</tt> の形式とします。
+ * 拡張機能を送った場合、サーバーは認証の応答に続けて、受け入れた拡張機能を同じ形式で改行までの1行で返します。
+ * 拡張機能を送らないクライアントに対しては何も返さないため、従来のクライアントとの互換性が保たれます。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class V2Extensions {
+	/**
+	 * 内容のダイジェストによりリソースの送信を省略する拡張機能です。
+	 *
+	 * @see V2ClientPackets#RESOURCE_DIGEST
+	 */
+	public static final String CONTENT_ADDRESSED = "cas";
+
+	/**
+	 * {@link #CONTENT_ADDRESSED}で使うダイジェストのアルゴリズムです。
+	 */
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+
+	/**
+	 * パケットの本体をDeflateで圧縮する拡張機能です。 <tt>deflate=9</tt> のように圧縮レベル(0～9)を指定できます。
+	 *
+	 * @see V2PacketDeflater
+	 */
+	public static final String DEFLATE = "deflate";
+
+	/**
+	 * <p>
+	 * DATA、BLOCK_DATAパケットで1度に送るデータの最大のバイト数を取り決める拡張機能です。
+	 * </p>
+	 * <p>
+	 * クライアントは <tt>frame=262144</tt> のように希望するバイト数を送り、サーバーはそれと自身の上限の小さい方を返します。
+	 * 双方は返された値を上限としてデータを分割して送ります。 受け入れられなかった場合は{@link V2Session#BUFFER_SIZE}です。
+	 * ドライバのURIで <tt>ext=frame=auto</tt> と指定した場合は、ソケットのバッファの大きさからバイト数を決めて送ります。
+	 * </p>
+	 *
+	 * @see #toFrameSize(String)
+	 */
+	public static final String FRAME = "frame";
+
+	/**
+	 * {@link #FRAME}で取り決めることができる最大のバイト数です。
+	 */
+	public static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+	/**
+	 * パケットのタイプに付加され、本体が圧縮されていることを示すビットです。
+	 */
+	public static final byte COMPRESSED = (byte) 0x80;
+
+	/**
+	 * {@link #FRAME}の値をバイト数に変換します。
+	 *
+	 * @param value
+	 *            拡張機能の値。
+	 * @return {@link V2Session#BUFFER_SIZE}から{@link #MAX_FRAME_SIZE}までのバイト数。
+	 *         値がないか不正であれば{@link V2Session#BUFFER_SIZE}。
+	 */
+	public static int toFrameSize(String value) {
+		if (value == null || value.length() == 0) {
+			return V2Session.BUFFER_SIZE;
+		}
+		try {
+			return Math.max(V2Session.BUFFER_SIZE, Math.min(MAX_FRAME_SIZE, Integer.parseInt(value)));
+		} catch (NumberFormatException e) {
+			return V2Session.BUFFER_SIZE;
+		}
+	}
+
+	private final Map<String, String> extensions = new LinkedHashMap<String, String>();
+
+	/**
+	 * 空白区切りの拡張機能の一覧を解析します。
+	 *
+	 * @param tokens
+	 *            拡張機能の一覧。nullであれば空の一覧を返します。
+	 * @return 拡張機能の一覧。
+	 */
+	public static V2Extensions parse(String tokens) {
+		V2Extensions extensions = new V2Extensions();
+		if (tokens != null) {
+			String[] names = tokens.trim().split("[ ,]+");
+			for (int i = 0; i < names.length; ++i) {
+				if (names[i].length() == 0) {
+					continue;
+				}
+				int eq = names[i].indexOf('=');
+				if (eq == -1) {
+					extensions.put(names[i], "");
+				} else {
+					extensions.put(names[i].substring(0, eq), names[i].substring(eq + 1));
+				}
+			}
+		}
+		return extensions;
+	}
+
+	/**
+	 * 拡張機能を追加します。
+	 *
+	 * @param name
+	 *            拡張機能の名前。
+	 * @param value
+	 *            拡張機能の値。値がない場合は空文字列。
+	 */
+	public void put(String name, String value) {
+		this.extensions.put(name, value == null ? "" : value);
+	}
+
+	/**
+	 * 拡張機能が含まれていればtrueを返します。
+	 *
+	 * @param name
+	 *            拡張機能の名前。
+	 * @return 含まれていればtrue。
+	 */
+	public boolean contains(String name) {
+		return this.extensions.containsKey(name);
+	}
+
+	/**
+	 * 拡張機能の値を返します。
+	 *
+	 * @param name
+	 *            拡張機能の名前。
+	 * @return 拡張機能の値。含まれていない場合はnull。
+	 */
+	public String get(String name) {
+		return this.extensions.get(name);
+	}
+
+	/**
+	 * 拡張機能の名前の一覧を返します。
+	 *
+	 * @return 拡張機能の名前。
+	 */
+	public Set<String> names() {
+		return Collections.unmodifiableSet(this.extensions.keySet());
+	}
+
+	/**
+	 * 拡張機能が1つもなければtrueを返します。
+	 *
+	 * @return 空であればtrue。
+	 */
+	public boolean isEmpty() {
+		return this.extensions.isEmpty();
+	}
+
+	/**
+	 * ヘッダに送る形式で拡張機能の一覧を返します。
+	 */
+	public String toString() {
+		StringBuffer buff = new StringBuffer();
+		for (Iterator<Map.Entry<String, String>> i = this.extensions.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, String> e = i.next();
+			if (buff.length() > 0) {
+				buff.append(' ');
+			}
+			buff.append(e.getKey());
+			if (e.getValue().length() > 0) {
+				buff.append('=').append(e.getValue());
+			}
+		}
+		return buff.toString();
+	}
+}
@@ -0,0 +1,198 @@
+package jp.cssj.driver.ctip.v2;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * {@link V2HedgedSession}が2つ目の変換を始めるまでの待ち時間を決めます。
+ * </p>
+ * <p>
+ * 変換を開始してから最初の変換結果（START_DATA）を受信するまでの時間を直近の{@link #SAMPLES}回分記録し、
+ * その{@link #getPercentile()}パーセンタイルを待ち時間とします。 記録が{@link #MIN_SAMPLES}回に満たない間は
+ * {@link #getInitialDelay()}を使います。 ポリシーはドライバごとに1つ作られ、そのドライバの全てのセッションで共有されます。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class V2HedgePolicy {
+	/**
+	 * 待ち時間とするパーセンタイルを設定するシステムプロパティです。
+	 */
+	public static final String PERCENTILE = "jp.cssj.driver.ctip.hedge.percentile";
+
+	/**
+	 * 記録が十分でない間の待ち時間（ミリ秒）を設定するシステムプロパティです。
+	 */
+	public static final String INITIAL_DELAY = "jp.cssj.driver.ctip.hedge.initialDelay";
+
+	/**
+	 * 再送のためにメモリ上に保持するメインドキュメントの最大のバイト数を設定するシステムプロパティです。
+	 */
+	public static final String MAX_BYTES = "jp.cssj.driver.ctip.hedge.maxBytes";
+
+	/** 記録する時間の数です。 */
+	public static final int SAMPLES = 256;
+
+	/** パーセンタイルを計算するために必要な記録の数です。 */
+	public static final int MIN_SAMPLES = 20;
+
+	private final long[] samples = new long[SAMPLES];
+
+	private int count = 0, next = 0;
+
+	private double percentile;
+
+	private long initialDelay;
+
+	private int maxBytes;
+
+	private long transcodes = 0, hedged = 0, hedgeWins = 0;
+
+	/**
+	 * システムプロパティの設定でポリシーを構築します。
+	 */
+	public V2HedgePolicy() {
+		this.percentile = Double.parseDouble(System.getProperty(PERCENTILE, "95"));
+		this.initialDelay = Long.getLong(INITIAL_DELAY, 1000L);
+		this.maxBytes = Integer.getInteger(MAX_BYTES, 16 * 1024 * 1024);
+	}
+
+	/**
+	 * 待ち時間とするパーセンタイルを返します。
+	 *
+	 * @return 0から100までの値。
+	 */
+	public synchronized double getPercentile() {
+		return this.percentile;
+	}
+
+	/**
+	 * 待ち時間とするパーセンタイルを設定します。
+	 *
+	 * @param percentile
+	 *            0から100までの値。
+	 */
+	public synchronized void setPercentile(double percentile) {
+		this.percentile = percentile;
+	}
+
+	/**
+	 * 記録が十分でない間の待ち時間を返します。
+	 *
+	 * @return ミリ秒。
+	 */
+	public synchronized long getInitialDelay() {
+		return this.initialDelay;
+	}
+
+	/**
+	 * 記録が十分でない間の待ち時間を設定します。
+	 *
+	 * @param initialDelay
+	 *            ミリ秒。
+	 */
+	public synchronized void setInitialDelay(long initialDelay) {
+		this.initialDelay = initialDelay;
+	}
+
+	/**
+	 * 再送のためにメモリ上に保持するメインドキュメントの最大のバイト数を返します。 これより大きな文書は2つ目の変換を行わずに変換します。
+	 *
+	 * @return バイト数。
+	 */
+	public synchronized int getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	/**
+	 * 再送のためにメモリ上に保持するメインドキュメントの最大のバイト数を設定します。
+	 *
+	 * @param maxBytes
+	 *            バイト数。
+	 */
+	public synchronized void setMaxBytes(int maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * 2つ目の変換を始めるまでの待ち時間を返します。
+	 *
+	 * @return ミリ秒。
+	 */
+	public synchronized long getDelay() {
+		if (this.count < MIN_SAMPLES) {
+			return this.initialDelay;
+		}
+		long[] sorted = new long[this.count];
+		System.arraycopy(this.samples, 0, sorted, 0, this.count);
+		Arrays.sort(sorted);
+		int i = (int) Math.ceil(this.percentile / 100.0 * this.count) - 1;
+		i = Math.max(0, Math.min(this.count - 1, i));
+		return Math.max(1L, sorted[i] / 1000000L);
+	}
+
+	/**
+	 * 最初の変換結果を受信するまでの時間を記録します。
+	 *
+	 * @param nanos
+	 *            ナノ秒。
+	 */
+	synchronized void record(long nanos) {
+		this.samples[this.next] = nanos;
+		this.next = (this.next + 1) % SAMPLES;
+		if (this.count < SAMPLES) {
+			++this.count;
+		}
+	}
+
+	/**
+	 * 変換が終了したときに呼ばれます。
+	 *
+	 * @param hedged
+	 *            2つ目の変換を行った場合はtrue。
+	 * @param hedgeWon
+	 *            2つ目の変換の結果を採用した場合はtrue。
+	 */
+	synchronized void transcoded(boolean hedged, boolean hedgeWon) {
+		++this.transcodes;
+		if (hedged) {
+			++this.hedged;
+		}
+		if (hedgeWon) {
+			++this.hedgeWins;
+		}
+	}
+
+	/**
+	 * 変換の回数を返します。
+	 *
+	 * @return 回数。
+	 */
+	public synchronized long getTranscodeCount() {
+		return this.transcodes;
+	}
+
+	/**
+	 * 2つ目の変換を行った回数を返します。
+	 *
+	 * @return 回数。
+	 */
+	public synchronized long getHedgedCount() {
+		return this.hedged;
+	}
+
+	/**
+	 * 2つ目の変換の結果を採用した回数を返します。
+	 *
+	 * @return 回数。
+	 */
+	public synchronized long getHedgeWinCount() {
+		return this.hedgeWins;
+	}
+
+	public synchronized String toString() {
+		return super.toString() + "[delay=" + this.getDelay() + "ms,transcodes=" + this.transcodes + ",hedged="
+				+ this.hedged + ",hedgeWins=" + this.hedgeWins + "]";
+	}
+}
@@ -0,0 +1,610 @@
+package jp.cssj.driver.ctip.v2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import jp.cssj.cti2.CTISession;
+import jp.cssj.cti2.TranscoderException;
+import jp.cssj.cti2.helpers.AbstractCTISession;
+import jp.cssj.cti2.message.MessageHandler;
+import jp.cssj.cti2.progress.ProgressListener;
+import jp.cssj.cti2.results.Results;
+import jp.cssj.resolver.MetaSource;
+import jp.cssj.resolver.Source;
+import jp.cssj.resolver.SourceResolver;
+import jp.cssj.resolver.stream.StreamSource;
+import jp.cssj.rsr.RandomBuilder;
+import jp.cssj.rsr.impl.NopRandomBuilder;
+
+/**
+ * <p>
+ * 応答の遅い変換を、別の接続で同時に行うセッションです（ヘッジ）。
+ * </p>
+ * <p>
+ * {@link #transcode(Source)}と{@link #transcode(URI)}は、まず1つの接続で変換を始めます。
+ * {@link V2HedgePolicy#getDelay()}が経過しても変換結果（START_DATA）を受信しないか、
+ * 通信に失敗した場合は、同じ変換を2つ目の接続で始めます。 先に変換結果を受信した方を採用し、
+ * もう一方は{@link CTISession#ABORT_FORCE}で中断し、その変換のスレッドが終了する際にクローズします。
+ * </p>
+ * <p>
+ * 採用されるまでの間、それぞれの変換のメッセージと進行状況は保持され、{@link Results}には何も出力されません。
+ * そのため、設定された{@link Results}、{@link MessageHandler}、{@link ProgressListener}には、採用された変換の結果だけが渡されます。
+ * クライアント側のリソースを使う場合、{@link SourceResolver}は2つのスレッドから同時に呼ばれることがあります。
+ * </p>
+ * <p>
+ * メインドキュメントは再送のためにメモリ上に読み込まれます。 {@link V2HedgePolicy#getMaxBytes()}
+ * より大きな文書や、ヘッジに対応していない操作（{@link #resource(MetaSource)}、 {@link #transcode(MetaSource)}、
+ * {@link #getServerInfo(URI)}など）を行ったセッションは、以降は1つの接続だけを使います。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class V2HedgedSession extends AbstractCTISession {
+	/**
+	 * 変換に使うセッションを作成します。
+	 */
+	public static interface Factory {
+		/**
+		 * セッションを作成し、サーバーに接続します。
+		 *
+		 * @param previous
+		 *            先に変換を始めたセッション。 最初のセッションであればnull。
+		 * @return セッション。
+		 * @throws IOException
+		 */
+		public CTISession newSession(CTISession previous) throws IOException;
+	}
+
+	/**
+	 * 2つの接続で同じように行う変換です。
+	 */
+	private static interface Job {
+		public void transcode(CTISession session) throws IOException;
+	}
+
+	private final Factory factory;
+
+	private final V2HedgePolicy policy;
+
+	private final List<String[]> properties = new ArrayList<String[]>();
+
+	private Results results = null;
+
+	private MessageHandler messageHandler = null;
+
+	private ProgressListener progressListener = null;
+
+	private SourceResolver resolver = null;
+
+	/** ヘッジせずに使うセッション。 */
+	private CTISession session = null;
+
+	/** 実行中の変換。 */
+	private List<Attempt> attempts = null;
+
+	/** 採用された変換。 */
+	private Attempt winner = null;
+
+	/** 実行中の変換の期限。 2つの変換は同じ期限で中断されます。 */
+	private long hedgeDeadline = 0L;
+
+	/**
+	 * @param factory
+	 *            変換に使うセッションを作成するオブジェクト。
+	 * @param policy
+	 *            2つ目の変換を始めるまでの待ち時間を決めるポリシー。
+	 */
+	public V2HedgedSession(Factory factory, V2HedgePolicy policy) {
+		this.factory = factory;
+		this.policy = policy;
+	}
+
+	/**
+	 * ヘッジせずに使うセッションを返します。 まだ作成されていなければ、設定済みの内容で作成します。
+	 */
+	private CTISession direct() throws IOException {
+		if (this.session == null) {
+			CTISession session = this.factory.newSession(null);
+			try {
+				this.configure(session, this.results, this.messageHandler, this.progressListener);
+			} catch (IOException | RuntimeException e) {
+				session.close();
+				throw e;
+			}
+			this.session = session;
+		}
+		return this.session;
+	}
+
+	private void configure(CTISession session, Results results, MessageHandler messageHandler,
+			ProgressListener progressListener) throws IOException {
+		if (results != null) {
+			session.setResults(results);
+		}
+		if (messageHandler != null) {
+			session.setMessageHandler(messageHandler);
+		}
+		if (progressListener != null) {
+			session.setProgressListener(progressListener);
+		}
+		for (int i = 0; i < this.properties.size(); ++i) {
+			String[] property = this.properties.get(i);
+			session.property(property[0], property[1]);
+		}
+		if (this.resolver != null) {
+			session.setSourceResolver(this.resolver);
+		}
+		session.setDeadline(this.deadline);
+		session.setTranscodeTimeout(this.transcodeTimeout);
+	}
+
+	public InputStream getServerInfo(URI uri) throws IOException {
+		return this.direct().getServerInfo(uri);
+	}
+
+	public void setResults(Results results) throws IOException {
+		this.results = results;
+		if (this.session != null) {
+			this.session.setResults(results);
+		}
+	}
+
+	public void setMessageHandler(MessageHandler messageHandler) throws IOException {
+		this.messageHandler = messageHandler;
+		if (this.session != null) {
+			this.session.setMessageHandler(messageHandler);
+		}
+	}
+
+	public void setProgressListener(ProgressListener progressListener) throws IOException {
+		this.progressListener = progressListener;
+		if (this.session != null) {
+			this.session.setProgressListener(progressListener);
+		}
+	}
+
+	public void property(String name, String value) throws IOException {
+		this.properties.add(new String[] { name, value });
+		if (this.session != null) {
+			this.session.property(name, value);
+		}
+	}
+
+	public OutputStream resource(MetaSource metaSource) throws IOException {
+		return this.direct().resource(metaSource);
+	}
+
+	public void resource(Source source) throws IOException {
+		this.direct().resource(source);
+	}
+
+	public void setSourceResolver(SourceResolver resolver) throws IOException {
+		this.resolver = resolver;
+		if (this.session != null) {
+			this.session.setSourceResolver(resolver);
+		}
+	}
+
+	public void setDeadline(long deadline) throws IOException {
+		super.setDeadline(deadline);
+		if (this.session != null) {
+			this.session.setDeadline(deadline);
+		}
+	}
+
+	public void setTranscodeTimeout(long timeout) throws IOException {
+		super.setTranscodeTimeout(timeout);
+		if (this.session != null) {
+			this.session.setTranscodeTimeout(timeout);
+		}
+	}
+
+	public OutputStream transcode(MetaSource metaSource) throws IOException {
+		return this.direct().transcode(metaSource);
+	}
+
+	public void transcode(final URI uri) throws IOException, TranscoderException {
+		if (this.session != null) {
+			this.session.transcode(uri);
+			return;
+		}
+		this.hedge(new Job() {
+			public void transcode(CTISession session) throws IOException {
+				session.transcode(uri);
+			}
+		});
+	}
+
+	public void transcode(Source source) throws IOException, TranscoderException {
+		if (this.session != null) {
+			this.session.transcode(source);
+			return;
+		}
+		final URI uri = source.getURI();
+		final String mimeType = source.getMimeType();
+		final String encoding = source.getEncoding();
+		final long length = source.getLength();
+		final byte[] data;
+		int maxBytes = this.policy.getMaxBytes();
+		try (InputStream in = source.getInputStream()) {
+			ByteArrayOutputStream buff = new ByteArrayOutputStream();
+			byte[] b = new byte[V2Session.BUFFER_SIZE];
+			for (int len = in.read(b); len != -1; len = in.read(b)) {
+				buff.write(b, 0, len);
+				if (buff.size() > maxBytes) {
+					// 大きな文書は再送できないため、1つの接続で変換する
+					InputStream rest = new SequenceInputStream(new ByteArrayInputStream(buff.toByteArray()), in);
+					this.direct().transcode(new StreamSource(uri, rest, mimeType, encoding, length));
+					return;
+				}
+			}
+			data = buff.toByteArray();
+		}
+		this.hedge(new Job() {
+			public void transcode(CTISession session) throws IOException {
+				session.transcode(
+						new StreamSource(uri, new ByteArrayInputStream(data), mimeType, encoding, length));
+			}
+		});
+	}
+
+	/**
+	 * 変換を1つ目の接続で始め、必要に応じて2つ目の接続でも始めます。 採用された変換が終わるまで戻りません。
+	 */
+	private void hedge(Job job) throws IOException {
+		if (this.results == null) {
+			throw new IllegalStateException("Resultsが設定されていません。");
+		}
+		Executor executor = V2EventLoop.getDefault().getExecutor();
+		long delay = this.policy.getDelay();
+		Attempt primary, hedge = null, winner;
+		List<Attempt> losers = new ArrayList<Attempt>();
+		try {
+			synchronized (this) {
+				this.winner = null;
+				this.hedgeDeadline = this.transcodeDeadline();
+				this.attempts = new ArrayList<Attempt>(2);
+				primary = this.start(executor, job, null);
+				long limit = System.currentTimeMillis() + delay;
+				while (this.winner == null) {
+					boolean running = false;
+					for (int i = 0; i < this.attempts.size(); ++i) {
+						running |= !this.attempts.get(i).done;
+					}
+					if (hedge == null) {
+						long wait = limit - System.currentTimeMillis();
+						if (wait <= 0 || !running) {
+							// 変換結果が遅いか、通信に失敗した
+							hedge = this.start(executor, job, primary);
+							continue;
+						}
+						this.wait(wait);
+					} else if (running) {
+						this.wait();
+					} else {
+						break;
+					}
+				}
+				winner = this.winner;
+				for (int i = 0; i < this.attempts.size(); ++i) {
+					Attempt attempt = this.attempts.get(i);
+					if (attempt != winner) {
+						attempt.cancelled = true;
+						losers.add(attempt);
+					}
+				}
+			}
+			for (int i = 0; i < losers.size(); ++i) {
+				losers.get(i).cancel();
+			}
+			synchronized (this) {
+				while (winner != null && !winner.done) {
+					this.wait();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.abort(CTISession.ABORT_FORCE);
+			throw new IOException("変換の待機中に割り込まれました");
+		} finally {
+			synchronized (this) {
+				this.attempts = null;
+			}
+		}
+		this.policy.transcoded(hedge != null, hedge != null && winner == hedge);
+
+		Throwable error = winner == null ? primary.error : winner.error;
+		if (error == null) {
+			return;
+		}
+		if (error instanceof IOException) {
+			throw (IOException) error;
+		}
+		if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		}
+		if (error instanceof Error) {
+			throw (Error) error;
+		}
+		IOException ioe = new IOException();
+		ioe.initCause(error);
+		throw ioe;
+	}
+
+	private Attempt start(Executor executor, Job job, Attempt previous) {
+		assert Thread.holdsLock(this);
+		Attempt attempt = new Attempt(job, previous);
+		this.attempts.add(attempt);
+		executor.execute(attempt);
+		return attempt;
+	}
+
+	public void setContinuous(boolean continuous) throws IOException {
+		this.direct().setContinuous(continuous);
+	}
+
+	public void join() throws IOException {
+		this.direct().join();
+	}
+
+	public void abort(byte mode) throws IOException {
+		if (this.session != null) {
+			this.session.abort(mode);
+			return;
+		}
+		List<Attempt> attempts;
+		synchronized (this) {
+			if (this.attempts == null) {
+				return;
+			}
+			attempts = new ArrayList<Attempt>(this.attempts);
+		}
+		for (int i = 0; i < attempts.size(); ++i) {
+			CTISession session = attempts.get(i).session;
+			if (session != null) {
+				session.abort(mode);
+			}
+		}
+	}
+
+	public void reset() throws IOException {
+		if (this.session != null) {
+			this.session.reset();
+		}
+		this.properties.clear();
+		this.results = null;
+		this.messageHandler = null;
+		this.progressListener = null;
+		this.resolver = null;
+		this.deadline = this.transcodeTimeout = 0L;
+	}
+
+	public void close() throws IOException {
+		if (this.session != null) {
+			CTISession session = this.session;
+			this.session = null;
+			session.close();
+		}
+	}
+
+	/**
+	 * 1つの接続で行う変換です。 採用されるまでは変換結果を破棄し、メッセージと進行状況を保持します。
+	 */
+	private class Attempt implements Runnable, Results, MessageHandler, ProgressListener {
+		final Job job;
+
+		final Attempt previous;
+
+		volatile CTISession session = null;
+
+		long start;
+
+		/** 変換が終了した場合にtrue。 */
+		boolean done = false;
+
+		/** 不採用となった場合にtrue。 */
+		boolean cancelled = false;
+
+		Throwable error = null;
+
+		final List<Object[]> messages = new ArrayList<Object[]>();
+
+		long sourceLength = -1, serverRead = -1;
+
+		Attempt(Job job, Attempt previous) {
+			this.job = job;
+			this.previous = previous;
+		}
+
+		public void run() {
+			final V2HedgedSession outer = V2HedgedSession.this;
+			this.start = System.nanoTime();
+			Throwable error = null;
+			CTISession session = null;
+			try {
+				session = outer.factory.newSession(this.previous == null ? null : this.previous.session);
+				this.session = session;
+				boolean cancelled;
+				long deadline;
+				synchronized (outer) {
+					cancelled = this.cancelled;
+					deadline = outer.hedgeDeadline;
+				}
+				if (!cancelled) {
+					outer.configure(session, this, this, this);
+					// 後から始めた変換も、最初の変換と同じ時刻に期限を迎える
+					session.setDeadline(deadline);
+					session.setTranscodeTimeout(0L);
+					this.job.transcode(session);
+				}
+			} catch (Throwable e) {
+				error = e;
+			} finally {
+				if (session != null) {
+					try {
+						session.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+			List<Object[]> messages = null;
+			synchronized (outer) {
+				this.error = error;
+				this.done = true;
+				if (outer.winner == null && !this.cancelled
+						&& (error == null || error instanceof TranscoderException)) {
+					// 変換結果がないまま終了した
+					messages = this.win();
+				}
+				outer.notifyAll();
+			}
+			if (messages != null) {
+				this.deliver(messages);
+			}
+		}
+
+		/**
+		 * この変換を採用します。 保持していたメッセージは、ロックを解放してから{@link #deliver(List)}で通知してください。
+		 *
+		 * @return 保持していたメッセージ。
+		 */
+		private List<Object[]> win() {
+			final V2HedgedSession outer = V2HedgedSession.this;
+			assert Thread.holdsLock(outer);
+			outer.winner = this;
+			outer.policy.record(System.nanoTime() - this.start);
+			List<Object[]> messages = new ArrayList<Object[]>(this.messages);
+			this.messages.clear();
+			return messages;
+		}
+
+		/**
+		 * 採用されるまで保持していたメッセージと進行状況を通知します。 利用者のコールバックを呼ぶため、ロックを保持したまま呼び出してはいけません。
+		 *
+		 * @param messages
+		 *            {@link #win()}が返したメッセージ。
+		 */
+		private void deliver(List<Object[]> messages) {
+			final V2HedgedSession outer = V2HedgedSession.this;
+			assert !Thread.holdsLock(outer);
+			long sourceLength, serverRead;
+			synchronized (outer) {
+				sourceLength = this.sourceLength;
+				serverRead = this.serverRead;
+			}
+			if (outer.messageHandler != null) {
+				for (int i = 0; i < messages.size(); ++i) {
+					Object[] message = messages.get(i);
+					outer.messageHandler.message((Short) message[0], (String[]) message[1], (String) message[2]);
+				}
+			}
+			if (outer.progressListener != null) {
+				if (sourceLength != -1) {
+					outer.progressListener.sourceLength(sourceLength);
+				}
+				if (serverRead != -1) {
+					outer.progressListener.progress(serverRead);
+				}
+			}
+		}
+
+		/**
+		 * 不採用となった変換を中断します。 変換を行なっているスレッドがまだセッションを使っているため、クローズはそのスレッドに任せます。
+		 */
+		void cancel() {
+			CTISession session = this.session;
+			if (session == null) {
+				return;
+			}
+			try {
+				session.abort(CTISession.ABORT_FORCE);
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+
+		private boolean won() {
+			final V2HedgedSession outer = V2HedgedSession.this;
+			synchronized (outer) {
+				return outer.winner == this;
+			}
+		}
+
+		public boolean hasNext() {
+			return this.won() ? V2HedgedSession.this.results.hasNext() : true;
+		}
+
+		public RandomBuilder nextBuilder(MetaSource metaSource) throws IOException {
+			final V2HedgedSession outer = V2HedgedSession.this;
+			List<Object[]> messages = null;
+			synchronized (outer) {
+				if (outer.winner == null && !this.cancelled) {
+					messages = this.win();
+					outer.notifyAll();
+				}
+				if (outer.winner != this) {
+					return NopRandomBuilder.SHARED_INSTANCE;
+				}
+			}
+			if (messages != null) {
+				this.deliver(messages);
+			}
+			return outer.results.nextBuilder(metaSource);
+		}
+
+		public void end() throws IOException {
+			if (this.won()) {
+				V2HedgedSession.this.results.end();
+			}
+		}
+
+		public void message(short code, String[] args, String mes) {
+			final V2HedgedSession outer = V2HedgedSession.this;
+			synchronized (outer) {
+				if (outer.winner != this) {
+					this.messages.add(new Object[] { code, args, mes });
+					return;
+				}
+			}
+			if (outer.messageHandler != null) {
+				outer.messageHandler.message(code, args, mes);
+			}
+		}
+
+		public void sourceLength(long sourceLength) {
+			final V2HedgedSession outer = V2HedgedSession.this;
+			synchronized (outer) {
+				if (outer.winner != this) {
+					this.sourceLength = sourceLength;
+					return;
+				}
+			}
+			if (outer.progressListener != null) {
+				outer.progressListener.sourceLength(sourceLength);
+			}
+		}
+
+		public void progress(long serverRead) {
+			final V2HedgedSession outer = V2HedgedSession.this;
+			synchronized (outer) {
+				if (outer.winner != this) {
+					this.serverRead = serverRead;
+					return;
+				}
+			}
+			if (outer.progressListener != null) {
+				outer.progressListener.progress(serverRead);
+			}
+		}
+	}
+}
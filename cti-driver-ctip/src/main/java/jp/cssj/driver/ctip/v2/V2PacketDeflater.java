@@ -0,0 +1,176 @@
+package jp.cssj.driver.ctip.v2;
+
+import java.util.zip.Deflater;
+
+/**
+ * <p>
+ * パケットの本体を圧縮します。
+ * </p>
+ * <p>
+ * 接続の片方向ごとに1つの圧縮ストリームを使い、パケットごとに{@link Deflater#SYNC_FLUSH}で区切ります。
+ * 受信側は同じ順序で{@link V2PacketInflater}により展開するため、前のパケットの内容を参照して圧縮されます。
+ * そのため、一度圧縮を始めたデータは必ず圧縮したパケットとして送る必要があります。
+ * </p>
+ * <p>
+ * 圧縮したパケットは、タイプに{@link V2Extensions#COMPRESSED}を付加し、本体を圧縮したデータに置き換えたものです。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class V2PacketDeflater {
+	/**
+	 * 圧縮するパケットの本体の最小のバイト数です。 これより小さなパケットは圧縮しても効果がないため、そのまま送ります。
+	 */
+	public static final int MIN_LENGTH = 256;
+
+	private static final String[] INCOMPRESSIBLE_TYPES = { "application/pdf", "application/zip",
+			"application/gzip", "application/x-gzip", "application/font-woff", "font/woff", "font/woff2", "image/png",
+			"image/jpeg", "image/gif", "image/webp", "audio/", "video/" };
+
+	private final Deflater deflater;
+
+	private byte[] buff = new byte[V2Session.BUFFER_SIZE + 4 + 1];
+
+	private int length = 0;
+
+	/**
+	 * @param level
+	 *            圧縮レベル。
+	 */
+	public V2PacketDeflater(int level) {
+		this.deflater = new Deflater(level);
+	}
+
+	/**
+	 * 拡張機能の値から圧縮レベルを返します。
+	 *
+	 * @param value
+	 *            {@link V2Extensions#DEFLATE}の値。
+	 * @return 圧縮レベル。 値がないか不正な場合は{@link Deflater#DEFAULT_COMPRESSION}。
+	 */
+	public static int toLevel(String value) {
+		if (value != null && value.length() > 0) {
+			try {
+				int level = Integer.parseInt(value);
+				if (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION) {
+					return level;
+				}
+			} catch (NumberFormatException e) {
+				// ignore
+			}
+		}
+		return Deflater.DEFAULT_COMPRESSION;
+	}
+
+	/**
+	 * 既に圧縮されている形式のデータかどうかを返します。 そのようなデータは圧縮しても小さくならないため、圧縮せずに送ります。
+	 *
+	 * @param mimeType
+	 *            データのMIME型。
+	 * @return 圧縮すべきデータであればtrue。 MIME型が不明な場合もtrue。
+	 */
+	public static boolean isCompressible(String mimeType) {
+		if (mimeType == null) {
+			return true;
+		}
+		mimeType = mimeType.toLowerCase();
+		for (int i = 0; i < INCOMPRESSIBLE_TYPES.length; ++i) {
+			if (mimeType.startsWith(INCOMPRESSIBLE_TYPES[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * パケットの圧縮を開始します。 バッファの先頭にはパケットの長さとタイプの領域が確保されます。
+	 */
+	public void begin() {
+		this.length = 4 + 1;
+	}
+
+	/**
+	 * パケットの本体を圧縮します。
+	 *
+	 * @param b
+	 *            本体のデータ。
+	 * @param off
+	 *            データの開始位置。
+	 * @param len
+	 *            データの長さ。
+	 */
+	public void write(byte[] b, int off, int len) {
+		this.deflater.setInput(b, off, len);
+		while (!this.deflater.needsInput()) {
+			this.deflate(Deflater.NO_FLUSH);
+		}
+	}
+
+	/**
+	 * パケットの本体に2バイトの整数を書き込みます。
+	 *
+	 * @param v
+	 *            値。
+	 */
+	public void writeShort(short v) {
+		byte[] b = { (byte) (v >>> 8), (byte) v };
+		this.write(b, 0, b.length);
+	}
+
+	/**
+	 * パケットの本体に4バイトの整数を書き込みます。
+	 *
+	 * @param v
+	 *            値。
+	 */
+	public void writeInt(int v) {
+		byte[] b = { (byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v };
+		this.write(b, 0, b.length);
+	}
+
+	/**
+	 * パケットの圧縮を終了し、パケットの長さとタイプを書き込みます。
+	 *
+	 * @param type
+	 *            パケットのタイプ。
+	 * @return パケット全体のバイト数。 パケットは{@link #getBuffer()}の先頭に格納されます。
+	 */
+	public int finish(byte type) {
+		do {
+			this.deflate(Deflater.SYNC_FLUSH);
+		} while (this.length == this.buff.length);
+		int payload = this.length - 4;
+		this.buff[0] = (byte) (payload >>> 24);
+		this.buff[1] = (byte) (payload >>> 16);
+		this.buff[2] = (byte) (payload >>> 8);
+		this.buff[3] = (byte) payload;
+		this.buff[4] = (byte) (type | V2Extensions.COMPRESSED);
+		return this.length;
+	}
+
+	private void deflate(int flush) {
+		if (this.length == this.buff.length) {
+			byte[] buff = new byte[this.buff.length * 2];
+			System.arraycopy(this.buff, 0, buff, 0, this.length);
+			this.buff = buff;
+		}
+		this.length += this.deflater.deflate(this.buff, this.length, this.buff.length - this.length, flush);
+	}
+
+	/**
+	 * 圧縮したパケットが格納されたバッファを返します。 内容は次に{@link #begin()}を呼び出すまで有効です。
+	 *
+	 * @return バッファ。
+	 */
+	public byte[] getBuffer() {
+		return this.buff;
+	}
+
+	/**
+	 * 圧縮ストリームを破棄します。
+	 */
+	public void end() {
+		this.deflater.end();
+	}
+}
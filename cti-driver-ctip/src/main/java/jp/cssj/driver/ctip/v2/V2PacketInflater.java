@@ -0,0 +1,86 @@
+package jp.cssj.driver.ctip.v2;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * {@link V2PacketDeflater}により圧縮されたパケットの本体を展開します。
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class V2PacketInflater {
+	/**
+	 * 展開したパケットの本体の最大のバイト数です。 取り決めた最大のデータにブロック番号を加えた長さが収まります。
+	 */
+	public static final int MAX_LENGTH = V2Extensions.MAX_FRAME_SIZE + 4 + 1;
+
+	/**
+	 * 圧縮されたパケットの本体の最大のバイト数です。 {@link #MAX_LENGTH}のデータが圧縮により膨らんだ場合でも収まります。
+	 */
+	public static final int MAX_INPUT_LENGTH = MAX_LENGTH + (MAX_LENGTH >> 10) + 64;
+
+	private final Inflater inflater = new Inflater();
+
+	private byte[] buff = new byte[V2Session.BUFFER_SIZE + 4];
+
+	/**
+	 * パケットの本体を展開します。
+	 *
+	 * @param b
+	 *            圧縮された本体。
+	 * @param off
+	 *            本体の開始位置。
+	 * @param len
+	 *            本体の長さ。
+	 * @return 展開したデータの長さ。 データは{@link #getBuffer()}の先頭に格納されます。
+	 * @throws IOException
+	 *             データが不正であるか、大きすぎる場合。
+	 */
+	public int inflate(byte[] b, int off, int len) throws IOException {
+		if (len > MAX_INPUT_LENGTH) {
+			throw new IOException("Too large packet");
+		}
+		this.inflater.setInput(b, off, len);
+		int length = 0;
+		try {
+			for (;;) {
+				if (length == this.buff.length) {
+					if (length >= MAX_LENGTH) {
+						throw new IOException("Too large packet");
+					}
+					byte[] buff = new byte[Math.min(this.buff.length * 2, MAX_LENGTH)];
+					System.arraycopy(this.buff, 0, buff, 0, length);
+					this.buff = buff;
+				}
+				length += this.inflater.inflate(this.buff, length, this.buff.length - length);
+				if (length < this.buff.length && this.inflater.needsInput()) {
+					break;
+				}
+				if (this.inflater.finished() || this.inflater.needsDictionary()) {
+					throw new IOException("Bad compressed packet");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage());
+		}
+		return length;
+	}
+
+	/**
+	 * 展開したデータが格納されたバッファを返します。 内容は次に{@link #inflate(byte[], int, int)}を呼び出すまで有効です。
+	 *
+	 * @return バッファ。
+	 */
+	public byte[] getBuffer() {
+		return this.buff;
+	}
+
+	/**
+	 * 展開ストリームを破棄します。
+	 */
+	public void end() {
+		this.inflater.end();
+	}
+}
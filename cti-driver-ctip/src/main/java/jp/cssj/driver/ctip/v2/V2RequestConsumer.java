@@ -3,9 +3,8 @@ package jp.cssj.driver.ctip.v2;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectableChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
 
 import jp.cssj.cti2.TranscoderException;
 import jp.cssj.driver.ctip.common.ChannelIO;
@@ -17,7 +16,41 @@ import jp.cssj.driver.ctip.common.ChannelIO;
 public class V2RequestConsumer {
 	private final String charset;
 
-	private final byte[] buff = new byte[V2Session.BUFFER_SIZE + 5];
+	/** 一度の書き込みでまとめて送るDATAパケットの最大数。 */
+	private static final int GATHER_FRAMES = 16;
+
+	/** 1つのDATAパケットで送るデータの最大のバイト数。 */
+	private final int frameSize;
+
+	private final byte[] buff;
+
+	private final ByteBuffer staged;
+
+	private final ByteBuffer[] headers = new ByteBuffer[GATHER_FRAMES];
+
+	/** 送信するバッファ。 先頭は制御パケット用です。 */
+	private final ByteBuffer[] srcs = new ByteBuffer[1 + GATHER_FRAMES * 2];
+
+	/** 送信待ちの制御パケット。 */
+	private ByteBuffer packets = ByteBuffer.allocate(V2Session.BUFFER_SIZE);
+
+	private ByteBuffer spare = ByteBuffer.allocate(V2Session.BUFFER_SIZE);
+
+	/** 送信中であればtrue。 */
+	private boolean writing = false;
+
+	/** パケットの途中で送信が中断されていればtrue。 */
+	private volatile boolean truncated = false;
+
+	/** 他のスレッドから送る{@link #abort(byte)}のパケットが、送信中のパケットに割り込まないようにします。 */
+	private final ReentrantLock sendLock = new ReentrantLock();
+
+	/** 送信中に届いたサーバーからのデータを処理します。 */
+	private final ChannelIO.ReadListener listener = new ChannelIO.ReadListener() {
+		public void readable() throws IOException {
+			V2RequestConsumer.this.session.buildNext();
+		}
+	};
 
 	private final ChannelIO io;
 
@@ -25,9 +58,46 @@ public class V2RequestConsumer {
 
 	private V2Session session;
 
+	/** データを圧縮します。 圧縮しない場合はnull。 */
+	private final V2PacketDeflater deflater;
+
+	/** 送信中のデータを圧縮する場合はtrue。 */
+	private boolean compress = true;
+
 	V2RequestConsumer(ChannelIO io, String charset) throws IOException {
+		this(io, charset, null);
+	}
+
+	/**
+	 * @param io
+	 * @param charset
+	 * @param deflater
+	 *            データを圧縮する場合は、サーバーが{@link V2Extensions#DEFLATE}を受け入れた接続のもの。
+	 * @throws IOException
+	 */
+	V2RequestConsumer(ChannelIO io, String charset, V2PacketDeflater deflater) throws IOException {
+		this(io, charset, deflater, V2Session.BUFFER_SIZE);
+	}
+
+	/**
+	 * @param io
+	 * @param charset
+	 * @param deflater
+	 *            データを圧縮する場合は、サーバーが{@link V2Extensions#DEFLATE}を受け入れた接続のもの。
+	 * @param frameSize
+	 *            1つのDATAパケットで送るデータの最大のバイト数。 {@link V2Extensions#FRAME}で取り決めた値。
+	 * @throws IOException
+	 */
+	V2RequestConsumer(ChannelIO io, String charset, V2PacketDeflater deflater, int frameSize) throws IOException {
 		this.io = io;
 		this.charset = charset;
+		this.deflater = deflater;
+		this.frameSize = frameSize;
+		this.buff = new byte[frameSize + 5];
+		this.staged = ByteBuffer.wrap(this.buff);
+		for (int i = 0; i < this.headers.length; ++i) {
+			this.headers[i] = ByteBuffer.allocate(4 + 1);
+		}
 	}
 
 	protected void setCTIPSession(V2Session session) {
@@ -44,19 +114,15 @@ public class V2RequestConsumer {
 	 * @throws IOException
 	 */
 	public void property(String name, String value) throws IOException {
-		this.flush();
 		byte[] nameBytes = ChannelIO.toBytes(name, this.charset);
 		byte[] valueBytes = ChannelIO.toBytes(value, this.charset);
 
 		int payload = 1 + 2 + nameBytes.length + 2 + valueBytes.length;
-		ByteBuffer src = ByteBuffer.allocate(4 + payload);
-		src.putInt(payload);
-		src.put(V2ClientPackets.PROPERTY);
+		ByteBuffer src = this.packet(V2ClientPackets.PROPERTY, payload);
 		src.putShort((short) nameBytes.length);
 		src.put(nameBytes);
 		src.putShort((short) valueBytes.length);
 		src.put(valueBytes);
-		this.io.writeAll(src);
 	}
 
 	/**
@@ -67,14 +133,9 @@ public class V2RequestConsumer {
 	 * @throws IOException
 	 */
 	public void clientResource(boolean on) throws IOException {
-		this.flush();
-
 		int payload = 2;
-		ByteBuffer src = ByteBuffer.allocate(4 + payload);
-		src.putInt(payload);
-		src.put(V2ClientPackets.CLIENT_RESOURCE);
+		ByteBuffer src = this.packet(V2ClientPackets.CLIENT_RESOURCE, payload);
 		src.put((byte) (on ? 1 : 0));
-		this.io.writeAll(src);
 	}
 
 	/**
@@ -89,15 +150,12 @@ public class V2RequestConsumer {
 	 * @throws IOException
 	 */
 	public void startMain(URI uri, String mimeType, String encoding, long length) throws IOException {
-		this.flush();
 		byte[] uriBytes = ChannelIO.toBytes(uri.toString(), this.charset);
 		byte[] mimeTypeBytes = ChannelIO.toBytes(mimeType, this.charset);
 		byte[] encodingBytes = ChannelIO.toBytes(encoding, this.charset);
 
 		int payload = 1 + 2 + uriBytes.length + 2 + mimeTypeBytes.length + 2 + encodingBytes.length + 8;
-		ByteBuffer src = ByteBuffer.allocate(4 + payload);
-		src.putInt(payload);
-		src.put(V2ClientPackets.START_MAIN);
+		ByteBuffer src = this.packet(V2ClientPackets.START_MAIN, payload);
 		src.putShort((short) uriBytes.length);
 		src.put(uriBytes);
 		src.putShort((short) mimeTypeBytes.length);
@@ -105,7 +163,7 @@ public class V2RequestConsumer {
 		src.putShort((short) encodingBytes.length);
 		src.put(encodingBytes);
 		src.putLong(length);
-		this.io.writeAll(src);
+		this.compress = V2PacketDeflater.isCompressible(mimeType);
 	}
 
 	/**
@@ -116,16 +174,12 @@ public class V2RequestConsumer {
 	 * @throws IOException
 	 */
 	public void serverMain(URI uri) throws IOException {
-		this.flush();
 		byte[] uriBytes = ChannelIO.toBytes(uri.toString(), this.charset);
 
 		int payload = 1 + 2 + uriBytes.length;
-		ByteBuffer src = ByteBuffer.allocate(4 + payload);
-		src.putInt(payload);
-		src.put(V2ClientPackets.SERVER_MAIN);
+		ByteBuffer src = this.packet(V2ClientPackets.SERVER_MAIN, payload);
 		src.putShort((short) uriBytes.length);
 		src.put(uriBytes);
-		this.io.writeAll(src);
 	}
 
 	/**
@@ -140,63 +194,163 @@ public class V2RequestConsumer {
 	 * @throws IOException
 	 */
 	public void data(byte[] b, int off, int len) throws IOException {
-		for (int i = 0; i < len; ++i) {
-			if (this.pos >= V2Session.BUFFER_SIZE) {
+		while (len > 0) {
+			if (this.pos == 0 && len >= this.frameSize && !this.compressing()) {
+				// バッファを経由せず、ヘッダと呼び出し側の配列をまとめて送る
+				int frames = Math.min(len / this.frameSize, GATHER_FRAMES);
+				for (int i = 0; i < frames; ++i) {
+					ByteBuffer header = this.headers[i];
+					header.clear();
+					header.putInt(1 + this.frameSize);
+					header.put(V2ClientPackets.DATA);
+					header.flip();
+					this.srcs[1 + i * 2] = header;
+					this.srcs[2 + i * 2] = ByteBuffer.wrap(b, off, this.frameSize);
+					off += this.frameSize;
+					len -= this.frameSize;
+				}
+				this.write(frames * 2);
+				continue;
+			}
+			int count = Math.min(len, this.frameSize - this.pos);
+			System.arraycopy(b, off, this.buff, this.pos + 4 + 1, count);
+			this.pos += count;
+			off += count;
+			len -= count;
+			if (this.pos >= this.frameSize) {
 				this.flush();
 			}
-			this.buff[(this.pos++) + 4 + 1] = b[i + off];
 		}
 	}
 
+	/**
+	 * 制御パケットを送信待ちのバッファに追加します。 パケットの本体は戻り値のバッファに書き込んでください。
+	 * 
+	 * @param type
+	 *            パケットのタイプ。
+	 * @param payload
+	 *            パケットのタイプと本体の長さ。
+	 * @return 送信待ちのバッファ。
+	 * @throws IOException
+	 */
+	private ByteBuffer packet(byte type, int payload) throws IOException {
+		if (this.pos > 0 || (!this.writing && this.packets.remaining() < 4 + payload)) {
+			// 蓄積中のデータを先に送る
+			this.flush();
+		}
+		ByteBuffer packets = this.packets;
+		if (packets.remaining() < 4 + payload) {
+			ByteBuffer newPackets = ByteBuffer
+					.allocate(Math.max(packets.capacity() * 2, packets.position() + 4 + payload));
+			packets.flip();
+			newPackets.put(packets);
+			this.packets = packets = newPackets;
+		}
+		packets.putInt(payload);
+		packets.put(type);
+		return packets;
+	}
+
+	/**
+	 * サーバーからの応答を読み込む前に呼ばれます。 送信されていないパケットがあれば送ります。
+	 * 
+	 * @throws IOException
+	 */
+	void beforeRead() throws IOException {
+		if (!this.writing) {
+			this.flush();
+		}
+	}
+
+	/**
+	 * 送信するデータを圧縮するかどうかを返します。
+	 * 
+	 * @return 圧縮する場合はtrue。
+	 */
+	private boolean compressing() {
+		return this.deflater != null && this.compress;
+	}
+
+	/**
+	 * 送信されていない制御パケットとデータを全て送ります。
+	 * 
+	 * @throws IOException
+	 * @throws TranscoderException
+	 */
 	private void flush() throws IOException, TranscoderException {
-		if (this.pos > 0) {
+		int count = 0;
+		if (this.pos >= V2PacketDeflater.MIN_LENGTH && this.compressing()) {
+			V2PacketDeflater deflater = this.deflater;
+			deflater.begin();
+			deflater.write(this.buff, 4 + 1, this.pos);
+			// finishでバッファが拡張されることがあるため、先に長さを得る
+			int length = deflater.finish(V2ClientPackets.DATA);
+			this.srcs[1] = ByteBuffer.wrap(deflater.getBuffer(), 0, length);
+			this.pos = 0;
+			count = 1;
+		} else if (this.pos > 0) {
 			int payload = 1 + this.pos;
-			ByteBuffer src = ByteBuffer.wrap(this.buff, 0, 4 + payload);
+			ByteBuffer src = this.staged;
+			src.clear();
 			src.putInt(payload);
 			src.put(V2ClientPackets.DATA);
 			src.position(0);
+			src.limit(4 + payload);
+			this.srcs[1] = src;
+			this.pos = 0;
+			count = 1;
+		}
+		this.write(count);
+	}
 
-			SelectableChannel channel = this.io.getSelectable();
-			if (channel.isBlocking()) {
-				try (Selector selector = channel.provider().openSelector()) {
-					channel.configureBlocking(false);
-					SelectionKey key = channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-					try {
-						for (;;) {
-							selector.select();
-							selector.selectedKeys().clear();
-							if (src.remaining() > 0 && key.isWritable()) {
-								this.io.getChannel().write(src);
-							}
-							if (key.isReadable()) {
-								this.session.buildNext();
-							}
-							if (src.remaining() <= 0) {
-								break;
-							}
-						}
-					} finally {
-						key.cancel();
-					}
-				} finally {
-					channel.configureBlocking(true);
+	/**
+	 * 送信待ちの制御パケットと、srcsの2番目からcount個のバッファを送ります。
+	 * 
+	 * @param count
+	 *            データのバッファの数。
+	 * @throws IOException
+	 * @throws TranscoderException
+	 */
+	private void write(int count) throws IOException, TranscoderException {
+		this.sendLock.lock();
+		this.writing = true;
+		try {
+			for (;;) {
+				int first = 1;
+				ByteBuffer sending = null;
+				if (this.packets.position() > 0) {
+					// 送信中に追加される制御パケットは、もう一方のバッファに蓄積する
+					sending = this.packets;
+					this.packets = this.spare;
+					this.spare = sending;
+					sending.flip();
+					this.srcs[0] = sending;
+					first = 0;
 				}
-			} else {
-				for (;;) {
-					SelectionKey key = this.io.rwselect();
-					if (src.remaining() > 0 && key.isWritable()) {
-						this.io.getChannel().write(src);
+				boolean sent = false;
+				try {
+					if (count + 1 - first > 0) {
+						this.io.writeAll(this.srcs, first, count + 1 - first, this.listener);
 					}
-					if (key.isReadable()) {
-						this.session.buildNext();
+					sent = true;
+				} finally {
+					if (!sent) {
+						// 送信中に届いた中断などの例外により、書きかけのパケットが残っている
+						this.truncated = true;
 					}
-					if (src.remaining() <= 0) {
-						break;
+					if (sending != null) {
+						sending.clear();
 					}
+					Arrays.fill(this.srcs, 0, count + 1, null);
 				}
+				if (this.packets.position() == 0) {
+					break;
+				}
+				count = 0;
 			}
-
-			this.pos = 0;
+		} finally {
+			this.writing = false;
+			this.sendLock.unlock();
 		}
 	}
 
@@ -212,15 +366,12 @@ public class V2RequestConsumer {
 	 * @throws IOException
 	 */
 	public void startResource(URI uri, String mimeType, String encoding, long length) throws IOException {
-		this.flush();
 		byte[] uriBytes = ChannelIO.toBytes(uri.toString(), this.charset);
 		byte[] mimeTypeBytes = ChannelIO.toBytes(mimeType, this.charset);
 		byte[] encodingBytes = ChannelIO.toBytes(encoding, this.charset);
 
 		int payload = 1 + 2 + uriBytes.length + 2 + mimeTypeBytes.length + 2 + encodingBytes.length + 8;
-		ByteBuffer src = ByteBuffer.allocate(4 + payload);
-		src.putInt(payload);
-		src.put(V2ClientPackets.START_RESOURCE);
+		ByteBuffer src = this.packet(V2ClientPackets.START_RESOURCE, payload);
 		src.putShort((short) uriBytes.length);
 		src.put(uriBytes);
 		src.putShort((short) mimeTypeBytes.length);
@@ -228,7 +379,43 @@ public class V2RequestConsumer {
 		src.putShort((short) encodingBytes.length);
 		src.put(encodingBytes);
 		src.putLong(length);
-		this.io.writeAll(src);
+		this.compress = V2PacketDeflater.isCompressible(mimeType);
+	}
+
+	/**
+	 * リソースの本体の代わりに、内容のダイジェストを送ります。
+	 * 
+	 * @param uri
+	 *            リソースのURI。
+	 * @param mimeType
+	 *            リソースのMIME型。
+	 * @param encoding
+	 *            リソースのキャラクタ・エンコーディング。
+	 * @param length
+	 *            リソースのバイト数。
+	 * @param digest
+	 *            リソースの内容のダイジェスト。
+	 * @throws IOException
+	 * @see V2Extensions#CONTENT_ADDRESSED
+	 */
+	public void resourceDigest(URI uri, String mimeType, String encoding, long length, byte[] digest)
+			throws IOException {
+		byte[] uriBytes = ChannelIO.toBytes(uri.toString(), this.charset);
+		byte[] mimeTypeBytes = ChannelIO.toBytes(mimeType, this.charset);
+		byte[] encodingBytes = ChannelIO.toBytes(encoding, this.charset);
+
+		int payload = 1 + 2 + uriBytes.length + 2 + mimeTypeBytes.length + 2 + encodingBytes.length + 8 + 2
+				+ digest.length;
+		ByteBuffer src = this.packet(V2ClientPackets.RESOURCE_DIGEST, payload);
+		src.putShort((short) uriBytes.length);
+		src.put(uriBytes);
+		src.putShort((short) mimeTypeBytes.length);
+		src.put(mimeTypeBytes);
+		src.putShort((short) encodingBytes.length);
+		src.put(encodingBytes);
+		src.putLong(length);
+		src.putShort((short) digest.length);
+		src.put(digest);
 	}
 
 	/**
@@ -239,16 +426,12 @@ public class V2RequestConsumer {
 	 * @throws IOException
 	 */
 	public void missingResource(URI uri) throws IOException {
-		this.flush();
 		byte[] uriBytes = ChannelIO.toBytes(uri.toString(), this.charset);
 
 		int payload = 1 + 2 + uriBytes.length;
-		ByteBuffer src = ByteBuffer.allocate(4 + payload);
-		src.putInt(payload);
-		src.put(V2ClientPackets.MISSING_RESOURCE);
+		ByteBuffer src = this.packet(V2ClientPackets.MISSING_RESOURCE, payload);
 		src.putShort((short) uriBytes.length);
 		src.put(uriBytes);
-		this.io.writeAll(src);
 	}
 
 	/**
@@ -257,13 +440,9 @@ public class V2RequestConsumer {
 	 * @throws IOException
 	 */
 	public void eof() throws IOException {
-		this.flush();
-
 		int payload = 1;
-		ByteBuffer src = ByteBuffer.allocate(4 + payload);
-		src.putInt(payload);
-		src.put(V2ClientPackets.EOF);
-		this.io.writeAll(src);
+		this.packet(V2ClientPackets.EOF, payload);
+		this.flush();
 	}
 
 	/**
@@ -274,14 +453,9 @@ public class V2RequestConsumer {
 	 * @throws IOException
 	 */
 	public void continuous(boolean continuous) throws IOException {
-		this.flush();
-
 		int payload = 2;
-		ByteBuffer src = ByteBuffer.allocate(4 + payload);
-		src.putInt(payload);
-		src.put(V2ClientPackets.CONTINUOUS);
+		ByteBuffer src = this.packet(V2ClientPackets.CONTINUOUS, payload);
 		src.put((byte) (continuous ? 1 : 0));
-		this.io.writeAll(src);
 	}
 
 	/**
@@ -291,10 +465,8 @@ public class V2RequestConsumer {
 	 */
 	public void join() throws IOException {
 		int payload = 1;
-		ByteBuffer src = ByteBuffer.allocate(4 + payload);
-		src.putInt(payload);
-		src.put(V2ClientPackets.JOIN);
-		this.io.writeAll(src);
+		this.packet(V2ClientPackets.JOIN, payload);
+		this.flush();
 	}
 
 	/**
@@ -305,14 +477,60 @@ public class V2RequestConsumer {
 	 * @throws IOException
 	 */
 	public void abort(byte mode) throws IOException {
-		this.flush();
+		this.sendLock.lock();
+		try {
+			this.sendAbort(mode);
+		} finally {
+			this.sendLock.unlock();
+		}
+	}
 
+	/**
+	 * 他のパケットの送信中でなければ、処理の中断を要求します。
+	 * 
+	 * @param mode
+	 *            中断モード。
+	 * @return 中断を要求した場合はtrue。
+	 * @throws IOException
+	 */
+	boolean tryAbort(byte mode) throws IOException {
+		if (!this.sendLock.tryLock()) {
+			return false;
+		}
+		try {
+			this.sendAbort(mode);
+			return true;
+		} finally {
+			this.sendLock.unlock();
+		}
+	}
+
+	private void sendAbort(byte mode) throws IOException {
+		// 他のスレッドから呼ばれることがあるため、蓄積中のパケットとは別に直接送る
 		int payload = 2;
 		ByteBuffer src = ByteBuffer.allocate(4 + payload);
 		src.putInt(payload);
 		src.put(V2ClientPackets.ABORT);
 		src.put(mode);
-		this.io.writeAll(src);
+		boolean sent = false;
+		try {
+			this.io.writeAll(src);
+			sent = true;
+		} finally {
+			if (!sent) {
+				this.truncated = true;
+			}
+		}
+	}
+
+	/**
+	 * 送信したデータがパケットの区切りで終わっているかどうかを返します。
+	 * 送信の途中で例外が発生した場合はfalseとなり、その接続で続けてパケットを送ることはできません。
+	 * 
+	 * @return パケットの区切りで終わっていればtrue。
+	 */
+	boolean isPacketBoundary() {
+		return !this.truncated;
 	}
 
 	/**
@@ -321,13 +539,8 @@ public class V2RequestConsumer {
 	 * @throws IOException
 	 */
 	public void reset() throws IOException {
-		this.flush();
-
 		int payload = 1;
-		ByteBuffer src = ByteBuffer.allocate(4 + payload);
-		src.putInt(payload);
-		src.put(V2ClientPackets.RESET);
-		this.io.writeAll(src);
+		this.packet(V2ClientPackets.RESET, payload);
 	}
 
 	/**
@@ -336,13 +549,9 @@ public class V2RequestConsumer {
 	 * @throws IOException
 	 */
 	public void close() throws IOException {
-		this.flush();
-
 		int payload = 1;
-		ByteBuffer src = ByteBuffer.allocate(4 + payload);
-		src.putInt(payload);
-		src.put(V2ClientPackets.CLOSE);
-		this.io.writeAll(src);
+		this.packet(V2ClientPackets.CLOSE, payload);
+		this.flush();
 	}
 
 	/**
@@ -353,15 +562,11 @@ public class V2RequestConsumer {
 	 * @throws IOException
 	 */
 	public void serverInfo(URI uri) throws IOException {
-		this.flush();
 		byte[] uriBytes = ChannelIO.toBytes(uri.toString(), this.charset);
 
 		int payload = 1 + 2 + uriBytes.length;
-		ByteBuffer src = ByteBuffer.allocate(4 + payload);
-		src.putInt(payload);
-		src.put(V2ClientPackets.SERVER_INFO);
+		ByteBuffer src = this.packet(V2ClientPackets.SERVER_INFO, payload);
 		src.putShort((short) uriBytes.length);
 		src.put(uriBytes);
-		this.io.writeAll(src);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,291 @@
+package jp.cssj.driver.ctip.v2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.cssj.resolver.Source;
+import jp.cssj.resolver.SourceResolver;
+
+/**
+ * <p>
+ * サーバーから要求される前に、リソースの取得と読み込みを別のスレッドで行います。
+ * </p>
+ * <p>
+ * サーバーはリソースを1つずつ要求するため、 リソースの送信は常にセッションのスレッドで要求された順に行われます。
+ * 先読みしたデータはメモリ上に保持されますが、その合計は指定したバイト数を超えません。
+ * 超える分は先読みを止め、送信するときにデータソースから直接読み込みます。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+class V2ResourcePrefetcher {
+	private static final Logger LOG = Logger.getLogger(V2ResourcePrefetcher.class.getName());
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * 先読みしたリソースです。
+	 */
+	static class Entry {
+		final URI uri;
+
+		final SourceResolver resolver;
+
+		/**
+		 * 取得したデータソース。 取得できなかった場合はnull。
+		 */
+		Source source = null;
+
+		/**
+		 * 先読みしたデータのリスト。
+		 */
+		final List<byte[]> chunks = new ArrayList<byte[]>();
+
+		/**
+		 * 最後のチャンクのバイト数。
+		 */
+		int lastLength = 0;
+
+		/**
+		 * 先読みしきれなかったデータのストリーム。 全て先読みした場合はnull。
+		 */
+		InputStream rest = null;
+
+		long bytes = 0;
+
+		boolean done = false, cancelled = false;
+
+		Entry(URI uri, SourceResolver resolver) {
+			this.uri = uri;
+			this.resolver = resolver;
+		}
+
+		/**
+		 * 先読みしたデータを返します。
+		 *
+		 * @return 先読みしたデータ。
+		 */
+		byte[] toByteArray() {
+			int size = 0;
+			for (int i = 0; i < this.chunks.size(); ++i) {
+				size += i == this.chunks.size() - 1 ? this.lastLength : this.chunks.get(i).length;
+			}
+			byte[] data = new byte[size];
+			int off = 0;
+			for (int i = 0; i < this.chunks.size(); ++i) {
+				int len = i == this.chunks.size() - 1 ? this.lastLength : this.chunks.get(i).length;
+				System.arraycopy(this.chunks.get(i), 0, data, off, len);
+				off += len;
+			}
+			return data;
+		}
+
+		/**
+		 * ストリームを閉じ、データソースを解放します。
+		 */
+		void dispose() {
+			try {
+				if (this.rest != null) {
+					this.rest.close();
+					this.rest = null;
+				}
+			} catch (IOException e) {
+				LOG.log(Level.FINE, "ストリームを閉じられませんでした", e);
+			} finally {
+				if (this.source != null) {
+					this.resolver.release(this.source);
+					this.source = null;
+				}
+			}
+		}
+	}
+
+	private final Executor executor;
+
+	private final long maxBytes;
+
+	private final Map<URI, Entry> entries = new HashMap<URI, Entry>();
+
+	private long bytes = 0;
+
+	/**
+	 * @param executor
+	 *            リソースを取得するスレッド。
+	 * @param maxBytes
+	 *            先読みしたデータを保持する最大のバイト数。
+	 */
+	V2ResourcePrefetcher(Executor executor, long maxBytes) {
+		this.executor = executor;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * リソースの先読みを開始します。 既に先読みしているリソースに対しては何もしません。
+	 *
+	 * @param uri
+	 * @param resolver
+	 */
+	void prefetch(URI uri, SourceResolver resolver) {
+		final Entry entry = new Entry(uri, resolver);
+		synchronized (this) {
+			if (this.entries.containsKey(uri)) {
+				return;
+			}
+			this.entries.put(uri, entry);
+		}
+		this.executor.execute(new Runnable() {
+			public void run() {
+				V2ResourcePrefetcher.this.load(entry);
+			}
+		});
+	}
+
+	private void load(Entry entry) {
+		try {
+			Source source;
+			try {
+				source = entry.resolver.resolve(entry.uri);
+			} catch (IOException e) {
+				// 存在しないリソースとして扱う
+				source = null;
+			}
+			if (source != null) {
+				synchronized (this) {
+					entry.source = source;
+				}
+				if (source.exists()) {
+					entry.rest = source.getInputStream();
+					while (this.reserve(entry, BUFFER_SIZE)) {
+						byte[] chunk = new byte[BUFFER_SIZE];
+						int len = 0;
+						while (len < chunk.length) {
+							int n = entry.rest.read(chunk, len, chunk.length - len);
+							if (n == -1) {
+								break;
+							}
+							len += n;
+						}
+						synchronized (this) {
+							this.bytes -= chunk.length - len;
+							entry.bytes -= chunk.length - len;
+							if (len > 0) {
+								entry.chunks.add(chunk);
+								entry.lastLength = len;
+							}
+						}
+						if (len < chunk.length) {
+							InputStream in = entry.rest;
+							entry.rest = null;
+							in.close();
+							break;
+						}
+					}
+					// 上限を超えた場合、残りは送信時に読み込む
+				}
+			}
+		} catch (Exception e) {
+			// 読み込めなかったリソースは、送信時にもう一度取得する
+			LOG.log(Level.FINE, "リソースを先読みできませんでした: " + entry.uri, e);
+			synchronized (this) {
+				entry.cancelled = true;
+			}
+		} finally {
+			boolean dispose;
+			synchronized (this) {
+				entry.done = true;
+				dispose = entry.cancelled;
+				this.notifyAll();
+			}
+			if (dispose) {
+				this.discard(entry);
+			}
+		}
+	}
+
+	private synchronized boolean reserve(Entry entry, int len) {
+		if (entry.cancelled || this.bytes + len > this.maxBytes) {
+			return false;
+		}
+		this.bytes += len;
+		entry.bytes += len;
+		return true;
+	}
+
+	/**
+	 * 先読みしたリソースを取り出します。 先読みが終わっていない場合は、終わるまで待ちます。
+	 * 取り出したリソースは、使用後に{@link #discard(Entry)}で破棄してください。
+	 *
+	 * @param uri
+	 * @return 先読みしたリソース。 先読みしていないか、取得に失敗した場合はnull。
+	 * @throws IOException
+	 */
+	Entry take(URI uri) throws IOException {
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.remove(uri);
+			if (entry == null) {
+				return null;
+			}
+			while (!entry.done) {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					entry.cancelled = true;
+					throw new InterruptedIOException();
+				}
+			}
+			if (entry.cancelled) {
+				return null;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * 先読みしたリソースを破棄し、保持していたデータの分だけ先読みできるようにします。
+	 *
+	 * @param entry
+	 */
+	void discard(Entry entry) {
+		synchronized (this) {
+			this.bytes -= entry.bytes;
+			entry.bytes = 0;
+		}
+		entry.chunks.clear();
+		entry.dispose();
+	}
+
+	/**
+	 * 取り出されていない全てのリソースを破棄します。 先読み中のリソースは、先読みが終わった時点で破棄されます。
+	 */
+	void clear() {
+		List<Entry> done = new ArrayList<Entry>();
+		synchronized (this) {
+			for (Iterator<Entry> i = this.entries.values().iterator(); i.hasNext();) {
+				Entry entry = i.next();
+				i.remove();
+				if (entry.done) {
+					if (!entry.cancelled) {
+						done.add(entry);
+					}
+				} else {
+					entry.cancelled = true;
+				}
+			}
+		}
+		for (int i = 0; i < done.size(); ++i) {
+			this.discard(done.get(i));
+		}
+	}
+}
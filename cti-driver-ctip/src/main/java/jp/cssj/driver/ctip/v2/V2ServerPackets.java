@@ -57,6 +57,15 @@ public interface V2ServerPackets {
 	 */
 	public static final byte RESOURCE_REQUEST = 0x21;
 
+	/**
+	 * {@link V2ClientPackets#RESOURCE_DIGEST}に対して、サーバーが同じ内容を保持しているかどうかを返すパケットです。
+	 * 保持していればモードが1で、クライアントは本体を送りません。
+	 * 0であれば、クライアントは続けてリソース開始パケットと本体を送ります。
+	 * 
+	 * @see V2Extensions#CONTENT_ADDRESSED
+	 */
+	public static final byte RESOURCE_STATUS = 0x22;
+
 	/**
 	 * データ終了パケットです。
 	 */
@@ -6,10 +6,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
+import jp.cssj.cti2.AsyncCTISession;
 import jp.cssj.cti2.CTISession;
 import jp.cssj.cti2.TranscoderException;
 import jp.cssj.cti2.helpers.AbstractCTISession;
+import jp.cssj.cti2.helpers.CTIMessageCodes;
+import jp.cssj.cti2.helpers.DeadlineTimer;
 import jp.cssj.cti2.message.MessageHandler;
 import jp.cssj.cti2.progress.ProgressListener;
 import jp.cssj.cti2.results.Results;
@@ -24,12 +32,15 @@ import jp.cssj.rsr.Sequential;
  * @author MIYABE Tatsuhiko
  * @version $Id: V2Session.java 1552 2018-04-26 01:43:24Z miyabe $
  */
-public class V2Session extends AbstractCTISession implements CTISession {
+public class V2Session extends AbstractCTISession implements AsyncCTISession {
 	public static final int BUFFER_SIZE = 8192;
 
-	private final byte[] writeBuff = new byte[BUFFER_SIZE];
+	/**
+	 * 内容のダイジェストを計算するためにメモリ上に読み込むリソースの最大のバイト数です。
+	 */
+	private static final int DIGEST_LIMIT = 16 * 1024 * 1024;
 
-	private final byte[] readBuff = new byte[BUFFER_SIZE];
+	private final byte[] writeBuff = new byte[BUFFER_SIZE];
 
 	protected final String encoding;
 
@@ -41,10 +52,19 @@ public class V2Session extends AbstractCTISession implements CTISession {
 
 	protected V2RequestConsumer request = null;
 
+	protected final V2ConnectionPool pool;
+
+	private V2ConnectionPool.Connection connection = null;
+
+	// 通信が途中で中断され、接続を再利用できない場合にfalse
+	private boolean reusable = true;
+
 	protected Results results = null;
 
 	protected SourceResolver resolver = null;
 
+	private V2ResourcePrefetcher prefetcher = null;
+
 	protected MessageHandler messageHandler = null;
 
 	protected ProgressListener progressListener = null;
@@ -54,23 +74,50 @@ public class V2Session extends AbstractCTISession implements CTISession {
 
 	protected RandomBuilder builder = null;
 
+	/** 実行中の変換の期限を監視するタイマー。 */
+	private DeadlineTimer timer = null;
+
 	public V2Session(URI uri, String encoding, String user, String password) throws IOException {
+		this(uri, encoding, user, password, null);
+	}
+
+	/**
+	 * 接続プールを使うセッションを構築します。
+	 * 
+	 * @param uri
+	 *            サーバーのURI。
+	 * @param encoding
+	 *            通信に使うキャラクタ・エンコーディング。
+	 * @param user
+	 *            ユーザー。
+	 * @param password
+	 *            パスワード。
+	 * @param pool
+	 *            接続プール。nullであれば接続を再利用しません。
+	 * @throws IOException
+	 */
+	public V2Session(URI uri, String encoding, String user, String password, V2ConnectionPool pool)
+			throws IOException {
 		this.uri = uri;
 		this.encoding = encoding;
 		this.user = user == null ? "" : user;
 		this.password = password == null ? "" : password;
+		this.pool = pool;
 	}
 
 	protected void init() throws IOException {
 		// 認証
 		if (this.producer == null) {
 			V2ContentProducer producer;
-			if (this.uri.getScheme().equals("ctips")) {
-				producer = new TLSV2ContentProducer(this.uri, this.encoding);
+			V2RequestConsumer request;
+			if (this.pool != null) {
+				this.connection = this.pool.borrow(this.uri, this.encoding, this.user, this.password);
+				producer = this.connection.producer;
+				request = this.connection.request;
 			} else {
-				producer = new V2ContentProducer(this.uri, this.encoding);
+				producer = V2ContentProducer.newProducer(this.uri, this.encoding);
+				request = (V2RequestConsumer) producer.connect(this.user, this.password);
 			}
-			V2RequestConsumer request = (V2RequestConsumer) producer.connect(this.user, this.password);
 			request.setCTIPSession(this);
 			this.producer = producer;
 			this.request = request;
@@ -85,6 +132,7 @@ public class V2Session extends AbstractCTISession implements CTISession {
 		this.request.serverInfo(uri);
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		for (;;) {
+			this.request.beforeRead();
 			this.producer.next();
 			byte type = this.producer.getType();
 			if (type == V2ServerPackets.EOF) {
@@ -93,10 +141,7 @@ public class V2Session extends AbstractCTISession implements CTISession {
 			if (type != V2ServerPackets.DATA) {
 				throw new IOException("不正なパケットタイプです: " + type);
 			}
-			for (int len = this.producer.read(this.readBuff, 0, this.readBuff.length); len != -1; len = this.producer
-					.read(this.readBuff, 0, this.readBuff.length)) {
-				out.write(this.readBuff, 0, len);
-			}
+			out.write(this.producer.getDataBuffer(), this.producer.getDataOffset(), this.producer.getDataLength());
 		}
 		return new ByteArrayInputStream(out.toByteArray());
 	}
@@ -142,16 +187,110 @@ public class V2Session extends AbstractCTISession implements CTISession {
 			throw new IllegalStateException("既に本体が変換されています。");
 		}
 		this.init();
-		this.request.startResource(source.getURI(), source.getMimeType(), source.getEncoding(), source.getLength());
+		this.sendResource(source, null, null);
+	}
+
+	/**
+	 * <p>
+	 * リソースを送信します。
+	 * </p>
+	 * <p>
+	 * サーバーが{@link V2Extensions#CONTENT_ADDRESSED}を受け入れている場合は、先に内容のダイジェストを送り、
+	 * サーバーが同じ内容を保持していなければ本体を送ります。
+	 * ダイジェストは{@link V2DigestCache}から得られなければ、内容を読み込んで計算します。
+	 * データソースは、ダイジェストを計算するか本体を送る必要があるまで開きません。
+	 * </p>
+	 * 
+	 * @param source
+	 *            データソース。
+	 * @param head
+	 *            既に読み込まれたデータの先頭。nullであればデータソースから読み込みます。
+	 * @param rest
+	 *            headに続くデータ。headがnullでなく、全て読み込まれている場合はnull。
+	 * @throws IOException
+	 */
+	private void sendResource(Source source, byte[] head, InputStream rest) throws IOException {
+		InputStream in = null;
 		try {
-			try (InputStream in = source.getInputStream()) {
-				for (int len = in.read(this.writeBuff, 0, this.writeBuff.length); len != -1; len = in
-						.read(this.writeBuff, 0, this.writeBuff.length)) {
-					this.request.data(this.writeBuff, 0, len);
+			if (this.producer.getExtensions().contains(V2Extensions.CONTENT_ADDRESSED)) {
+				V2DigestCache cache = V2DigestCache.getSharedInstance();
+				V2DigestCache.Digest cached = cache.get(source);
+				byte[] digest = null;
+				long length = -1L;
+				if (cached != null) {
+					digest = cached.getDigest();
+					length = cached.getLength();
+				} else {
+					if (head == null && source.getLength() <= DIGEST_LIMIT) {
+						// ダイジェストを計算するためにメモリ上に読み込む
+						in = rest = source.getInputStream();
+						ByteArrayOutputStream buff = new ByteArrayOutputStream();
+						int len = 0;
+						while (buff.size() <= DIGEST_LIMIT && (len = rest.read(this.writeBuff)) != -1) {
+							buff.write(this.writeBuff, 0, len);
+						}
+						head = buff.toByteArray();
+						if (len == -1) {
+							rest = null;
+						}
+					}
+					if (head != null && rest == null) {
+						try {
+							digest = MessageDigest.getInstance(V2Extensions.DIGEST_ALGORITHM).digest(head);
+						} catch (NoSuchAlgorithmException e) {
+							throw new IllegalStateException(e);
+						}
+						length = head.length;
+						cache.put(source, digest, length);
+					}
 				}
+				if (digest != null) {
+					this.request.resourceDigest(source.getURI(), source.getMimeType(), source.getEncoding(), length,
+							digest);
+					if (this.resourceStatus()) {
+						// サーバーが同じ内容を保持している
+						return;
+					}
+				}
+			}
+			if (head == null) {
+				in = rest = source.getInputStream();
+			}
+			this.request.startResource(source.getURI(), source.getMimeType(), source.getEncoding(),
+					source.getLength());
+			try {
+				if (head != null) {
+					this.request.data(head, 0, head.length);
+				}
+				if (rest != null) {
+					for (int len = rest.read(this.writeBuff); len != -1; len = rest.read(this.writeBuff)) {
+						this.request.data(this.writeBuff, 0, len);
+					}
+				}
+			} finally {
+				this.request.eof();
 			}
 		} finally {
-			this.request.eof();
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * {@link V2ServerPackets#RESOURCE_STATUS}を受信するまで、受信したパケットを処理します。
+	 * 
+	 * @return サーバーが同じ内容のリソースを保持していればtrue。
+	 * @throws IOException
+	 */
+	private boolean resourceStatus() throws IOException {
+		for (;;) {
+			this.request.beforeRead();
+			this.producer.next();
+			if (this.producer.getType() == V2ServerPackets.RESOURCE_STATUS) {
+				return this.producer.getMode() == 1;
+			}
+			this.handlePacket();
 		}
 	}
 
@@ -159,7 +298,19 @@ public class V2Session extends AbstractCTISession implements CTISession {
 		if (this.state <= 1) {
 			return false;
 		}
+		this.request.beforeRead();
 		this.producer.next();
+		return this.handlePacket();
+	}
+
+	/**
+	 * 受信したパケットを処理します。
+	 * 
+	 * @return 変換結果の受信が続く場合はtrue。
+	 * @throws IOException
+	 * @throws TranscoderException
+	 */
+	protected boolean handlePacket() throws IOException, TranscoderException {
 		// System.err.println("type="+Integer.toHexString(this.producer.getType()));
 		boolean serial = false;
 		switch (this.producer.getType()) {
@@ -183,10 +334,8 @@ public class V2Session extends AbstractCTISession implements CTISession {
 			assert !serial;
 			// 結果データ
 			int blockId = this.producer.getBlockId();
-			for (int len = this.producer.read(this.readBuff, 0, this.readBuff.length); len != -1; len = this.producer
-					.read(this.readBuff, 0, this.readBuff.length)) {
-				this.builder.write(blockId, this.readBuff, 0, len);
-			}
+			this.builder.write(blockId, this.producer.getDataBuffer(), this.producer.getDataOffset(),
+					this.producer.getDataLength());
 		}
 			break;
 
@@ -244,20 +393,14 @@ public class V2Session extends AbstractCTISession implements CTISession {
 			assert this.builder != null;
 			if (this.builder instanceof Sequential) {
 				Sequential builder = (Sequential) this.builder;
-				for (int len = this.producer.read(this.readBuff, 0,
-						this.readBuff.length); len != -1; len = this.producer.read(this.readBuff, 0,
-								this.readBuff.length)) {
-					builder.write(this.readBuff, 0, len);
-				}
+				builder.write(this.producer.getDataBuffer(), this.producer.getDataOffset(),
+						this.producer.getDataLength());
 			} else {
 				if (!serial) {
 					this.builder.addBlock();
 				}
-				for (int len = this.producer.read(this.readBuff, 0,
-						this.readBuff.length); len != -1; len = this.producer.read(this.readBuff, 0,
-								this.readBuff.length)) {
-					this.builder.write(0, this.readBuff, 0, len);
-				}
+				this.builder.write(0, this.producer.getDataBuffer(), this.producer.getDataOffset(),
+						this.producer.getDataLength());
 			}
 			if (!serial) {
 				serial = true;
@@ -268,7 +411,20 @@ public class V2Session extends AbstractCTISession implements CTISession {
 		case V2ServerPackets.RESOURCE_REQUEST: {
 			// リソース要求
 			URI uri = this.producer.getURI();
-			if (this.resolver != null) {
+			V2ResourcePrefetcher.Entry entry = this.prefetcher == null ? null : this.prefetcher.take(uri);
+			if (entry != null) {
+				// 先読み済みのリソース
+				try {
+					Source source = entry.source;
+					if (source != null && source.exists()) {
+						this.sendResource(source, entry.toByteArray(), entry.rest);
+					} else {
+						this.request.missingResource(uri);
+					}
+				} finally {
+					this.prefetcher.discard(entry);
+				}
+			} else if (this.resolver != null) {
 				Source source;
 				try {
 					source = this.resolver.resolve(uri);
@@ -279,15 +435,7 @@ public class V2Session extends AbstractCTISession implements CTISession {
 				if (source != null) {
 					try {
 						if (source.exists()) {
-							this.request.startResource(source.getURI(), source.getMimeType(), source.getEncoding(),
-									source.getLength());
-							try (InputStream in = source.getInputStream()) {
-								try (OutputStream out = new V2RequestConsumerOutputStream(this.request)) {
-									for (int len = in.read(this.writeBuff); len != -1; len = in.read(this.writeBuff)) {
-										out.write(this.writeBuff, 0, len);
-									}
-								}
-							}
+							this.sendResource(source, null, null);
 						} else {
 							this.request.missingResource(uri);
 						}
@@ -343,12 +491,33 @@ public class V2Session extends AbstractCTISession implements CTISession {
 			throw new IllegalStateException("既に本体が変換されています。");
 		}
 		this.init();
+		this.startDeadline(null);
 		this.request.startMain(metaSource.getURI(), metaSource.getMimeType(), metaSource.getEncoding(),
 				metaSource.getLength());
 		this.state = 2;
 		return new V2RequestConsumerOutputStream(this.request) {
 			boolean closed = false;
 
+			public void write(int b) throws IOException {
+				try {
+					super.write(b);
+				} catch (IOException e) {
+					throw V2Session.this.deadlineExceeded(e);
+				}
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				try {
+					super.write(b, off, len);
+				} catch (IOException e) {
+					throw V2Session.this.deadlineExceeded(e);
+				}
+			}
+
+			public void write(byte[] b) throws IOException {
+				this.write(b, 0, b.length);
+			}
+
 			public void close() throws IOException {
 				if (this.closed) {
 					return;
@@ -367,6 +536,8 @@ public class V2Session extends AbstractCTISession implements CTISession {
 		if (this.results == null) {
 			throw new IllegalStateException("Resultsが設定されていません。");
 		}
+		this.init();
+		this.startDeadline(null);
 		this.request.serverMain(uri);
 		this.state = 2;
 		this.next();
@@ -386,13 +557,265 @@ public class V2Session extends AbstractCTISession implements CTISession {
 		}
 	}
 
+	public CompletableFuture<Void> transcodeAsync(final Source source) {
+		if (this.results == null) {
+			throw new IllegalStateException("Resultsが設定されていません。");
+		}
+		if (this.state >= 2) {
+			throw new IllegalStateException("既に本体が変換されています。");
+		}
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		try {
+			this.init();
+			if (this.producer.io.getSelectable().isBlocking()) {
+				// ブロッキングI/Oの接続はイベントループで扱えないため、別のスレッドで変換する
+				V2EventLoop.getDefault().getExecutor().execute(new Runnable() {
+					public void run() {
+						try {
+							V2Session.this.transcode(source);
+							future.complete(null);
+						} catch (Throwable e) {
+							future.completeExceptionally(e);
+						}
+					}
+				});
+				return future;
+			}
+			this.startDeadline(future);
+			this.request.startMain(source.getURI(), source.getMimeType(), source.getEncoding(), source.getLength());
+			this.state = 2;
+			IOException error = null;
+			try (InputStream in = source.getInputStream()) {
+				for (int len = in.read(this.writeBuff); len != -1; len = in.read(this.writeBuff)) {
+					this.request.data(this.writeBuff, 0, len);
+				}
+			} catch (TranscoderException e) {
+				throw e;
+			} catch (IOException e) {
+				error = e;
+			}
+			this.request.eof();
+			if (error != null) {
+				// データソースを読み込めなかった場合は、変換結果を読み捨ててから例外を通知する
+				this.next();
+				throw error;
+			}
+			this.receiveAsync(future);
+		} catch (Throwable e) {
+			this.failAsync(future, e);
+		}
+		return future;
+	}
+
+	public CompletableFuture<Void> transcodeAsync(final URI uri) {
+		if (this.results == null) {
+			throw new IllegalStateException("Resultsが設定されていません。");
+		}
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		try {
+			this.init();
+			if (this.producer.io.getSelectable().isBlocking()) {
+				V2EventLoop.getDefault().getExecutor().execute(new Runnable() {
+					public void run() {
+						try {
+							V2Session.this.transcode(uri);
+							future.complete(null);
+						} catch (Throwable e) {
+							future.completeExceptionally(e);
+						}
+					}
+				});
+				return future;
+			}
+			this.startDeadline(future);
+			this.request.serverMain(uri);
+			this.state = 2;
+			this.receiveAsync(future);
+		} catch (Throwable e) {
+			this.failAsync(future, e);
+		}
+		return future;
+	}
+
+	/**
+	 * 変換結果をイベントループで受信します。
+	 * 
+	 * @param future
+	 *            変換が完了した時点で完了させるCompletableFuture。
+	 * @throws IOException
+	 */
+	private void receiveAsync(final CompletableFuture<Void> future) throws IOException {
+		if (this.state <= 1) {
+			// 本体の送信中に変換が完了した
+			this.completeAsync(future);
+			return;
+		}
+		this.request.beforeRead();
+		final V2EventLoop loop = V2EventLoop.getDefault();
+		loop.register(this.producer.io.getSelectable(), new V2EventLoop.Handler() {
+			public void readable(final SelectionKey key) {
+				try {
+					while (V2Session.this.producer.poll()) {
+						if (V2Session.this.producer.getType() == V2ServerPackets.RESOURCE_REQUEST) {
+							// リソースの取得と送信はブロックするため、別のスレッドで行う
+							loop.suspend(key);
+							loop.getExecutor().execute(new Runnable() {
+								public void run() {
+									try {
+										V2Session.this.handlePacket();
+										if (V2Session.this.state <= 1) {
+											loop.cancel(key);
+											V2Session.this.completeAsync(future);
+											return;
+										}
+										V2Session.this.request.beforeRead();
+										loop.resume(key);
+									} catch (Throwable e) {
+										loop.cancel(key);
+										V2Session.this.failAsync(future, e);
+									}
+								}
+							});
+							return;
+						}
+						if (!V2Session.this.handlePacket()) {
+							loop.cancel(key);
+							V2Session.this.completeAsync(future);
+							return;
+						}
+					}
+				} catch (Throwable e) {
+					loop.cancel(key);
+					V2Session.this.failAsync(future, e);
+				}
+			}
+
+			public void failed(IOException e) {
+				V2Session.this.failAsync(future, e);
+			}
+		});
+	}
+
+	private void completeAsync(CompletableFuture<Void> future) {
+		this.endDeadline();
+		future.complete(null);
+	}
+
+	private void failAsync(CompletableFuture<Void> future, Throwable e) {
+		if (!(e instanceof TranscoderException)) {
+			this.reusable = false;
+		}
+		if (e instanceof IOException) {
+			e = this.deadlineExceeded((IOException) e);
+		}
+		this.state = 1;
+		this.endDeadline();
+		future.completeExceptionally(e);
+	}
+
+	/**
+	 * <p>
+	 * 変換の期限があれば、サーバーに残り時間を通知して期限の監視を始めます。
+	 * </p>
+	 * <p>
+	 * 期限を過ぎるとサーバーに中断を要求し、それでも終わらなければ接続を切断します。
+	 * 他のパケットの送信中は中断を要求できないため、次の段階に進みます。
+	 * </p>
+	 * 
+	 * @param future
+	 *            イベントループで変換結果を受信する場合は、その完了を通知するCompletableFuture。
+	 *            接続を切断すると受信のイベントが届かなくなるため、失敗させます。
+	 * @throws IOException
+	 */
+	private void startDeadline(final CompletableFuture<Void> future) throws IOException {
+		long deadline = this.transcodeDeadline();
+		if (deadline <= 0L) {
+			return;
+		}
+		DeadlineTimer timer = new DeadlineTimer(this, deadline) {
+			protected void abort(byte mode) throws IOException {
+				V2RequestConsumer request = V2Session.this.request;
+				if (request != null) {
+					request.tryAbort((byte) (mode - 1));
+				}
+			}
+
+			protected void disconnect() throws IOException {
+				V2ContentProducer producer = V2Session.this.producer;
+				try {
+					if (producer != null && producer.io != null) {
+						producer.io.shutdown();
+					}
+				} finally {
+					if (future != null) {
+						V2Session.this.failAsync(future, new IOException("期限を過ぎたため接続を切断しました"));
+					}
+				}
+			}
+		};
+		long remaining = timer.getRemaining();
+		if (remaining <= 0L) {
+			throw DeadlineTimer.exceeded(TranscoderException.STATE_BROKEN, null);
+		}
+		this.request.property(CTISession.DEADLINE, String.valueOf(remaining));
+		this.timer = timer.start();
+	}
+
+	/**
+	 * 期限を過ぎて変換を中断した場合は、変換中に発生した例外を期限切れの例外に置き換えます。
+	 * 
+	 * @param e
+	 *            変換中に発生した例外。
+	 * @return 通知する例外。
+	 */
+	private IOException deadlineExceeded(IOException e) {
+		DeadlineTimer timer = this.timer;
+		if (timer == null || !timer.isExpired()) {
+			return e;
+		}
+		if (e instanceof TranscoderException
+				&& ((TranscoderException) e).getCode() == CTIMessageCodes.ERROR_DEADLINE) {
+			// サーバー側で期限を過ぎた
+			return e;
+		}
+		byte state = e instanceof TranscoderException ? ((TranscoderException) e).getState()
+				: TranscoderException.STATE_BROKEN;
+		return DeadlineTimer.exceeded(state, e);
+	}
+
+	/**
+	 * 期限の監視を終了します。 中断を要求していた場合は、要求が後から届くことがあるため接続を再利用しません。
+	 */
+	private void endDeadline() {
+		DeadlineTimer timer = this.timer;
+		if (timer == null) {
+			return;
+		}
+		this.timer = null;
+		if (timer.cancel()) {
+			this.reusable = false;
+		}
+	}
+
 	protected void next() throws IOException {
+		boolean completed = false;
 		try {
 			while (this.buildNext()) {
 				// do nothing
 			}
+			completed = true;
+		} catch (TranscoderException e) {
+			// 送信の途中で中断された場合は、書きかけのパケットが残っている
+			completed = this.request.isPacketBoundary();
+			throw this.deadlineExceeded(e);
+		} catch (IOException e) {
+			throw this.deadlineExceeded(e);
 		} finally {
 			this.state = 1;
+			if (!completed) {
+				this.reusable = false;
+			}
+			this.endDeadline();
 		}
 	}
 
@@ -402,12 +825,16 @@ public class V2Session extends AbstractCTISession implements CTISession {
 	}
 
 	public void join() throws IOException {
+		this.startDeadline(null);
 		this.request.join();
 		this.state = 2;
 		this.next();
 	}
 
 	public void setSourceResolver(SourceResolver resolver) throws IOException {
+		if (this.prefetcher != null) {
+			this.prefetcher.clear();
+		}
 		this.resolver = resolver;
 		this.init();
 		this.request.clientResource(resolver != null);
@@ -425,6 +852,10 @@ public class V2Session extends AbstractCTISession implements CTISession {
 	}
 
 	public void abort(byte mode) throws IOException {
+		if (this.request == null) {
+			// まだ接続していない
+			return;
+		}
 		this.request.abort((byte) (mode - 1));
 	}
 
@@ -432,19 +863,84 @@ public class V2Session extends AbstractCTISession implements CTISession {
 		if (this.request != null) {
 			this.request.reset();
 		}
+		if (this.prefetcher != null) {
+			this.prefetcher.clear();
+		}
 		this.resolver = null;
 		this.results = null;
 		this.state = 1;
 		this.builder = null;
+		this.deadline = this.transcodeTimeout = 0L;
+	}
+
+	/**
+	 * <p>
+	 * リソースの先読みを有効にします。
+	 * </p>
+	 * <p>
+	 * {@link #prefetch(URI)}で指定したリソースは、サーバーから要求される前に executorのスレッドで
+	 * {@link SourceResolver}から取得され、maxBytesまでメモリ上に読み込まれます。
+	 * サーバーはリソースを1つずつ要求するため、先読みしておくことで、リソースの送信中に次のリソースの取得を並行して進めることができます。
+	 * リソースは先読みの有無にかかわらず、サーバーから要求された順に送信されます。
+	 * </p>
+	 * 
+	 * @param executor
+	 *            リソースを取得するスレッド。nullであればデフォルトのイベントループの{@link V2EventLoop#getExecutor()}を使います。
+	 * @param maxBytes
+	 *            先読みしたデータをメモリ上に保持する最大のバイト数。
+	 * @throws IOException
+	 */
+	public void setPrefetch(Executor executor, long maxBytes) throws IOException {
+		if (this.prefetcher != null) {
+			this.prefetcher.clear();
+		}
+		if (executor == null) {
+			executor = V2EventLoop.getDefault().getExecutor();
+		}
+		this.prefetcher = new V2ResourcePrefetcher(executor, maxBytes);
+	}
+
+	/**
+	 * サーバーから要求されることが予想されるリソースの先読みを開始します。
+	 * 先読みが有効でないか、{@link #setSourceResolver(SourceResolver)}でリゾルバが設定されていない場合は何もしません。
+	 * 
+	 * @param uri
+	 *            リソースのURI。
+	 * @see #setPrefetch(Executor, long)
+	 */
+	public void prefetch(URI uri) {
+		if (this.prefetcher == null || this.resolver == null) {
+			return;
+		}
+		this.prefetcher.prefetch(uri, this.resolver);
 	}
 
 	public void close() throws IOException {
 		if (this.state >= 3) {
 			return;
 		}
-		if (this.producer != null) {
+		if (this.prefetcher != null) {
+			this.prefetcher.clear();
+		}
+		if (this.connection != null) {
+			V2ConnectionPool.Connection connection = this.connection;
+			this.connection = null;
+			if (this.state == 1 && this.reusable) {
+				try {
+					this.request.reset();
+				} catch (IOException e) {
+					this.pool.invalidate(connection);
+					throw e;
+				}
+				this.pool.giveBack(connection);
+			} else {
+				this.pool.invalidate(connection);
+			}
+		} else if (this.producer != null) {
 			try {
-				this.request.close();
+				if (this.reusable) {
+					this.request.close();
+				}
 			} finally {
 				this.producer.close();
 			}
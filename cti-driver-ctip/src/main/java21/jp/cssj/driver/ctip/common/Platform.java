@@ -0,0 +1,88 @@
+package jp.cssj.driver.ctip.common;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>
+ * 実行環境のJavaのバージョンによって異なる処理をまとめたクラスです。
+ * </p>
+ * <p>
+ * このクラスはJDK 21以降向けの実装です。 仮想スレッドを判別・作成し、Unixドメインソケットを直接開きます。
+ * </p>
+ * 
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public final class Platform {
+	private Platform() {
+		// unused
+	}
+
+	/**
+	 * 現在のスレッドが仮想スレッドであるかどうかを返します。
+	 * 
+	 * @return 仮想スレッドであればtrue。
+	 */
+	public static boolean isVirtualThread() {
+		return Thread.currentThread().isVirtual();
+	}
+
+	/**
+	 * タスクごとに新しい仮想スレッドで実行するExecutorServiceを作成します。
+	 * 
+	 * @param name
+	 *            スレッドの名前。
+	 * @return ExecutorService。
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name).factory());
+	}
+
+	/**
+	 * Unixドメインソケットでサーバーに接続します。
+	 * 
+	 * @param path
+	 *            ソケットファイルのパス。
+	 * @return ブロッキングモードのSocketChannel。
+	 * @throws IOException
+	 *             接続できない場合。
+	 */
+	public static SocketChannel openUnixSocketChannel(String path) throws IOException {
+		SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.connect(UnixDomainSocketAddress.of(path));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Unixドメインソケットで待ち受けます。
+	 * 
+	 * @param path
+	 *            ソケットファイルのパス。
+	 * @param backlog
+	 *            接続待ちのキューのサイズ。
+	 * @return ブロッキングモードのServerSocketChannel。
+	 * @throws IOException
+	 *             待ち受けできない場合。
+	 */
+	public static ServerSocketChannel openUnixServerSocketChannel(String path, int backlog) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.bind(UnixDomainSocketAddress.of(path), backlog);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+}
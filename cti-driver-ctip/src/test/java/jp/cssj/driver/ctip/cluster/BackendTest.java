@@ -0,0 +1,109 @@
+package jp.cssj.driver.ctip.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+
+import org.junit.Test;
+
+/**
+ * {@link Backend}のテストです。
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class BackendTest {
+	private static final double MILLIS = 1000000.0;
+
+	private static Backend backend() {
+		return new Backend(URI.create("ctip://localhost:8099/"));
+	}
+
+	@Test
+	public void testUnsampledScore() {
+		Backend a = backend(), b = backend();
+		// 計測したサーバーがなくても、処理中のセッションの数で比較する
+		assertTrue(a.score(0) > 0);
+		b.open();
+		b.open();
+		assertTrue(a.score(0) < b.score(0));
+
+		// 計測していないサーバーは事前の値で評価する
+		assertEquals(20 * MILLIS, a.score(20 * MILLIS), 1);
+		assertEquals(60 * MILLIS, b.score(20 * MILLIS), 1);
+		b.close();
+		b.close();
+		assertEquals(a.score(20 * MILLIS), b.score(20 * MILLIS), 1);
+	}
+
+	@Test
+	public void testSampledScore() {
+		Backend slow = backend(), fast = backend(), unsampled = backend();
+		slow.succeeded((long) (50 * MILLIS));
+		fast.succeeded((long) (10 * MILLIS));
+		double prior = (slow.getSampledLatency() + fast.getSampledLatency()) / 2;
+		assertEquals(30 * MILLIS, prior, 1);
+
+		// 直後は計測値で評価する
+		assertEquals(50 * MILLIS, slow.score(prior), 0.01 * MILLIS);
+		assertEquals(10 * MILLIS, fast.score(prior), 0.01 * MILLIS);
+		assertTrue(fast.score(prior) < unsampled.score(prior));
+		assertTrue(unsampled.score(prior) < slow.score(prior));
+
+		// 処理中のセッションが多ければ、速いサーバーでも避ける
+		for (int i = 0; i < 5; ++i) {
+			fast.open();
+		}
+		assertTrue(fast.score(prior) > slow.score(prior));
+	}
+
+	@Test
+	public void testMovingAverage() {
+		Backend a = backend();
+		assertEquals(0, a.getLatency(), 0);
+		a.sampled((long) (100 * MILLIS));
+		assertEquals(100, a.getLatency(), 0.001);
+		a.sampled(0);
+		assertEquals(70, a.getLatency(), 0.001);
+	}
+
+	@Test
+	public void testFloor() {
+		Backend a = backend(), b = backend();
+		a.succeeded(1);
+		b.succeeded(1);
+		b.open();
+		// 変換時間がほぼ0でも、処理中のセッションの数が反映される
+		assertTrue(a.score(0) > 0);
+		assertTrue(a.score(0) < b.score(0));
+	}
+
+	@Test
+	public void testEjection() {
+		Backend a = backend();
+		assertFalse(a.failed(2, 1000));
+		assertTrue(a.isAvailable());
+		assertTrue(a.failed(2, 1000));
+		assertFalse(a.isAvailable());
+		assertFalse(a.failed(2, 1000));
+		assertEquals(1, a.getEjectionCount());
+		assertEquals(3, a.getErrorCount());
+
+		// ヘルスチェックに失敗するたびに切り離す時間を倍にする
+		long now = System.currentTimeMillis();
+		a.probed(false, 3000);
+		assertEquals(now + 2000, a.getEjectedUntil(), 100);
+		a.probed(false, 3000);
+		assertEquals(now + 3000, a.getEjectedUntil(), 100);
+		a.probed(true, 3000);
+		assertTrue(a.isAvailable());
+
+		// 成功すると連続した失敗の回数を戻す
+		assertFalse(a.failed(2, 1000));
+		a.succeeded(1);
+		assertFalse(a.failed(2, 1000));
+		assertTrue(a.isAvailable());
+	}
+}
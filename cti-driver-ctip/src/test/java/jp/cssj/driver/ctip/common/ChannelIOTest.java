@@ -0,0 +1,131 @@
+package jp.cssj.driver.ctip.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link ChannelIO}のテストです。
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class ChannelIOTest {
+	/** 読み書きを待つ最大のミリ秒です。 */
+	private static final long TIMEOUT = 10000L;
+
+	/** 送受信バッファを大きく超えるバイト数です。 */
+	private static final int TOTAL = 4 * 1024 * 1024;
+
+	private SocketChannel a, b;
+
+	@Before
+	public void setUp() throws Exception {
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.setOption(StandardSocketOptions.SO_RCVBUF, 8192);
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			this.a = SocketChannel.open();
+			this.a.setOption(StandardSocketOptions.SO_SNDBUF, 8192);
+			this.a.setOption(StandardSocketOptions.SO_RCVBUF, 8192);
+			this.a.connect(server.getLocalAddress());
+			this.b = server.accept();
+			this.b.setOption(StandardSocketOptions.SO_SNDBUF, 8192);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.a.close();
+		this.b.close();
+	}
+
+	private static byte at(long i) {
+		return (byte) (i % 251);
+	}
+
+	/**
+	 * 全てのデータを書き込み、その間に届いたデータと、書き込み後に届くデータを検査しながら読み込みます。
+	 */
+	private static class Peer extends Thread {
+		final ChannelIO io;
+
+		final ByteBuffer dest = ByteBuffer.allocate(8192);
+
+		long received = 0;
+
+		int notified = 0;
+
+		volatile Throwable error = null;
+
+		Peer(SocketChannel channel) throws IOException {
+			this.io = new ChannelIO(channel, TIMEOUT);
+			this.setDaemon(true);
+		}
+
+		void receive(boolean block) throws IOException {
+			this.dest.clear();
+			int len = this.io.read(this.dest, block);
+			for (int i = 0; i < len; ++i) {
+				if (this.dest.get(i) != at(this.received + i)) {
+					throw new IOException("データが一致しません: " + (this.received + i));
+				}
+			}
+			this.received += len;
+		}
+
+		public void run() {
+			try {
+				byte[] data = new byte[TOTAL];
+				for (int i = 0; i < data.length; ++i) {
+					data[i] = at(i);
+				}
+				// 2つのバッファに分けて送る
+				ByteBuffer[] srcs = new ByteBuffer[] { ByteBuffer.wrap(data, 0, 1000),
+						ByteBuffer.wrap(data, 1000, TOTAL - 1000) };
+				this.io.writeAll(srcs, 0, srcs.length, new ChannelIO.ReadListener() {
+					public void readable() throws IOException {
+						++Peer.this.notified;
+						Peer.this.receive(false);
+					}
+				});
+				assertTrue("ブロッキングI/Oに戻っていません", this.io.getSelectable().isBlocking());
+				while (this.received < TOTAL) {
+					this.receive(true);
+				}
+			} catch (Throwable e) {
+				this.error = e;
+			}
+		}
+	}
+
+	@Test(timeout = 60000L)
+	public void testWriteBothWays() throws Throwable {
+		// 双方が同時にブロッキングI/Oの接続に書き込んでも、デッドロックしない
+		Peer pa = new Peer(this.a);
+		Peer pb = new Peer(this.b);
+		pa.start();
+		pb.start();
+		pa.join();
+		pb.join();
+		if (pa.error != null) {
+			throw pa.error;
+		}
+		if (pb.error != null) {
+			throw pb.error;
+		}
+		assertEquals(TOTAL, pa.received);
+		assertEquals(TOTAL, pb.received);
+		assertTrue(pa.notified > 0 || pb.notified > 0);
+	}
+}
@@ -0,0 +1,239 @@
+package jp.cssj.driver.ctip.mux;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link MuxConnection}のフロー制御のテストです。
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class MuxConnectionTest {
+	private static final int QUARTER = MuxFrames.WINDOW_SIZE / 4;
+
+	private final BlockingQueue<MuxStream> accepted = new LinkedBlockingQueue<MuxStream>();
+
+	private Socket serverSocket, clientSocket;
+
+	private MuxConnection server, client;
+
+	@Before
+	public void setUp() throws IOException {
+		try (ServerSocket ss = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			this.clientSocket = new Socket(ss.getInetAddress(), ss.getLocalPort());
+			this.serverSocket = ss.accept();
+		}
+		this.server = new MuxConnection(this.serverSocket.getInputStream(), this.serverSocket.getOutputStream(), 0,
+				new MuxConnection.Acceptor() {
+					public void accept(MuxStream stream) throws IOException {
+						MuxConnectionTest.this.accepted.add(stream);
+					}
+				});
+		this.client = new MuxConnection(this.clientSocket.getInputStream(), this.clientSocket.getOutputStream(), 0,
+				null);
+		serve(this.server);
+		serve(this.client);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.client.close();
+		this.server.close();
+		this.clientSocket.close();
+		this.serverSocket.close();
+	}
+
+	private static void serve(final MuxConnection conn) {
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					conn.serve();
+				} catch (IOException e) {
+					// 接続の終了
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private MuxStream accept() throws InterruptedException {
+		MuxStream stream = this.accepted.poll(5, TimeUnit.SECONDS);
+		assertNotNull("ストリームを受け付けませんでした", stream);
+		return stream;
+	}
+
+	private static void readFully(MuxStream stream, byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = stream.read(b, off, len, true);
+			if (n == -1) {
+				fail("ストリームが終了しました");
+			}
+			off += n;
+			len -= n;
+		}
+	}
+
+	private static void assertNotWritable(MuxStream stream) throws IOException {
+		try {
+			stream.await(SelectionKey.OP_WRITE, 200);
+			fail("送信できる量が残っています");
+		} catch (SocketTimeoutException e) {
+			// 期待どおり
+		}
+	}
+
+	@Test
+	public void testWindow() throws Exception {
+		MuxStream out = this.client.openStream();
+		MuxStream in = this.accept();
+
+		// 相手側が読み込まなくても、ウィンドウの大きさまでは送ることができる
+		ByteBuffer[] srcs = { ByteBuffer.allocate(MuxFrames.WINDOW_SIZE * 2) };
+		assertEquals(MuxFrames.WINDOW_SIZE, out.write(srcs, 0, 1));
+		assertEquals(0, out.write(srcs, 0, 1));
+		assertNotWritable(out);
+
+		// ウィンドウの4分の1を読み込むまでは通知しない
+		byte[] b = new byte[MuxFrames.WINDOW_SIZE];
+		readFully(in, b, 0, QUARTER - 1);
+		assertNotWritable(out);
+		readFully(in, b, 0, 1);
+		assertEquals(SelectionKey.OP_WRITE, out.await(SelectionKey.OP_WRITE, 5000));
+
+		// 読み込んだ分だけ送ることができる
+		assertEquals(QUARTER, out.write(srcs, 0, 1));
+		assertEquals(0, out.write(srcs, 0, 1));
+		readFully(in, b, 0, MuxFrames.WINDOW_SIZE);
+		try {
+			in.await(SelectionKey.OP_READ, 200);
+			fail("送られた以上のデータを受信しました");
+		} catch (SocketTimeoutException e) {
+			// 期待どおり
+		}
+	}
+
+	@Test
+	public void testBlockingWrite() throws Exception {
+		final MuxStream out = this.client.openStream();
+		MuxStream in = this.accept();
+		final byte[] data = new byte[MuxFrames.WINDOW_SIZE * 3 + 1];
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = (byte) i;
+		}
+		final IOException[] error = new IOException[1];
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					out.write(data, 0, data.length);
+				} catch (IOException e) {
+					error[0] = e;
+				}
+			}
+		};
+		writer.start();
+
+		byte[] b = new byte[data.length];
+		readFully(in, b, 0, b.length);
+		writer.join(5000);
+		assertFalse(writer.isAlive());
+		if (error[0] != null) {
+			throw error[0];
+		}
+		for (int i = 0; i < data.length; ++i) {
+			if (b[i] != data[i]) {
+				fail("データが一致しません: " + i);
+			}
+		}
+	}
+
+	private static void frame(DataOutputStream out, int id, byte type, int length) throws IOException {
+		out.writeInt(id);
+		out.writeByte(type);
+		out.writeInt(length);
+		out.write(new byte[length]);
+	}
+
+	private static IOException serve(ByteArrayOutputStream frames, MuxConnection.Acceptor acceptor) {
+		MuxConnection conn = new MuxConnection(new ByteArrayInputStream(frames.toByteArray()),
+				new ByteArrayOutputStream(), 0, acceptor);
+		try {
+			conn.serve();
+			return null;
+		} catch (IOException e) {
+			return e;
+		} finally {
+			assertFalse(conn.isOpen());
+		}
+	}
+
+	@Test
+	public void testWindowOverflow() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		frame(out, 1, MuxFrames.DATA, 0);
+		for (int sent = 0; sent < MuxFrames.WINDOW_SIZE; sent += MuxFrames.MAX_DATA) {
+			frame(out, 1, MuxFrames.DATA, MuxFrames.MAX_DATA);
+		}
+		MuxConnection.Acceptor acceptor = new MuxConnection.Acceptor() {
+			public void accept(MuxStream stream) throws IOException {
+				MuxConnectionTest.this.accepted.add(stream);
+			}
+		};
+		// ウィンドウちょうどまでは受け付ける
+		assertNull(serve(bytes, acceptor));
+
+		frame(out, 1, MuxFrames.DATA, 1);
+		IOException e = serve(bytes, acceptor);
+		assertNotNull("ウィンドウを超えたデータを受け付けました", e);
+		assertTrue(e.getMessage(), e.getMessage().indexOf("上限") != -1);
+	}
+
+	@Test
+	public void testBadFrame() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(1);
+		out.writeByte(MuxFrames.DATA);
+		out.writeInt(MuxFrames.MAX_DATA + 1);
+		assertNotNull(serve(bytes, null));
+
+		bytes.reset();
+		out.writeInt(1);
+		out.writeByte(MuxFrames.DATA);
+		out.writeInt(-1);
+		assertNotNull(serve(bytes, null));
+
+		bytes.reset();
+		frame(out, 1, MuxFrames.DATA, 0);
+		frame(out, 1, MuxFrames.WINDOW, 3);
+		assertNotNull(serve(bytes, new MuxConnection.Acceptor() {
+			public void accept(MuxStream stream) throws IOException {
+				// 読み込まない
+			}
+		}));
+	}
+}
@@ -0,0 +1,297 @@
+package jp.cssj.driver.ctip.v2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link TLSSocketChannel}のテストです。
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class TLSSocketChannelTest {
+	private static final char[] PASSWORD = "secret".toCharArray();
+
+	/** 読み書きを待つ最大のミリ秒です。 */
+	private static final long TIMEOUT = 10000L;
+
+	private SSLServerSocket server;
+
+	private ServerSocket relay;
+
+	private volatile Throwable error = null;
+
+	@Before
+	public void setUp() throws Exception {
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		try (InputStream in = TLSSocketChannelTest.class.getResourceAsStream("test.p12")) {
+			ks.load(in, PASSWORD);
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks, PASSWORD);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf.getKeyManagers(), null, null);
+		this.server = (SSLServerSocket) context.getServerSocketFactory().createServerSocket();
+		this.server.setReceiveBufferSize(8192);
+		this.server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+	}
+
+	@After
+	public void tearDown() throws Throwable {
+		this.server.close();
+		if (this.relay != null) {
+			this.relay.close();
+		}
+		if (this.error != null) {
+			throw this.error;
+		}
+	}
+
+	private static byte at(long i) {
+		return (byte) (i % 251);
+	}
+
+	/**
+	 * サーバー側の処理を別のスレッドで行います。
+	 */
+	private abstract class Peer extends Thread {
+		Peer() {
+			this.setDaemon(true);
+			this.start();
+		}
+
+		public void run() {
+			try (SSLSocket socket = (SSLSocket) TLSSocketChannelTest.this.server.accept()) {
+				socket.setSoTimeout((int) TIMEOUT);
+				this.serve(socket);
+			} catch (Throwable e) {
+				TLSSocketChannelTest.this.error = e;
+			}
+		}
+
+		abstract void serve(SSLSocket socket) throws Exception;
+	}
+
+	/**
+	 * サーバーとの間でデータを少しずつ中継するソケットを用意します。 TLSレコードが分割して届くようにします。
+	 */
+	private InetSocketAddress relay(final int chunk) throws IOException {
+		this.relay = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					Socket client = TLSSocketChannelTest.this.relay.accept();
+					Socket server = new Socket(TLSSocketChannelTest.this.server.getInetAddress(),
+							TLSSocketChannelTest.this.server.getLocalPort());
+					client.setTcpNoDelay(true);
+					server.setTcpNoDelay(true);
+					pipe(client, server, chunk);
+					pipe(server, client, chunk);
+				} catch (IOException e) {
+					// 終了
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return new InetSocketAddress(this.relay.getInetAddress(), this.relay.getLocalPort());
+	}
+
+	private static void pipe(final Socket from, final Socket to, final int chunk) {
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					InputStream in = from.getInputStream();
+					OutputStream out = to.getOutputStream();
+					byte[] b = new byte[chunk];
+					for (int len = in.read(b); len != -1; len = in.read(b)) {
+						out.write(b, 0, len);
+						out.flush();
+					}
+					to.shutdownOutput();
+				} catch (IOException e) {
+					// 終了
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private InetSocketAddress address() {
+		return new InetSocketAddress(this.server.getInetAddress(), this.server.getLocalPort());
+	}
+
+	private static TLSSocketChannel connect(InetSocketAddress address) throws IOException {
+		SocketChannel sc = SocketChannel.open();
+		sc.setOption(StandardSocketOptions.SO_SNDBUF, 8192);
+		TLSSocketChannel channel = new TLSSocketChannel(sc);
+		channel.setTimeout(TIMEOUT);
+		assertTrue(channel.connect(address));
+		return channel;
+	}
+
+	@Test
+	public void testPartialWrite() throws Exception {
+		final int total = 4 * 1024 * 1024;
+		final CountDownLatch release = new CountDownLatch(1);
+		final long[] received = new long[1];
+		Peer peer = new Peer() {
+			void serve(SSLSocket socket) throws Exception {
+				InputStream in = socket.getInputStream();
+				socket.startHandshake();
+				release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+				byte[] b = new byte[8192];
+				long pos = 0;
+				while (pos < total) {
+					int len = in.read(b);
+					if (len == -1) {
+						break;
+					}
+					for (int i = 0; i < len; ++i) {
+						if (b[i] != at(pos + i)) {
+							throw new AssertionError("データが一致しません: " + (pos + i));
+						}
+					}
+					pos += len;
+				}
+				received[0] = pos;
+				socket.getOutputStream().write(1);
+				socket.getOutputStream().flush();
+			}
+		};
+
+		byte[] data = new byte[total];
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = at(i);
+		}
+		try (TLSSocketChannel channel = connect(this.address())) {
+			channel.configureBlocking(false);
+			int pos = 0;
+			boolean stalled = false;
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (pos < total) {
+				// 送りきれなかったデータは保持され、書き込んだバイト数に数えられる
+				ByteBuffer src = ByteBuffer.wrap(data, pos, Math.min(total - pos, 65536));
+				long written = channel.write(src);
+				assertEquals(src.position() - pos, written);
+				pos += (int) written;
+				if (written == 0) {
+					if (!stalled) {
+						stalled = true;
+						assertFalse(channel.flush());
+						release.countDown();
+					}
+					if (System.currentTimeMillis() > deadline) {
+						fail("送信できません");
+					}
+					Thread.sleep(1);
+				}
+			}
+			assertTrue("送信が詰まりませんでした", stalled);
+			while (!channel.flush()) {
+				if (System.currentTimeMillis() > deadline) {
+					fail("送信できません");
+				}
+				Thread.sleep(1);
+			}
+			channel.configureBlocking(true);
+			assertEquals(1, channel.read(ByteBuffer.allocate(1)));
+		} finally {
+			release.countDown();
+		}
+		peer.join(TIMEOUT);
+		assertEquals(total, received[0]);
+	}
+
+	private void underflow(int chunk, int destSize) throws Exception {
+		final int total = 200000;
+		final CountDownLatch release = new CountDownLatch(1);
+		new Peer() {
+			void serve(SSLSocket socket) throws Exception {
+				OutputStream out = socket.getOutputStream();
+				socket.startHandshake();
+				release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+				byte[] b = new byte[total];
+				for (int i = 0; i < b.length; ++i) {
+					b[i] = at(i);
+				}
+				// 大きさの異なるレコードに分けて送る
+				for (int pos = 0, len = 1; pos < total; pos += len, len = len * 3 + 1) {
+					len = Math.min(len, total - pos);
+					out.write(b, pos, len);
+					out.flush();
+				}
+			}
+		};
+
+		try (TLSSocketChannel channel = connect(this.relay(chunk))) {
+			// 受信していなければ、ブロックせずに0を返す
+			channel.configureBlocking(false);
+			assertEquals(0, channel.read(ByteBuffer.allocate(destSize)));
+			assertFalse(channel.hasBufferedInput());
+			release.countDown();
+
+			channel.configureBlocking(true);
+			ByteBuffer dest = ByteBuffer.allocate(destSize);
+			long pos = 0;
+			for (;;) {
+				dest.clear();
+				int len = channel.read(dest);
+				if (len == -1) {
+					break;
+				}
+				assertEquals(dest.position(), len);
+				for (int i = 0; i < len; ++i) {
+					if (dest.get(i) != at(pos + i)) {
+						fail("データが一致しません: " + (pos + i));
+					}
+				}
+				pos += len;
+			}
+			assertEquals(total, pos);
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void testUnderflowDirect() throws Exception {
+		this.underflow(7, 65536);
+	}
+
+	@Test
+	public void testUnderflowBuffered() throws Exception {
+		this.underflow(7, 100);
+	}
+
+	@Test
+	public void testUnderflowLargeChunks() throws Exception {
+		this.underflow(4000, 20000);
+	}
+}
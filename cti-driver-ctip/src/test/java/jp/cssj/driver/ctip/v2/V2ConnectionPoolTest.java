@@ -0,0 +1,247 @@
+package jp.cssj.driver.ctip.v2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link V2ConnectionPool}のテストです。
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class V2ConnectionPoolTest {
+	/** 待つ最大のミリ秒です。 */
+	private static final long TIMEOUT = 10000L;
+
+	private ServerSocket server;
+
+	private URI uri;
+
+	private V2ConnectionPool pool;
+
+	/** 認証に対する応答です。 */
+	private volatile String response = "OK \n";
+
+	/** サーバー側の接続です。 */
+	private final List<Socket> accepted = new ArrayList<Socket>();
+
+	@Before
+	public void setUp() throws Exception {
+		this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		this.uri = URI.create("ctip://" + this.server.getInetAddress().getHostAddress() + ":"
+				+ this.server.getLocalPort() + "/");
+		this.pool = new V2ConnectionPool();
+		this.pool.setMaxIdle(1);
+		this.pool.setMaxWait(TIMEOUT);
+
+		// 認証に応答するだけのサーバー
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					for (;;) {
+						Socket socket = V2ConnectionPoolTest.this.server.accept();
+						synchronized (V2ConnectionPoolTest.this.accepted) {
+							V2ConnectionPoolTest.this.accepted.add(socket);
+						}
+						InputStream in = socket.getInputStream();
+						for (int lines = 0; lines < 2;) {
+							int b = in.read();
+							if (b == -1) {
+								break;
+							}
+							if (b == '\n') {
+								++lines;
+							}
+						}
+						OutputStream out = socket.getOutputStream();
+						out.write(V2ConnectionPoolTest.this.response.getBytes("ISO-8859-1"));
+						out.flush();
+					}
+				} catch (IOException e) {
+					// 終了
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.pool.clear();
+		this.server.close();
+		synchronized (this.accepted) {
+			for (int i = 0; i < this.accepted.size(); ++i) {
+				this.accepted.get(i).close();
+			}
+		}
+	}
+
+	private V2ConnectionPool.Connection borrow() throws IOException {
+		return this.pool.borrow(this.uri, "UTF-8", "user", "password");
+	}
+
+	private Socket lastAccepted() {
+		synchronized (this.accepted) {
+			return this.accepted.get(this.accepted.size() - 1);
+		}
+	}
+
+	/**
+	 * クライアント側で切断を検出できるまで待ちます。
+	 */
+	private static void awaitClosed(V2ConnectionPool.Connection conn) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		// 検査はプールの外から行い、プールの状態は変えない
+		while (conn.producer.isAlive()) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("切断を検出できません");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+		V2ConnectionPool.Connection conn = this.borrow();
+		assertEquals(1, this.pool.getActiveCount());
+		this.pool.giveBack(conn);
+		assertEquals(0, this.pool.getActiveCount());
+		assertEquals(1, this.pool.getIdleCount());
+
+		assertSame(conn, this.borrow());
+		assertEquals(1, this.pool.getCreatedCount());
+		assertEquals(1, this.pool.getReusedCount());
+		assertEquals(0, this.pool.getInvalidCount());
+		assertEquals(1, this.pool.getActiveCount());
+		assertEquals(0, this.pool.getIdleCount());
+	}
+
+	@Test
+	public void testClosedByServer() throws Exception {
+		V2ConnectionPool.Connection conn = this.borrow();
+		this.pool.giveBack(conn);
+		this.lastAccepted().close();
+		awaitClosed(conn);
+
+		// 切断された接続は破棄し、新たに接続する
+		V2ConnectionPool.Connection conn2 = this.borrow();
+		assertNotSame(conn, conn2);
+		assertEquals(2, this.pool.getCreatedCount());
+		assertEquals(0, this.pool.getReusedCount());
+		assertEquals(1, this.pool.getInvalidCount());
+		assertEquals(1, this.pool.getDestroyedCount());
+		assertEquals(1, this.pool.getActiveCount());
+		assertEquals(0, this.pool.getIdleCount());
+	}
+
+	@Test
+	public void testUnreadData() throws Exception {
+		V2ConnectionPool.Connection conn = this.borrow();
+		this.pool.giveBack(conn);
+		OutputStream out = this.lastAccepted().getOutputStream();
+		out.write(0);
+		out.flush();
+		// 検査はデータを読み込んでしまうため、届くのを待つだけにする
+		Thread.sleep(200);
+
+		// 未読のデータが残っている接続は再利用しない
+		assertNotSame(conn, this.borrow());
+		assertEquals(1, this.pool.getInvalidCount());
+		assertEquals(1, this.pool.getActiveCount());
+	}
+
+	@Test
+	public void testInvalidReleasesSlot() throws Exception {
+		this.pool.setMaxTotal(1);
+		this.pool.setMaxWait(200);
+		V2ConnectionPool.Connection conn = this.borrow();
+		this.pool.giveBack(conn);
+		this.lastAccepted().close();
+		awaitClosed(conn);
+
+		// 無効な接続の分の枠を空けてから新たに接続する
+		V2ConnectionPool.Connection conn2 = this.borrow();
+		assertNotSame(conn, conn2);
+		assertEquals(1, this.pool.getActiveCount());
+	}
+
+	@Test
+	public void testMaxTotal() throws Exception {
+		this.pool.setMaxTotal(1);
+		this.pool.setMaxWait(200);
+		final V2ConnectionPool.Connection conn = this.borrow();
+		long start = System.currentTimeMillis();
+		try {
+			this.borrow();
+			fail();
+		} catch (IOException e) {
+			// 上限に達している
+		}
+		assertTrue(System.currentTimeMillis() - start >= 200);
+
+		// 返却を待って再利用する
+		this.pool.setMaxWait(TIMEOUT);
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+				V2ConnectionPoolTest.this.pool.giveBack(conn);
+			}
+		};
+		thread.start();
+		assertSame(conn, this.borrow());
+		thread.join();
+		assertEquals(1, this.pool.getCreatedCount());
+		assertEquals(1, this.pool.getReusedCount());
+	}
+
+	@Test
+	public void testConnectFailureReleasesSlot() throws Exception {
+		this.pool.setMaxTotal(1);
+		this.pool.setMaxWait(200);
+		this.response = "BY \n";
+		try {
+			this.borrow();
+			fail();
+		} catch (IOException e) {
+			// サーバーが混雑している
+		}
+		assertEquals(0, this.pool.getActiveCount());
+
+		this.response = "NG \n";
+		try {
+			this.borrow();
+			fail();
+		} catch (SecurityException e) {
+			// 認証に失敗した
+		}
+		assertEquals(0, this.pool.getActiveCount());
+
+		// 失敗した接続が枠を占有していない
+		this.response = "OK \n";
+		this.borrow();
+		assertEquals(1, this.pool.getCreatedCount());
+		assertEquals(1, this.pool.getActiveCount());
+	}
+}
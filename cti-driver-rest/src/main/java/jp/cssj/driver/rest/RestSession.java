@@ -49,6 +49,8 @@ import org.xml.sax.SAXException;
 import jp.cssj.cti2.CTISession;
 import jp.cssj.cti2.TranscoderException;
 import jp.cssj.cti2.helpers.AbstractCTISession;
+import jp.cssj.cti2.helpers.CTIMessageCodes;
+import jp.cssj.cti2.helpers.DeadlineTimer;
 import jp.cssj.cti2.message.MessageHandler;
 import jp.cssj.cti2.progress.ProgressListener;
 import jp.cssj.cti2.results.Results;
@@ -102,6 +104,15 @@ public class RestSession extends AbstractCTISession implements CTISession {
 
 	protected Collection<URI> resultSet = new HashSet<URI>();
 
+	/** 実行中の変換の期限を監視するタイマー。 */
+	private DeadlineTimer timer = null;
+
+	/** 期限を過ぎても変換が終わらず、結果の待機を打ち切った場合にtrue。 */
+	private volatile boolean disconnected = false;
+
+	/** 結果を待っているリクエスト。 */
+	private volatile HttpUriRequest waiting = null;
+
 	public RestSession(URI uri, String user, String password) throws IOException {
 		this.uri = uri.toString();
 		this.user = user;
@@ -291,11 +302,20 @@ public class RestSession extends AbstractCTISession implements CTISession {
 
 	private void waitResults() throws IOException, TranscoderException {
 		for (;;) {
+			if (this.disconnected) {
+				throw DeadlineTimer.exceeded(TranscoderException.STATE_BROKEN, null);
+			}
 			List<NameValuePair> list = new ArrayList<NameValuePair>();
 			list.add(new BasicNameValuePair("rest.id", this.sessionId));
 			list.add(new BasicNameValuePair("rest.wait", "5000"));
 			HttpPost method = new HttpPost(this.uri + "messages?" + URLEncodedUtils.format(list, CHARSET));
-			Document doc = this.parseResponse(method);
+			Document doc;
+			this.waiting = method;
+			try {
+				doc = this.parseResponse(method);
+			} finally {
+				this.waiting = null;
+			}
 			NodeList messages = doc.getElementsByTagName("message");
 			Element message = (Element) messages.item(0);
 			if (this.messageHandler != null) {
@@ -432,6 +452,7 @@ public class RestSession extends AbstractCTISession implements CTISession {
 		}
 		this.state = 2;
 		try {
+			long remaining = this.startDeadline();
 			List<NameValuePair> list = new ArrayList<NameValuePair>();
 			list.add(new BasicNameValuePair("rest.id", this.sessionId));
 			list.add(new BasicNameValuePair("rest.async", "true"));
@@ -446,6 +467,9 @@ public class RestSession extends AbstractCTISession implements CTISession {
 			list.clear();
 			list.addAll(this.props);
 			this.props.clear();
+			if (remaining > 0L) {
+				list.add(new BasicNameValuePair(CTISession.DEADLINE, String.valueOf(remaining)));
+			}
 			list.add(new BasicNameValuePair("rest.mainURI", uri.toString()));
 			method.setEntity(new UrlEncodedFormEntity(list, CHARSET));
 
@@ -456,8 +480,11 @@ public class RestSession extends AbstractCTISession implements CTISession {
 			}
 			this.resultSet.clear();
 			this.waitResults();
+		} catch (IOException e) {
+			throw this.deadlineExceeded(e);
 		} finally {
 			this.state = 1;
+			this.endDeadline();
 		}
 	}
 
@@ -487,6 +514,7 @@ public class RestSession extends AbstractCTISession implements CTISession {
 		}
 		this.state = 2;
 		try {
+			long remaining = this.startDeadline();
 			List<NameValuePair> list = new ArrayList<NameValuePair>();
 			list.add(new BasicNameValuePair("rest.id", this.sessionId));
 			list.add(new BasicNameValuePair("rest.async", "true"));
@@ -504,6 +532,9 @@ public class RestSession extends AbstractCTISession implements CTISession {
 				builder.addPart(param.getName(), new StringBody(param.getValue(), NIO_CHARSET));
 			}
 			this.props.clear();
+			if (remaining > 0L) {
+				builder.addPart(CTISession.DEADLINE, new StringBody(String.valueOf(remaining), NIO_CHARSET));
+			}
 			builder.addPart("rest.uri", new StringBody(source.getURI().toString(), NIO_CHARSET));
 			if (source.getMimeType() != null) {
 				builder.addPart("rest.mimeType", new StringBody(source.getMimeType(), NIO_CHARSET));
@@ -521,8 +552,11 @@ public class RestSession extends AbstractCTISession implements CTISession {
 			}
 			this.resultSet.clear();
 			this.waitResults();
+		} catch (IOException e) {
+			throw this.deadlineExceeded(e);
 		} finally {
 			this.state = 1;
+			this.endDeadline();
 		}
 	}
 
@@ -535,6 +569,7 @@ public class RestSession extends AbstractCTISession implements CTISession {
 		}
 		this.state = 2;
 		try {
+			this.startDeadline();
 			List<NameValuePair> list = new ArrayList<NameValuePair>();
 			list.add(new BasicNameValuePair("rest.id", this.sessionId));
 			HttpGet method = new HttpGet(this.uri + "join?" + URLEncodedUtils.format(list, CHARSET));
@@ -544,15 +579,75 @@ public class RestSession extends AbstractCTISession implements CTISession {
 				throw new IOException(message.getFirstChild().getNodeValue());
 			}
 			this.waitResults();
+		} catch (IOException e) {
+			throw this.deadlineExceeded(e);
 		} finally {
 			this.state = 1;
+			this.endDeadline();
+		}
+	}
+
+	/**
+	 * 変換の期限があれば、期限の監視を始めます。 期限を過ぎるとサーバーに中断を要求し、それでも終わらなければ結果の待機を打ち切ります。
+	 * 
+	 * @return 期限までの残り時間（ミリ秒）。 期限がなければ0。
+	 * @throws IOException
+	 */
+	private long startDeadline() throws IOException {
+		long deadline = this.transcodeDeadline();
+		if (deadline <= 0L) {
+			return 0L;
+		}
+		DeadlineTimer timer = new DeadlineTimer(this, deadline) {
+			protected void disconnect() throws IOException {
+				RestSession.this.disconnected = true;
+				HttpUriRequest waiting = RestSession.this.waiting;
+				if (waiting != null) {
+					waiting.abort();
+				}
+			}
+		};
+		long remaining = timer.getRemaining();
+		if (remaining <= 0L) {
+			throw DeadlineTimer.exceeded(TranscoderException.STATE_BROKEN, null);
+		}
+		this.disconnected = false;
+		this.timer = timer.start();
+		return remaining;
+	}
+
+	/**
+	 * 期限を過ぎて変換を中断した場合は、変換中に発生した例外を期限切れの例外に置き換えます。
+	 * 
+	 * @param e
+	 *            変換中に発生した例外。
+	 * @return 通知する例外。
+	 */
+	private IOException deadlineExceeded(IOException e) {
+		DeadlineTimer timer = this.timer;
+		if (timer == null || !timer.isExpired()) {
+			return e;
+		}
+		if (e instanceof TranscoderException
+				&& ((TranscoderException) e).getCode() == CTIMessageCodes.ERROR_DEADLINE) {
+			return e;
+		}
+		byte state = e instanceof TranscoderException ? ((TranscoderException) e).getState()
+				: TranscoderException.STATE_BROKEN;
+		return DeadlineTimer.exceeded(state, e);
+	}
+
+	private void endDeadline() {
+		if (this.timer != null) {
+			this.timer.cancel();
+			this.timer = null;
 		}
 	}
 
 	public void abort(byte mode) throws IOException {
 		List<NameValuePair> list = new ArrayList<NameValuePair>();
 		list.add(new BasicNameValuePair("rest.id", this.sessionId));
-		list.add(new BasicNameValuePair("rest.mode", String.valueOf(mode)));
+		list.add(new BasicNameValuePair("rest.mode", mode == CTISession.ABORT_FORCE ? "force" : "normal"));
 		HttpGet method = new HttpGet(this.uri + "abort?" + URLEncodedUtils.format(list, CHARSET));
 		Element message = this.getMessage(method);
 		String code = message.getAttribute("code");
@@ -579,6 +674,7 @@ public class RestSession extends AbstractCTISession implements CTISession {
 		this.resultSet.clear();
 		this.srcRead = 0;
 		this.srcLength = 0;
+		this.deadline = this.transcodeTimeout = 0L;
 	}
 
 	public void close() throws IOException {
@@ -0,0 +1,119 @@
+package jp.cssj.cti2.examples;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+
+import jp.cssj.cti2.CTIDriverManager;
+import jp.cssj.cti2.CTISession;
+import jp.cssj.cti2.helpers.CTISessionHelper;
+import jp.cssj.driver.ctip.v2.TLSContext;
+import jp.cssj.resolver.stream.StreamSource;
+
+/**
+ * 平文(ctip)とTLS(ctips)の接続で同じ文書を変換し、転送速度を比較します。
+ *
+ * <pre>
+ * java jp.cssj.cti2.examples.TLSBenchmark [ctipのURI] [ctipsのURI] [文書のバイト数] [回数]
+ * </pre>
+ */
+public class TLSBenchmark {
+	/** 平文の接続先。 */
+	private static final String PLAIN_URI = "ctip://127.0.0.1:8099/";
+
+	/** TLSの接続先。 */
+	private static final String TLS_URI = "ctips://127.0.0.1:8443/";
+
+	/** ユーザー。 */
+	private static final String USER = "user";
+
+	/** パスワード。 */
+	private static final String PASSWORD = "kappa";
+
+	public static void main(String[] args) throws Exception {
+		URI plain = URI.create(args.length > 0 ? args[0] : PLAIN_URI);
+		URI tls = URI.create(args.length > 1 ? args[1] : TLS_URI);
+		int size = args.length > 2 ? Integer.parseInt(args[2]) : 8 * 1024 * 1024;
+		int count = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+		// 最初の接続は計測しない
+		run(plain, size, 1);
+		run(tls, size, 1);
+
+		double plainRate = run(plain, size, count);
+		double tlsRate = run(tls, size, count);
+		System.out.println("ctip:  " + format(plainRate) + " MB/s");
+		System.out.println("ctips: " + format(tlsRate) + " MB/s (" + Math.round(tlsRate * 100 / plainRate) + "%)");
+		System.out.println(TLSContext.getInstance());
+	}
+
+	/**
+	 * 文書を変換し、送受信したデータの転送速度を返します。
+	 */
+	private static double run(URI uri, int size, int count) throws IOException {
+		long bytes = 0;
+		long time = System.nanoTime();
+		for (int i = 0; i < count; ++i) {
+			try (CTISession session = CTIDriverManager.getSession(uri, USER, PASSWORD)) {
+				final long[] received = { 0 };
+				CTISessionHelper.setResultStream(session, new OutputStream() {
+					public void write(int b) {
+						++received[0];
+					}
+
+					public void write(byte[] b, int off, int len) {
+						received[0] += len;
+					}
+				});
+				session.transcode(new StreamSource(URI.create("dummy:document.html"), new Document(size), "text/html",
+						(long) size));
+				bytes += size + received[0];
+			}
+		}
+		time = System.nanoTime() - time;
+		return bytes / 1024.0 / 1024.0 / (time / 1000000000.0);
+	}
+
+	private static String format(double rate) {
+		return String.valueOf(Math.round(rate * 10) / 10.0);
+	}
+
+	/**
+	 * 指定したバイト数のHTML文書を生成します。
+	 */
+	private static class Document extends InputStream {
+		private static final byte[] LINE = "<p>The quick brown fox jumps over the lazy dog.</p>\n".getBytes();
+
+		private int remaining;
+
+		private int pos = 0;
+
+		Document(int size) {
+			this.remaining = size;
+		}
+
+		public int read() {
+			if (this.remaining <= 0) {
+				return -1;
+			}
+			--this.remaining;
+			byte b = LINE[this.pos];
+			this.pos = (this.pos + 1) % LINE.length;
+			return b & 0xFF;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (this.remaining <= 0) {
+				return -1;
+			}
+			len = Math.min(len, this.remaining);
+			for (int i = 0; i < len; ++i) {
+				b[off + i] = LINE[this.pos];
+				this.pos = (this.pos + 1) % LINE.length;
+			}
+			this.remaining -= len;
+			return len;
+		}
+	}
+}
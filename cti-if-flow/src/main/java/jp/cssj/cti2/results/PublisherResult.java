@@ -0,0 +1,179 @@
+package jp.cssj.cti2.results;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+
+/**
+ * <p>
+ * 単一の変換結果を、受信しながら{@link Flow.Publisher}として配信するResultsです。
+ * </p>
+ * <p>
+ * 購読できるのは1つの{@link Flow.Subscriber}だけです。 変換を行うスレッドは、購読者が
+ * {@link Flow.Subscription#request(long)}で要求した数だけデータを渡し、それ以上は要求されるまで待ちます。
+ * 購読者が{@link Flow.Subscription#cancel()}を呼び出すと、変換は中断されます。
+ * </p>
+ * <p>
+ * 購読者に渡される{@link ByteBuffer}は購読者ごとに複製されたもので、自由に使うことができます。
+ * </p>
+ * <p>
+ * このクラスはJDK 9以降が必要なため、cti-ifとは別のcti-if-flowのjarに含まれます。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class PublisherResult extends AbstractStreamingResult implements Flow.Publisher<ByteBuffer> {
+	/** 購読者への通知を直列化するためのロックです。 */
+	private final Object signalLock = new Object();
+
+	private Flow.Subscriber<? super ByteBuffer> subscriber = null;
+
+	private long demand = 0;
+
+	private boolean cancelled = false, completed = false, done = false;
+
+	private Throwable error = null;
+
+	public void subscribe(final Flow.Subscriber<? super ByteBuffer> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException();
+		}
+		boolean subscribed;
+		synchronized (this) {
+			subscribed = this.subscriber != null;
+			if (!subscribed) {
+				this.subscriber = subscriber;
+			}
+		}
+		if (subscribed) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long n) {
+					// NOP
+				}
+
+				public void cancel() {
+					// NOP
+				}
+			});
+			subscriber.onError(new IllegalStateException("既に購読されています"));
+			return;
+		}
+		synchronized (this.signalLock) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long n) {
+					PublisherResult.this.request(n);
+				}
+
+				public void cancel() {
+					PublisherResult.this.cancel();
+				}
+			});
+			this.notifyTerminal();
+		}
+	}
+
+	private void request(long n) {
+		if (n <= 0) {
+			this.cancel();
+			this.signalError(new IllegalArgumentException("要求する数は正の数でなければなりません: " + n));
+			return;
+		}
+		synchronized (this) {
+			this.demand += n;
+			if (this.demand < 0) {
+				this.demand = Long.MAX_VALUE;
+			}
+			this.notifyAll();
+		}
+	}
+
+	private synchronized void cancel() {
+		this.cancelled = true;
+		this.notifyAll();
+	}
+
+	protected void data(byte[] b, int off, int len) throws IOException {
+		Flow.Subscriber<? super ByteBuffer> subscriber;
+		synchronized (this) {
+			try {
+				while ((this.subscriber == null || this.demand == 0) && !this.cancelled) {
+					this.wait();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			if (this.cancelled) {
+				throw new IOException("変換結果の購読が中止されました");
+			}
+			--this.demand;
+			subscriber = this.subscriber;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(len);
+		buffer.put(b, off, len).flip();
+		synchronized (this.signalLock) {
+			if (!this.done) {
+				subscriber.onNext(buffer);
+			}
+		}
+	}
+
+	protected void completed() {
+		synchronized (this) {
+			this.completed = true;
+			this.notifyAll();
+		}
+		synchronized (this.signalLock) {
+			this.notifyTerminal();
+		}
+	}
+
+	protected void failed(Throwable e) {
+		synchronized (this) {
+			this.error = e;
+			this.notifyAll();
+		}
+		synchronized (this.signalLock) {
+			this.notifyTerminal();
+		}
+	}
+
+	/**
+	 * 変換が終了していれば、購読者に通知します。 {@link #signalLock}を保持して呼び出してください。
+	 */
+	private void notifyTerminal() {
+		Flow.Subscriber<? super ByteBuffer> subscriber;
+		Throwable error;
+		synchronized (this) {
+			if (this.subscriber == null || this.cancelled || (!this.completed && this.error == null)) {
+				return;
+			}
+			subscriber = this.subscriber;
+			error = this.error;
+		}
+		if (this.done) {
+			return;
+		}
+		this.done = true;
+		if (error != null) {
+			subscriber.onError(error);
+		} else {
+			subscriber.onComplete();
+		}
+	}
+
+	private void signalError(Throwable e) {
+		Flow.Subscriber<? super ByteBuffer> subscriber;
+		synchronized (this) {
+			subscriber = this.subscriber;
+		}
+		synchronized (this.signalLock) {
+			if (this.done) {
+				return;
+			}
+			this.done = true;
+			subscriber.onError(e);
+		}
+	}
+}
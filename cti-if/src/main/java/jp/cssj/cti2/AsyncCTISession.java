@@ -0,0 +1,54 @@
+package jp.cssj.cti2;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+import jp.cssj.resolver.Source;
+
+/**
+ * <p>
+ * 変換処理の完了を待たずに制御を戻すことができるセッションです。
+ * </p>
+ * <p>
+ * 変換結果の受信は少数のイベントループのスレッドで行われるため、変換の完了を待つスレッドを変換ごとに用意する必要がありません。
+ * {@link #setMessageHandler(jp.cssj.cti2.message.MessageHandler)}、
+ * {@link #setProgressListener(jp.cssj.cti2.progress.ProgressListener)}で設定したオブジェクトや、出力先の
+ * {@link jp.cssj.cti2.results.Results}はイベントループのスレッドから呼び出されることがあるので、すぐに処理を戻すようにしてください。
+ * </p>
+ * <p>
+ * 変換が完了するまでは、同じセッションに対して{@link #abort(byte)}以外の操作をしないでください。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public interface AsyncCTISession extends CTISession {
+	/**
+	 * <p>
+	 * メインドキュメントをデータソースから取得して変換します。
+	 * メインドキュメントの送信は呼び出したスレッドで行い、変換結果は非同期に受信します。
+	 * </p>
+	 * <p>
+	 * 変換が中断された場合、戻り値は{@link TranscoderException}により例外的に完了します。
+	 * </p>
+	 *
+	 * @param source
+	 *            メインドキュメントのデータソース。
+	 * @return 変換が完了した時点で完了するCompletableFuture。
+	 */
+	public CompletableFuture<Void> transcodeAsync(Source source);
+
+	/**
+	 * <p>
+	 * 指定されたアドレスへサーバー側からアクセスしてメインドキュメントを取得して、非同期に変換します。
+	 * </p>
+	 * <p>
+	 * 変換が中断された場合、戻り値は{@link TranscoderException}により例外的に完了します。
+	 * </p>
+	 *
+	 * @param uri
+	 *            メインドキュメントのURI。
+	 * @return 変換が完了した時点で完了するCompletableFuture。
+	 */
+	public CompletableFuture<Void> transcodeAsync(URI uri);
+}
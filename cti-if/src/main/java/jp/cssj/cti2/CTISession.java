@@ -26,6 +26,12 @@ public interface CTISession extends Closeable {
 	/** 強制的に中断する処理の定数です。abortメソッドに渡します。 */
 	public static final byte ABORT_FORCE = 2;
 
+	/**
+	 * 変換の残り時間（ミリ秒）をサーバーに通知するプロパティの名前です。
+	 * ドライバが変換の前に送るため、アプリケーションが設定する必要はありません。
+	 */
+	public static final String DEADLINE = "cti.deadline";
+
 	/**
 	 * サーバー情報を返します。 詳細は<a href=
 	 * "http://dl.cssj.jp/docs/copper/3.0/html/3410_ctip2.html#prog-ctip2-server-info"
@@ -208,6 +214,58 @@ public interface CTISession extends Closeable {
 	 */
 	public void abort(byte mode) throws IOException;
 
+	/**
+	 * <p>
+	 * セッションの期限を設定します。
+	 * </p>
+	 * <p>
+	 * 期限を過ぎても変換が終わらない場合は、ABORT_NORMAL、ABORT_FORCEの順に変換を中断し、
+	 * それでも終わらなければサーバーとの接続を切断します。 変換を行なっているスレッドでは、コードが
+	 * {@link jp.cssj.cti2.helpers.CTIMessageCodes#ERROR_DEADLINE}のTranscoderExceptionがスローされます。
+	 * 期限を過ぎた後に始めた変換は、サーバーに送られずに中断されます。
+	 * </p>
+	 * 
+	 * <p>
+	 * 期限に対応していない実装では、0以外を設定するとUnsupportedOperationExceptionがスローされます。
+	 * </p>
+	 * 
+	 * @param deadline
+	 *            期限の時刻（System.currentTimeMillis()の値）。0であれば期限を設けません。
+	 * @throws IOException
+	 * @throws UnsupportedOperationException
+	 *             期限に対応していない実装の場合。
+	 */
+	public default void setDeadline(long deadline) throws IOException {
+		if (deadline != 0L) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * <p>
+	 * 1回の変換にかける時間の上限を設定します。
+	 * </p>
+	 * <p>
+	 * 各transcodeメソッドとjoinメソッドは、呼び出した時点から指定した時間が経過すると、
+	 * {@link #setDeadline(long)}の期限を過ぎた場合と同様に中断されます。 両方が設定されている場合は、早い方の期限が使われます。
+	 * </p>
+	 * 
+	 * <p>
+	 * 期限に対応していない実装では、0以外を設定するとUnsupportedOperationExceptionがスローされます。
+	 * </p>
+	 * 
+	 * @param timeout
+	 *            ミリ秒。0であれば上限を設けません。
+	 * @throws IOException
+	 * @throws UnsupportedOperationException
+	 *             期限に対応していない実装の場合。
+	 */
+	public default void setTranscodeTimeout(long timeout) throws IOException {
+		if (timeout != 0L) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
 	/**
 	 * <p>
 	 * 送られたリソースと、プロパティ、メッセージハンドラ等の全ての設定をクリアして、セッションが作られた時点と同じ初期状態に戻します。
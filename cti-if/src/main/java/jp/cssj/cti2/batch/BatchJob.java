@@ -0,0 +1,136 @@
+package jp.cssj.cti2.batch;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jp.cssj.cti2.results.Results;
+import jp.cssj.resolver.Source;
+
+/**
+ * <p>
+ * {@link BatchTranscoder}で行う1つの変換です。
+ * </p>
+ * <p>
+ * メインドキュメントはデータソースか、サーバー側からアクセスするURIで指定します。 通信に失敗した場合に変換をやり直せるのは、
+ * 変換結果をまだ受信しておらず、URIで指定したメインドキュメントかファイルのデータソースである場合か、 メインドキュメントの送信前に失敗した場合だけです。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class BatchJob {
+	private final Source source;
+
+	private final URI uri;
+
+	private final Results results;
+
+	private final Map<String, String> properties = new LinkedHashMap<String, String>();
+
+	/**
+	 * データソースのメインドキュメントを変換するジョブを構築します。
+	 *
+	 * @param source
+	 *            メインドキュメントのデータソース。
+	 * @param results
+	 *            変換結果の出力先。
+	 */
+	public BatchJob(Source source, Results results) {
+		if (source == null || results == null) {
+			throw new NullPointerException();
+		}
+		this.source = source;
+		this.uri = null;
+		this.results = results;
+	}
+
+	/**
+	 * サーバー側からアクセスしてメインドキュメントを変換するジョブを構築します。
+	 *
+	 * @param uri
+	 *            メインドキュメントのURI。
+	 * @param results
+	 *            変換結果の出力先。
+	 */
+	public BatchJob(URI uri, Results results) {
+		if (uri == null || results == null) {
+			throw new NullPointerException();
+		}
+		this.source = null;
+		this.uri = uri;
+		this.results = results;
+	}
+
+	/**
+	 * 変換の前にセッションに設定するプロパティを追加します。
+	 *
+	 * @param name
+	 *            名前。
+	 * @param value
+	 *            値。
+	 * @return このジョブ。
+	 */
+	public BatchJob property(String name, String value) {
+		this.properties.put(name, value);
+		return this;
+	}
+
+	/**
+	 * メインドキュメントのデータソースを返します。
+	 *
+	 * @return データソース。URIで指定した場合はnull。
+	 */
+	public Source getSource() {
+		return this.source;
+	}
+
+	/**
+	 * サーバー側からアクセスするメインドキュメントのURIを返します。
+	 *
+	 * @return URI。データソースで指定した場合はnull。
+	 */
+	public URI getURI() {
+		return this.uri;
+	}
+
+	/**
+	 * 変換結果の出力先を返します。
+	 *
+	 * @return 変換結果の出力先。
+	 */
+	public Results getResults() {
+		return this.results;
+	}
+
+	/**
+	 * セッションに設定するプロパティを返します。
+	 *
+	 * @return 変更できないマップ。
+	 */
+	public Map<String, String> getProperties() {
+		return Collections.unmodifiableMap(this.properties);
+	}
+
+	/**
+	 * メインドキュメントを再び送ることができればtrueを返します。
+	 *
+	 * @return URIで指定したか、ファイルのデータソースであればtrue。
+	 */
+	boolean isRepeatable() {
+		if (this.source == null) {
+			return true;
+		}
+		try {
+			return this.source.isFile();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public String toString() {
+		return super.toString() + "[" + (this.source != null ? this.source.getURI() : this.uri) + "]";
+	}
+}
@@ -0,0 +1,64 @@
+package jp.cssj.cti2.batch;
+
+/**
+ * {@link BatchTranscoder}で正常に終了した変換の記録です。
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class BatchResult {
+	private final BatchJob job;
+
+	private final long submitted, started, finished;
+
+	private final int attempts;
+
+	BatchResult(BatchJob job, long submitted, long started, long finished, int attempts) {
+		this.job = job;
+		this.submitted = submitted;
+		this.started = started;
+		this.finished = finished;
+		this.attempts = attempts;
+	}
+
+	/**
+	 * 変換したジョブを返します。
+	 *
+	 * @return ジョブ。
+	 */
+	public BatchJob getJob() {
+		return this.job;
+	}
+
+	/**
+	 * ジョブを受け付けてから変換を開始するまでの時間を返します。
+	 *
+	 * @return ミリ秒。
+	 */
+	public double getWaitTime() {
+		return (this.started - this.submitted) / 1000000.0;
+	}
+
+	/**
+	 * 変換を開始してから終了するまでの時間を返します。 やり直した場合は、やり直しに要した時間も含みます。
+	 *
+	 * @return ミリ秒。
+	 */
+	public double getTranscodeTime() {
+		return (this.finished - this.started) / 1000000.0;
+	}
+
+	/**
+	 * 変換を試みた回数を返します。
+	 *
+	 * @return 1回目で成功した場合は1。
+	 */
+	public int getAttempts() {
+		return this.attempts;
+	}
+
+	public String toString() {
+		return super.toString() + "[job=" + this.job + ",wait=" + Math.round(this.getWaitTime()) + "ms,transcode="
+				+ Math.round(this.getTranscodeTime()) + "ms,attempts=" + this.attempts + "]";
+	}
+}
@@ -0,0 +1,419 @@
+package jp.cssj.cti2.batch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.cssj.cti2.CTIDriverManager;
+import jp.cssj.cti2.CTISession;
+import jp.cssj.cti2.TranscoderException;
+import jp.cssj.cti2.results.Results;
+import jp.cssj.resolver.MetaSource;
+import jp.cssj.rsr.RandomBuilder;
+
+/**
+ * <p>
+ * 多数の文書を、複数のセッションで並行して変換します。
+ * </p>
+ * <p>
+ * 指定した数のスレッドがそれぞれ1つのセッションを持ち、受け付けたジョブを順に変換します。
+ * セッションは{@link CTISession#reset()}して次のジョブに使い回されます。 処理待ちのジョブが上限に達すると、
+ * {@link #submit(BatchJob)}は空きができるまで待つため、大量のジョブを渡してもメモリを使い過ぎることはありません。
+ * </p>
+ * <p>
+ * 通信に失敗した場合は、セッションを作り直して{@link #getMaxRetries()}回まで変換をやり直します（{@link BatchJob}を参照）。
+ * サーバーが変換を中断した場合（{@link TranscoderException}）はやり直しません。
+ * </p>
+ *
+ * <pre>
+ * try (BatchTranscoder batch = new BatchTranscoder(uri, props, 16)) {
+ * 	for (File file : files) {
+ * 		batch.submit(new BatchJob(new FileSource(file), new SingleResult(new File(dir, file.getName() + &quot;.pdf&quot;))));
+ * 	}
+ * }
+ * </pre>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class BatchTranscoder implements Closeable {
+	private static final Logger LOG = Logger.getLogger(BatchTranscoder.class.getName());
+
+	/** ワーカーに終了を伝えるための目印です。 */
+	private static final Task END = new Task(null, 0);
+
+	private final URI uri;
+
+	private final Map<String, String> props;
+
+	private final BlockingQueue<Task> queue;
+
+	private final Worker[] workers;
+
+	private volatile int maxRetries = 2;
+
+	private boolean closed = false;
+
+	/** 処理待ちに入れようとしているジョブの数。 */
+	private int submitting = 0;
+
+	private long startTime = 0, endTime = 0;
+
+	private long submitted = 0, completed = 0, failed = 0, retries = 0;
+
+	/**
+	 * 変換を行うセッションの数と同じだけ、処理待ちのジョブを受け付けるバッチを構築します。
+	 *
+	 * @param uri
+	 *            接続先のURI。
+	 * @param props
+	 *            セッションを作成するためのプロパティ。
+	 * @param concurrency
+	 *            変換を行うセッションの数。
+	 */
+	public BatchTranscoder(URI uri, Map<String, String> props, int concurrency) {
+		this(uri, props, concurrency, concurrency);
+	}
+
+	/**
+	 * @param uri
+	 *            接続先のURI。
+	 * @param props
+	 *            セッションを作成するためのプロパティ。
+	 * @param concurrency
+	 *            変換を行うセッションの数。
+	 * @param queueSize
+	 *            処理待ちのジョブの最大数。
+	 */
+	public BatchTranscoder(URI uri, Map<String, String> props, int concurrency, int queueSize) {
+		if (concurrency <= 0 || queueSize <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.uri = uri;
+		this.props = props;
+		this.queue = new ArrayBlockingQueue<Task>(queueSize);
+		this.workers = new Worker[concurrency];
+		for (int i = 0; i < this.workers.length; ++i) {
+			this.workers[i] = new Worker(i);
+			this.workers[i].start();
+		}
+	}
+
+	/**
+	 * 通信に失敗したときに変換をやり直す回数を返します。
+	 *
+	 * @return 回数。
+	 */
+	public int getMaxRetries() {
+		return this.maxRetries;
+	}
+
+	/**
+	 * 通信に失敗したときに変換をやり直す回数を設定します。 デフォルトは2です。
+	 *
+	 * @param maxRetries
+	 *            回数。
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * ジョブを受け付けます。 処理待ちのジョブが上限に達している場合は、空きができるまで待ちます。
+	 *
+	 * @param job
+	 *            ジョブ。
+	 * @return 変換が正常に終了した時点で完了するCompletableFuture。変換に失敗した場合は、その例外により例外的に完了します。
+	 * @throws InterruptedException
+	 *             待っている間に割り込まれた場合。
+	 * @throws IllegalStateException
+	 *             既にクローズされている場合。
+	 */
+	public CompletableFuture<BatchResult> submit(BatchJob job) throws InterruptedException {
+		Task task = new Task(job, System.nanoTime());
+		synchronized (this) {
+			if (this.closed) {
+				throw new IllegalStateException("既にクローズされています");
+			}
+			if (this.submitted == 0) {
+				this.startTime = task.submitted;
+			}
+			++this.submitted;
+			++this.submitting;
+		}
+		try {
+			// 処理待ちが上限に達していても、クローズや統計の取得を妨げないようにロックの外で待つ
+			this.queue.put(task);
+		} finally {
+			synchronized (this) {
+				--this.submitting;
+				this.notifyAll();
+			}
+		}
+		return task.future;
+	}
+
+	/**
+	 * 全てのジョブを順に受け付けます。 処理待ちのジョブが上限に達している場合は、空きができるまで待ちます。
+	 *
+	 * @param jobs
+	 *            ジョブ。
+	 * @throws InterruptedException
+	 *             待っている間に割り込まれた場合。
+	 */
+	public void submitAll(Iterator<BatchJob> jobs) throws InterruptedException {
+		while (jobs.hasNext()) {
+			this.submit(jobs.next());
+		}
+	}
+
+	/**
+	 * 受け付けたジョブが全て終了するのを待ち、セッションをクローズします。
+	 */
+	public void close() throws IOException {
+		try {
+			synchronized (this) {
+				if (this.closed) {
+					return;
+				}
+				this.closed = true;
+				// 受け付け中のジョブが終了の目印より後に入らないようにする
+				while (this.submitting > 0) {
+					this.wait();
+				}
+			}
+			for (int i = 0; i < this.workers.length; ++i) {
+				this.queue.put(END);
+			}
+			for (int i = 0; i < this.workers.length; ++i) {
+				this.workers[i].join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("バッチの終了を待っている間に割り込まれました");
+		}
+	}
+
+	/**
+	 * 受け付けたジョブの数を返します。
+	 *
+	 * @return ジョブの数。
+	 */
+	public synchronized long getSubmittedCount() {
+		return this.submitted;
+	}
+
+	/**
+	 * 正常に終了したジョブの数を返します。
+	 *
+	 * @return ジョブの数。
+	 */
+	public synchronized long getCompletedCount() {
+		return this.completed;
+	}
+
+	/**
+	 * 失敗したジョブの数を返します。
+	 *
+	 * @return ジョブの数。
+	 */
+	public synchronized long getFailedCount() {
+		return this.failed;
+	}
+
+	/**
+	 * 変換をやり直した回数を返します。
+	 *
+	 * @return 回数。
+	 */
+	public synchronized long getRetryCount() {
+		return this.retries;
+	}
+
+	/**
+	 * 最初のジョブを受け付けてから、最後に終了したジョブまでの1秒あたりの正常に終了したジョブの数を返します。
+	 *
+	 * @return ジョブの数。
+	 */
+	public synchronized double getThroughput() {
+		if (this.completed == 0) {
+			return 0;
+		}
+		return this.completed * 1000000000.0 / (this.endTime - this.startTime);
+	}
+
+	public synchronized String toString() {
+		return super.toString() + "[submitted=" + this.submitted + ",completed=" + this.completed + ",failed="
+				+ this.failed + ",retries=" + this.retries + ",throughput="
+				+ Math.round(this.getThroughput() * 10.0) / 10.0 + "/s]";
+	}
+
+	private synchronized void finished(boolean succeeded) {
+		if (succeeded) {
+			++this.completed;
+		} else {
+			++this.failed;
+		}
+		this.endTime = System.nanoTime();
+	}
+
+	private synchronized void retried() {
+		++this.retries;
+	}
+
+	private static class Task {
+		final BatchJob job;
+
+		final long submitted;
+
+		final CompletableFuture<BatchResult> future = new CompletableFuture<BatchResult>();
+
+		Task(BatchJob job, long submitted) {
+			this.job = job;
+			this.submitted = submitted;
+		}
+	}
+
+	/**
+	 * 1つのセッションでジョブを順に変換するスレッドです。
+	 */
+	private class Worker extends Thread {
+		private CTISession session = null;
+
+		Worker(int i) {
+			super("BatchTranscoder-" + i);
+			this.setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				for (;;) {
+					Task task;
+					try {
+						task = BatchTranscoder.this.queue.take();
+					} catch (InterruptedException e) {
+						break;
+					}
+					if (task == END) {
+						break;
+					}
+					this.execute(task);
+				}
+			} finally {
+				this.discard();
+			}
+		}
+
+		private void execute(Task task) {
+			BatchJob job = task.job;
+			long started = System.nanoTime();
+			for (int attempt = 1;; ++attempt) {
+				TrackingResults results = new TrackingResults(job.getResults());
+				boolean sent = false;
+				try {
+					CTISession session = this.session();
+					session.setResults(results);
+					for (Map.Entry<String, String> e : job.getProperties().entrySet()) {
+						session.property(e.getKey(), e.getValue());
+					}
+					sent = true;
+					if (job.getSource() != null) {
+						session.transcode(job.getSource());
+					} else {
+						session.transcode(job.getURI());
+					}
+					BatchTranscoder.this.finished(true);
+					task.future.complete(new BatchResult(job, task.submitted, started, System.nanoTime(), attempt));
+					return;
+				} catch (TranscoderException e) {
+					BatchTranscoder.this.finished(false);
+					task.future.completeExceptionally(e);
+					return;
+				} catch (IOException e) {
+					this.discard();
+					if (attempt > BatchTranscoder.this.maxRetries || results.started
+							|| (sent && !job.isRepeatable())) {
+						BatchTranscoder.this.finished(false);
+						task.future.completeExceptionally(e);
+						return;
+					}
+					if (LOG.isLoggable(Level.FINE)) {
+						LOG.log(Level.FINE, job + "の変換をやり直します", e);
+					}
+					BatchTranscoder.this.retried();
+				} catch (RuntimeException e) {
+					this.discard();
+					BatchTranscoder.this.finished(false);
+					task.future.completeExceptionally(e);
+					return;
+				} catch (Throwable e) {
+					// OutOfMemoryErrorなどでスレッドが終了しても、結果を待つ側が止まらないようにする
+					this.discard();
+					BatchTranscoder.this.finished(false);
+					task.future.completeExceptionally(e);
+					throw e;
+				}
+			}
+		}
+
+		/**
+		 * 次のジョブに使うセッションを返します。
+		 */
+		private CTISession session() throws IOException {
+			if (this.session == null) {
+				this.session = CTIDriverManager.getSession(BatchTranscoder.this.uri, BatchTranscoder.this.props);
+			} else {
+				this.session.reset();
+			}
+			return this.session;
+		}
+
+		/**
+		 * 使えなくなったセッションを破棄します。
+		 */
+		private void discard() {
+			if (this.session == null) {
+				return;
+			}
+			try {
+				this.session.close();
+			} catch (Exception e) {
+				LOG.log(Level.FINE, "セッションのクローズに失敗しました", e);
+			}
+			this.session = null;
+		}
+	}
+
+	/**
+	 * 変換結果の受信を始めたかどうかを記録します。
+	 */
+	private static class TrackingResults implements Results {
+		private final Results results;
+
+		volatile boolean started = false;
+
+		TrackingResults(Results results) {
+			this.results = results;
+		}
+
+		public boolean hasNext() {
+			return this.results.hasNext();
+		}
+
+		public RandomBuilder nextBuilder(MetaSource metaSource) throws IOException {
+			this.started = true;
+			return this.results.nextBuilder(metaSource);
+		}
+
+		public void end() throws IOException {
+			this.results.end();
+		}
+	}
+}
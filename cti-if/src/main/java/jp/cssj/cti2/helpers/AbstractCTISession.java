@@ -1,8 +1,40 @@
 package jp.cssj.cti2.helpers;
 
+import java.io.IOException;
+
 import jp.cssj.cti2.CTISession;
 
 public abstract class AbstractCTISession implements CTISession {
+	/** セッションの期限。 0であれば期限はありません。 */
+	protected long deadline = 0L;
+
+	/** 1回の変換にかける時間の上限。 0であれば上限はありません。 */
+	protected long transcodeTimeout = 0L;
+
+	public void setDeadline(long deadline) throws IOException {
+		this.deadline = deadline;
+	}
+
+	public void setTranscodeTimeout(long timeout) throws IOException {
+		this.transcodeTimeout = timeout;
+	}
+
+	/**
+	 * これから始める変換の期限を返します。
+	 *
+	 * @return 期限の時刻。 0であれば期限はありません。
+	 */
+	protected long transcodeDeadline() {
+		long deadline = this.deadline;
+		if (this.transcodeTimeout > 0L) {
+			long limit = System.currentTimeMillis() + this.transcodeTimeout;
+			if (deadline <= 0L || limit < deadline) {
+				deadline = limit;
+			}
+		}
+		return deadline;
+	}
+
 	protected void finalize() throws Throwable {
 		this.close();
 		super.finalize();
@@ -32,6 +32,11 @@ public interface CTIMessageCodes {
 	 */
 	public static final short ERROR_IO = 0x3002;
 
+	/**
+	 * 変換の期限を過ぎた。
+	 */
+	public static final short ERROR_DEADLINE = 0x3003;
+
 	/**
 	 * 予期しないエラー。
 	 */
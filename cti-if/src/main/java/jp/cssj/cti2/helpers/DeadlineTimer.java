@@ -0,0 +1,210 @@
+package jp.cssj.cti2.helpers;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.cssj.cti2.CTISession;
+import jp.cssj.cti2.TranscoderException;
+
+/**
+ * <p>
+ * 期限を過ぎた変換を中断します。
+ * </p>
+ * <p>
+ * 期限を過ぎると{@link CTISession#ABORT_NORMAL}で中断し、 {@link #GRACE}の時間が経過しても
+ * {@link #cancel()}が呼ばれなければ{@link CTISession#ABORT_FORCE}で中断します。 さらに同じ時間が経過すると
+ * {@link #disconnect()}を呼び出します。 これらの処理は全てのタイマーで共有する1つのスレッドで行われます。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class DeadlineTimer implements Runnable {
+	private static final Logger LOG = Logger.getLogger(DeadlineTimer.class.getName());
+
+	/**
+	 * 中断してから次の段階に進むまでの時間（ミリ秒）を設定するシステムプロパティです。 デフォルトは2000です。
+	 */
+	public static final String GRACE = "jp.cssj.cti2.deadline.grace";
+
+	private static ScheduledThreadPoolExecutor timer = null;
+
+	private final CTISession session;
+
+	private final long deadline;
+
+	private final long grace = Long.getLong(GRACE, 2000L).longValue();
+
+	/** 次に行う処理。 0=通常の中断, 1=強制的な中断, 2=切断 */
+	private int step = 0;
+
+	private boolean cancelled = false;
+
+	/** 中断の処理を行なっているスレッド。 */
+	private Thread running = null;
+
+	private ScheduledFuture<?> future = null;
+
+	/**
+	 * @param session
+	 *            中断するセッション。
+	 * @param deadline
+	 *            期限の時刻（System.currentTimeMillis()の値）。
+	 */
+	public DeadlineTimer(CTISession session, long deadline) {
+		this.session = session;
+		this.deadline = deadline;
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor getTimer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, DeadlineTimer.class.getName());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			timer.setRemoveOnCancelPolicy(true);
+		}
+		return timer;
+	}
+
+	/**
+	 * 期限の時刻を返します。
+	 *
+	 * @return System.currentTimeMillis()の値。
+	 */
+	public long getDeadline() {
+		return this.deadline;
+	}
+
+	/**
+	 * 期限までの残り時間を返します。
+	 *
+	 * @return ミリ秒。 期限を過ぎていれば0以下の値。
+	 */
+	public long getRemaining() {
+		return this.deadline - System.currentTimeMillis();
+	}
+
+	/**
+	 * 期限の監視を開始します。
+	 *
+	 * @return このオブジェクト。
+	 */
+	public synchronized DeadlineTimer start() {
+		this.future = getTimer().schedule(this, Math.max(0L, this.getRemaining()), TimeUnit.MILLISECONDS);
+		return this;
+	}
+
+	public void run() {
+		int step;
+		synchronized (this) {
+			if (this.cancelled) {
+				return;
+			}
+			step = this.step++;
+			this.running = Thread.currentThread();
+		}
+		try {
+			switch (step) {
+			case 0:
+				LOG.fine("期限を過ぎたため変換を中断します");
+				this.abort(CTISession.ABORT_NORMAL);
+				break;
+			case 1:
+				this.abort(CTISession.ABORT_FORCE);
+				break;
+			default:
+				LOG.fine("期限を過ぎても変換が終わらないため切断します");
+				this.disconnect();
+				break;
+			}
+		} catch (Exception e) {
+			LOG.log(Level.FINE, "期限を過ぎた変換を中断できませんでした", e);
+		} finally {
+			synchronized (this) {
+				this.running = null;
+				this.notifyAll();
+				if (!this.cancelled && step < 2) {
+					this.future = getTimer().schedule(this, this.grace, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 変換を中断します。
+	 *
+	 * @param mode
+	 *            {@link CTISession#ABORT_NORMAL}または{@link CTISession#ABORT_FORCE}。
+	 * @throws IOException
+	 */
+	protected void abort(byte mode) throws IOException {
+		this.session.abort(mode);
+	}
+
+	/**
+	 * 中断しても変換が終わらない場合に呼ばれます。 デフォルトでは何もしません。
+	 *
+	 * @throws IOException
+	 */
+	protected void disconnect() throws IOException {
+		// NOP
+	}
+
+	/**
+	 * 期限を過ぎて中断を始めていればtrueを返します。
+	 *
+	 * @return 期限を過ぎていればtrue。
+	 */
+	public synchronized boolean isExpired() {
+		return this.step > 0;
+	}
+
+	/**
+	 * 期限の監視を終了します。 他のスレッドが中断の処理を行なっている最中であれば、その処理が終わるまで待ちます。
+	 *
+	 * @return 期限を過ぎて中断を始めていればtrue。
+	 */
+	public synchronized boolean cancel() {
+		this.cancelled = true;
+		if (this.future != null) {
+			this.future.cancel(false);
+			this.future = null;
+		}
+		while (this.running != null && this.running != Thread.currentThread()) {
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return this.step > 0;
+	}
+
+	/**
+	 * 期限を過ぎたことを示す例外を返します。
+	 *
+	 * @param state
+	 *            変換結果の状態（TranscoderException.STATE_XXX定数）。
+	 * @param cause
+	 *            中断によって発生した例外。 なければnull。
+	 * @return 例外。
+	 */
+	public static TranscoderException exceeded(byte state, Throwable cause) {
+		short code = CTIMessageCodes.ERROR_DEADLINE;
+		TranscoderException e = new TranscoderException(state, code, null, CTIMessageHelper.toString(code, null));
+		if (cause != null) {
+			e.initCause(cause);
+		}
+		return e;
+	}
+}
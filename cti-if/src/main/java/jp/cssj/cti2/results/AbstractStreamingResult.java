@@ -0,0 +1,164 @@
+package jp.cssj.cti2.results;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import jp.cssj.resolver.MetaSource;
+import jp.cssj.rsr.RandomBuilder;
+import jp.cssj.rsr.impl.NopRandomBuilder;
+import jp.cssj.rsr.impl.StreamRandomBuilder;
+
+/**
+ * <p>
+ * 単一の変換結果を、受信しながら他のスレッドに渡すResultsです。
+ * </p>
+ * <p>
+ * ドライバが先頭から順に出力するデータ（{@link jp.cssj.rsr.Sequential}への出力）は、受信した時点で
+ * {@link #data(byte[], int, int)}に渡されます。 ブロック単位で出力されるデータは、後から前に挿入されることがあるため、
+ * 変換が終了してからまとめて渡されます。
+ * </p>
+ * <p>
+ * 変換結果を出力する前に変換が失敗した場合、結果を受け取る側には終了が通知されません。
+ * 変換を行うスレッドで例外が発生した場合は、{@link #fail(Throwable)}を呼び出してください。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public abstract class AbstractStreamingResult implements Results {
+	private MetaSource metaSource = null;
+
+	private boolean started = false, ended = false;
+
+	/**
+	 * 変換結果のメタ情報を返します。
+	 *
+	 * @return メタ情報。 まだ変換結果を受信していなければnull。
+	 */
+	public synchronized MetaSource getMetaSource() {
+		return this.metaSource;
+	}
+
+	public synchronized boolean hasNext() {
+		return !this.started;
+	}
+
+	public RandomBuilder nextBuilder(MetaSource metaSource) throws IOException {
+		synchronized (this) {
+			if (this.started) {
+				return NopRandomBuilder.SHARED_INSTANCE;
+			}
+			this.started = true;
+			this.metaSource = metaSource;
+		}
+		this.started(metaSource);
+		return new Builder();
+	}
+
+	public void end() throws IOException {
+		// NOP
+	}
+
+	/**
+	 * 変換が失敗したことを結果を受け取る側に通知します。 既に終了が通知されている場合は何もしません。
+	 *
+	 * @param e
+	 *            失敗の原因。
+	 */
+	public void fail(Throwable e) {
+		if (this.terminate()) {
+			this.failed(e);
+		}
+	}
+
+	/**
+	 * 変換が終了したことを結果を受け取る側に通知します。 既に終了が通知されている場合は何もしません。
+	 * 変換結果を出力しないまま変換が終了した場合のために、変換を行うスレッドで呼び出してください。
+	 */
+	public void complete() {
+		if (this.terminate()) {
+			this.completed();
+		}
+	}
+
+	private synchronized boolean terminate() {
+		if (this.ended) {
+			return false;
+		}
+		this.ended = true;
+		return true;
+	}
+
+	/**
+	 * 変換結果の受信を開始したときに呼ばれます。
+	 *
+	 * @param metaSource
+	 *            変換結果のメタ情報。
+	 * @throws IOException
+	 */
+	protected void started(MetaSource metaSource) throws IOException {
+		// NOP
+	}
+
+	/**
+	 * 変換結果のデータを受け取ります。 データはメソッドから戻った後で再利用されるため、保持する場合は複製してください。
+	 * 結果を受け取る側の準備ができるまでブロックすることで、サーバーからの受信を抑えることができます。
+	 *
+	 * @param b
+	 *            データ。
+	 * @param off
+	 *            データの開始位置。
+	 * @param len
+	 *            データの長さ。
+	 * @throws IOException
+	 *             結果を受け取る側が読み込みをやめた場合。 変換は中断されます。
+	 */
+	protected abstract void data(byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * 変換結果を全て受け取ったときに呼ばれます。
+	 */
+	protected abstract void completed();
+
+	/**
+	 * 変換結果が途中で失われたときに呼ばれます。
+	 *
+	 * @param e
+	 *            失敗の原因。
+	 */
+	protected abstract void failed(Throwable e);
+
+	/**
+	 * 受け取ったデータを{@link #data(byte[], int, int)}に渡します。
+	 */
+	private class Builder extends StreamRandomBuilder {
+		private boolean finished = false;
+
+		Builder() {
+			super(new OutputStream() {
+				public void write(int b) throws IOException {
+					this.write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				public void write(byte[] b, int off, int len) throws IOException {
+					if (len > 0) {
+						AbstractStreamingResult.this.data(b, off, len);
+					}
+				}
+			});
+		}
+
+		public void finish() throws IOException {
+			super.finish();
+			this.finished = true;
+			AbstractStreamingResult.this.complete();
+		}
+
+		public void dispose() {
+			super.dispose();
+			if (!this.finished) {
+				AbstractStreamingResult.this.fail(new IOException("変換結果の出力が中断されました"));
+			}
+		}
+	}
+}
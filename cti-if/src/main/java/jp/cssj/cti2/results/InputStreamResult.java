@@ -0,0 +1,192 @@
+package jp.cssj.cti2.results;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+/**
+ * <p>
+ * 単一の変換結果を、受信しながら{@link InputStream}として読み込むためのResultsです。
+ * </p>
+ * <p>
+ * 変換は{@link #getInputStream()}から読み込むスレッドとは別のスレッドで行ってください。
+ * 読み込まれていないデータが{@link #getMaxBuffered()}バイトを超えると、変換を行うスレッドは読み込まれるまで待ちます。
+ * 変換が途中で中断された場合は、読み込み側に例外が発生します。 読み込みの途中でストリームをクローズすると、変換は中断されます。
+ * </p>
+ *
+ * <pre>
+ * final InputStreamResult result = new InputStreamResult();
+ * session.setResults(result);
+ * executor.execute(new Runnable() {
+ * 	public void run() {
+ * 		try {
+ * 			session.transcode(source);
+ * 			result.complete();
+ * 		} catch (Exception e) {
+ * 			result.fail(e);
+ * 		}
+ * 	}
+ * });
+ * try (InputStream in = result.getInputStream()) {
+ * 	...
+ * }
+ * </pre>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class InputStreamResult extends AbstractStreamingResult {
+	private final int maxBuffered;
+
+	private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+
+	private int buffered = 0;
+
+	private boolean completed = false, closed = false;
+
+	private Throwable error = null;
+
+	private final InputStream in = new InputStream() {
+		private byte[] chunk = null;
+
+		private int pos = 0;
+
+		public int read() throws IOException {
+			if (!this.fill()) {
+				return -1;
+			}
+			return this.chunk[this.pos++] & 0xFF;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!this.fill()) {
+				return -1;
+			}
+			len = Math.min(len, this.chunk.length - this.pos);
+			System.arraycopy(this.chunk, this.pos, b, off, len);
+			this.pos += len;
+			return len;
+		}
+
+		public int available() throws IOException {
+			synchronized (InputStreamResult.this) {
+				return (this.chunk == null ? 0 : this.chunk.length - this.pos) + InputStreamResult.this.buffered;
+			}
+		}
+
+		private boolean fill() throws IOException {
+			if (this.chunk != null && this.pos < this.chunk.length) {
+				return true;
+			}
+			this.chunk = InputStreamResult.this.take();
+			this.pos = 0;
+			return this.chunk != null;
+		}
+
+		public void close() {
+			InputStreamResult.this.close();
+		}
+	};
+
+	/**
+	 * 読み込まれていないデータを最大1MB保持するResultsを構築します。
+	 */
+	public InputStreamResult() {
+		this(1024 * 1024);
+	}
+
+	/**
+	 * @param maxBuffered
+	 *            読み込まれていないデータを保持する最大のバイト数。
+	 */
+	public InputStreamResult(int maxBuffered) {
+		this.maxBuffered = maxBuffered;
+	}
+
+	/**
+	 * 読み込まれていないデータを保持する最大のバイト数を返します。
+	 *
+	 * @return バイト数。
+	 */
+	public int getMaxBuffered() {
+		return this.maxBuffered;
+	}
+
+	/**
+	 * 変換結果を読み込むストリームを返します。
+	 *
+	 * @return 変換結果のストリーム。
+	 */
+	public InputStream getInputStream() {
+		return this.in;
+	}
+
+	protected synchronized void data(byte[] b, int off, int len) throws IOException {
+		try {
+			while (this.buffered > 0 && this.buffered + len > this.maxBuffered && !this.closed) {
+				this.wait();
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		if (this.closed) {
+			throw new IOException("変換結果の読み込みが中止されました");
+		}
+		byte[] chunk = new byte[len];
+		System.arraycopy(b, off, chunk, 0, len);
+		this.chunks.addLast(chunk);
+		this.buffered += len;
+		this.notifyAll();
+	}
+
+	protected synchronized void completed() {
+		this.completed = true;
+		this.notifyAll();
+	}
+
+	protected synchronized void failed(Throwable e) {
+		this.error = e;
+		this.notifyAll();
+	}
+
+	/**
+	 * 次のデータを取り出します。 データがなければ受信するまで待ちます。
+	 *
+	 * @return データ。 全て読み込んだ場合はnull。
+	 */
+	private synchronized byte[] take() throws IOException {
+		try {
+			while (this.chunks.isEmpty()) {
+				if (this.closed) {
+					throw new IOException("ストリームはクローズされています");
+				}
+				if (this.error != null) {
+					IOException e = new IOException("変換に失敗しました");
+					e.initCause(this.error);
+					throw e;
+				}
+				if (this.completed) {
+					return null;
+				}
+				this.wait();
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		byte[] chunk = this.chunks.removeFirst();
+		this.buffered -= chunk.length;
+		this.notifyAll();
+		return chunk;
+	}
+
+	private synchronized void close() {
+		this.closed = true;
+		this.chunks.clear();
+		this.buffered = 0;
+		this.notifyAll();
+	}
+}
@@ -0,0 +1,186 @@
+package jp.cssj.cti2.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import jp.cssj.cti2.TranscoderException;
+import jp.cssj.cti2.results.NopResults;
+import jp.cssj.resolver.stream.StreamSource;
+
+/**
+ * {@link BatchTranscoder}のテストです。 {@link TestDriver}に接続します。
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class BatchTranscoderTest {
+	private static final URI URI = java.net.URI.create("batch-test://localhost/");
+
+	private static final URI MAIN = java.net.URI.create("http://localhost/main.html");
+
+	@Before
+	public void setUp() {
+		TestDriver.clear();
+	}
+
+	private static BatchJob job(String id, String mode) {
+		return new BatchJob(MAIN, NopResults.SHARED_INSTANCE).property("test.id", id).property("test.mode", mode);
+	}
+
+	private static Throwable cause(CompletableFuture<BatchResult> future) throws Exception {
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail("変換が成功しました");
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+	}
+
+	@Test
+	public void testReuseSession() throws Exception {
+		List<CompletableFuture<BatchResult>> futures = new ArrayList<CompletableFuture<BatchResult>>();
+		try (BatchTranscoder batch = new BatchTranscoder(URI, null, 1)) {
+			for (int i = 0; i < 5; ++i) {
+				futures.add(batch.submit(job("reuse" + i, "ok")));
+			}
+		}
+		for (int i = 0; i < futures.size(); ++i) {
+			assertEquals(1, futures.get(i).get().getAttempts());
+		}
+		assertEquals(1, TestDriver.opened.get());
+		assertEquals(1, TestDriver.closed.get());
+	}
+
+	@Test
+	public void testRetry() throws Exception {
+		CompletableFuture<BatchResult> retried, exhausted;
+		BatchTranscoder batch = new BatchTranscoder(URI, null, 1);
+		try {
+			retried = batch.submit(job("retry", "fail").property("test.failures", "2"));
+			exhausted = batch.submit(job("exhausted", "fail").property("test.failures", "3"));
+		} finally {
+			batch.close();
+		}
+		assertEquals(3, retried.get().getAttempts());
+		assertTrue(cause(exhausted) instanceof IOException);
+		assertEquals(3, TestDriver.attempts.get("exhausted").get());
+		assertEquals(4, batch.getRetryCount());
+		assertEquals(1, batch.getCompletedCount());
+		assertEquals(1, batch.getFailedCount());
+		// 失敗したセッションは使い回さない
+		assertEquals(TestDriver.opened.get(), TestDriver.closed.get());
+		assertEquals(5, TestDriver.opened.get());
+	}
+
+	@Test
+	public void testNoRetry() throws Exception {
+		CompletableFuture<BatchResult> started, aborted, stream;
+		BatchTranscoder batch = new BatchTranscoder(URI, null, 1);
+		try {
+			// 結果を受け取り始めていればやり直さない
+			started = batch.submit(job("started", "started"));
+			// サーバーが変換を中断した場合はやり直さない
+			aborted = batch.submit(job("aborted", "abort"));
+			// 再び送ることができないデータはやり直さない
+			stream = batch.submit(new BatchJob(new StreamSource(MAIN, new ByteArrayInputStream(new byte[0])),
+					NopResults.SHARED_INSTANCE).property("test.id", "stream").property("test.mode", "fail")
+							.property("test.failures", "1"));
+		} finally {
+			batch.close();
+		}
+		assertTrue(cause(started) instanceof IOException);
+		assertTrue(cause(aborted) instanceof TranscoderException);
+		assertTrue(cause(stream) instanceof IOException);
+		assertEquals(1, TestDriver.attempts.get("started").get());
+		assertEquals(1, TestDriver.attempts.get("aborted").get());
+		assertEquals(1, TestDriver.attempts.get("stream").get());
+		assertEquals(0, batch.getRetryCount());
+		assertEquals(3, batch.getFailedCount());
+	}
+
+	@Test
+	public void testError() throws Exception {
+		CompletableFuture<BatchResult> error;
+		List<CompletableFuture<BatchResult>> futures = new ArrayList<CompletableFuture<BatchResult>>();
+		BatchTranscoder batch = new BatchTranscoder(URI, null, 2);
+		try {
+			error = batch.submit(job("error", "error"));
+			for (int i = 0; i < 4; ++i) {
+				futures.add(batch.submit(job("after" + i, "ok")));
+			}
+		} finally {
+			batch.close();
+		}
+		// エラーで終了したワーカーのジョブも完了する
+		assertTrue(cause(error) instanceof Error);
+		for (int i = 0; i < futures.size(); ++i) {
+			futures.get(i).get(10, TimeUnit.SECONDS);
+		}
+		assertEquals(1, batch.getFailedCount());
+		assertEquals(4, batch.getCompletedCount());
+		assertEquals(TestDriver.opened.get(), TestDriver.closed.get());
+	}
+
+	@Test
+	public void testCloseWaitsForSubmit() throws Exception {
+		final BatchTranscoder batch = new BatchTranscoder(URI, null, 1, 1);
+		CompletableFuture<BatchResult> first = batch.submit(job("first", "ok").property("test.sleep", "300"));
+		CompletableFuture<BatchResult> second = batch.submit(job("second", "ok"));
+		@SuppressWarnings("unchecked")
+		final CompletableFuture<BatchResult>[] third = new CompletableFuture[1];
+		Thread submitter = new Thread() {
+			public void run() {
+				try {
+					third[0] = batch.submit(job("third", "ok"));
+				} catch (InterruptedException e) {
+					// 終了
+				}
+			}
+		};
+		submitter.start();
+		// 処理待ちが一杯の間に、受け付け中のジョブがある状態でクローズする
+		long deadline = System.currentTimeMillis() + 10000;
+		while (batch.getSubmittedCount() < 3) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		batch.close();
+		submitter.join(10000);
+		assertFalse(submitter.isAlive());
+		// 受け付けたジョブは全て、終了の目印より前に処理される
+		assertTrue(first.isDone());
+		assertTrue(second.isDone());
+		assertTrue(third[0].isDone());
+		third[0].get();
+		assertEquals(3, batch.getCompletedCount());
+	}
+
+	@Test
+	public void testSubmitAfterClose() throws Exception {
+		BatchTranscoder batch = new BatchTranscoder(URI, null, 1);
+		batch.close();
+		try {
+			batch.submit(job("closed", "ok"));
+			fail("ジョブを受け付けました");
+		} catch (IllegalStateException e) {
+			// 期待どおり
+		}
+		// 2度目のクローズは何もしない
+		batch.close();
+	}
+}
@@ -0,0 +1,175 @@
+package jp.cssj.cti2.batch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.cssj.cti2.CTIDriver;
+import jp.cssj.cti2.CTISession;
+import jp.cssj.cti2.TranscoderException;
+import jp.cssj.cti2.message.MessageHandler;
+import jp.cssj.cti2.progress.ProgressListener;
+import jp.cssj.cti2.results.Results;
+import jp.cssj.plugin.Plugin;
+import jp.cssj.resolver.MetaSource;
+import jp.cssj.resolver.Source;
+import jp.cssj.resolver.SourceResolver;
+import jp.cssj.resolver.helpers.MetaSourceImpl;
+
+/**
+ * <p>
+ * {@link BatchTranscoder}のテストで使う、batch-test:で始まるURIのドライバです。
+ * </p>
+ * <p>
+ * 変換の動作はジョブのプロパティで指定します。 test.modeがfailであればtest.failures回まで通信の失敗を、
+ * startedであれば結果を受け取り始めてから通信の失敗を、abortであれば変換の中断を、errorであればエラーを発生します。
+ * test.sleepを指定すると、変換の前にそのミリ秒だけ待ちます。 失敗の回数はtest.idごとに数えます。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class TestDriver implements CTIDriver, Plugin<URI> {
+	/** 作成したセッションの数。 */
+	static final AtomicInteger opened = new AtomicInteger();
+
+	/** クローズしたセッションの数。 */
+	static final AtomicInteger closed = new AtomicInteger();
+
+	/** 変換を試みた回数。 */
+	static final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<String, AtomicInteger>();
+
+	static void clear() {
+		opened.set(0);
+		closed.set(0);
+		attempts.clear();
+	}
+
+	public boolean match(URI uri) {
+		return uri != null && "batch-test".equals(uri.getScheme());
+	}
+
+	public CTISession getSession(URI uri, Map<String, String> props) throws IOException {
+		opened.incrementAndGet();
+		return new TestSession();
+	}
+
+	private static class TestSession implements CTISession {
+		private final Map<String, String> props = new HashMap<String, String>();
+
+		private Results results = null;
+
+		private boolean closed = false;
+
+		public InputStream getServerInfo(URI uri) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		public void setResults(Results results) {
+			this.results = results;
+		}
+
+		public void setMessageHandler(MessageHandler messageHandler) {
+			// NOP
+		}
+
+		public void setProgressListener(ProgressListener progressListener) {
+			// NOP
+		}
+
+		public void property(String name, String value) {
+			this.props.put(name, value);
+		}
+
+		public OutputStream resource(MetaSource metaSource) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		public void resource(Source source) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		public void setSourceResolver(SourceResolver resolver) {
+			// NOP
+		}
+
+		public OutputStream transcode(MetaSource metaSource) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		public void transcode(URI uri) throws IOException {
+			this.transcode();
+		}
+
+		public void transcode(Source source) throws IOException {
+			this.transcode();
+		}
+
+		private void transcode() throws IOException {
+			if (this.closed) {
+				throw new IllegalStateException("クローズされたセッションです");
+			}
+			String id = this.props.get("test.id");
+			AtomicInteger count = new AtomicInteger();
+			if (id != null) {
+				AtomicInteger prev = attempts.putIfAbsent(id, count);
+				if (prev != null) {
+					count = prev;
+				}
+			}
+			int attempt = count.incrementAndGet();
+			String sleep = this.props.get("test.sleep");
+			if (sleep != null) {
+				try {
+					Thread.sleep(Long.parseLong(sleep));
+				} catch (InterruptedException e) {
+					throw new IOException("割り込まれました");
+				}
+			}
+			String mode = this.props.get("test.mode");
+			if ("fail".equals(mode) && attempt <= Integer.parseInt(this.props.get("test.failures"))) {
+				throw new IOException("接続が切断されました");
+			}
+			if ("abort".equals(mode)) {
+				throw new TranscoderException(TranscoderException.STATE_BROKEN, (short) 0, null, "中断されました");
+			}
+			if ("error".equals(mode)) {
+				throw new Error("テストのエラー");
+			}
+			this.results.nextBuilder(new MetaSourceImpl(URI.create("batch-test:out"), "application/pdf"));
+			if ("started".equals(mode)) {
+				throw new IOException("接続が切断されました");
+			}
+			this.results.end();
+		}
+
+		public void setContinuous(boolean continuous) {
+			// NOP
+		}
+
+		public void join() {
+			// NOP
+		}
+
+		public void abort(byte mode) {
+			// NOP
+		}
+
+		public void reset() {
+			this.props.clear();
+			this.results = null;
+		}
+
+		public void close() {
+			if (!this.closed) {
+				this.closed = true;
+				TestDriver.closed.incrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package jp.cssj.server.acl;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jp.cssj.plugin.PluginLoader;
+
+/**
+ * <p>
+ * 接続元のアドレスごとにアクセスの可否を判定します。
+ * </p>
+ * <p>
+ * 判定は、{@link AclRules}の規則、アドレスごとのプラグインの判定結果のキャッシュ、{@link Acl}プラグインの順に行います。
+ * 規則とキャッシュはスナップショットにまとめられ、プラグインが読み込み直されるとキャッシュが空の新しいスナップショットに置き換えられます。
+ * このため、キャッシュまたは規則で判定できる場合はロックを取得せず、プラグインの検索（{@link PluginLoader}で同期化されています）も行いません。
+ * キャッシュは{@link #setCacheSize(int)}の数を超えると空にされます。
+ * </p>
+ * <p>
+ * プラグインを検索するキーは、デフォルトではアドレスの文字列表現です。 {@link #getKey(InetAddress)}をオーバーライドして変更することができます。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class AclChecker {
+	/** デフォルトのキャッシュの大きさです。 */
+	public static final int DEFAULT_CACHE_SIZE = 1024;
+
+	/**
+	 * 判定に使う状態です。
+	 */
+	private static class Snapshot {
+		/** 作成した時点のプラグインの世代。 */
+		final long generation;
+
+		final AclRules rules;
+
+		/** アドレスごとのプラグインによる判定結果。 */
+		final ConcurrentHashMap<InetAddress, Boolean> decisions = new ConcurrentHashMap<InetAddress, Boolean>();
+
+		Snapshot(long generation, AclRules rules) {
+			this.generation = generation;
+			this.rules = rules;
+		}
+	}
+
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(
+			new Snapshot(PluginLoader.getPluginLoader().getGeneration(), AclRules.EMPTY));
+
+	private volatile int cacheSize = DEFAULT_CACHE_SIZE;
+
+	/**
+	 * 規則を設定します。 判定結果のキャッシュは破棄されます。
+	 *
+	 * @param rules
+	 *            規則。
+	 */
+	public void setRules(AclRules rules) {
+		this.snapshot.set(new Snapshot(PluginLoader.getPluginLoader().getGeneration(), rules));
+	}
+
+	/**
+	 * 判定結果をキャッシュするアドレスの数を設定します。 0であればキャッシュしません。
+	 *
+	 * @param cacheSize
+	 *            アドレスの数。
+	 */
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+		this.snapshot.get().decisions.clear();
+	}
+
+	/**
+	 * 接続元からのアクセスが許可されているかどうかを調べます。
+	 *
+	 * @param remoteAddress
+	 *            接続元のアドレス。
+	 * @return 許可されていればtrue。
+	 */
+	public boolean checkAccess(InetAddress remoteAddress) {
+		Snapshot snapshot = this.snapshot.get();
+		long generation = PluginLoader.getPluginLoader().getGeneration();
+		if (snapshot.generation != generation) {
+			// プラグインが読み込み直された
+			Snapshot newSnapshot = new Snapshot(generation, snapshot.rules);
+			snapshot = this.snapshot.compareAndSet(snapshot, newSnapshot) ? newSnapshot : this.snapshot.get();
+		}
+
+		byte decision = snapshot.rules.decide(remoteAddress);
+		if (decision != AclRules.NONE) {
+			return decision == AclRules.ALLOW;
+		}
+
+		Boolean allowed = snapshot.decisions.get(remoteAddress);
+		if (allowed != null) {
+			return allowed.booleanValue();
+		}
+		Acl acl = (Acl) PluginLoader.getPluginLoader().search(Acl.class, this.getKey(remoteAddress));
+		allowed = Boolean.valueOf(acl != null && acl.checkAccess(remoteAddress));
+		int cacheSize = this.cacheSize;
+		if (cacheSize > 0) {
+			if (snapshot.decisions.size() >= cacheSize) {
+				snapshot.decisions.clear();
+			}
+			snapshot.decisions.put(remoteAddress, allowed);
+		}
+		return allowed.booleanValue();
+	}
+
+	/**
+	 * {@link Acl}プラグインを検索するキーを返します。
+	 *
+	 * @param remoteAddress
+	 *            接続元のアドレス。
+	 * @return キー。
+	 */
+	protected Object getKey(InetAddress remoteAddress) {
+		return remoteAddress.getHostAddress();
+	}
+}
@@ -0,0 +1,302 @@
+package jp.cssj.server.acl;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * <p>
+ * CIDR表記で指定したアドレスの範囲ごとに、アクセスを許可または拒否する規則です。
+ * </p>
+ * <p>
+ * 規則は"allow 192.168.0.0/16, deny 0.0.0.0/0, allow ::1"のように、allowまたはdenyとアドレスの範囲の組をカンマか改行で区切って並べます。
+ * プレフィックス長を省略した場合は、そのアドレスだけを対象とします。 複数の範囲に含まれるアドレスには最も長いプレフィックスの規則を適用し、
+ * 同じ範囲が重複していれば後の規則を優先します。
+ * </p>
+ * <p>
+ * 規則はIPv4とIPv6のそれぞれのプレフィックス木に変換されます。 作成したオブジェクトは変更されないため、複数のスレッドから同時に使うことができます。
+ * アドレスの解決（DNSの問い合わせ）は一切行いません。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class AclRules {
+	/** 該当する規則がありません。 */
+	public static final byte NONE = 0;
+
+	/** アクセスを許可します。 */
+	public static final byte ALLOW = 1;
+
+	/** アクセスを拒否します。 */
+	public static final byte DENY = 2;
+
+	/** 規則が空のオブジェクトです。 */
+	public static final AclRules EMPTY = new AclRules();
+
+	private static class Node {
+		final Node[] children = new Node[2];
+
+		byte decision = NONE;
+	}
+
+	private final Node v4 = new Node(), v6 = new Node();
+
+	private boolean empty = true;
+
+	private AclRules() {
+		// private
+	}
+
+	/**
+	 * 規則を解析します。
+	 *
+	 * @param rules
+	 *            規則。 nullであれば空の規則を返します。
+	 * @return 規則。
+	 * @throws IllegalArgumentException
+	 *             規則が不正な場合。
+	 */
+	public static AclRules parse(String rules) throws IllegalArgumentException {
+		if (rules == null) {
+			return EMPTY;
+		}
+		AclRules acl = new AclRules();
+		String[] entries = rules.split("[,\\n]");
+		for (int i = 0; i < entries.length; ++i) {
+			String entry = entries[i].trim();
+			if (entry.length() == 0 || entry.startsWith("#")) {
+				continue;
+			}
+			String[] pair = entry.split("\\s+");
+			if (pair.length != 2) {
+				throw new IllegalArgumentException("不正な規則です: " + entry);
+			}
+			byte decision;
+			if (pair[0].equalsIgnoreCase("allow")) {
+				decision = ALLOW;
+			} else if (pair[0].equalsIgnoreCase("deny")) {
+				decision = DENY;
+			} else {
+				throw new IllegalArgumentException("不正な規則です: " + entry);
+			}
+			String range = pair[1];
+			int slash = range.indexOf('/');
+			byte[] address = parseAddress(slash == -1 ? range : range.substring(0, slash));
+			if (address == null) {
+				throw new IllegalArgumentException("不正なアドレスです: " + entry);
+			}
+			int prefix = address.length * 8;
+			if (slash != -1) {
+				try {
+					prefix = Integer.parseInt(range.substring(slash + 1));
+				} catch (NumberFormatException e) {
+					prefix = -1;
+				}
+				if (prefix < 0 || prefix > address.length * 8) {
+					throw new IllegalArgumentException("不正なプレフィックス長です: " + entry);
+				}
+			}
+			if (address.length == 16 && prefix >= 96 && isMapped(address)) {
+				// IPv4射影アドレスはIPv4の規則とする
+				byte[] v4 = new byte[4];
+				System.arraycopy(address, 12, v4, 0, 4);
+				address = v4;
+				prefix -= 96;
+			}
+			acl.put(address, prefix, decision);
+		}
+		return acl;
+	}
+
+	private void put(byte[] address, int prefix, byte decision) {
+		Node node = address.length == 4 ? this.v4 : this.v6;
+		for (int i = 0; i < prefix; ++i) {
+			int bit = (address[i >> 3] >> (7 - (i & 7))) & 1;
+			Node child = node.children[bit];
+			if (child == null) {
+				child = node.children[bit] = new Node();
+			}
+			node = child;
+		}
+		node.decision = decision;
+		this.empty = false;
+	}
+
+	/**
+	 * 規則が空であればtrueを返します。
+	 *
+	 * @return 空であればtrue。
+	 */
+	public boolean isEmpty() {
+		return this.empty;
+	}
+
+	/**
+	 * アドレスに適用される規則を返します。
+	 *
+	 * @param address
+	 *            接続元のアドレス。
+	 * @return {@link #ALLOW}, {@link #DENY}または{@link #NONE}。
+	 */
+	public byte decide(InetAddress address) {
+		if (this.empty) {
+			return NONE;
+		}
+		byte[] b = address.getAddress();
+		Node node = b.length == 4 ? this.v4 : this.v6;
+		byte decision = node.decision;
+		for (int i = 0; i < b.length * 8; ++i) {
+			node = node.children[(b[i >> 3] >> (7 - (i & 7))) & 1];
+			if (node == null) {
+				break;
+			}
+			if (node.decision != NONE) {
+				decision = node.decision;
+			}
+		}
+		return decision;
+	}
+
+	/**
+	 * IPアドレスの文字列表現をInetAddressに変換します。 {@link InetAddress#getByName(String)}と異なり、ホスト名の解決は行いません。
+	 *
+	 * @param literal
+	 *            IPv4またはIPv6のアドレス。
+	 * @return アドレス。 アドレスの文字列表現でなければnull。
+	 */
+	public static InetAddress toAddress(String literal) {
+		byte[] address = parseAddress(literal);
+		if (address == null) {
+			return null;
+		}
+		try {
+			return InetAddress.getByAddress(address);
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	private static boolean isMapped(byte[] address) {
+		for (int i = 0; i < 10; ++i) {
+			if (address[i] != 0) {
+				return false;
+			}
+		}
+		return address[10] == (byte) 0xFF && address[11] == (byte) 0xFF;
+	}
+
+	private static byte[] parseAddress(String s) {
+		if (s.startsWith("[") && s.endsWith("]")) {
+			s = s.substring(1, s.length() - 1);
+		}
+		int percent = s.indexOf('%');
+		if (percent != -1) {
+			// スコープは無視する
+			s = s.substring(0, percent);
+		}
+		if (s.indexOf(':') == -1) {
+			return parseIPv4(s);
+		}
+		int[] head = new int[8], tail = new int[8];
+		int gap = s.indexOf("::");
+		int heads, tails;
+		if (gap == -1) {
+			heads = groups(s, head, true);
+			tails = 0;
+			if (heads != 8) {
+				return null;
+			}
+		} else {
+			if (s.indexOf("::", gap + 1) != -1) {
+				return null;
+			}
+			heads = groups(s.substring(0, gap), head, false);
+			tails = groups(s.substring(gap + 2), tail, true);
+			if (heads == -1 || tails == -1 || heads + tails > 7) {
+				return null;
+			}
+		}
+		byte[] address = new byte[16];
+		for (int i = 0; i < heads; ++i) {
+			address[i * 2] = (byte) (head[i] >> 8);
+			address[i * 2 + 1] = (byte) head[i];
+		}
+		for (int i = 0; i < tails; ++i) {
+			int j = 8 - tails + i;
+			address[j * 2] = (byte) (tail[i] >> 8);
+			address[j * 2 + 1] = (byte) tail[i];
+		}
+		return address;
+	}
+
+	private static byte[] parseIPv4(String s) {
+		String[] parts = s.split("\\.", -1);
+		if (parts.length != 4) {
+			return null;
+		}
+		byte[] address = new byte[4];
+		for (int i = 0; i < 4; ++i) {
+			String part = parts[i];
+			if (part.length() < 1 || part.length() > 3) {
+				return null;
+			}
+			int value = 0;
+			for (int j = 0; j < part.length(); ++j) {
+				int digit = Character.digit(part.charAt(j), 10);
+				if (digit == -1) {
+					return null;
+				}
+				value = value * 10 + digit;
+			}
+			if (value > 255) {
+				return null;
+			}
+			address[i] = (byte) value;
+		}
+		return address;
+	}
+
+	/**
+	 * コロンで区切られた16ビットの値の並びを解析します。
+	 *
+	 * @param s
+	 *            値の並び。
+	 * @param words
+	 *            解析した値を格納する配列。
+	 * @param last
+	 *            アドレスの末尾であればtrue。 末尾ではIPv4の表記を使うことができます。
+	 * @return 値の数。 不正であれば-1。
+	 */
+	private static int groups(String s, int[] words, boolean last) {
+		if (s.length() == 0) {
+			return 0;
+		}
+		String[] parts = s.split(":", -1);
+		int count = 0;
+		for (int i = 0; i < parts.length; ++i) {
+			String part = parts[i];
+			if (last && i == parts.length - 1 && part.indexOf('.') != -1) {
+				byte[] v4 = parseIPv4(part);
+				if (v4 == null || count + 2 > words.length) {
+					return -1;
+				}
+				words[count++] = ((v4[0] & 0xFF) << 8) | (v4[1] & 0xFF);
+				words[count++] = ((v4[2] & 0xFF) << 8) | (v4[3] & 0xFF);
+				continue;
+			}
+			if (part.length() < 1 || part.length() > 4 || count >= words.length) {
+				return -1;
+			}
+			int value = 0;
+			for (int j = 0; j < part.length(); ++j) {
+				int digit = Character.digit(part.charAt(j), 16);
+				if (digit == -1) {
+					return -1;
+				}
+				value = (value << 4) | digit;
+			}
+			words[count++] = value;
+		}
+		return count;
+	}
+}
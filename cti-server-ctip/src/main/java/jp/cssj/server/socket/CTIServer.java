@@ -8,17 +8,33 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,11 +42,26 @@ import javax.net.ServerSocketFactory;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 
-import jp.cssj.plugin.PluginLoader;
-import jp.cssj.server.acl.Acl;
+import jp.cssj.driver.ctip.common.Platform;
+import jp.cssj.server.acl.AclChecker;
+import jp.cssj.server.acl.AclRules;
 
 /**
  * ソケットで待ち受けるサーバーです。
+ * <p>
+ * 接続はワーカー（ExecutorService）で処理します。 全てのワーカーが処理中であれば、接続はjp.cssj.cssjd.queueSizeの数まで待たされます。
+ * それを超えた接続と、jp.cssj.cssjd.queueTimeoutの秒数を超えて待った接続は、サーバーが混雑していることをクライアントに通知して断ります。
+ * jp.cssj.cssjd.virtualThreadsをtrueにすると、JDK 21以降では接続ごとに仮想スレッドで処理します。
+ * </p>
+ * <p>
+ * jp.cssj.cssjd.acceptorsに1以上を設定すると、その数のスレッドがセレクタで接続を受け付け、 クライアントが最初の行（CTIP
+ * 2.0では認証の行も）を送り終えてからワーカーに渡します（TLSの接続を除く）。 最初の行は
+ * jp.cssj.cssjd.handshakeTimeoutの秒数以内に送られなければ切断します。
+ * </p>
+ * <p>
+ * 接続元のアドレスは、jp.cssj.cssjd.acl.rulesの規則（{@link AclRules}を参照）と{@link jp.cssj.server.acl.Acl}プラグインで検査します。
+ * プラグインによる判定結果は、jp.cssj.cssjd.acl.cacheSizeの数のアドレスまでキャッシュします。
+ * </p>
  * 
  * @author MIYABE Tatsuhiko
  * @version $Id: CTIServer.java 1552 2018-04-26 01:43:24Z miyabe $
@@ -40,111 +71,120 @@ public class CTIServer {
 
 	private static final Logger ACCESS = Logger.getLogger("jp.cssj.copper.access");
 
+	/**
+	 * サーバーが混雑しているため接続を断る場合の、CTIP 2.0の認証に対する応答です。
+	 */
+	private static final String BUSY = "BY \n";
+
+	/**
+	 * 1つの接続を断る処理にかける時間の上限（ミリ秒）です。 最初の行の読み込みと、応答後の読み捨てを含みます。
+	 */
+	private static final int REFUSE_TIMEOUT = 2000;
+
+	/**
+	 * 接続を断る際に読み込む最初の行の最大のバイト数です。
+	 */
+	private static final int REFUSE_MAX_LINE = 1024;
+
+	/**
+	 * 接続を断る処理を行うスレッドの数です。
+	 */
+	private static final int REFUSE_THREADS = 16;
+
+	/**
+	 * 接続を断る処理を待たせる数の上限です。 これを超えた接続は応答せずに切断します。
+	 */
+	private static final int REFUSE_QUEUE = 256;
+
+	/**
+	 * 停止する際に、ワーカーの終了を待つ時間の上限（ミリ秒）です。
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 10000L;
+
 	private ProtocolHandler[] handlers = null;
 
+	private final AclChecker acl = new AclChecker();
+
 	/**
-	 * 一時に1つの処理を行うためのワーカースレッドです。
+	 * ワーカーのスレッドごとのプロトコルプロセッサです。
+	 */
+	private final ThreadLocal<ProtocolProcessor[]> processors = new ThreadLocal<ProtocolProcessor[]>() {
+		protected ProtocolProcessor[] initialValue() {
+			return new ProtocolProcessor[CTIServer.this.handlers.length];
+		}
+	};
+
+	/**
+	 * ワーカーによる処理を待つ接続です。
 	 * 
 	 * @author MIYABE Tatsuhiko
-	 * @version $Id: CTIServer.java 1552 2018-04-26 01:43:24Z miyabe $
+	 * @version $Id$
 	 */
-	private class WorkerThread extends Thread {
-		private Socket socket;
-		private final ProtocolProcessor[] processors = new ProtocolProcessor[CTIServer.this.handlers.length];
+	private class Connection implements Runnable {
+		private final Socket socket;
 
-		WorkerThread() {
-			super("CopperServer worker");
-		}
+		/** 受付の際に読み込んだ最初の行。 読み込んでいなければnull。 */
+		private final String firstLine;
 
-		public synchronized void wakeup(Socket socket) {
+		private final long queued = System.currentTimeMillis();
+
+		/** キューで待つ時間の上限を監視するタスク。 */
+		private ScheduledFuture<?> expiry = null;
+
+		Connection(Socket socket, String firstLine) {
 			this.socket = socket;
-			this.notify();
+			this.firstLine = firstLine;
 		}
 
-		private void closeSocket() {
-			try {
-				this.socket.close();
-			} catch (Exception e) {
-				// ignore
+		public void run() {
+			synchronized (this) {
+				if (this.expiry != null) {
+					this.expiry.cancel(false);
+				}
 			}
-			this.socket = null;
-		}
-
-		public synchronized void run() {
+			boolean admitted;
 			try {
-				while (CTIServer.this.running) {
-					try {
-						CTIServer.this.freeThread(this);
-						this.wait();
-						if (!CTIServer.this.running) {
-							break;
-						}
-					} catch (InterruptedException ex) {
-						// ignore
-					}
-					final InetAddress remoteAddress = this.socket.getInetAddress();
-					final String remoteHost = remoteAddress.getHostAddress();
-					try {
-						// アクセス制御
-						try {
-							Acl acl = (Acl) PluginLoader.getPluginLoader().search(Acl.class, remoteHost);
-							if (acl == null || !acl.checkAccess(remoteAddress)) {
-								ACCESS.info(remoteHost + "からのアクセスを拒否しました");
-								continue;
-							}
-
-							CTIServer.this.accessCount++;
-							final InputStream in = this.socket.getInputStream();
-							final OutputStream out = this.socket.getOutputStream();
-
-							StringBuffer buff = new StringBuffer();
-							for (int b = in.read(); b != -1 && b != '\n'; b = in.read()) {
-								buff.append((char) b);
-							}
-							String firstLine = buff.toString();
-
-							ProtocolProcessor processor = null;
-							for (int i = 0; i < CTIServer.this.handlers.length; ++i) {
-								if (CTIServer.this.handlers[i].accepts(firstLine)) {
-									if (this.processors[i] == null) {
-										this.processors[i] = CTIServer.this.handlers[i].newProcesor();
-									}
-									processor = this.processors[i];
-									break;
-								}
-							}
-							if (processor == null) {
-								throw new IOException("Unknown protocol:" + firstLine);
-							}
-							ACCESS.fine("Connected: " + remoteHost);
-							try {
-								processor.process(this.socket, in, out, firstLine);
-							} finally {
-								// System.err.println("dispose: "+this.socket);
-								processor.close();
-							}
-						} finally {
-							// System.err.println("closeSocket: "+this.socket);
-							this.closeSocket();
-						}
-					} catch (Throwable e) {
-						ACCESS.info(remoteHost + "から要求された処理を実行中にエラーが発生しました");
-						LOG.log(Level.WARNING, "処理を実行中にエラーが発生しました", e);
-					}
+				admitted = CTIServer.this.admit(this.queued);
+			} catch (InterruptedException e) {
+				admitted = false;
+			}
+			if (!admitted) {
+				if (CTIServer.this.running) {
+					CTIServer.this.rejected(this.socket, "待ち時間が上限を超えました");
+					CTIServer.this.refuseLater(this.socket, this.firstLine);
+				} else {
+					CTIServer.this.closeSocket(this.socket);
 				}
-			} catch (Throwable e) {
-				String m = "予期しないエラーです。実行環境に問題がある可能性があります";
-				LOG.log(Level.SEVERE, m, e);
-				CTIServer.this.threads.remove(this);
-				CTIServer.this.supplementThreads();
+				return;
+			}
+			try {
+				CTIServer.this.process(this.socket, this.firstLine);
+			} finally {
+				CTIServer.this.release();
 			}
 		}
 	}
 
 	/**
-	 * 待ち受けポート、キューのサイズ、タイムアウト、最小ワーカー数、最大ワーカー数。
+	 * 待ち受けポート、キューのサイズ、タイムアウト、最小ワーカー数、最大ワーカー数、ワーカーを待つ接続の数、ワーカーを待つ時間の上限。
+	 */
+	private int port = -1, tlsPort = -1, backlog = 30, timeout = 180000, minThreads = 10, maxThreads = 50,
+			queueSize = 50, queueTimeout = 30000;
+
+	/**
+	 * セレクタで受け付けるスレッドの数（0であればブロッキングI/Oで受け付ける）、最初の行を受信するまでの時間の上限。
 	 */
-	private int port = -1, tlsPort = -1, backlog = 30, timeout = 180000, minThreads = 10, maxThreads = 50;
+	private int acceptors = 0, handshakeTimeout = 10000;
+
+	/**
+	 * 接続ごとに仮想スレッドで処理する場合はtrue。
+	 */
+	private boolean virtualThreads = false;
+
+	/**
+	 * Unixドメインソケットのパス。
+	 */
+	private String unixPath = null;
 
 	private File keyStore;
 
@@ -154,9 +194,55 @@ public class CTIServer {
 
 	private ServerSocket tlsServerSocket;
 
-	private final List<WorkerThread> free = new ArrayList<WorkerThread>();
+	private ServerSocket unixServerSocket;
+
+	/**
+	 * セレクタで受け付ける場合の待ち受けチャネル。
+	 */
+	private final List<ServerSocketChannel> serverChannels = new ArrayList<ServerSocketChannel>();
 
-	private final Set<WorkerThread> threads = Collections.synchronizedSet(new HashSet<WorkerThread>());
+	private NioAcceptor[] nioAcceptors = null;
+
+	/**
+	 * 接続を処理するワーカー。
+	 */
+	private ExecutorService executor = null;
+
+	/**
+	 * ワーカーをサーバーが作成した場合はtrue。
+	 */
+	private boolean ownExecutor = false;
+
+	/**
+	 * 仮想スレッドを使う場合に、同時に処理する接続の数を制限します。
+	 */
+	private Semaphore permits = null;
+
+	/**
+	 * キューで待つ時間の上限を監視するスレッド。
+	 */
+	private ScheduledThreadPoolExecutor refuser = null;
+
+	/**
+	 * 混雑しているため断る接続に応答するスレッド。
+	 */
+	private ThreadPoolExecutor refusals = null;
+
+	/**
+	 * 開いている全ての接続。
+	 */
+	private final Set<Socket> sockets = Collections.synchronizedSet(new HashSet<Socket>());
+
+	/**
+	 * ワーカーを待っている接続の数、処理中の接続の数。
+	 */
+	private final AtomicInteger waiting = new AtomicInteger(), active = new AtomicInteger();
+
+	/**
+	 * 断った接続の数、ワーカーを待った接続の数、待ち時間の合計、最大の待ち時間。
+	 */
+	private final AtomicLong rejectedCount = new AtomicLong(), waitCount = new AtomicLong(),
+			totalWait = new AtomicLong(), maxWait = new AtomicLong();
 
 	private volatile boolean running = true;
 
@@ -166,22 +252,95 @@ public class CTIServer {
 		// nothing to do
 	}
 
+	/**
+	 * ワーカーのスレッドの数を返します。
+	 * 
+	 * @return スレッドの数。
+	 */
 	public int getTotalThreads() {
-		return this.threads.size();
+		if (this.executor instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) this.executor).getPoolSize();
+		}
+		return this.active.get();
 	}
 
+	/**
+	 * 処理を行なっていないワーカーの数を返します。
+	 * 
+	 * @return ワーカーの数。
+	 */
 	public int getFreeThreads() {
-		return this.free.size();
+		if (this.permits != null) {
+			return this.permits.availablePermits();
+		}
+		if (this.executor instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) this.executor;
+			return Math.max(0, pool.getPoolSize() - pool.getActiveCount());
+		}
+		return Math.max(0, this.maxThreads - this.active.get());
 	}
 
 	public int getMaxThreads() {
 		return this.maxThreads;
 	}
 
+	/**
+	 * ワーカーを待っている接続の数を返します。
+	 * 
+	 * @return 接続の数。
+	 */
+	public int getQueuedConnections() {
+		return this.waiting.get();
+	}
+
+	/**
+	 * 混雑しているため断った接続の数を返します。
+	 * 
+	 * @return 接続の数。
+	 */
+	public long getRejectedCount() {
+		return this.rejectedCount.get();
+	}
+
+	/**
+	 * 接続がワーカーを待った時間の平均を返します。
+	 * 
+	 * @return ミリ秒。
+	 */
+	public long getAverageQueueWait() {
+		long count = this.waitCount.get();
+		return count == 0 ? 0L : this.totalWait.get() / count;
+	}
+
+	/**
+	 * 接続がワーカーを待った時間の最大値を返します。
+	 * 
+	 * @return ミリ秒。
+	 */
+	public long getMaxQueueWait() {
+		return this.maxWait.get();
+	}
+
 	public long getAccessCount() {
 		return this.accessCount;
 	}
 
+	/**
+	 * 接続を処理するExecutorServiceを設定します。 サーバーを起動する前に設定してください。
+	 * 設定しなければ、設定ファイルの内容に従ってサーバーが作成します。
+	 * <p>
+	 * 処理を受け付けられない場合は、ExecutorServiceはRejectedExecutionExceptionを発生させてください。
+	 * その接続はサーバーが混雑しているものとして断られます。 設定したExecutorServiceはサーバーを停止しても終了しません。
+	 * </p>
+	 * 
+	 * @param executor
+	 *            接続を処理するExecutorService。
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+		this.ownExecutor = false;
+	}
+
 	public void setProtocolHandlers(ProtocolHandler[] handlers) {
 		this.handlers = handlers;
 	}
@@ -203,6 +362,26 @@ public class CTIServer {
 				.parseInt(props.getProperty("jp.cssj.cssjd.maxThreads", String.valueOf(this.maxThreads)));
 		this.minThreads = Integer
 				.parseInt(props.getProperty("jp.cssj.cssjd.minThreads", String.valueOf(this.minThreads)));
+		this.queueSize = Integer
+				.parseInt(props.getProperty("jp.cssj.cssjd.queueSize", String.valueOf(this.queueSize)));
+		this.queueTimeout = Integer.parseInt(
+				props.getProperty("jp.cssj.cssjd.queueTimeout", String.valueOf(this.queueTimeout / 1000))) * 1000;
+		this.acceptors = Integer
+				.parseInt(props.getProperty("jp.cssj.cssjd.acceptors", String.valueOf(this.acceptors)));
+		this.handshakeTimeout = Integer.parseInt(props.getProperty("jp.cssj.cssjd.handshakeTimeout",
+				String.valueOf(this.handshakeTimeout / 1000))) * 1000;
+		this.virtualThreads = Boolean.valueOf(
+				props.getProperty("jp.cssj.cssjd.virtualThreads", String.valueOf(this.virtualThreads))).booleanValue();
+
+		try {
+			this.acl.setRules(AclRules.parse(props.getProperty("jp.cssj.cssjd.acl.rules")));
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		this.acl.setCacheSize(Integer.parseInt(
+				props.getProperty("jp.cssj.cssjd.acl.cacheSize", String.valueOf(AclChecker.DEFAULT_CACHE_SIZE))));
+
+		this.unixPath = props.getProperty("jp.cssj.cssjd.unix.path", this.unixPath);
 
 		this.tlsPort = Integer.parseInt(props.getProperty("jp.cssj.cssjd.tls.port", String.valueOf(this.tlsPort)));
 		if (this.tlsPort != -1) {
@@ -215,32 +394,9 @@ public class CTIServer {
 
 	private void accept(ServerSocket serverSocket) {
 		try {
-			OUTER: while (this.running) {
+			while (this.running) {
 				Socket socket = serverSocket.accept();
-				socket.setSoTimeout(this.timeout);
-				// 受付
-				synchronized (this) {
-					while (this.free.isEmpty() && !socket.isClosed()) {
-						if (this.threads.size() < this.maxThreads) {
-							this.startThread();
-						}
-						try {
-							this.wait();
-						} catch (InterruptedException e) {
-							// ignore
-						}
-						if (!this.running) {
-							break OUTER;
-						}
-					}
-				}
-				if (!socket.isClosed()) {
-					WorkerThread worker;
-					synchronized (this) {
-						worker = (WorkerThread) this.free.remove(this.free.size() - 1);
-					}
-					worker.wakeup(socket);
-				}
+				this.dispatch(socket, null);
 			}
 		} catch (SocketException e) {
 			LOG.log(Level.FINE, "ソケットがクローズされました", e);
@@ -249,32 +405,387 @@ public class CTIServer {
 		}
 	}
 
-	private synchronized void supplementThreads() {
-		if (!this.running) {
+	boolean isRunning() {
+		return this.running;
+	}
+
+	/**
+	 * 接続元からのアクセスが許可されているかどうかを調べます。
+	 * 
+	 * @param remoteAddress
+	 *            接続元のアドレス。
+	 * @return 許可されていればtrue。
+	 */
+	boolean checkAccess(InetAddress remoteAddress) {
+		if (!this.acl.checkAccess(remoteAddress)) {
+			ACCESS.info(remoteAddress.getHostAddress() + "からのアクセスを拒否しました");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 受け付けた接続をワーカーに渡します。
+	 * 
+	 * @param socket
+	 *            接続。
+	 * @param firstLine
+	 *            受付の際に読み込んだ最初の行。 読み込んでいなければnull。
+	 */
+	void dispatch(Socket socket, String firstLine) {
+		this.sockets.add(socket);
+		try {
+			socket.setSoTimeout(this.timeout);
+		} catch (SocketException e) {
+			LOG.log(Level.FINE, "タイムアウトを設定できませんでした", e);
+			this.closeSocket(socket);
+			return;
+		}
+		if (this.permits != null && this.waiting.get() - this.permits.availablePermits() >= this.queueSize) {
+			this.rejected(socket, "待っている接続の数が上限に達しています");
+			this.refuseLater(socket, firstLine);
 			return;
 		}
-		while (this.threads.size() < this.minThreads) {
-			this.startThread();
+		this.waiting.incrementAndGet();
+		try {
+			Connection connection = new Connection(socket, firstLine);
+			this.executor.execute(connection);
+			this.expireLater(connection);
+		} catch (RejectedExecutionException e) {
+			this.waiting.decrementAndGet();
+			if (!this.running) {
+				this.closeSocket(socket);
+				return;
+			}
+			this.rejected(socket, "待っている接続の数が上限に達しています");
+			this.refuseLater(socket, firstLine);
 		}
 	}
 
-	private synchronized void startThread() {
-		if (!this.running) {
+	/**
+	 * スレッドプールのキューで待つ接続を、待ち時間が上限を超えた時点で断ります。
+	 * 
+	 * @param connection
+	 */
+	private void expireLater(final Connection connection) {
+		if (this.queueTimeout <= 0 || !(this.executor instanceof ThreadPoolExecutor)) {
 			return;
 		}
-		WorkerThread worker = new WorkerThread();
-		worker.setDaemon(true);
-		this.threads.add(worker);
-		worker.start();
+		final ThreadPoolExecutor pool = (ThreadPoolExecutor) this.executor;
+		if (pool.getQueue().isEmpty()) {
+			return;
+		}
+		Runnable task = new Runnable() {
+			public void run() {
+				if (pool.remove(connection)) {
+					CTIServer.this.waiting.decrementAndGet();
+					CTIServer.this.recordWait(System.currentTimeMillis() - connection.queued);
+					CTIServer.this.rejected(connection.socket, "待ち時間が上限を超えました");
+					CTIServer.this.refuseLater(connection.socket, connection.firstLine);
+				}
+			}
+		};
+		synchronized (connection) {
+			try {
+				connection.expiry = this.refuser.schedule(task, this.queueTimeout, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// 停止中
+			}
+		}
 	}
 
-	private synchronized void freeThread(WorkerThread worker) {
-		if (!this.running) {
-			return;
+	private void recordWait(long wait) {
+		this.waitCount.incrementAndGet();
+		this.totalWait.addAndGet(wait);
+		for (long max = this.maxWait.get(); wait > max; max = this.maxWait.get()) {
+			if (this.maxWait.compareAndSet(max, wait)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * ワーカーで処理を始める前に呼ばれます。
+	 * 
+	 * @param queued
+	 *            接続を受け付けた時刻。
+	 * @return 処理を始める場合はtrue、待ち時間が上限を超えたため断る場合はfalse。
+	 * @throws InterruptedException
+	 */
+	private boolean admit(long queued) throws InterruptedException {
+		try {
+			if (!this.running) {
+				return false;
+			}
+			if (this.permits != null) {
+				if (this.queueTimeout <= 0) {
+					this.permits.acquire();
+				} else {
+					long remaining = this.queueTimeout - (System.currentTimeMillis() - queued);
+					if (!this.permits.tryAcquire(Math.max(0L, remaining), TimeUnit.MILLISECONDS)) {
+						this.recordWait(System.currentTimeMillis() - queued);
+						return false;
+					}
+				}
+			}
+			long wait = System.currentTimeMillis() - queued;
+			this.recordWait(wait);
+			if (this.permits == null && this.queueTimeout > 0 && wait > this.queueTimeout) {
+				return false;
+			}
+			this.active.incrementAndGet();
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("接続の処理を開始します(待ち時間:" + wait + "ms/処理中:" + this.active.get() + "/待ち:"
+						+ (this.waiting.get() - 1) + ")");
+			}
+			return true;
+		} finally {
+			this.waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * ワーカーで処理を終えた後に呼ばれます。
+	 */
+	private void release() {
+		this.active.decrementAndGet();
+		if (this.permits != null) {
+			this.permits.release();
+		}
+	}
+
+	private void process(Socket socket, String firstLine) {
+		final InetAddress remoteAddress = socket.getInetAddress();
+		final String remoteHost = remoteAddress.getHostAddress();
+		try {
+			try {
+				// アクセス制御（受付の際に最初の行を読み込んだ接続は調べ済み）
+				if (firstLine == null && !this.checkAccess(remoteAddress)) {
+					return;
+				}
+
+				this.accessCount++;
+				final InputStream in = socket.getInputStream();
+				final OutputStream out = socket.getOutputStream();
+
+				if (firstLine == null) {
+					firstLine = readLine(in);
+				}
+
+				ProtocolProcessor[] processors = this.processors.get();
+				ProtocolProcessor processor = null;
+				for (int i = 0; i < this.handlers.length; ++i) {
+					if (this.handlers[i].accepts(firstLine)) {
+						if (processors[i] == null) {
+							processors[i] = this.handlers[i].newProcesor();
+						}
+						processor = processors[i];
+						break;
+					}
+				}
+				if (processor == null) {
+					throw new IOException("Unknown protocol:" + firstLine);
+				}
+				ACCESS.fine("Connected: " + remoteHost);
+				try {
+					processor.process(socket, in, out, firstLine);
+				} finally {
+					processor.close();
+				}
+			} finally {
+				this.closeSocket(socket);
+			}
+		} catch (Throwable e) {
+			if (!this.running) {
+				LOG.log(Level.FINE, "サーバーの停止により処理を中断しました", e);
+				return;
+			}
+			ACCESS.info(remoteHost + "から要求された処理を実行中にエラーが発生しました");
+			LOG.log(Level.WARNING, "処理を実行中にエラーが発生しました", e);
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuffer buff = new StringBuffer();
+		for (int b = in.read(); b != -1 && b != '\n'; b = in.read()) {
+			buff.append((char) b);
 		}
-		this.free.add(worker);
-		this.notify();
-		LOG.fine("ワーカーを登録しました(総数:" + this.threads.size() + "/利用可能:" + this.free.size() + ")");
+		return buff.toString();
+	}
+
+	private void closeSocket(Socket socket) {
+		try {
+			socket.close();
+		} catch (Exception e) {
+			// ignore
+		}
+		this.sockets.remove(socket);
+	}
+
+	private void rejected(Socket socket, String reason) {
+		this.rejectedCount.incrementAndGet();
+		ACCESS.info(socket.getInetAddress().getHostAddress() + "からの接続を断りました: " + reason);
+		LOG.warning("サーバーが混雑しているため接続を断りました: " + reason + "(処理中:" + this.active.get() + "/待ち:"
+				+ this.waiting.get() + ")");
+	}
+
+	/**
+	 * 接続を断る処理を、受付とは別のスレッドで行います。 処理を待つ接続が多すぎる場合は、応答せずに切断します。
+	 * 
+	 * @param socket
+	 */
+	private void refuseLater(final Socket socket, final String firstLine) {
+		try {
+			this.refusals.execute(new Runnable() {
+				public void run() {
+					CTIServer.this.refuse(socket, firstLine);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.closeSocket(socket);
+		}
+	}
+
+	/**
+	 * サーバーが混雑していることをクライアントに通知して、接続を断ります。
+	 * 
+	 * @param socket
+	 * @param firstLine
+	 *            受付の際に読み込んだ最初の行。 読み込んでいなければnull。
+	 */
+	private void refuse(Socket socket, String firstLine) {
+		// 少しずつ送るクライアントがスレッドを占有しないように、全体の時間を制限する
+		long deadline = System.currentTimeMillis() + REFUSE_TIMEOUT;
+		try {
+			InputStream in = socket.getInputStream();
+			byte[] buff = new byte[REFUSE_MAX_LINE];
+			if (firstLine == null) {
+				int len = 0;
+				while (firstLine == null) {
+					socket.setSoTimeout(remaining(deadline));
+					int read = in.read(buff, len, buff.length - len);
+					if (read == -1) {
+						return;
+					}
+					for (int i = len; i < len + read; ++i) {
+						if (buff[i] == '\n') {
+							firstLine = new String(buff, 0, i, "ISO-8859-1");
+							break;
+						}
+					}
+					len += read;
+					if (firstLine == null && len >= buff.length) {
+						throw new IOException("最初の行が長すぎます");
+					}
+				}
+			}
+			if (firstLine.startsWith("CTIP/2.0 ")) {
+				OutputStream out = socket.getOutputStream();
+				out.write(BUSY.getBytes("ISO-8859-1"));
+				out.flush();
+				// 未読のデータを残して切断すると応答が届かないことがあるため、クライアントが切断するまで読み捨てる
+				for (int i = 0; i < 16; ++i) {
+					socket.setSoTimeout(remaining(deadline));
+					if (in.read(buff) == -1) {
+						break;
+					}
+				}
+			}
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "接続を断る際にエラーが発生しました", e);
+		} finally {
+			this.closeSocket(socket);
+		}
+	}
+
+	/**
+	 * 接続を断る処理の残り時間を返します。
+	 * 
+	 * @param deadline
+	 *            期限の時刻。
+	 * @return ミリ秒。
+	 * @throws SocketTimeoutException
+	 *             期限を過ぎた場合。
+	 */
+	private static int remaining(long deadline) throws SocketTimeoutException {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+			throw new SocketTimeoutException("接続を断る処理の時間が上限を超えました");
+		}
+		return (int) remaining;
+	}
+
+	/**
+	 * 設定に従ってワーカーを作成します。
+	 * 
+	 * @return ワーカー。
+	 */
+	private ExecutorService createExecutor() {
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread th = new Thread(r, "CopperServer worker");
+				th.setDaemon(true);
+				return th;
+			}
+		};
+		if (this.virtualThreads) {
+			try {
+				ExecutorService executor = Platform.newVirtualThreadPerTaskExecutor("CopperServer worker");
+				this.permits = new Semaphore(this.maxThreads);
+				LOG.info("接続ごとに仮想スレッドで処理します");
+				return executor;
+			} catch (UnsupportedOperationException e) {
+				LOG.warning("仮想スレッドを使うことができないため、スレッドプールで処理します");
+			}
+		}
+		// 最大数まではスレッドを増やし、その後にキューで待たせる
+		BlockingQueue<Runnable> queue = this.queueSize > 0 ? new ArrayBlockingQueue<Runnable>(this.queueSize)
+				: new SynchronousQueue<Runnable>();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(this.maxThreads, this.maxThreads, 60L, TimeUnit.SECONDS,
+				queue, factory);
+		pool.allowCoreThreadTimeOut(true);
+		for (int i = 0; i < this.minThreads && pool.prestartCoreThread(); ++i) {
+			// nothing to do
+		}
+		return pool;
+	}
+
+	/**
+	 * セレクタで受け付けるためのチャネルを開きます。 複数の受付スレッドを使う場合は、SO_REUSEPORTを使ってスレッドごとに開きます。
+	 * 
+	 * @throws IOException
+	 */
+	private void openServerChannels() throws IOException {
+		for (int i = 0; i < this.acceptors; ++i) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			try {
+				if (this.acceptors > 1 && !setReusePort(channel)) {
+					if (i == 0) {
+						LOG.warning("SO_REUSEPORTを使うことができないため、全ての受付スレッドで1つのポートを共有します");
+					} else {
+						channel.close();
+						break;
+					}
+				}
+				channel.bind(new InetSocketAddress(this.port), this.backlog);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			this.serverChannels.add(channel);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static boolean setReusePort(ServerSocketChannel channel) throws IOException {
+		// StandardSocketOptions.SO_REUSEPORTはJDK 9以降
+		for (SocketOption<?> option : channel.supportedOptions()) {
+			if (option.name().equals("SO_REUSEPORT")) {
+				channel.setOption((SocketOption<Boolean>) option, Boolean.TRUE);
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -283,11 +794,64 @@ public class CTIServer {
 	 * @throws IOException
 	 */
 	public synchronized void startup() throws BindException, IOException {
-		this.supplementThreads();
+		if (this.executor == null) {
+			this.executor = this.createExecutor();
+			this.ownExecutor = true;
+		}
+		this.refuser = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread th = new Thread(r, "CopperServer queue timer");
+				th.setDaemon(true);
+				return th;
+			}
+		});
+		this.refuser.setRemoveOnCancelPolicy(true);
+		this.refusals = new ThreadPoolExecutor(REFUSE_THREADS, REFUSE_THREADS, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(REFUSE_QUEUE), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread th = new Thread(r, "CopperServer refuser");
+						th.setDaemon(true);
+						return th;
+					}
+				});
+		this.refusals.allowCoreThreadTimeOut(true);
 
 		// サーバー開始
 		if (this.port != -1) {
-			this.serverSocket = new ServerSocket(this.port, this.backlog);
+			if (this.acceptors > 0) {
+				this.openServerChannels();
+			} else {
+				this.serverSocket = new ServerSocket(this.port, this.backlog);
+			}
+		}
+
+		if (this.unixPath != null && this.unixPath.length() > 0) {
+			this.unixServerSocket = new UnixServerSocket(this.unixPath, this.backlog);
+		}
+
+		if (this.acceptors > 0) {
+			this.nioAcceptors = new NioAcceptor[this.acceptors];
+			for (int i = 0; i < this.nioAcceptors.length; ++i) {
+				this.nioAcceptors[i] = new NioAcceptor(this, this.handshakeTimeout);
+				if (!this.serverChannels.isEmpty()) {
+					// SO_REUSEPORTが使えない場合は、全ての受付スレッドが同じチャネルで待ち受ける
+					this.nioAcceptors[i].register(this.serverChannels.get(i % this.serverChannels.size()), false);
+				}
+			}
+			if (this.unixServerSocket != null) {
+				this.nioAcceptors[0].register(((UnixServerSocket) this.unixServerSocket).getChannel(), true);
+			}
+			if (this.port != -1) {
+				LOG.info("サーバーを" + this.port + "番ポートで起動します(受付スレッド:" + this.acceptors + ")");
+			}
+			if (this.unixServerSocket != null) {
+				LOG.info("サーバーを" + this.unixPath + "で起動します");
+			}
+			for (int i = 0; i < this.nioAcceptors.length; ++i) {
+				Thread th = new Thread(this.nioAcceptors[i], "CopperServer acceptor");
+				th.setDaemon(true);
+				th.start();
+			}
 		}
 
 		if (this.tlsPort != -1) {
@@ -316,6 +880,16 @@ public class CTIServer {
 			th.setDaemon(true);
 			th.start();
 		}
+		if (this.unixServerSocket != null && this.nioAcceptors == null) {
+			Thread th = new Thread(CTIServer.class.getName()) {
+				public void run() {
+					LOG.info("サーバーを" + unixPath + "で起動します");
+					CTIServer.this.accept(CTIServer.this.unixServerSocket);
+				}
+			};
+			th.setDaemon(true);
+			th.start();
+		}
 		if (this.tlsServerSocket != null) {
 			Thread th = new Thread(CTIServer.class.getName()) {
 				public void run() {
@@ -350,20 +924,51 @@ public class CTIServer {
 				LOG.log(Level.WARNING, "SSL 待ち受けソケットをクローズできませんでした", e);
 			}
 		}
+		if (this.unixServerSocket != null) {
+			try {
+				this.unixServerSocket.close();
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Unixドメインソケットをクローズできませんでした", e);
+			}
+		}
+		for (int i = 0; i < this.serverChannels.size(); ++i) {
+			try {
+				this.serverChannels.get(i).close();
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "待ち受けソケットをクローズできませんでした", e);
+			}
+		}
 		this.running = false;
-		LOG.info("サーバーを停止しています...");
-		for (Iterator<WorkerThread> i = this.threads.iterator(); i.hasNext();) {
-			WorkerThread worker = (WorkerThread) i.next();
-			synchronized (worker) {
-				worker.notify();
+		if (this.nioAcceptors != null) {
+			for (int i = 0; i < this.nioAcceptors.length; ++i) {
+				this.nioAcceptors[i].close();
 			}
+		}
+		LOG.info("サーバーを停止しています...");
+		// 処理中の接続と待っている接続を切断し、ワーカーを終わらせる
+		Socket[] sockets;
+		synchronized (this.sockets) {
+			sockets = this.sockets.toArray(new Socket[this.sockets.size()]);
+		}
+		for (int i = 0; i < sockets.length; ++i) {
+			this.closeSocket(sockets[i]);
+		}
+		if (this.refuser != null) {
+			this.refuser.shutdownNow();
+		}
+		if (this.refusals != null) {
+			this.refusals.shutdownNow();
+		}
+		if (this.ownExecutor) {
+			this.executor.shutdown();
 			try {
-				worker.join();
+				if (!this.executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					LOG.warning("終了しないワーカーがあります");
+					this.executor.shutdownNow();
+				}
 			} catch (InterruptedException e) {
-				// ignore
+				Thread.currentThread().interrupt();
 			}
-			i.remove();
-			LOG.fine("ワーカーの数:" + this.threads.size());
 		}
 		LOG.info("サーバーを停止しました");
 	}
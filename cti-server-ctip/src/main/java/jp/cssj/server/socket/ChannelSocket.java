@@ -0,0 +1,174 @@
+package jp.cssj.server.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * ブロッキングモードのSocketChannelの接続をSocketとして扱います。
+ * </p>
+ * <p>
+ * 読み込みと書き込みはチャネルに対して直接行うため、別々のスレッドから同時に行うことができます。
+ * 読み込みのタイムアウトはこのクラスでは適用されません。 {@link #isTimedOut(long)}を定期的に調べて、タイムアウトした接続をクローズしてください。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+class ChannelSocket extends Socket implements IdleSocket {
+	private final SocketChannel channel;
+
+	private final InetAddress address;
+
+	private final InputStream in;
+
+	private final OutputStream out;
+
+	private volatile int timeout = 0;
+
+	/** 読み込みを開始した時刻。 読み込み中でなければ0。 */
+	private final AtomicLong reading = new AtomicLong(0L);
+
+	private volatile Activity activity = null;
+
+	/**
+	 * @param channel
+	 *            ブロッキングモードのチャネル。
+	 * @param address
+	 *            接続元のアドレス。
+	 * @param prefix
+	 *            既にチャネルから読み込んだデータ。 なければnull。
+	 */
+	ChannelSocket(final SocketChannel channel, InetAddress address, byte[] prefix) {
+		this.channel = channel;
+		this.address = address;
+		final ByteBuffer rest = prefix == null ? null : ByteBuffer.wrap(prefix);
+		// Channels.newInputStreamは読み込み中に書き込みをブロックするため使わない
+		this.in = new InputStream() {
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return this.read(b, 0, 1) == -1 ? -1 : (b[0] & 0xFF);
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				if (rest != null && rest.hasRemaining()) {
+					len = Math.min(len, rest.remaining());
+					rest.get(b, off, len);
+					return len;
+				}
+				ChannelSocket.this.reading.set(System.currentTimeMillis());
+				try {
+					return channel.read(ByteBuffer.wrap(b, off, len));
+				} finally {
+					ChannelSocket.this.reading.set(0L);
+				}
+			}
+
+			public int available() throws IOException {
+				return rest == null ? 0 : rest.remaining();
+			}
+
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+		this.out = new OutputStream() {
+			public void write(int b) throws IOException {
+				this.write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer src = ByteBuffer.wrap(b, off, len);
+				while (src.hasRemaining()) {
+					channel.write(src);
+				}
+			}
+
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	/**
+	 * 読み込みを始めてからタイムアウトの時間を過ぎているかどうかを返します。 接続を使う側が処理中であれば、時間の計測をやり直します。
+	 *
+	 * @param now
+	 *            現在の時刻。
+	 * @return タイムアウトしていればtrue。
+	 */
+	boolean isTimedOut(long now) {
+		long reading = this.reading.get();
+		if (this.timeout <= 0 || reading == 0L || now - reading <= this.timeout) {
+			return false;
+		}
+		Activity activity = this.activity;
+		if (activity != null && activity.isActive()) {
+			// 通常のソケットでSocketTimeoutExceptionを無視して読み込みを続けた場合と同じ
+			this.reading.compareAndSet(reading, now);
+			return false;
+		}
+		return true;
+	}
+
+	public void setActivity(Activity activity) {
+		this.activity = activity;
+	}
+
+	public SocketChannel getChannel() {
+		return this.channel;
+	}
+
+	public InputStream getInputStream() {
+		return this.in;
+	}
+
+	public OutputStream getOutputStream() {
+		return this.out;
+	}
+
+	public InetAddress getInetAddress() {
+		return this.address;
+	}
+
+	public void setSoTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	public int getSoTimeout() {
+		return this.timeout;
+	}
+
+	public void setTcpNoDelay(boolean on) throws SocketException {
+		if (!this.channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+			// Unixドメインソケットでは使えない
+			return;
+		}
+		try {
+			this.channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.valueOf(on));
+		} catch (IOException e) {
+			SocketException se = new SocketException(e.getMessage());
+			se.initCause(e);
+			throw se;
+		}
+	}
+
+	public boolean isClosed() {
+		return !this.channel.isOpen();
+	}
+
+	public void close() throws IOException {
+		this.channel.close();
+	}
+}
@@ -0,0 +1,35 @@
+package jp.cssj.server.socket;
+
+/**
+ * <p>
+ * 読み込みのタイムアウトを、読み込みを中断せずに外部から監視するソケットです。
+ * </p>
+ * <p>
+ * 通常のソケットでは、タイムアウトすると読み込み中のスレッドにSocketTimeoutExceptionが発生し、 処理を続けるかどうかを接続を使う側が決めます。
+ * このインターフェースを実装するソケットはタイムアウトすると切断されるため、処理中であれば切断しないように {@link Activity}を設定してください。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public interface IdleSocket {
+	/**
+	 * 接続を使う側の状態です。
+	 */
+	public static interface Activity {
+		/**
+		 * 読み込みがタイムアウトしても接続を維持する必要があるかどうかを返します。
+		 *
+		 * @return 処理中であればtrue。
+		 */
+		public boolean isActive();
+	}
+
+	/**
+	 * 接続を使う側の状態を設定します。 処理中の間は、タイムアウトの時間の計測をやり直します。
+	 *
+	 * @param activity
+	 *            状態。 nullであれば常にタイムアウトで切断します。
+	 */
+	public void setActivity(Activity activity);
+}
@@ -0,0 +1,325 @@
+package jp.cssj.server.socket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * セレクタを使って接続を受け付けます。
+ * </p>
+ * <p>
+ * 接続はクライアントが最初の行を送り終えるまで（CTIP 2.0では認証の行も送り終えるまで）このスレッドで読み込み、その後にワーカーに渡します。
+ * このため、送信が遅いクライアントや何も送らないクライアントがワーカーを占有することはありません。 ワーカーに渡した接続の読み込みのタイムアウトも監視します。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+class NioAcceptor implements Runnable {
+	private static final Logger LOG = Logger.getLogger(NioAcceptor.class.getName());
+
+	/** 最初の行と認証の行の最大のバイト数。 */
+	private static final int MAX_HEADER = 8192;
+
+	/** タイムアウトを調べる間隔（ミリ秒）。 */
+	private static final long SWEEP_INTERVAL = 1000L;
+
+	private final CTIServer server;
+
+	private final Selector selector;
+
+	private final long handshakeTimeout;
+
+	/** ワーカーに渡した接続。 */
+	private final Set<ChannelSocket> sockets = Collections.synchronizedSet(new HashSet<ChannelSocket>());
+
+	/**
+	 * クライアントが最初の行を送り終えるまでの状態です。
+	 */
+	private static class Handshake {
+		final SocketChannel channel;
+
+		final InetAddress address;
+
+		final long started = System.currentTimeMillis();
+
+		ByteBuffer buff = ByteBuffer.allocate(256);
+
+		String firstLine = null;
+
+		/** 最初の行の次の位置。 */
+		int rest;
+
+		Handshake(SocketChannel channel, InetAddress address) {
+			this.channel = channel;
+			this.address = address;
+		}
+
+		/**
+		 * ワーカーに渡すために必要な行を受信し終えたかどうかを調べます。
+		 *
+		 * @return 受信し終えていればtrue。
+		 */
+		boolean isComplete() {
+			byte[] b = this.buff.array();
+			int pos = this.buff.position();
+			int i = 0;
+			if (this.firstLine == null) {
+				for (; i < pos && b[i] != '\n'; ++i) {
+					// nothing to do
+				}
+				if (i == pos) {
+					return false;
+				}
+				StringBuffer line = new StringBuffer(i);
+				for (int j = 0; j < i; ++j) {
+					line.append((char) (b[j] & 0xFF));
+				}
+				this.firstLine = line.toString();
+				this.rest = ++i;
+			}
+			if (!this.firstLine.startsWith("CTIP/2.0 ")) {
+				return true;
+			}
+			// CTIP 2.0は認証の行まで待つ
+			for (i = this.rest; i < pos; ++i) {
+				if (b[i] == '\n') {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * 最初の行より後に受信したデータを返します。
+		 *
+		 * @return データ。
+		 */
+		byte[] getRest() {
+			byte[] rest = new byte[this.buff.position() - this.rest];
+			System.arraycopy(this.buff.array(), this.rest, rest, 0, rest.length);
+			return rest;
+		}
+	}
+
+	NioAcceptor(CTIServer server, long handshakeTimeout) throws IOException {
+		this.server = server;
+		this.handshakeTimeout = handshakeTimeout;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * 接続を待ち受けるチャネルを追加します。 スレッドを開始する前に呼び出してください。
+	 *
+	 * @param channel
+	 *            待ち受けるチャネル。
+	 * @param unix
+	 *            Unixドメインソケットであればtrue。
+	 * @throws IOException
+	 */
+	void register(ServerSocketChannel channel, boolean unix) throws IOException {
+		channel.configureBlocking(false);
+		channel.register(this.selector, SelectionKey.OP_ACCEPT, Boolean.valueOf(unix));
+	}
+
+	/**
+	 * 受付を終了します。
+	 */
+	void close() {
+		this.selector.wakeup();
+	}
+
+	public void run() {
+		List<Handshake> completed = new ArrayList<Handshake>();
+		long swept = System.currentTimeMillis();
+		try {
+			while (this.server.isRunning()) {
+				this.selector.select(SWEEP_INTERVAL);
+				for (Iterator<SelectionKey> i = this.selector.selectedKeys().iterator(); i.hasNext();) {
+					SelectionKey key = i.next();
+					i.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						this.accept(key);
+					} else if (key.isReadable()) {
+						Handshake handshake = (Handshake) key.attachment();
+						if (this.read(handshake)) {
+							key.cancel();
+							completed.add(handshake);
+						}
+					}
+				}
+				if (!completed.isEmpty()) {
+					// 登録の解除を確定してからブロッキングモードに戻す
+					this.selector.selectNow();
+					for (int i = 0; i < completed.size(); ++i) {
+						this.dispatch(completed.get(i));
+					}
+					completed.clear();
+				}
+				long now = System.currentTimeMillis();
+				if (now - swept >= SWEEP_INTERVAL) {
+					this.sweep(now);
+					swept = now;
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			LOG.log(Level.FINE, "セレクタがクローズされました", e);
+		} catch (Exception e) {
+			LOG.log(Level.SEVERE, "予期しないエラーです", e);
+		} finally {
+			try {
+				for (SelectionKey key : this.selector.keys()) {
+					if (key.attachment() instanceof Handshake) {
+						close(((Handshake) key.attachment()).channel);
+					}
+				}
+				this.selector.close();
+			} catch (Exception e) {
+				LOG.log(Level.FINE, "セレクタをクローズできませんでした", e);
+			}
+		}
+	}
+
+	private void accept(SelectionKey key) throws IOException {
+		ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+		boolean unix = ((Boolean) key.attachment()).booleanValue();
+		for (;;) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				if (!serverChannel.isOpen()) {
+					key.cancel();
+					return;
+				}
+				LOG.log(Level.WARNING, "接続を受け付けることができませんでした", e);
+				return;
+			}
+			if (channel == null) {
+				// 他の受付スレッドが受け付けた
+				return;
+			}
+			InetAddress address = unix ? InetAddress.getLoopbackAddress()
+					: ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+			if (!this.server.checkAccess(address)) {
+				close(channel);
+				continue;
+			}
+			channel.configureBlocking(false);
+			channel.register(this.selector, SelectionKey.OP_READ, new Handshake(channel, address));
+		}
+	}
+
+	/**
+	 * クライアントから受信します。
+	 *
+	 * @param handshake
+	 * @return ワーカーに渡すために必要な行を受信し終えていればtrue。
+	 */
+	private boolean read(Handshake handshake) {
+		try {
+			if (handshake.channel.read(handshake.buff) == -1) {
+				close(handshake.channel);
+				return false;
+			}
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "受信中にエラーが発生しました", e);
+			close(handshake.channel);
+			return false;
+		}
+		if (handshake.isComplete()) {
+			return true;
+		}
+		if (!handshake.buff.hasRemaining()) {
+			if (handshake.buff.capacity() >= MAX_HEADER) {
+				LOG.fine(handshake.address.getHostAddress() + "から送られた行が長すぎるため切断します");
+				close(handshake.channel);
+				return false;
+			}
+			ByteBuffer buff = ByteBuffer.allocate(Math.min(MAX_HEADER, handshake.buff.capacity() * 2));
+			handshake.buff.flip();
+			buff.put(handshake.buff);
+			handshake.buff = buff;
+		}
+		return false;
+	}
+
+	private void dispatch(Handshake handshake) {
+		try {
+			handshake.channel.configureBlocking(true);
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "ブロッキングモードに切り替えることができませんでした", e);
+			close(handshake.channel);
+			return;
+		}
+		ChannelSocket socket = new ChannelSocket(handshake.channel, handshake.address, handshake.getRest());
+		this.sockets.add(socket);
+		this.server.dispatch(socket, handshake.firstLine);
+	}
+
+	/**
+	 * 最初の行を送り終えないまま時間が経過した接続と、読み込みがタイムアウトした接続を切断します。
+	 *
+	 * @param now
+	 *            現在の時刻。
+	 */
+	private void sweep(long now) {
+		if (this.handshakeTimeout > 0) {
+			for (SelectionKey key : this.selector.keys()) {
+				if (!(key.attachment() instanceof Handshake)) {
+					continue;
+				}
+				Handshake handshake = (Handshake) key.attachment();
+				if (now - handshake.started > this.handshakeTimeout) {
+					LOG.fine(handshake.address.getHostAddress() + "から最初の行が送られないため切断します");
+					key.cancel();
+					close(handshake.channel);
+				}
+			}
+		}
+		ChannelSocket[] sockets;
+		synchronized (this.sockets) {
+			sockets = this.sockets.toArray(new ChannelSocket[this.sockets.size()]);
+		}
+		for (int i = 0; i < sockets.length; ++i) {
+			ChannelSocket socket = sockets[i];
+			if (socket.isClosed()) {
+				this.sockets.remove(socket);
+			} else if (socket.isTimedOut(now)) {
+				LOG.fine(socket.getInetAddress().getHostAddress() + "からの読み込みがタイムアウトしたため切断します");
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// ignore
+				}
+				this.sockets.remove(socket);
+			}
+		}
+	}
+
+	private static void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package jp.cssj.server.socket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import jp.cssj.driver.ctip.common.Platform;
+
+/**
+ * <p>
+ * Unixドメインソケットで待ち受け、接続をSocketとして返します。 JDK 16以降で動作します。
+ * </p>
+ * <p>
+ * 接続元のアドレスはループバックアドレスとして扱われます。 ソケットファイルへのアクセスはファイルのパーミッションで制限してください。
+ * 読み込みのタイムアウトは適用されません。
+ * </p>
+ * 
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+class UnixServerSocket extends ServerSocket {
+	private final Path path;
+
+	private final ServerSocketChannel channel;
+
+	UnixServerSocket(String path, int backlog) throws IOException {
+		this.path = Paths.get(path);
+		// 前回残ったソケットファイルを削除する
+		if (Files.exists(this.path) && !Files.isRegularFile(this.path) && !Files.isDirectory(this.path)) {
+			Files.delete(this.path);
+		}
+		this.channel = Platform.openUnixServerSocketChannel(path, backlog);
+	}
+
+	public Socket accept() throws IOException {
+		try {
+			return new ChannelSocket(this.channel.accept(), InetAddress.getLoopbackAddress(), null);
+		} catch (ClosedChannelException e) {
+			SocketException se = new SocketException("Socket is closed");
+			se.initCause(e);
+			throw se;
+		}
+	}
+
+	/**
+	 * 待ち受けているチャネルを返します。
+	 * 
+	 * @return チャネル。
+	 */
+	public ServerSocketChannel getChannel() {
+		return this.channel;
+	}
+
+	public boolean isClosed() {
+		return !this.channel.isOpen();
+	}
+
+	public void close() throws IOException {
+		try {
+			this.channel.close();
+		} finally {
+			Files.deleteIfExists(this.path);
+		}
+	}
+
+	public String toString() {
+		return super.toString() + "[path=" + this.path + "]";
+	}
+}
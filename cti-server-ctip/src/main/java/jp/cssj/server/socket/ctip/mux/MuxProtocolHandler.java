@@ -0,0 +1,131 @@
+package jp.cssj.server.socket.ctip.mux;
+
+import java.io.IOException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jp.cssj.driver.ctip.mux.MuxFrames;
+import jp.cssj.server.socket.ProtocolHandler;
+import jp.cssj.server.socket.ProtocolProcessor;
+
+/**
+ * <p>
+ * 1つの接続の上で複数のCTIP 2.0の通信を行う接続を受け付けます（{@link MuxFrames}を参照）。
+ * </p>
+ * <p>
+ * それぞれのストリームは、コンストラクタに渡したプロトコルハンドラのうち、ストリームの最初の行を受け付けるものが処理します。
+ * ストリームを処理するスレッドは全ての接続で共有され、その数は{@link #MAX_THREADS}で制限されます。
+ * スレッドが全て使われているときに開始されたストリームは、すぐに終了されます。
+ * </p>
+ * 
+ * <pre>
+ * V2ProtocolHandler v2 = new V2ProtocolHandler(uri);
+ * server.setProtocolHandlers(new ProtocolHandler[] { v2, new MuxProtocolHandler(new ProtocolHandler[] { v2 }) });
+ * </pre>
+ * 
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class MuxProtocolHandler implements ProtocolHandler {
+	/**
+	 * 1つの接続で同時に処理する最大のストリーム数を設定するシステムプロパティです。 デフォルトは100です。
+	 */
+	public static final String MAX_STREAMS = "jp.cssj.cssjd.mux.maxStreams";
+
+	/**
+	 * 全ての接続でストリームを同時に処理する最大のスレッド数を設定するシステムプロパティです。 デフォルトは200です。
+	 */
+	public static final String MAX_THREADS = "jp.cssj.cssjd.mux.maxThreads";
+
+	protected final ProtocolHandler[] handlers;
+
+	protected int maxStreams = Integer.parseInt(System.getProperty(MAX_STREAMS, "100"));
+
+	protected int maxThreads = Integer.parseInt(System.getProperty(MAX_THREADS, "200"));
+
+	private ThreadPoolExecutor executor = null;
+
+	/**
+	 * @param handlers
+	 *            ストリームを処理するプロトコルハンドラ。
+	 */
+	public MuxProtocolHandler(ProtocolHandler[] handlers) {
+		this.handlers = handlers;
+	}
+
+	/**
+	 * 1つの接続で同時に処理する最大のストリーム数を返します。
+	 * 
+	 * @return ストリーム数。
+	 */
+	public int getMaxStreams() {
+		return this.maxStreams;
+	}
+
+	/**
+	 * 1つの接続で同時に処理する最大のストリーム数を設定します。 これを超えるストリームは、開始されるとすぐに終了されます。
+	 * 
+	 * @param maxStreams
+	 *            ストリーム数。
+	 */
+	public void setMaxStreams(int maxStreams) {
+		this.maxStreams = maxStreams;
+	}
+
+	/**
+	 * 全ての接続でストリームを同時に処理する最大のスレッド数を返します。
+	 * 
+	 * @return スレッド数。
+	 */
+	public int getMaxThreads() {
+		return this.maxThreads;
+	}
+
+	/**
+	 * 全ての接続でストリームを同時に処理する最大のスレッド数を設定します。 スレッドが全て使われているときに開始されたストリームは、すぐに終了されます。
+	 * 
+	 * @param maxThreads
+	 *            スレッド数。
+	 */
+	public synchronized void setMaxThreads(int maxThreads) {
+		this.maxThreads = maxThreads;
+		if (this.executor != null) {
+			if (maxThreads < this.executor.getMaximumPoolSize()) {
+				this.executor.setCorePoolSize(maxThreads);
+				this.executor.setMaximumPoolSize(maxThreads);
+			} else {
+				this.executor.setMaximumPoolSize(maxThreads);
+				this.executor.setCorePoolSize(maxThreads);
+			}
+		}
+	}
+
+	public boolean accepts(String firstLine) {
+		return firstLine.equals(MuxFrames.HEADER);
+	}
+
+	public ProtocolProcessor newProcesor() throws IOException {
+		return new MuxProtocolProcessor(this.handlers, this.getExecutor(), this.maxStreams);
+	}
+
+	/**
+	 * ストリームを処理するスレッドを返します。 スレッドは{@link #getMaxThreads()}の数まで必要に応じて作成され、使われなくなると終了します。
+	 * 待ち行列は持たないため、スレッドが全て使われていれば、実行は拒否されます。
+	 */
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if (this.executor == null) {
+			this.executor = new ThreadPoolExecutor(this.maxThreads, this.maxThreads, 60L, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread th = new Thread(r, "CopperServer mux worker");
+							th.setDaemon(true);
+							return th;
+						}
+					});
+			this.executor.allowCoreThreadTimeOut(true);
+		}
+		return this.executor;
+	}
+}
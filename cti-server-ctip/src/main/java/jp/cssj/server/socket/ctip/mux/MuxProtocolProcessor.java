@@ -0,0 +1,128 @@
+package jp.cssj.server.socket.ctip.mux;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.cssj.driver.ctip.mux.MuxConnection;
+import jp.cssj.driver.ctip.mux.MuxStream;
+import jp.cssj.server.socket.IdleSocket;
+import jp.cssj.server.socket.ProtocolHandler;
+import jp.cssj.server.socket.ProtocolProcessor;
+
+/**
+ * 接続から受信したフレームをストリームごとに振り分け、ストリームごとに別のスレッドでプロトコルハンドラに処理させます。
+ * 
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class MuxProtocolProcessor implements ProtocolProcessor {
+	private static final Logger LOG = Logger.getLogger(MuxProtocolProcessor.class.getName());
+
+	private final ProtocolHandler[] handlers;
+
+	private final Executor executor;
+
+	private final int maxStreams;
+
+	/**
+	 * @param handlers
+	 *            ストリームを処理するプロトコルハンドラ。
+	 * @param executor
+	 *            ストリームを処理するスレッド。 実行が拒否されたストリームは終了されます。
+	 * @param maxStreams
+	 *            1つの接続で同時に処理する最大のストリーム数。
+	 */
+	public MuxProtocolProcessor(ProtocolHandler[] handlers, Executor executor, int maxStreams) {
+		this.handlers = handlers;
+		this.executor = executor;
+		this.maxStreams = maxStreams;
+	}
+
+	public void process(final Socket socket, InputStream in, OutputStream out, String firstLine) throws IOException {
+		// フレームは送信側でまとめて書き込むため、小さなフレームを遅らせない
+		socket.setTcpNoDelay(true);
+		final MuxConnection connection = new MuxConnection(in, out, socket.getSoTimeout(), new MuxConnection.Acceptor() {
+			public void accept(final MuxStream stream) throws IOException {
+				if (stream.getConnection().getStreamCount() > MuxProtocolProcessor.this.maxStreams) {
+					LOG.warning("ストリームの数が上限を超えたため、ストリーム" + stream.getId() + "を終了します");
+					stream.close();
+					return;
+				}
+				try {
+					MuxProtocolProcessor.this.executor.execute(new Runnable() {
+						public void run() {
+							MuxProtocolProcessor.this.process(socket, stream);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					LOG.warning("ストリームを処理するスレッドが不足しているため、ストリーム" + stream.getId() + "を終了します");
+					stream.close();
+				}
+			}
+		});
+		if (socket instanceof IdleSocket) {
+			// 処理中のストリームがあれば、受信がなくても接続を切断させない
+			((IdleSocket) socket).setActivity(new IdleSocket.Activity() {
+				public boolean isActive() {
+					return connection.getStreamCount() > 0;
+				}
+			});
+		}
+		try {
+			connection.serve();
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * 1つのストリームを処理します。
+	 */
+	private void process(Socket socket, MuxStream stream) {
+		try {
+			InputStream in = stream.getInputStream();
+			OutputStream out = stream.getOutputStream();
+
+			StringBuffer buff = new StringBuffer();
+			for (int b = in.read(); b != -1 && b != '\n'; b = in.read()) {
+				buff.append((char) b);
+			}
+			String firstLine = buff.toString();
+
+			ProtocolHandler handler = null;
+			for (int i = 0; i < this.handlers.length; ++i) {
+				if (this.handlers[i].accepts(firstLine)) {
+					handler = this.handlers[i];
+					break;
+				}
+			}
+			if (handler == null) {
+				throw new IOException("Unknown protocol:" + firstLine);
+			}
+			ProtocolProcessor processor = handler.newProcesor();
+			try {
+				processor.process(socket, in, out, firstLine);
+			} finally {
+				processor.close();
+			}
+		} catch (Throwable e) {
+			LOG.log(Level.WARNING, "ストリーム" + stream.getId() + "の処理を実行中にエラーが発生しました", e);
+		} finally {
+			stream.close();
+		}
+	}
+
+	public void message(short code, String[] args, String message) throws IOException {
+		// NOP
+	}
+
+	public void close() throws IOException {
+		// NOP
+	}
+}
@@ -0,0 +1,177 @@
+package jp.cssj.server.socket.ctip.v2;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jp.cssj.driver.ctip.v2.V2Extensions;
+
+/**
+ * <p>
+ * クライアントから送られたリソースの内容を、ダイジェストをキーとして保持します。
+ * </p>
+ * <p>
+ * 保持する内容の合計が上限を超えると、最も長く使われていないものから破棄します。
+ * 登録する内容は、サーバー側で計算したダイジェストがクライアントから送られたものと一致する場合だけ保持するため、
+ * 別のクライアントが異なる内容を同じダイジェストで登録することはできません。
+ * </p>
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class V2ContentStore {
+	/**
+	 * 保持する内容の合計の最大バイト数を設定するシステムプロパティです。
+	 */
+	public static final String MAX_BYTES = "jp.cssj.cssjd.contentStore.maxBytes";
+
+	/**
+	 * 保持する1つの内容の最大バイト数を設定するシステムプロパティです。
+	 */
+	public static final String MAX_ENTRY_BYTES = "jp.cssj.cssjd.contentStore.maxEntryBytes";
+
+	private final long maxBytes;
+
+	private final long maxEntryBytes;
+
+	private final Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+	private long bytes = 0;
+
+	private long hits = 0, misses = 0;
+
+	/**
+	 * システムプロパティ{@link #MAX_BYTES}、{@link #MAX_ENTRY_BYTES}の設定で構築します。
+	 * デフォルトはそれぞれ64MB、16MBです。
+	 */
+	public V2ContentStore() {
+		this(Long.getLong(MAX_BYTES, 64L * 1024 * 1024).longValue(),
+				Long.getLong(MAX_ENTRY_BYTES, 16L * 1024 * 1024).longValue());
+	}
+
+	/**
+	 * @param maxBytes
+	 *            保持する内容の合計の最大バイト数。
+	 * @param maxEntryBytes
+	 *            保持する1つの内容の最大バイト数。
+	 */
+	public V2ContentStore(long maxBytes, long maxEntryBytes) {
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = maxEntryBytes;
+	}
+
+	private static String toKey(byte[] digest) {
+		StringBuffer buff = new StringBuffer(digest.length * 2);
+		for (int i = 0; i < digest.length; ++i) {
+			buff.append(Character.forDigit((digest[i] >> 4) & 0x0F, 16));
+			buff.append(Character.forDigit(digest[i] & 0x0F, 16));
+		}
+		return buff.toString();
+	}
+
+	/**
+	 * 保持することができる1つの内容の最大バイト数を返します。
+	 *
+	 * @return バイト数。
+	 */
+	public long getMaxEntryBytes() {
+		return Math.min(this.maxEntryBytes, this.maxBytes);
+	}
+
+	/**
+	 * 保持している内容を返します。
+	 *
+	 * @param digest
+	 *            内容のダイジェスト。
+	 * @param length
+	 *            内容のバイト数。
+	 * @return 内容。保持していない場合はnull。
+	 */
+	public synchronized byte[] get(byte[] digest, long length) {
+		byte[] content = this.contents.get(toKey(digest));
+		if (content == null || content.length != length) {
+			++this.misses;
+			return null;
+		}
+		++this.hits;
+		return content;
+	}
+
+	/**
+	 * 内容を保持します。 内容から計算したダイジェストが与えられたものと一致しない場合は何もしません。
+	 *
+	 * @param digest
+	 *            クライアントから送られたダイジェスト。
+	 * @param content
+	 *            内容。
+	 * @return 保持した場合はtrue。
+	 */
+	public boolean put(byte[] digest, byte[] content) {
+		if (content.length > this.maxEntryBytes || content.length > this.maxBytes) {
+			return false;
+		}
+		try {
+			if (!MessageDigest.isEqual(digest,
+					MessageDigest.getInstance(V2Extensions.DIGEST_ALGORITHM).digest(content))) {
+				return false;
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		String key = toKey(digest);
+		synchronized (this) {
+			byte[] old = this.contents.put(key, content);
+			if (old != null) {
+				this.bytes -= old.length;
+			}
+			this.bytes += content.length;
+			for (Iterator<byte[]> i = this.contents.values().iterator(); this.bytes > this.maxBytes && i.hasNext();) {
+				this.bytes -= i.next().length;
+				i.remove();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 保持しているものを全て破棄します。
+	 */
+	public synchronized void clear() {
+		this.contents.clear();
+		this.bytes = 0;
+	}
+
+	/**
+	 * 保持している内容の合計のバイト数を返します。
+	 *
+	 * @return バイト数。
+	 */
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * 保持している内容が使われた回数を返します。
+	 *
+	 * @return 回数。
+	 */
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * 保持していない内容を問い合わせられた回数を返します。
+	 *
+	 * @return 回数。
+	 */
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	public String toString() {
+		return super.toString() + "[bytes=" + this.getBytes() + ",hits=" + this.getHits() + ",misses="
+				+ this.getMisses() + "]";
+	}
+}
@@ -5,6 +5,7 @@ import java.net.URI;
 
 import jp.cssj.cti2.CTIDriver;
 import jp.cssj.cti2.CTIDriverManager;
+import jp.cssj.driver.ctip.v2.V2Extensions;
 import jp.cssj.server.socket.ProtocolHandler;
 import jp.cssj.server.socket.ProtocolProcessor;
 
@@ -14,8 +15,17 @@ import jp.cssj.server.socket.ProtocolProcessor;
  * @version $Id: V2ProtocolHandler.java 1552 2018-04-26 01:43:24Z miyabe $
  */
 public class V2ProtocolHandler implements ProtocolHandler {
+	/**
+	 * {@link V2Extensions#FRAME}で受け入れる最大のバイト数を設定するシステムプロパティです。 デフォルトは
+	 * {@link V2Extensions#MAX_FRAME_SIZE}です。
+	 */
+	public static final String MAX_FRAME_SIZE = "jp.cssj.cssjd.maxFrameSize";
+
 	protected final URI uri;
 	protected final CTIDriver driver;
+	protected final V2ContentStore store = new V2ContentStore();
+	protected int maxFrameSize = V2Extensions
+			.toFrameSize(System.getProperty(MAX_FRAME_SIZE, String.valueOf(V2Extensions.MAX_FRAME_SIZE)));
 
 	public V2ProtocolHandler(URI uri, CTIDriver driver) {
 		this.uri = uri;
@@ -27,11 +37,39 @@ public class V2ProtocolHandler implements ProtocolHandler {
 		this.driver = CTIDriverManager.getDriver(uri);
 	}
 
+	/**
+	 * クライアントから送られたリソースの内容を保持するストアを返します。
+	 * 
+	 * @return ストア。
+	 */
+	public V2ContentStore getContentStore() {
+		return this.store;
+	}
+
+	/**
+	 * {@link V2Extensions#FRAME}で受け入れる最大のバイト数を返します。
+	 * 
+	 * @return バイト数。
+	 */
+	public int getMaxFrameSize() {
+		return this.maxFrameSize;
+	}
+
+	/**
+	 * {@link V2Extensions#FRAME}で受け入れる最大のバイト数を設定します。
+	 * 
+	 * @param maxFrameSize
+	 *            バイト数。
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = V2Extensions.toFrameSize(String.valueOf(maxFrameSize));
+	}
+
 	public boolean accepts(String firstLine) {
 		return firstLine.startsWith("CTIP/2.0 ");
 	}
 
 	public ProtocolProcessor newProcesor() throws IOException, SecurityException {
-		return new V2ProtocolProcessor(this.uri, this.driver);
+		return new V2ProtocolProcessor(this.uri, this.driver, this.store, this.maxFrameSize);
 	}
 }
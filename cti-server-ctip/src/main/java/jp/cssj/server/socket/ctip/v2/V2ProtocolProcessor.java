@@ -1,15 +1,21 @@
 package jp.cssj.server.socket.ctip.v2;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -22,11 +28,15 @@ import jp.cssj.cti2.CTISession;
 import jp.cssj.cti2.TranscoderException;
 import jp.cssj.cti2.helpers.CTIMessageCodes;
 import jp.cssj.cti2.helpers.CTIMessageHelper;
+import jp.cssj.cti2.helpers.DeadlineTimer;
 import jp.cssj.cti2.message.MessageHandler;
 import jp.cssj.cti2.progress.ProgressListener;
 import jp.cssj.cti2.results.Results;
 import jp.cssj.driver.ctip.common.ChannelIO;
 import jp.cssj.driver.ctip.v2.V2ClientPackets;
+import jp.cssj.driver.ctip.v2.V2Extensions;
+import jp.cssj.driver.ctip.v2.V2PacketDeflater;
+import jp.cssj.driver.ctip.v2.V2PacketInflater;
 import jp.cssj.driver.ctip.v2.V2ServerPackets;
 import jp.cssj.driver.ctip.v2.V2Session;
 import jp.cssj.resolver.MetaSource;
@@ -47,17 +57,50 @@ import jp.cssj.server.socket.ctip.helpers.ServerMessageHandler;
 public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor, Sequential, Results, ProgressListener {
 	private static final Logger LOG = Logger.getLogger(V2ProtocolHandler.class.getName());
 
-	private final byte[] buff = new byte[V2Session.BUFFER_SIZE];
+	/** DATAパケットとBLOCK_DATAパケットのヘッダのために、buffの先頭に空けておくバイト数。 */
+	private static final int HEADER = 4 + 1 + 4;
+
+	/** この大きさ以下のデータは、送信待ちのパケットの後にコピーしてまとめて送ります。 */
+	private static final int COPY_LIMIT = 1024;
+
+	/**
+	 * 送信するデータを蓄積するバッファ。 大きさは{@link V2Extensions#FRAME}で取り決めたバイト数に、 先頭の{@link #HEADER}バイトを加えたものです。
+	 * 先頭の領域はパケットのヘッダに使います。
+	 */
+	private byte[] buff = new byte[HEADER + V2Session.BUFFER_SIZE];
+
+	/** {@link V2Extensions#FRAME}で受け入れる最大のバイト数。 */
+	private final int maxFrameSize;
 
 	private final URI uri;
 
 	private final CTIDriver driver;
 
+	private final V2ContentStore store;
+
+	private V2Extensions extensions;
+
+	/** 送信するパケットを圧縮します。 圧縮しない場合はnull。 */
+	private V2PacketDeflater deflater = null;
+
+	private V2PacketInflater inflater = null;
+
+	/** 現在の結果のデータを圧縮する場合はtrue。 */
+	private boolean compress = true;
+
 	private CTISession session;
 
 	private InputStream in;
 
-	private DataOutputStream out;
+	private OutputStream out;
+
+	/** ソケットのチャネルに直接書き込める場合は、そのチャネル。 */
+	private GatheringByteChannel channel = null;
+
+	/** 送信待ちの制御パケット。 プロセッサと共に使い回します。 */
+	private ByteBuffer packets = ByteBuffer.allocate(V2Session.BUFFER_SIZE);
+
+	private final ByteBuffer[] srcs = new ByteBuffer[2];
 
 	private String charset;
 
@@ -73,6 +116,9 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 
 	private List<MessageFilter> messageFilters = new ArrayList<MessageFilter>();
 
+	/** クライアントから通知された次の変換の期限。 0であれば期限はありません。 */
+	private long deadline = 0L;
+
 	private static class MessageFilter {
 		private final char[] pattern = new char[4];
 		private final boolean include;
@@ -121,36 +167,42 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 					length = Short.MAX_VALUE;
 				}
 				int payload = 1 + 2 + length;
-				v2pp.out.writeInt(payload);
-				v2pp.out.writeByte(V2ServerPackets.RESOURCE_REQUEST);
-				v2pp.out.writeShort((short) length);
-				v2pp.out.write(uriBytes, 0, length);
+				ByteBuffer src = v2pp.packet(V2ServerPackets.RESOURCE_REQUEST, payload);
+				src.putShort((short) length);
+				src.put(uriBytes, 0, length);
+				v2pp.flushPackets();
 			}
 
 			// クライアントから送られるまで待つ
 			v2pp.request.next();
+			while (v2pp.request.getType() == V2ClientPackets.ABORT) {
+				v2pp.session.abort((byte) (v2pp.request.getMode() + 1));
+				v2pp.request.next();
+			}
 			byte type = v2pp.request.getType();
 			if (type == V2ClientPackets.MISSING_RESOURCE) {
 				throw new FileNotFoundException(uri.toString());
 			}
+			if (type == V2ClientPackets.RESOURCE_DIGEST) {
+				uri = v2pp.toResourceURI(v2pp.request.getURI());
+				String mimeType = v2pp.request.getMimeType();
+				String encoding = v2pp.request.getEncoding();
+				try (StreamSource source = v2pp.receiveResource(v2pp.request, uri, mimeType, encoding,
+						v2pp.session)) {
+					super.putSource(source);
+				}
+				return super.resolve(uri);
+			}
 			if (type != V2ClientPackets.START_RESOURCE) {
 				throw new IllegalStateException(uri.toString());
 			}
 
-			String uriStr = v2pp.request.getURI();
-			try {
-				uri = URIHelper.create(charset, uriStr);
-			} catch (URISyntaxException e) {
-				short code = CTIMessageCodes.WARN_BAD_RESOURCE_URI;
-				String[] args = new String[] { uriStr };
-				message(code, args, CTIMessageHelper.toString(code, args));
-				uri = URI.create(".");
-			}
+			uri = v2pp.toResourceURI(v2pp.request.getURI());
 			String mimeType = v2pp.request.getMimeType();
 			String encoding = v2pp.request.getEncoding();
 			long length = v2pp.request.getLength();
 			v2pp.request.next();
-			InputStream in = new V2RequestProducerInputStream(v2pp.request);
+			InputStream in = new V2RequestProducerInputStream(v2pp.request, v2pp.session);
 			try (StreamSource source = new StreamSource(uri, in, mimeType, encoding, length)) {
 				super.putSource(source);
 			}
@@ -159,15 +211,160 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 	}
 
 	public V2ProtocolProcessor(URI uri, CTIDriver driver) throws IOException {
+		this(uri, driver, null);
+	}
+
+	/**
+	 * @param uri
+	 *            ドライバのURI。
+	 * @param driver
+	 *            変換に使うドライバ。
+	 * @param store
+	 *            クライアントから送られたリソースの内容を保持するストア。nullであれば
+	 *            {@link V2Extensions#CONTENT_ADDRESSED}を受け入れません。
+	 * @throws IOException
+	 */
+	public V2ProtocolProcessor(URI uri, CTIDriver driver, V2ContentStore store) throws IOException {
+		this(uri, driver, store, V2Extensions.MAX_FRAME_SIZE);
+	}
+
+	/**
+	 * @param uri
+	 *            ドライバのURI。
+	 * @param driver
+	 *            変換に使うドライバ。
+	 * @param store
+	 *            クライアントから送られたリソースの内容を保持するストア。nullであれば
+	 *            {@link V2Extensions#CONTENT_ADDRESSED}を受け入れません。
+	 * @param maxFrameSize
+	 *            {@link V2Extensions#FRAME}で受け入れる最大のバイト数。
+	 * @throws IOException
+	 */
+	public V2ProtocolProcessor(URI uri, CTIDriver driver, V2ContentStore store, int maxFrameSize)
+			throws IOException {
 		this.uri = uri;
 		this.driver = driver;
+		this.store = store;
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	private URI toResourceURI(String uriStr) throws IOException {
+		try {
+			return URIHelper.create(this.charset, uriStr);
+		} catch (URISyntaxException e) {
+			short code = CTIMessageCodes.WARN_BAD_RESOURCE_URI;
+			String[] args = new String[] { uriStr };
+			this.message(code, args, CTIMessageHelper.toString(code, args));
+			return URI.create(".");
+		}
+	}
+
+	/**
+	 * {@link V2ClientPackets#RESOURCE_DIGEST}に応答し、リソースのデータを返します。
+	 * ストアが同じ内容を保持していなければ、クライアントから本体を受信します。
+	 * ストアに保持できる大きさの本体はメモリ上に読み込んでストアに登録し、それより大きな本体はそのままストリームとして返します。
+	 * 
+	 * @param request
+	 * @param uri
+	 *            データの仮想URI。
+	 * @param mimeType
+	 *            データのMIME型。
+	 * @param encoding
+	 *            データのキャラクタ・エンコーディング。
+	 * @param session
+	 *            本体の途中で中断の要求を受け取った場合に中断するセッション。 nullであれば中断の要求は無視します。
+	 * @return リソースのデータ。
+	 * @throws IOException
+	 */
+	private StreamSource receiveResource(V2RequestProducer request, URI uri, String mimeType, String encoding,
+			CTISession session) throws IOException {
+		byte[] digest = request.getDigest();
+		byte[] content = this.store == null ? null : this.store.get(digest, request.getLength());
+		ByteBuffer src = this.packet(V2ServerPackets.RESOURCE_STATUS, 1 + 1);
+		src.put((byte) (content != null ? 1 : 0));
+		this.flushPackets();
+		if (content != null) {
+			return new StreamSource(uri, new ByteArrayInputStream(content), mimeType, encoding,
+					(long) content.length);
+		}
+
+		request.next();
+		if (request.getType() != V2ClientPackets.START_RESOURCE) {
+			throw new IOException("不正なリクエストです: " + Integer.toHexString(request.getType()));
+		}
+		long length = request.getLength();
+		request.next();
+		InputStream in = new V2RequestProducerInputStream(request, session);
+		long maxEntryBytes = this.store == null ? -1L : this.store.getMaxEntryBytes();
+		if (length > maxEntryBytes) {
+			// ストアに保持できないので、メモリ上に読み込まない
+			return new StreamSource(uri, in, mimeType, encoding, length);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buff = new byte[V2Session.BUFFER_SIZE];
+		for (int len = in.read(buff); len != -1; len = in.read(buff)) {
+			out.write(buff, 0, len);
+			if (out.size() > maxEntryBytes) {
+				// 申告より大きかった場合は、読み込んだ部分に残りを続ける
+				in = new SequenceInputStream(new ByteArrayInputStream(out.toByteArray()), in);
+				return new StreamSource(uri, in, mimeType, encoding, length);
+			}
+		}
+		content = out.toByteArray();
+		if (this.store != null) {
+			this.store.put(digest, content);
+		}
+		return new StreamSource(uri, new ByteArrayInputStream(content), mimeType, encoding, (long) content.length);
 	}
 
 	public void process(Socket socket, InputStream in, OutputStream out, String firstLine) throws IOException {
-		this.in = in;
-		this.out = new DataOutputStream(out);
-		this.charset = firstLine.substring(firstLine.indexOf(' ') + 1);
+		this.in = new FilterInputStream(in) {
+			public int read() throws IOException {
+				V2ProtocolProcessor.this.beforeRead();
+				return super.read();
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				V2ProtocolProcessor.this.beforeRead();
+				return super.read(b, off, len);
+			}
+		};
+		this.out = out;
+		// ソケットに直接書き込む場合は、ヘッダとデータをまとめて書き込む
+		SocketChannel channel = socket.getChannel();
+		this.channel = channel != null && channel.isBlocking() && out == socket.getOutputStream() ? channel : null;
+		// CTIP/2.0 文字コード [拡張機能...]
+		String header = firstLine.substring(firstLine.indexOf(' ') + 1);
+		int sp = header.indexOf(' ');
+		V2Extensions offered;
+		if (sp == -1) {
+			this.charset = header;
+			offered = new V2Extensions();
+		} else {
+			this.charset = header.substring(0, sp);
+			offered = V2Extensions.parse(header.substring(sp + 1));
+		}
+		this.extensions = new V2Extensions();
+		if (offered.contains(V2Extensions.CONTENT_ADDRESSED) && this.store != null) {
+			this.extensions.put(V2Extensions.CONTENT_ADDRESSED, null);
+		}
 		V2RequestProducer request = new V2RequestProducer(this.charset, this.in);
+		if (offered.contains(V2Extensions.DEFLATE)) {
+			String level = offered.get(V2Extensions.DEFLATE);
+			this.deflater = new V2PacketDeflater(V2PacketDeflater.toLevel(level));
+			this.inflater = new V2PacketInflater();
+			request.setInflater(this.inflater);
+			this.extensions.put(V2Extensions.DEFLATE, level);
+		}
+		int frameSize = V2Session.BUFFER_SIZE;
+		if (offered.contains(V2Extensions.FRAME)) {
+			frameSize = Math.min(V2Extensions.toFrameSize(offered.get(V2Extensions.FRAME)), this.maxFrameSize);
+			this.extensions.put(V2Extensions.FRAME, String.valueOf(frameSize));
+		}
+		if (this.buff.length != HEADER + frameSize) {
+			// プロセッサは接続ごとに使い回されるため、取り決めた大きさに合わせる
+			this.buff = new byte[HEADER + frameSize];
+		}
 
 		// 認証前
 		BufferedReader reader = new BufferedReader(new InputStreamReader(this.in, this.charset));
@@ -202,7 +399,14 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 			this.out.write("NG \n".getBytes(this.charset));
 			return;
 		}
-		this.out.write("OK \n".getBytes(this.charset));
+		byte[] ok = "OK \n".getBytes(this.charset);
+		this.reserve(ok.length).put(ok);
+		if (!offered.isEmpty()) {
+			// 受け入れた拡張機能
+			byte[] accepted = (this.extensions + "\n").getBytes("ISO-8859-1");
+			this.reserve(accepted.length).put(accepted);
+		}
+		this.send(null);
 
 		// 認証後
 		try {
@@ -216,7 +420,14 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 				case V2ClientPackets.PROPERTY:
 					// プロパティ受信
 					String name = request.getName();
-					if (name != null && name.length() > 0) {
+					if (name != null && name.equals(CTISession.DEADLINE)) {
+						// 残り時間は受信した時点から数える
+						try {
+							this.deadline = System.currentTimeMillis() + Long.parseLong(request.getValue());
+						} catch (NumberFormatException e) {
+							LOG.log(Level.FINE, "不正な期限です", e);
+						}
+					} else if (name != null && name.length() > 0) {
 						String value = request.getValue();
 						this.session.property(name, value);
 						if (name.charAt(0) == 'p') {
@@ -247,12 +458,16 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 					String encoding = request.getEncoding();
 					long length = request.getLength();
 					request.next();
-					V2RequestProducerInputStream min = new V2RequestProducerInputStream(request);
+					V2RequestProducerInputStream min = new V2RequestProducerInputStream(request, this.session);
 					Source source = new StreamSource(uri, min, mimeType, encoding, length);
 					this.srcLength = this.srcRead = this.prevSrcRead = -1L;
 					this.session.setProgressListener(this);
 					this.session.setResults(this);
+					DeadlineTimer timer = this.startDeadline();
 					try {
+						if (timer != null) {
+							this.checkDeadline(timer);
+						}
 						if (this.clientResolver != null) {
 							this.clientResolver.putSource(source);
 							this.request = request;
@@ -269,6 +484,9 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 						this.next();
 					} catch (TranscoderException e) {
 						// 中断
+						if (timer != null && timer.cancel()) {
+							e = DeadlineTimer.exceeded(e.getState(), e);
+						}
 						switch (e.getState()) {
 						case TranscoderException.STATE_BROKEN:
 							this.abort((byte) 1, e.getCode(), e.getArgs(), e.getMessage());
@@ -280,6 +498,10 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 						default:
 							throw new IllegalStateException();
 						}
+					} finally {
+						if (timer != null) {
+							timer.cancel();
+						}
 					}
 					request.next();
 				}
@@ -305,11 +527,18 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 					this.session.setProgressListener(this);
 					this.session.setResults(this);
 					this.request = request;
+					DeadlineTimer timer = this.startDeadline();
 					try {
+						if (timer != null) {
+							this.checkDeadline(timer);
+						}
 						this.session.transcode(uri);
 						this.next();
 					} catch (TranscoderException e) {
 						// 中断
+						if (timer != null && timer.cancel()) {
+							e = DeadlineTimer.exceeded(e.getState(), e);
+						}
 						switch (e.getState()) {
 						case TranscoderException.STATE_BROKEN:
 							this.abort((byte) 1, e.getCode(), e.getArgs(), e.getMessage());
@@ -323,6 +552,9 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 						}
 					} finally {
 						this.request = null;
+						if (timer != null) {
+							timer.cancel();
+						}
 					}
 					request.next();
 					break;
@@ -345,16 +577,7 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 					break;
 
 				case V2ClientPackets.START_RESOURCE: {
-					URI uri;
-					String uriStr = request.getURI();
-					try {
-						uri = URIHelper.create(this.charset, uriStr);
-					} catch (URISyntaxException e) {
-						short code = CTIMessageCodes.WARN_BAD_RESOURCE_URI;
-						String[] args = new String[] { uriStr };
-						message(code, args, CTIMessageHelper.toString(code, args));
-						uri = URI.create(".");
-					}
+					URI uri = this.toResourceURI(request.getURI());
 					String mimeType = request.getMimeType();
 					String encoding = request.getEncoding();
 					long length = request.getLength();
@@ -365,6 +588,16 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 				}
 					break;
 
+				case V2ClientPackets.RESOURCE_DIGEST: {
+					// ダイジェストによるリソースの送信
+					URI uri = this.toResourceURI(request.getURI());
+					String mimeType = request.getMimeType();
+					String encoding = request.getEncoding();
+					this.session.resource(this.receiveResource(request, uri, mimeType, encoding, null));
+					request.next();
+				}
+					break;
+
 				case V2ClientPackets.DATA:
 					// ここでDATAチャンクが来るのは、
 					// 処理が中断されて残りのデータが送られている場合なので無視する。
@@ -374,18 +607,27 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 					break;
 
 				case V2ClientPackets.ABORT:
-					this.session.abort((byte) (this.request.getMode() + 1));
+					// 変換中でなければ、既に終わった変換に対する中断の要求なので無視する
+					LOG.fine("変換中ではないため中断の要求を無視します");
 					request.next();
 					break;
 
-				case V2ClientPackets.JOIN:
+				case V2ClientPackets.JOIN: {
 					this.request = request;
+					DeadlineTimer timer = this.startDeadline();
+					if (timer != null) {
+						timer.start();
+					}
 					try {
 						this.session.join();
 					} finally {
 						this.request = null;
+						if (timer != null) {
+							timer.cancel();
+						}
 					}
 					request.next();
+				}
 					break;
 
 				case V2ClientPackets.RESET:
@@ -428,10 +670,8 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 
 	public void closeBlock(int id) throws IOException {
 		this.flush(this.cursorId);
-		this.out.writeInt(1 + 4);
-		this.out.writeByte(V2ServerPackets.CLOSE_BLOCK);
-		this.out.writeInt(id);
-		this.out.flush();
+		this.packet(V2ServerPackets.CLOSE_BLOCK, 1 + 4).putInt(id);
+		this.flushPackets();
 	}
 
 	protected void abort(byte mode, short code, String[] args, String message) throws IOException {
@@ -449,38 +689,33 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 			}
 		}
 
-		this.out.writeInt(payload);
-		this.out.writeByte(V2ServerPackets.ABORT);
-		this.out.writeByte(mode);
-		this.out.writeShort(code);
-		this.out.writeShort((short) messageBytes.length);
-		this.out.write(messageBytes);
+		ByteBuffer src = this.packet(V2ServerPackets.ABORT, payload);
+		src.put(mode);
+		src.putShort(code);
+		src.putShort((short) messageBytes.length);
+		src.put(messageBytes);
 		if (args != null) {
 			for (int i = 0; i < args.length; ++i) {
-				this.out.writeShort((short) argsBytes[i].length);
-				this.out.write(argsBytes[i]);
+				src.putShort((short) argsBytes[i].length);
+				src.put(argsBytes[i]);
 			}
 		}
+		this.send(null);
 	}
 
 	protected void mainLength(long srcLength) throws IOException {
-		this.out.writeInt(1 + 8);
-		this.out.writeByte(V2ServerPackets.MAIN_LENGTH);
-		this.out.writeLong(srcLength);
-		this.out.flush();
+		// 続くデータと共に送る
+		this.packet(V2ServerPackets.MAIN_LENGTH, 1 + 8).putLong(srcLength);
 	}
 
 	protected void mainRead(long srcRead) throws IOException {
-		this.out.writeInt(1 + 8);
-		this.out.writeByte(V2ServerPackets.MAIN_READ);
-		this.out.writeLong(srcRead);
-		this.out.flush();
+		// 続くデータと共に送る
+		this.packet(V2ServerPackets.MAIN_READ, 1 + 8).putLong(srcRead);
 	}
 
 	protected void eof() throws IOException {
-		this.out.writeInt(1);
-		this.out.writeByte(V2ServerPackets.EOF);
-		this.out.flush();
+		this.packet(V2ServerPackets.EOF, 1);
+		this.flushPackets();
 		this.cursorId = -2;
 	}
 
@@ -488,9 +723,8 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 		if (this.cursorId == -2) {
 			return;
 		}
-		this.out.writeInt(1);
-		this.out.writeByte(V2ServerPackets.NEXT);
-		this.out.flush();
+		this.packet(V2ServerPackets.NEXT, 1);
+		this.flushPackets();
 	}
 
 	public void sourceLength(long sourceLength) {
@@ -518,6 +752,8 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 	}
 
 	public void close() {
+		this.packets.clear();
+		this.channel = null;
 		if (this.out != null) {
 			try {
 				this.out.close();
@@ -534,6 +770,14 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 			}
 			this.in = null;
 		}
+		if (this.deflater != null) {
+			this.deflater.end();
+			this.deflater = null;
+		}
+		if (this.inflater != null) {
+			this.inflater.end();
+			this.inflater = null;
+		}
 		this.reset();
 	}
 
@@ -545,17 +789,48 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 		}
 		this.messageFilters.clear();
 		this.cursorId = -1;
+		this.compress = true;
+		this.deadline = 0L;
+	}
+
+	/**
+	 * クライアントから期限が通知されていれば、次の変換の期限を監視するタイマーを返します。 期限は1回の変換にだけ使われます。
+	 * 
+	 * @return タイマー。 期限がなければnull。
+	 */
+	private DeadlineTimer startDeadline() {
+		long deadline = this.deadline;
+		this.deadline = 0L;
+		if (deadline == 0L) {
+			return null;
+		}
+		return new DeadlineTimer(this.session, deadline);
+	}
+
+	/**
+	 * 変換を始める前に期限を過ぎていないことを確認して、タイマーを開始します。
+	 * 
+	 * @param timer
+	 * @throws TranscoderException
+	 *             既に期限を過ぎている場合。
+	 */
+	private void checkDeadline(DeadlineTimer timer) throws TranscoderException {
+		if (timer.getRemaining() <= 0L) {
+			// 処理を待っている間に期限を過ぎたため、変換せずに中断する
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("期限を" + (-timer.getRemaining()) + "ミリ秒過ぎたため変換しません");
+			}
+			throw DeadlineTimer.exceeded(TranscoderException.STATE_BROKEN, null);
+		}
+		timer.start();
 	}
 
 	public void addBlock() throws IOException {
-		this.out.writeInt(1);
-		this.out.writeByte(V2ServerPackets.ADD_BLOCK);
+		this.packet(V2ServerPackets.ADD_BLOCK, 1);
 	}
 
 	public void insertBlockBefore(int anchorId) throws IOException {
-		this.out.writeInt(1 + 4);
-		this.out.writeByte(V2ServerPackets.INSERT_BLOCK);
-		this.out.writeInt(anchorId);
+		this.packet(V2ServerPackets.INSERT_BLOCK, 1 + 4).putInt(anchorId);
 	}
 
 	public void write(int id, byte[] b, int off, int len) throws IOException {
@@ -568,11 +843,27 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 			this.prevSrcRead = this.srcRead;
 		}
 
-		for (int i = 0; i < len; ++i) {
-			if (this.bufferLength >= this.buff.length || this.cursorId != id) {
+		int frameSize = this.buff.length - HEADER;
+		while (len > 0) {
+			if (this.bufferLength >= frameSize || this.cursorId != id) {
 				this.flush(id);
 			}
-			this.buff[this.bufferLength++] = b[i + off];
+			if (this.bufferLength == 0 && len >= frameSize && !this.compressible()) {
+				// バッファを経由せず、ヘッダと呼び出し側の配列をまとめて送る
+				ByteBuffer header = this.reserve(4 + 1 + 4);
+				header.putInt(1 + 4 + frameSize);
+				header.put(V2ServerPackets.BLOCK_DATA);
+				header.putInt(id);
+				this.send(ByteBuffer.wrap(b, off, frameSize));
+				off += frameSize;
+				len -= frameSize;
+				continue;
+			}
+			int copy = Math.min(len, frameSize - this.bufferLength);
+			System.arraycopy(b, off, this.buff, HEADER + this.bufferLength, copy);
+			this.bufferLength += copy;
+			off += copy;
+			len -= copy;
 		}
 	}
 
@@ -587,19 +878,125 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 			this.prevSrcRead = this.srcRead;
 		}
 
-		for (int i = 0; i < len; ++i) {
-			if (this.bufferLength >= this.buff.length) {
+		int frameSize = this.buff.length - HEADER;
+		while (len > 0) {
+			if (this.bufferLength >= frameSize) {
 				this.flush();
 			}
-			this.buff[this.bufferLength++] = b[i + off];
+			if (this.bufferLength == 0 && len >= frameSize && !this.compressible()) {
+				// バッファを経由せず、ヘッダと呼び出し側の配列をまとめて送る
+				this.data(b, off, frameSize);
+				off += frameSize;
+				len -= frameSize;
+				continue;
+			}
+			int copy = Math.min(len, frameSize - this.bufferLength);
+			System.arraycopy(b, off, this.buff, HEADER + this.bufferLength, copy);
+			this.bufferLength += copy;
+			off += copy;
+			len -= copy;
 		}
 	}
 
 	protected void data(byte[] b, int off, int len) throws IOException {
-		int payload = 1 + len;
-		this.out.writeInt(payload);
-		this.out.writeByte(V2ServerPackets.DATA);
-		this.out.write(b, off, len);
+		ByteBuffer header = this.reserve(4 + 1);
+		header.putInt(1 + len);
+		header.put(V2ServerPackets.DATA);
+		this.send(ByteBuffer.wrap(b, off, len));
+	}
+
+	/**
+	 * 送信する制御パケットのための領域を確保します。 領域が足りなければ、送信待ちのパケットを先に送ります。
+	 * 
+	 * @param length
+	 *            パケットのバイト数。
+	 * @return パケットを書き込むバッファ。
+	 * @throws IOException
+	 */
+	private ByteBuffer reserve(int length) throws IOException {
+		if (this.packets.remaining() < length) {
+			this.send(null);
+			if (this.packets.capacity() < length) {
+				this.packets = ByteBuffer.allocate(length);
+			}
+		}
+		return this.packets;
+	}
+
+	/**
+	 * 制御パケットのヘッダを書き込み、ペイロードを書き込むバッファを返します。 パケットは次に送信するときにまとめて送られます。
+	 * 
+	 * @param type
+	 *            パケットの種類。
+	 * @param payload
+	 *            種類を含むペイロードのバイト数。
+	 * @return パケットを書き込むバッファ。
+	 * @throws IOException
+	 */
+	private ByteBuffer packet(byte type, int payload) throws IOException {
+		ByteBuffer src = this.reserve(4 + payload);
+		src.putInt(payload);
+		src.put(type);
+		return src;
+	}
+
+	/**
+	 * 送信待ちのパケットに続けてsrcを送ります。 ソケットのチャネルに直接書き込める場合は、1回の書き込みで送ります。
+	 * 
+	 * @param src
+	 *            続けて送るデータ。 なければnull。
+	 * @throws IOException
+	 */
+	private void send(ByteBuffer src) throws IOException {
+		ByteBuffer packets = this.packets;
+		if (src != null && src.remaining() <= COPY_LIMIT && src.remaining() <= packets.remaining()) {
+			packets.put(src);
+			src = null;
+		}
+		packets.flip();
+		try {
+			if (this.channel != null && src != null && packets.hasRemaining()) {
+				this.srcs[0] = packets;
+				this.srcs[1] = src;
+				try {
+					while (src.hasRemaining()) {
+						this.channel.write(this.srcs);
+					}
+				} finally {
+					this.srcs[0] = this.srcs[1] = null;
+				}
+				return;
+			}
+			if (packets.hasRemaining()) {
+				this.out.write(packets.array(), packets.arrayOffset() + packets.position(), packets.remaining());
+			}
+			if (src != null) {
+				this.out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+			}
+		} finally {
+			packets.clear();
+		}
+	}
+
+	/**
+	 * 送信待ちのパケットを送り、出力をフラッシュします。
+	 * 
+	 * @throws IOException
+	 */
+	private void flushPackets() throws IOException {
+		this.send(null);
+		this.out.flush();
+	}
+
+	/**
+	 * クライアントからの受信を待つ前に、送信待ちのパケットを送ります。
+	 * 
+	 * @throws IOException
+	 */
+	private void beforeRead() throws IOException {
+		if (this.packets.position() > 0) {
+			this.flushPackets();
+		}
 	}
 
 	protected static String stringLimit(String str) {
@@ -641,37 +1038,93 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 			}
 		}
 
-		this.out.writeInt(payload);
-		this.out.writeByte(V2ServerPackets.MESSAGE);
-		this.out.writeShort(code);
-		this.out.writeShort((short) messageBytes.length);
-		this.out.write(messageBytes);
+		if (this.deflater != null && payload > V2PacketDeflater.MIN_LENGTH) {
+			V2PacketDeflater deflater = this.deflater;
+			deflater.begin();
+			deflater.writeShort(code);
+			deflater.writeShort((short) messageBytes.length);
+			deflater.write(messageBytes, 0, messageBytes.length);
+			if (args != null) {
+				for (int i = 0; i < args.length; ++i) {
+					deflater.writeShort((short) argsBytes[i].length);
+					deflater.write(argsBytes[i], 0, argsBytes[i].length);
+				}
+			}
+			int length = deflater.finish(V2ServerPackets.MESSAGE);
+			this.send(ByteBuffer.wrap(deflater.getBuffer(), 0, length));
+			return;
+		}
+
+		ByteBuffer src = this.packet(V2ServerPackets.MESSAGE, payload);
+		src.putShort(code);
+		src.putShort((short) messageBytes.length);
+		src.put(messageBytes);
 		if (args != null) {
 			for (int i = 0; i < args.length; ++i) {
-				this.out.writeShort((short) argsBytes[i].length);
-				this.out.write(argsBytes[i]);
+				src.putShort((short) argsBytes[i].length);
+				src.put(argsBytes[i]);
 			}
 		}
+		this.send(null);
+	}
+
+	/**
+	 * 現在の結果のデータを圧縮するかどうかを返します。
+	 * 
+	 * @return 圧縮する場合はtrue。
+	 */
+	private boolean compressing() {
+		return this.compressible() && this.bufferLength >= V2PacketDeflater.MIN_LENGTH;
+	}
+
+	/**
+	 * 現在の結果のデータが圧縮の対象であるかどうかを返します。
+	 * 
+	 * @return 圧縮の対象であればtrue。
+	 */
+	private boolean compressible() {
+		return this.deflater != null && this.compress;
 	}
 
 	protected void flush(int newId) throws IOException {
-		if (this.bufferLength > 0) {
+		if (this.compressing()) {
+			V2PacketDeflater deflater = this.deflater;
+			deflater.begin();
+			deflater.writeInt(this.cursorId);
+			deflater.write(this.buff, HEADER, this.bufferLength);
+			int length = deflater.finish(V2ServerPackets.BLOCK_DATA);
+			this.send(ByteBuffer.wrap(deflater.getBuffer(), 0, length));
+			this.bufferLength = 0;
+		} else if (this.bufferLength > 0) {
+			// バッファの先頭に空けておいた領域にヘッダを書き込む
 			int payload = 1 + 4 + this.bufferLength;
-			this.out.writeInt(payload);
-			this.out.writeByte(V2ServerPackets.BLOCK_DATA);
-			this.out.writeInt(this.cursorId);
-			this.out.write(this.buff, 0, this.bufferLength);
+			ByteBuffer src = ByteBuffer.wrap(this.buff, 0, 4 + payload);
+			src.putInt(payload);
+			src.put(V2ServerPackets.BLOCK_DATA);
+			src.putInt(this.cursorId);
+			src.position(0);
+			this.send(src);
 			this.bufferLength = 0;
 		}
 		this.cursorId = newId;
 	}
 
 	protected void flush() throws IOException {
-		if (this.bufferLength > 0) {
+		if (this.compressing()) {
+			V2PacketDeflater deflater = this.deflater;
+			deflater.begin();
+			deflater.write(this.buff, HEADER, this.bufferLength);
+			int length = deflater.finish(V2ServerPackets.DATA);
+			this.send(ByteBuffer.wrap(deflater.getBuffer(), 0, length));
+			this.bufferLength = 0;
+		} else if (this.bufferLength > 0) {
+			// バッファの先頭に空けておいた領域にヘッダを書き込む
 			int payload = 1 + this.bufferLength;
-			this.out.writeInt(payload);
-			this.out.writeByte(V2ServerPackets.DATA);
-			this.out.write(this.buff, 0, this.bufferLength);
+			ByteBuffer src = ByteBuffer.wrap(this.buff, HEADER - 4 - 1, 4 + payload);
+			src.putInt(payload);
+			src.put(V2ServerPackets.DATA);
+			src.position(HEADER - 4 - 1);
+			this.send(src);
 			this.bufferLength = 0;
 		}
 	}
@@ -695,21 +1148,23 @@ public class V2ProtocolProcessor implements ResponseConsumer, ProtocolProcessor,
 		URI uri = metaSource.getURI();
 		String mimeType = metaSource.getMimeType();
 		String encoding = metaSource.getEncoding();
+		// PDFなど既に圧縮されている結果は圧縮しない
+		this.compress = V2PacketDeflater.isCompressible(mimeType);
 		long length = metaSource.getLength();
 		byte[] uriBytes = ChannelIO.toBytes(uri.toString(), this.charset);
 		byte[] mimeTypeBytes = ChannelIO.toBytes(mimeType, this.charset);
 		byte[] encodingBytes = ChannelIO.toBytes(encoding, this.charset);
 
 		int payload = 1 + 2 + uriBytes.length + 2 + mimeTypeBytes.length + 2 + encodingBytes.length + 8;
-		this.out.writeInt(payload);
-		this.out.write(V2ServerPackets.START_DATA);
-		this.out.writeShort((short) uriBytes.length);
-		this.out.write(uriBytes);
-		this.out.writeShort((short) mimeTypeBytes.length);
-		this.out.write(mimeTypeBytes);
-		this.out.writeShort((short) encodingBytes.length);
-		this.out.write(encodingBytes);
-		this.out.writeLong(length);
+		// 続くデータと共に送る
+		ByteBuffer src = this.packet(V2ServerPackets.START_DATA, payload);
+		src.putShort((short) uriBytes.length);
+		src.put(uriBytes);
+		src.putShort((short) mimeTypeBytes.length);
+		src.put(mimeTypeBytes);
+		src.putShort((short) encodingBytes.length);
+		src.put(encodingBytes);
+		src.putLong(length);
 		return this;
 	}
 }
\ No newline at end of file
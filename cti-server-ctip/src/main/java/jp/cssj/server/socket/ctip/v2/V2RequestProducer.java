@@ -1,80 +1,171 @@
 package jp.cssj.server.socket.ctip.v2;
 
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import jp.cssj.driver.ctip.v2.V2ClientPackets;
+import jp.cssj.driver.ctip.v2.V2Extensions;
+import jp.cssj.driver.ctip.v2.V2PacketInflater;
+import jp.cssj.driver.ctip.v2.V2Session;
 
 /**
+ * <p>
+ * クライアントから送られたパケットを読み込みます。
+ * </p>
+ * <p>
+ * 受信したデータはバッファにまとめて読み込み、パケットはバッファ上で解析します。 文字列は取得されるまで変換しません。
+ * パケットから取得した値は、次に{@link #next()}を呼び出すまで有効です。
+ * 圧縮されていないDATAパケットの本体はバッファに読み込まず、{@link #read(byte[], int, int)}の呼び出し側の配列に直接読み込みます。
+ * それ以外のパケットは、本体の長さがそのパケットで取り得る最大の長さを超えていれば、読み込まずにエラーとします。
+ * </p>
+ *
  * @author MIYABE Tatsuhiko
  * @version $Id: V2RequestProducer.java 1554 2018-04-26 03:34:02Z miyabe $
  */
 public class V2RequestProducer {
-	private final String charset;
+	/**
+	 * DATA以外のパケットの本体の最大のバイト数です。 最も長いRESOURCE_DIGESTパケット（3つの文字列、長さ、ダイジェスト）が収まります。
+	 */
+	private static final int MAX_HEADER_SIZE = 3 * (2 + Short.MAX_VALUE) + 8 + 2 + Short.MAX_VALUE;
+
+	private final Charset charset;
+
+	private final InputStream in;
+
+	/** 受信したデータのバッファ。 */
+	private byte[] buffer = new byte[V2Session.BUFFER_SIZE + 4 + 1];
 
-	private final DataInputStream in;
+	private ByteBuffer view = ByteBuffer.wrap(this.buffer);
 
-	private int off, len;
+	/** バッファ内の未処理のデータの位置と終端。 */
+	private int pos = 0, limit = 0;
 
-	private byte[] buffer;
+	/** 現在のDATAパケットの本体のうち、まだ読み込んでいないバイト数。 */
+	private int remaining = 0;
+
+	/** 展開したデータの位置と終端。 */
+	private int off, end;
+
+	/** 展開したデータが格納された配列。 */
+	private byte[] data;
+
+	private V2PacketInflater inflater = null;
 
 	private byte type, mode;
 
-	private String uri;
+	/** 現在のパケットに含まれる文字列の数と、それぞれのバッファ内の位置。 */
+	private int count = 0;
+
+	private final int[] at = new int[3];
+
+	/** 変換済みの文字列。 */
+	private final String[] strings = new String[3];
 
-	private String mimeType, encoding, name, value;
+	/** 変換済みの文字列を示すビット列。 */
+	private int decoded = 0;
 
 	private long length;
 
+	private byte[] digest;
+
 	V2RequestProducer(String charset, InputStream in) {
-		this.charset = charset;
-		this.in = new DataInputStream(in);
+		this.charset = Charset.forName(charset);
+		this.in = in;
+	}
+
+	/**
+	 * 圧縮されたパケットを受け付けるようにします。
+	 *
+	 * @param inflater
+	 *            {@link V2Extensions#DEFLATE}を受け入れた接続で使う展開ストリーム。
+	 */
+	void setInflater(V2PacketInflater inflater) {
+		this.inflater = inflater;
 	}
 
 	/**
 	 * 次のパケットへカーソルを移動します。
-	 * 
+	 *
 	 * @throws IOException
 	 */
 	public void next() throws IOException {
-		this.len = this.in.readInt();
-		this.type = this.in.readByte();
+		this.skip();
+		this.count = 0;
+		this.decoded = 0;
+		this.off = this.end = 0;
+		this.data = null;
+		this.digest = null;
+
+		this.require(4 + 1);
+		int length = this.view.getInt(this.pos);
+		this.type = this.buffer[this.pos + 4];
+		this.pos += 4 + 1;
+		if (length < 1) {
+			throw new IOException("Bad request: length " + length);
+		}
+		int payload = length - 1;
 		// System.err.println(Integer.toHexString(this.type));
+		boolean compressed = false;
+		if ((this.type & V2Extensions.COMPRESSED) != 0 && this.inflater != null) {
+			this.type &= ~V2Extensions.COMPRESSED;
+			compressed = true;
+		}
+		if (compressed && this.type != V2ClientPackets.DATA) {
+			throw new IOException("Bad request: type " + Integer.toHexString(this.type));
+		}
+		if (this.type == V2ClientPackets.DATA && !compressed) {
+			// 本体は読み込むときに受信する
+			this.remaining = payload;
+			return;
+		}
+		if (payload > (compressed ? V2PacketInflater.MAX_INPUT_LENGTH : MAX_HEADER_SIZE)) {
+			// 申告された長さのバッファを確保する前に拒否する
+			throw new IOException("Bad request: length " + payload);
+		}
+
+		this.require(payload);
+		int start = this.pos;
+		int end = start + payload;
+		this.pos = end;
 		switch (this.type) {
 		case V2ClientPackets.PROPERTY:
-			this.name = this.readString();
-			this.value = this.readString();
+			this.strings(start, end, 2);
 			break;
 
 		case V2ClientPackets.START_RESOURCE:
 		case V2ClientPackets.START_MAIN:
-			this.uri = this.readString();
-			this.mimeType = this.readString();
-			this.encoding = this.readString();
-			this.length = this.in.readLong();
+			this.length = this.view.getLong(this.check(this.strings(start, end, 3), 8, end));
+			break;
+
+		case V2ClientPackets.RESOURCE_DIGEST: {
+			int p = this.check(this.strings(start, end, 3), 8, end);
+			this.length = this.view.getLong(p);
+			p = this.check(p + 8, 2, end);
+			int digestLength = Math.max(0, (int) this.view.getShort(p));
+			p = this.check(p + 2, digestLength, end);
+			this.digest = new byte[digestLength];
+			System.arraycopy(this.buffer, p, this.digest, 0, digestLength);
+		}
 			break;
 
 		case V2ClientPackets.MISSING_RESOURCE:
 		case V2ClientPackets.SERVER_MAIN:
 		case V2ClientPackets.SERVER_INFO:
-			this.uri = this.readString();
+			this.strings(start, end, 1);
 			break;
 
 		case V2ClientPackets.DATA:
-			this.len -= 1;
-			if (this.buffer == null || this.buffer.length < this.len) {
-				this.buffer = new byte[this.len];
-			}
-			for (int off = 0; off < this.len; off += this.in.read(this.buffer, off, this.len - off))
-				;
-			this.off = 0;
+			this.end = this.inflater.inflate(this.buffer, start, payload);
+			this.data = this.inflater.getBuffer();
 			break;
 
 		case V2ClientPackets.CLIENT_RESOURCE:
 		case V2ClientPackets.ABORT:
 		case V2ClientPackets.CONTINUOUS:
-			this.mode = this.in.readByte();
+			this.mode = this.buffer[this.check(start, 1, end)];
 			break;
 
 		case V2ClientPackets.EOF:
@@ -88,20 +179,109 @@ public class V2RequestProducer {
 		}
 	}
 
-	private String readString() throws IOException {
-		short len = this.in.readShort();
-		if (len <= 0) {
+	/**
+	 * バッファに少なくとも指定したバイト数の未処理のデータがあるようにします。
+	 *
+	 * @param n
+	 *            バイト数。
+	 * @throws IOException
+	 */
+	private void require(int n) throws IOException {
+		if (this.limit - this.pos >= n) {
+			return;
+		}
+		if (this.buffer.length - this.pos < n) {
+			// 未処理のデータを先頭に寄せる
+			byte[] buffer = this.buffer;
+			if (buffer.length < n) {
+				buffer = new byte[Math.max(n, buffer.length * 2)];
+			}
+			System.arraycopy(this.buffer, this.pos, buffer, 0, this.limit - this.pos);
+			this.limit -= this.pos;
+			this.pos = 0;
+			if (buffer != this.buffer) {
+				this.buffer = buffer;
+				this.view = ByteBuffer.wrap(buffer);
+			}
+		}
+		while (this.limit - this.pos < n) {
+			int len = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+			if (len == -1) {
+				throw new EOFException();
+			}
+			this.limit += len;
+		}
+	}
+
+	/**
+	 * 現在のDATAパケットの本体の残りを読み捨てます。
+	 *
+	 * @throws IOException
+	 */
+	private void skip() throws IOException {
+		while (this.remaining > 0) {
+			if (this.pos == this.limit) {
+				this.pos = this.limit = 0;
+				this.require(1);
+			}
+			int len = Math.min(this.remaining, this.limit - this.pos);
+			this.pos += len;
+			this.remaining -= len;
+		}
+	}
+
+	/**
+	 * パケットに含まれる文字列の位置を記録します。
+	 *
+	 * @param p
+	 *            最初の文字列の位置。
+	 * @param end
+	 *            パケットの終端。
+	 * @param count
+	 *            文字列の数。
+	 * @return 最後の文字列の次の位置。
+	 * @throws IOException
+	 */
+	private int strings(int p, int end, int count) throws IOException {
+		for (int i = 0; i < count; ++i) {
+			this.at[i] = this.check(p, 2, end);
+			p += 2 + Math.max(0, (int) this.view.getShort(p));
+			this.check(p, 0, end);
+		}
+		this.count = count;
+		return p;
+	}
+
+	private int check(int p, int n, int end) throws IOException {
+		if (p + n > end) {
+			throw new IOException("Bad request: type " + Integer.toHexString(this.type));
+		}
+		return p;
+	}
+
+	/**
+	 * 現在のパケットに含まれる文字列を返します。
+	 *
+	 * @param i
+	 *            文字列の番号。
+	 * @return 文字列。 パケットに含まれないか、空であればnull。
+	 */
+	private String string(int i) {
+		if (i >= this.count) {
 			return null;
 		}
-		byte[] bytes = new byte[len];
-		for (int off = 0; off < len; off += this.in.read(bytes, off, len - off))
-			;
-		return new String(bytes, this.charset);
+		if ((this.decoded & (1 << i)) == 0) {
+			int p = this.at[i];
+			short len = this.view.getShort(p);
+			this.strings[i] = len <= 0 ? null : new String(this.buffer, p + 2, len, this.charset);
+			this.decoded |= 1 << i;
+		}
+		return this.strings[i];
 	}
 
 	/**
 	 * パケットのタイプを返します。
-	 * 
+	 *
 	 * @return
 	 */
 	public byte getType() {
@@ -110,88 +290,148 @@ public class V2RequestProducer {
 
 	/**
 	 * プロパティ名を返します。
-	 * 
+	 *
 	 * @return
 	 */
 	public String getName() {
-		return this.name;
+		return this.type == V2ClientPackets.PROPERTY ? this.string(0) : null;
 	}
 
 	/**
 	 * プロパティの値を返します。
-	 * 
+	 *
 	 * @return
 	 */
 	public String getValue() {
-		return this.value;
+		return this.type == V2ClientPackets.PROPERTY ? this.string(1) : null;
 	}
 
 	/**
 	 * データの仮想URIを返します。
-	 * 
+	 *
 	 * @return
 	 */
 	public String getURI() {
-		return this.uri;
+		return this.type == V2ClientPackets.PROPERTY ? null : this.string(0);
 	}
 
 	/**
 	 * データのMIME型を返します。
-	 * 
+	 *
 	 * @return
 	 */
 	public String getMimeType() {
-		return this.mimeType;
+		return this.type == V2ClientPackets.PROPERTY ? null : this.string(1);
 	}
 
 	/**
 	 * データのキャラクタ・エンコーディングを返します。
-	 * 
+	 *
 	 * @return
 	 */
 	public String getEncoding() {
-		return this.encoding;
+		return this.string(2);
 	}
 
 	public long getLength() {
 		return this.length;
 	}
 
+	/**
+	 * リソースの内容のダイジェストを返します。
+	 *
+	 * @return
+	 */
+	public byte[] getDigest() {
+		return this.digest;
+	}
+
 	public long getMode() {
 		return this.mode;
 	}
 
 	/**
 	 * データを受け取ります。
-	 * 
+	 *
 	 * @param b
 	 *            バイト列バッファ。
 	 * @param off
 	 *            受け取ったデータの書き込み開始位置。
 	 * @param len
 	 *            受け取るデータの最大長さ。
-	 * @return 受け取ったデータのバイト数。
+	 * @return 受け取ったデータのバイト数。 現在のパケットのデータを全て受け取っていれば-1。
+	 * @throws IOException
 	 */
-	public int read(byte[] b, int off, int len) {
-		int remainder = this.len - this.off;
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (this.remaining > 0) {
+			int length = Math.min(len, this.remaining);
+			if (this.pos < this.limit) {
+				// 既にバッファに読み込んだ部分
+				length = Math.min(length, this.limit - this.pos);
+				System.arraycopy(this.buffer, this.pos, b, off, length);
+				this.pos += length;
+			} else if (length >= this.buffer.length / 2) {
+				// バッファを経由せずに読み込む
+				length = this.in.read(b, off, length);
+				if (length == -1) {
+					throw new EOFException();
+				}
+			} else {
+				this.pos = this.limit = 0;
+				this.require(1);
+				length = Math.min(length, this.limit);
+				System.arraycopy(this.buffer, 0, b, off, length);
+				this.pos = length;
+			}
+			this.remaining -= length;
+			return length;
+		}
+		int remainder = this.end - this.off;
 		if (remainder <= 0) {
 			return -1;
 		}
 		int length = Math.min(len, remainder);
-		System.arraycopy(this.buffer, this.off, b, off, length);
+		System.arraycopy(this.data, this.off, b, off, length);
 		this.off += length;
 		return length;
 	}
 
-	public byte[] getDataBuffer() {
-		return this.buffer;
+	/**
+	 * 現在のパケットのデータが格納された配列を返します。 まだ受け取っていないデータは、{@link #getDataOffset()}の位置から
+	 * {@link #getDataLength()}のバイト数です。
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] getDataBuffer() throws IOException {
+		this.load();
+		return this.data;
 	}
 
-	public int getDataOffset() {
+	public int getDataOffset() throws IOException {
+		this.load();
 		return this.off;
 	}
 
-	public int getDataLength() {
-		return this.len;
+	public int getDataLength() throws IOException {
+		this.load();
+		return this.end - this.off;
+	}
+
+	/**
+	 * 圧縮されていないDATAパケットの本体の残りをバッファに読み込みます。
+	 *
+	 * @throws IOException
+	 */
+	private void load() throws IOException {
+		if (this.remaining <= 0) {
+			return;
+		}
+		this.require(this.remaining);
+		this.data = this.buffer;
+		this.off = this.pos;
+		this.end = this.pos + this.remaining;
+		this.pos = this.end;
+		this.remaining = 0;
 	}
-}
\ No newline at end of file
+}
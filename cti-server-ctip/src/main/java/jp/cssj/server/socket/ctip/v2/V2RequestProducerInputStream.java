@@ -3,6 +3,7 @@ package jp.cssj.server.socket.ctip.v2;
 import java.io.IOException;
 import java.io.InputStream;
 
+import jp.cssj.cti2.CTISession;
 import jp.cssj.cti2.progress.Progressive;
 import jp.cssj.driver.ctip.v2.V2ClientPackets;
 
@@ -14,12 +15,25 @@ import jp.cssj.driver.ctip.v2.V2ClientPackets;
 public class V2RequestProducerInputStream extends InputStream implements Progressive {
 	private final V2RequestProducer request;
 
+	private final CTISession session;
+
 	private final byte[] buff = new byte[1];
 
 	private int progress = 0;
 
 	public V2RequestProducerInputStream(V2RequestProducer producer) {
+		this(producer, null);
+	}
+
+	/**
+	 * @param producer
+	 *            リクエスト。
+	 * @param session
+	 *            データの途中で中断の要求を受け取った場合に中断するセッション。 nullであれば中断の要求は無視します。
+	 */
+	public V2RequestProducerInputStream(V2RequestProducer producer, CTISession session) {
 		this.request = producer;
+		this.session = session;
 	}
 
 	public long getProgress() {
@@ -27,62 +41,52 @@ public class V2RequestProducerInputStream extends InputStream implements Progres
 	}
 
 	private boolean checkRequest() throws IOException {
-		switch (this.request.getType()) {
-		case V2ClientPackets.EOF:
-			return false;
-
-		case V2ClientPackets.DATA:
-			return true;
-		default:
-			throw new IllegalStateException("不正なリクエストです: " + Integer.toHexString(this.request.getType()));
+		for (;;) {
+			switch (this.request.getType()) {
+			case V2ClientPackets.EOF:
+				return false;
+
+			case V2ClientPackets.DATA:
+				return true;
+
+			case V2ClientPackets.ABORT:
+				// クライアントはデータの送信中にも中断を要求することがある
+				if (this.session != null) {
+					this.session.abort((byte) (this.request.getMode() + 1));
+				}
+				this.request.next();
+				break;
+
+			default:
+				throw new IllegalStateException("不正なリクエストです: " + Integer.toHexString(this.request.getType()));
+			}
 		}
 	}
 
 	public int read() throws IOException {
-		if (!this.checkRequest()) {
-			return -1;
-		}
-		int read = this.request.read(this.buff, 0, 1);
-		if (read == 1) {
-			++this.progress;
-			return this.buff[0];
-		}
-		this.request.next();
-		if (!this.checkRequest()) {
+		if (this.read(this.buff, 0, 1) == -1) {
 			return -1;
 		}
-		return this.read();
+		return this.buff[0] & 0xFF;
 	}
 
 	public int read(byte[] b, int off, int len) throws IOException {
-		if (!this.checkRequest()) {
-			return -1;
-		}
-		int read = this.request.read(b, off, len);
-		if (read != -1) {
-			this.progress += read;
-			return read;
+		if (len == 0) {
+			return 0;
 		}
-		this.request.next();
-		if (!this.checkRequest()) {
-			return -1;
+		// 空のDATAパケットは読み飛ばす
+		while (this.checkRequest()) {
+			int read = this.request.read(b, off, len);
+			if (read != -1) {
+				this.progress += read;
+				return read;
+			}
+			this.request.next();
 		}
-		return this.read(b, off, len);
+		return -1;
 	}
 
 	public int read(byte[] b) throws IOException {
-		if (!this.checkRequest()) {
-			return -1;
-		}
-		int read = this.request.read(b, 0, b.length);
-		if (read != -1) {
-			this.progress += read;
-			return read;
-		}
-		this.request.next();
-		if (!this.checkRequest()) {
-			return -1;
-		}
 		return this.read(b, 0, b.length);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,108 @@
+package jp.cssj.server.acl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+/**
+ * {@link AclRules}のテストです。
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class AclRulesTest {
+	private static byte decide(AclRules acl, String address) {
+		InetAddress a = AclRules.toAddress(address);
+		if (a == null) {
+			fail("アドレスを変換できません: " + address);
+		}
+		return acl.decide(a);
+	}
+
+	@Test
+	public void testEmpty() {
+		assertSame(AclRules.EMPTY, AclRules.parse(null));
+		assertTrue(AclRules.parse("").isEmpty());
+		assertTrue(AclRules.parse(" # comment\n").isEmpty());
+		assertEquals(AclRules.NONE, decide(AclRules.EMPTY, "127.0.0.1"));
+	}
+
+	@Test
+	public void testLongestPrefix() {
+		AclRules acl = AclRules.parse("allow 192.168.0.0/16, deny 192.168.1.0/24, allow 192.168.1.10, deny 0.0.0.0/0");
+		assertEquals(AclRules.ALLOW, decide(acl, "192.168.0.1"));
+		assertEquals(AclRules.DENY, decide(acl, "192.168.1.1"));
+		assertEquals(AclRules.ALLOW, decide(acl, "192.168.1.10"));
+		assertEquals(AclRules.DENY, decide(acl, "10.0.0.1"));
+	}
+
+	@Test
+	public void testNoMatch() {
+		AclRules acl = AclRules.parse("allow 10.0.0.0/8");
+		assertEquals(AclRules.ALLOW, decide(acl, "10.1.2.3"));
+		assertEquals(AclRules.NONE, decide(acl, "11.0.0.1"));
+		assertEquals(AclRules.NONE, decide(acl, "::1"));
+	}
+
+	@Test
+	public void testLaterRuleWins() {
+		AclRules acl = AclRules.parse("allow 10.0.0.0/8\ndeny 10.0.0.0/8");
+		assertEquals(AclRules.DENY, decide(acl, "10.0.0.1"));
+		acl = AclRules.parse("DENY 10.0.0.0/8, Allow 10.0.0.0/8");
+		assertEquals(AclRules.ALLOW, decide(acl, "10.0.0.1"));
+	}
+
+	@Test
+	public void testIPv6() {
+		AclRules acl = AclRules.parse("deny ::/0, allow 2001:db8::/32, allow [::1]");
+		assertEquals(AclRules.ALLOW, decide(acl, "2001:db8::1"));
+		assertEquals(AclRules.ALLOW, decide(acl, "2001:0db8:0:0:0:0:0:ffff"));
+		assertEquals(AclRules.DENY, decide(acl, "2001:db9::1"));
+		assertEquals(AclRules.ALLOW, decide(acl, "::1"));
+		assertEquals(AclRules.ALLOW, decide(acl, "::1%lo"));
+		assertEquals(AclRules.NONE, decide(acl, "127.0.0.1"));
+	}
+
+	@Test
+	public void testMappedAddress() {
+		AclRules acl = AclRules.parse("allow ::ffff:192.168.0.0/112, deny 0.0.0.0/0");
+		assertEquals(AclRules.ALLOW, decide(acl, "192.168.3.4"));
+		assertEquals(AclRules.ALLOW, decide(acl, "::ffff:192.168.3.4"));
+		assertEquals(AclRules.DENY, decide(acl, "::ffff:10.0.0.1"));
+	}
+
+	@Test
+	public void testToAddress() throws Exception {
+		assertEquals(InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 }), AclRules.toAddress("127.0.0.1"));
+		assertEquals(InetAddress.getByAddress(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 }),
+				AclRules.toAddress("::1"));
+		assertEquals(InetAddress.getByAddress(new byte[] { 0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+				0, 0x01, 0x02 }), AclRules.toAddress("2001:db8::102"));
+		assertNull(AclRules.toAddress("localhost"));
+		assertNull(AclRules.toAddress("256.0.0.1"));
+		assertNull(AclRules.toAddress("1.2.3"));
+		assertNull(AclRules.toAddress("1::2::3"));
+		assertNull(AclRules.toAddress("1:2:3:4:5:6:7:8:9"));
+		assertNull(AclRules.toAddress("12345::"));
+	}
+
+	@Test
+	public void testInvalid() {
+		String[] rules = { "allow", "permit 10.0.0.0/8", "allow 10.0.0.0/33", "allow 10.0.0.0/-1", "allow 10.0.0.0/x",
+				"allow ::/129", "allow example.com", "allow 10.0.0.0/8 extra" };
+		for (int i = 0; i < rules.length; ++i) {
+			try {
+				AclRules.parse(rules[i]);
+				fail("例外が発生しませんでした: " + rules[i]);
+			} catch (IllegalArgumentException e) {
+				// 期待どおり
+			}
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package jp.cssj.server.socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link CTIServer}が混雑している場合に接続を断る処理のテストです。 ワーカーを1つだけにして、最初の接続で占有します。
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class CTIServerTest {
+	/** 接続を断る処理にかける時間の上限（ミリ秒）です。 */
+	private static final long REFUSE_TIMEOUT = 2000L;
+
+	private final CountDownLatch processing = new CountDownLatch(1);
+
+	private final List<Socket> sockets = new ArrayList<Socket>();
+
+	private CTIServer server;
+
+	private int port;
+
+	/** ワーカーを占有するまでに断られた接続の数。 */
+	private long rejected;
+
+	@Before
+	public void setUp() throws Exception {
+		try (ServerSocket ss = new ServerSocket(0)) {
+			this.port = ss.getLocalPort();
+		}
+		this.server = new CTIServer();
+		this.server.setProtocolHandlers(new ProtocolHandler[] { new ProtocolHandler() {
+			public boolean accepts(String firstLine) {
+				return firstLine.startsWith("CTIP/2.0 ");
+			}
+
+			public ProtocolProcessor newProcesor() {
+				return new ProtocolProcessor() {
+					public void process(Socket socket, InputStream in, OutputStream out, String firstLine)
+							throws IOException {
+						// クライアントが切断するまでワーカーを占有する
+						CTIServerTest.this.processing.countDown();
+						while (in.read() != -1) {
+							// 読み捨てる
+						}
+					}
+
+					public void message(short code, String[] args, String message) {
+						// NOP
+					}
+
+					public void close() {
+						// NOP
+					}
+				};
+			}
+		} });
+		Properties props = new Properties();
+		props.setProperty("jp.cssj.cssjd.port", String.valueOf(this.port));
+		props.setProperty("jp.cssj.cssjd.maxThreads", "1");
+		props.setProperty("jp.cssj.cssjd.minThreads", "1");
+		props.setProperty("jp.cssj.cssjd.queueSize", "0");
+		props.setProperty("jp.cssj.cssjd.backlog", "512");
+		props.setProperty("jp.cssj.cssjd.acl.rules", "allow 127.0.0.1, allow ::1");
+		this.server.setConfigFile(null, props);
+		this.server.startup();
+
+		// 起動直後のワーカーがまだ待機していなければ断られるため、処理が始まるまで接続し直す
+		for (int i = 0;; ++i) {
+			assertTrue(i < 25);
+			Socket busy = this.connect();
+			busy.getOutputStream().write("CTIP/2.0 UTF-8\n".getBytes("ISO-8859-1"));
+			if (this.processing.await(200, TimeUnit.MILLISECONDS)) {
+				break;
+			}
+		}
+		this.rejected = this.server.getRejectedCount();
+	}
+
+	@After
+	public void tearDown() {
+		for (int i = 0; i < this.sockets.size(); ++i) {
+			try {
+				this.sockets.get(i).close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+		this.server.shutdown();
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), this.port);
+		this.sockets.add(socket);
+		return socket;
+	}
+
+	/**
+	 * サーバーが切断するまで待ちます。
+	 *
+	 * @return 切断された場合はtrue、時間内に切断されなければfalse。
+	 */
+	private static boolean closed(Socket socket, long timeout) throws IOException {
+		socket.setSoTimeout((int) timeout);
+		try {
+			InputStream in = socket.getInputStream();
+			while (in.read() != -1) {
+				// 読み捨てる
+			}
+			return true;
+		} catch (SocketTimeoutException e) {
+			return false;
+		} catch (IOException e) {
+			// 接続がリセットされた
+			return true;
+		}
+	}
+
+	private String refused() throws IOException {
+		Socket socket = this.connect();
+		socket.setSoTimeout((int) REFUSE_TIMEOUT);
+		socket.getOutputStream().write("CTIP/2.0 UTF-8\n".getBytes("ISO-8859-1"));
+		byte[] b = new byte[4];
+		InputStream in = socket.getInputStream();
+		int len = 0;
+		while (len < b.length) {
+			int n = in.read(b, len, b.length - len);
+			if (n == -1) {
+				break;
+			}
+			len += n;
+		}
+		return new String(b, 0, len, "ISO-8859-1");
+	}
+
+	@Test
+	public void testRefuse() throws IOException {
+		long start = System.currentTimeMillis();
+		assertEquals("BY \n", this.refused());
+		assertTrue(System.currentTimeMillis() - start < REFUSE_TIMEOUT);
+		assertEquals(this.rejected + 1, this.server.getRejectedCount());
+	}
+
+	@Test
+	public void testSlowClients() throws Exception {
+		// 改行を送らずに少しずつ送るクライアント
+		final List<Socket> slow = new ArrayList<Socket>();
+		for (int i = 0; i < 8; ++i) {
+			slow.add(this.connect());
+		}
+		Thread dribbler = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 100; ++i) {
+						for (int j = 0; j < slow.size(); ++j) {
+							try {
+								slow.get(j).getOutputStream().write('x');
+							} catch (IOException e) {
+								// 切断された
+							}
+						}
+						Thread.sleep(200);
+					}
+				} catch (InterruptedException e) {
+					// 終了
+				}
+			}
+		};
+		dribbler.setDaemon(true);
+		dribbler.start();
+		try {
+			Thread.sleep(300);
+
+			// 他の接続を断る処理に妨げられずに応答する
+			long start = System.currentTimeMillis();
+			assertEquals("BY \n", this.refused());
+			assertTrue(System.currentTimeMillis() - start < REFUSE_TIMEOUT);
+
+			// 送り続けていても、時間の上限で切断する
+			for (int i = 0; i < slow.size(); ++i) {
+				assertTrue("切断されませんでした: " + i, closed(slow.get(i), REFUSE_TIMEOUT + 1000L));
+			}
+		} finally {
+			dribbler.interrupt();
+		}
+	}
+
+	@Test
+	public void testLongLine() throws IOException {
+		Socket socket = this.connect();
+		long start = System.currentTimeMillis();
+		socket.getOutputStream().write(new byte[5000]);
+		// 行の長さの上限に達した時点で切断する
+		assertTrue(closed(socket, REFUSE_TIMEOUT + 1000L));
+		assertTrue(System.currentTimeMillis() - start < REFUSE_TIMEOUT);
+	}
+
+	@Test
+	public void testTooManyRefusals() throws Exception {
+		// 何も送らないクライアントで、接続を断るスレッドとその待ち行列を一杯にする
+		int count = 300;
+		List<Socket> idle = new ArrayList<Socket>();
+		for (int i = 0; i < count; ++i) {
+			idle.add(this.connect());
+		}
+		Thread.sleep(REFUSE_TIMEOUT / 2);
+		// 待ち行列に入らなかった接続は、応答せずにすぐに切断する
+		int closed = 0;
+		for (int i = 0; i < idle.size(); ++i) {
+			if (closed(idle.get(i), 1L)) {
+				++closed;
+			}
+		}
+		assertTrue("切断された接続: " + closed, closed >= count - 16 - 256);
+		assertTrue("切断された接続: " + closed, closed < count);
+		assertEquals(this.rejected + count, this.server.getRejectedCount());
+	}
+}
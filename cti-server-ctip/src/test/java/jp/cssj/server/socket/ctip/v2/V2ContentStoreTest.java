@@ -0,0 +1,105 @@
+package jp.cssj.server.socket.ctip.v2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+
+import org.junit.Test;
+
+import jp.cssj.driver.ctip.v2.V2Extensions;
+
+/**
+ * {@link V2ContentStore}のテストです。
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class V2ContentStoreTest {
+	private static byte[] content(int length, int seed) {
+		byte[] content = new byte[length];
+		for (int i = 0; i < content.length; ++i) {
+			content[i] = (byte) (i * 31 + seed);
+		}
+		return content;
+	}
+
+	private static byte[] digest(byte[] content) throws Exception {
+		return MessageDigest.getInstance(V2Extensions.DIGEST_ALGORITHM).digest(content);
+	}
+
+	@Test
+	public void testPutAndGet() throws Exception {
+		V2ContentStore store = new V2ContentStore(1000, 100);
+		byte[] a = content(100, 1);
+		assertTrue(store.put(digest(a), a));
+		assertArrayEquals(a, store.get(digest(a), a.length));
+		assertEquals(1, store.getHits());
+
+		// 長さが異なれば一致しない
+		assertNull(store.get(digest(a), a.length - 1));
+		assertNull(store.get(digest(content(10, 2)), 10));
+		assertEquals(2, store.getMisses());
+		assertEquals(100, store.getBytes());
+
+		// 同じ内容を登録し直しても二重に数えない
+		assertTrue(store.put(digest(a), a));
+		assertEquals(100, store.getBytes());
+	}
+
+	@Test
+	public void testDigestMismatch() throws Exception {
+		V2ContentStore store = new V2ContentStore(1000, 100);
+		byte[] a = content(10, 1), b = content(10, 2);
+		// 別の内容のダイジェストでは登録できない
+		assertFalse(store.put(digest(a), b));
+		assertNull(store.get(digest(a), 10));
+		assertEquals(0, store.getBytes());
+	}
+
+	@Test
+	public void testMaxEntryBytes() throws Exception {
+		V2ContentStore store = new V2ContentStore(1000, 100);
+		assertEquals(100, store.getMaxEntryBytes());
+		byte[] a = content(101, 1);
+		assertFalse(store.put(digest(a), a));
+		assertEquals(0, store.getBytes());
+
+		// 合計の上限の方が小さければ、そちらが1つの内容の上限となる
+		store = new V2ContentStore(50, 100);
+		assertEquals(50, store.getMaxEntryBytes());
+		a = content(51, 1);
+		assertFalse(store.put(digest(a), a));
+		a = content(50, 1);
+		assertTrue(store.put(digest(a), a));
+		assertEquals(50, store.getBytes());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		V2ContentStore store = new V2ContentStore(300, 100);
+		byte[][] contents = new byte[4][];
+		for (int i = 0; i < contents.length; ++i) {
+			contents[i] = content(100, i);
+		}
+		for (int i = 0; i < 3; ++i) {
+			assertTrue(store.put(digest(contents[i]), contents[i]));
+		}
+		// 最初のものを使うと、次に古い2番目のものが破棄される
+		assertNotNull(store.get(digest(contents[0]), 100));
+		assertTrue(store.put(digest(contents[3]), contents[3]));
+		assertEquals(300, store.getBytes());
+		assertNotNull(store.get(digest(contents[0]), 100));
+		assertNull(store.get(digest(contents[1]), 100));
+		assertNotNull(store.get(digest(contents[2]), 100));
+		assertNotNull(store.get(digest(contents[3]), 100));
+
+		store.clear();
+		assertEquals(0, store.getBytes());
+		assertNull(store.get(digest(contents[0]), 100));
+	}
+}
@@ -0,0 +1,235 @@
+package jp.cssj.server.socket.ctip.v2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import jp.cssj.driver.ctip.v2.V2ClientPackets;
+import jp.cssj.driver.ctip.v2.V2Extensions;
+import jp.cssj.driver.ctip.v2.V2PacketInflater;
+
+/**
+ * {@link V2RequestProducer}のテストです。
+ *
+ * @author MIYABE Tatsuhiko
+ * @version $Id$
+ */
+public class V2RequestProducerTest {
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+	private final DataOutputStream out = new DataOutputStream(this.bytes);
+
+	private void packet(byte type, byte[] body) throws IOException {
+		this.out.writeInt(body.length + 1);
+		this.out.writeByte(type);
+		this.out.write(body);
+	}
+
+	private static byte[] strings(String... strings) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (int i = 0; i < strings.length; ++i) {
+			if (strings[i] == null) {
+				out.writeShort(0);
+				continue;
+			}
+			byte[] b = strings[i].getBytes("UTF-8");
+			out.writeShort(b.length);
+			out.write(b);
+		}
+		return bytes.toByteArray();
+	}
+
+	private V2RequestProducer producer() {
+		return new V2RequestProducer("UTF-8", new ByteArrayInputStream(this.bytes.toByteArray()));
+	}
+
+	private static void assertBadRequest(V2RequestProducer producer) {
+		try {
+			producer.next();
+			fail("例外が発生しませんでした");
+		} catch (EOFException e) {
+			fail("不正なパケットを受信しようとしました");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Bad request"));
+		}
+	}
+
+	@Test
+	public void testPackets() throws IOException {
+		this.packet(V2ClientPackets.PROPERTY, strings("name", "値"));
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		out.write(strings("file:/a.css", "text/css", null));
+		out.writeLong(3L);
+		this.packet(V2ClientPackets.START_RESOURCE, body.toByteArray());
+		this.packet(V2ClientPackets.DATA, new byte[] { 1, 2, 3 });
+		this.packet(V2ClientPackets.EOF, new byte[0]);
+
+		V2RequestProducer producer = this.producer();
+		producer.next();
+		assertEquals(V2ClientPackets.PROPERTY, producer.getType());
+		assertEquals("name", producer.getName());
+		assertEquals("値", producer.getValue());
+		producer.next();
+		assertEquals(V2ClientPackets.START_RESOURCE, producer.getType());
+		assertEquals("file:/a.css", producer.getURI());
+		assertEquals("text/css", producer.getMimeType());
+		assertNull(producer.getEncoding());
+		assertEquals(3L, producer.getLength());
+		producer.next();
+		assertEquals(V2ClientPackets.DATA, producer.getType());
+		byte[] b = new byte[10];
+		assertEquals(3, producer.read(b, 0, b.length));
+		assertEquals(-1, producer.read(b, 0, b.length));
+		producer.next();
+		assertEquals(V2ClientPackets.EOF, producer.getType());
+		try {
+			producer.next();
+			fail("例外が発生しませんでした");
+		} catch (EOFException e) {
+			// 期待どおり
+		}
+	}
+
+	@Test
+	public void testUnreadDataIsSkipped() throws IOException {
+		this.packet(V2ClientPackets.DATA, new byte[100000]);
+		this.packet(V2ClientPackets.EOF, new byte[0]);
+		V2RequestProducer producer = this.producer();
+		producer.next();
+		assertEquals(V2ClientPackets.DATA, producer.getType());
+		assertEquals(1, producer.read(new byte[1], 0, 1));
+		producer.next();
+		assertEquals(V2ClientPackets.EOF, producer.getType());
+	}
+
+	@Test
+	public void testNegativeLength() throws IOException {
+		this.out.writeInt(0);
+		this.out.writeByte(V2ClientPackets.EOF);
+		assertBadRequest(this.producer());
+
+		this.bytes.reset();
+		this.out.writeInt(Integer.MIN_VALUE);
+		this.out.writeByte(V2ClientPackets.DATA);
+		assertBadRequest(this.producer());
+	}
+
+	@Test
+	public void testOversizedHeader() throws IOException {
+		// 申告された長さのデータが届くのを待たずに拒否する
+		this.out.writeInt(Integer.MAX_VALUE);
+		this.out.writeByte(V2ClientPackets.PROPERTY);
+		this.out.write(new byte[100]);
+		assertBadRequest(this.producer());
+
+		this.bytes.reset();
+		this.out.writeInt(4 * 0x10000);
+		this.out.writeByte(V2ClientPackets.RESOURCE_DIGEST);
+		assertBadRequest(this.producer());
+	}
+
+	@Test
+	public void testLongestHeader() throws IOException {
+		StringBuffer buff = new StringBuffer(Short.MAX_VALUE);
+		for (int i = 0; i < Short.MAX_VALUE; ++i) {
+			buff.append('a');
+		}
+		String s = buff.toString();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		out.write(strings(s, s, s));
+		out.writeLong(1L);
+		out.writeShort(Short.MAX_VALUE);
+		out.write(new byte[Short.MAX_VALUE]);
+		this.packet(V2ClientPackets.RESOURCE_DIGEST, body.toByteArray());
+
+		V2RequestProducer producer = this.producer();
+		producer.next();
+		assertEquals(s, producer.getEncoding());
+		assertEquals(Short.MAX_VALUE, producer.getDigest().length);
+	}
+
+	@Test
+	public void testTruncatedString() throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		out.writeShort(100);
+		out.write("name".getBytes("UTF-8"));
+		this.packet(V2ClientPackets.PROPERTY, body.toByteArray());
+		assertBadRequest(this.producer());
+
+		this.bytes.reset();
+		this.packet(V2ClientPackets.START_MAIN, strings("file:/a.html", "text/html", null));
+		assertBadRequest(this.producer());
+	}
+
+	@Test
+	public void testBadType() throws IOException {
+		this.packet((byte) 0x7F, new byte[0]);
+		assertBadRequest(this.producer());
+
+		// 圧縮を取り決めていなければ圧縮されたパケットは受け付けない
+		this.bytes.reset();
+		this.packet((byte) (V2ClientPackets.DATA | V2Extensions.COMPRESSED), new byte[10]);
+		assertBadRequest(this.producer());
+
+		// DATA以外の圧縮されたパケットは受け付けない
+		this.bytes.reset();
+		this.packet((byte) (V2ClientPackets.PROPERTY | V2Extensions.COMPRESSED), strings("a", "b"));
+		V2RequestProducer producer = this.producer();
+		producer.setInflater(new V2PacketInflater());
+		assertBadRequest(producer);
+	}
+
+	@Test
+	public void testCompressedData() throws IOException {
+		byte[] data = new byte[10000];
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = (byte) (i % 10);
+		}
+		Deflater deflater = new Deflater();
+		deflater.setInput(data);
+		byte[] compressed = new byte[data.length];
+		int len = deflater.deflate(compressed, 0, compressed.length, Deflater.SYNC_FLUSH);
+		deflater.end();
+		byte[] body = new byte[len];
+		System.arraycopy(compressed, 0, body, 0, len);
+		this.packet((byte) (V2ClientPackets.DATA | V2Extensions.COMPRESSED), body);
+
+		V2RequestProducer producer = this.producer();
+		V2PacketInflater inflater = new V2PacketInflater();
+		producer.setInflater(inflater);
+		producer.next();
+		assertEquals(V2ClientPackets.DATA, producer.getType());
+		assertEquals(data.length, producer.getDataLength());
+		byte[] b = new byte[data.length];
+		System.arraycopy(producer.getDataBuffer(), producer.getDataOffset(), b, 0, b.length);
+		assertArrayEquals(data, b);
+		inflater.end();
+	}
+
+	@Test
+	public void testOversizedCompressedData() throws IOException {
+		this.out.writeInt(V2PacketInflater.MAX_INPUT_LENGTH + 2);
+		this.out.writeByte(V2ClientPackets.DATA | V2Extensions.COMPRESSED);
+		this.out.write(new byte[100]);
+		V2RequestProducer producer = this.producer();
+		V2PacketInflater inflater = new V2PacketInflater();
+		producer.setInflater(inflater);
+		assertBadRequest(producer);
+		inflater.end();
+	}
+}
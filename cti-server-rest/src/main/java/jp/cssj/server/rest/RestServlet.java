@@ -30,8 +30,8 @@ import jp.cssj.cti2.CTISession;
 import jp.cssj.cti2.TranscoderException;
 import jp.cssj.cti2.helpers.CTIMessageCodes;
 import jp.cssj.cti2.helpers.CTIMessageHelper;
-import jp.cssj.plugin.PluginLoader;
-import jp.cssj.server.acl.Acl;
+import jp.cssj.server.acl.AclChecker;
+import jp.cssj.server.acl.AclRules;
 
 import org.apache.commons.fileupload.FileUploadException;
 
@@ -60,6 +60,13 @@ public class RestServlet extends HttpServlet {
 
 	private boolean direct = false;
 
+	private final AclChecker acl = new AclChecker() {
+		protected Object getKey(InetAddress remoteAddress) {
+			// プラグインにはアドレスをそのまま渡す
+			return remoteAddress;
+		}
+	};
+
 	private volatile long accessCount;
 
 	private static final long MAX_SESSION_TIMEOUT = 60000L * 60L;
@@ -112,6 +119,15 @@ public class RestServlet extends HttpServlet {
 		if ("1".equals(restResolver) || "true".equalsIgnoreCase(restResolver)) {
 			this.restResolver = true;
 		}
+		try {
+			this.acl.setRules(AclRules.parse(servletConfig.getInitParameter("acl-rules")));
+		} catch (IllegalArgumentException e) {
+			throw new ServletException(e.getMessage(), e);
+		}
+		String aclCacheSize = servletConfig.getInitParameter("acl-cache-size");
+		if (aclCacheSize != null) {
+			this.acl.setCacheSize(Integer.parseInt(aclCacheSize));
+		}
 
 		Thread ticker = new Thread(RestServlet.class.getName()) {
 			public synchronized void run() {
@@ -237,10 +253,10 @@ public class RestServlet extends HttpServlet {
 
 	protected void service(final HttpServletRequest req, final HttpServletResponse res)
 			throws ServletException, IOException {
-		InetAddress remoteHost = InetAddress.getByName(req.getRemoteAddr());
-		Acl acl = (Acl) PluginLoader.getPluginLoader().search(Acl.class, remoteHost);
-		if (acl == null || !acl.checkAccess(remoteHost)) {
-			ACCESS.info(remoteHost + "からのアクセスを拒否しました");
+		// ホスト名は解決しない
+		InetAddress remoteHost = AclRules.toAddress(req.getRemoteAddr());
+		if (remoteHost == null || !this.acl.checkAccess(remoteHost)) {
+			ACCESS.info(req.getRemoteAddr() + "からのアクセスを拒否しました");
 			return;
 		}
 
@@ -24,6 +24,7 @@ import javax.servlet.http.HttpServletResponse;
 import jp.cssj.cti2.CTISession;
 import jp.cssj.cti2.TranscoderException;
 import jp.cssj.cti2.helpers.CTIMessageCodes;
+import jp.cssj.cti2.helpers.DeadlineTimer;
 import jp.cssj.cti2.helpers.MimeTypeHelper;
 import jp.cssj.cti2.helpers.ServletHelper;
 import jp.cssj.cti2.helpers.ServletResponseResults;
@@ -59,6 +60,8 @@ public class RestSession {
 	private final SourceResolver resolver;
 	private volatile long accessed = System.currentTimeMillis();
 	private volatile TranscodeTask transcode = null;
+	/** クライアントから通知された次の変換の期限。 0であれば期限はありません。 */
+	private long deadline = 0L;
 
 	/**
 	 * 受信済みのメッセージです。
@@ -135,6 +138,8 @@ public class RestSession {
 		private boolean transcoding = false;
 		private IOException ex = null;
 		private Thread th = null;
+		/** 変換の期限を監視するタイマー。 */
+		private DeadlineTimer timer = null;
 
 		public void sourceLength(long srcLength) {
 			// System.err.println("srcLength: "+srcLength);
@@ -209,6 +214,9 @@ public class RestSession {
 				}
 			}
 			this.transcoding = true;
+			long deadline = RestSession.this.deadline;
+			RestSession.this.deadline = 0L;
+			this.timer = deadline == 0L ? null : new DeadlineTimer(RestSession.this.session, deadline);
 			if (async) {
 				this.th = new Thread(this, RestServlet.class.getName());
 				this.th.start();
@@ -241,15 +249,20 @@ public class RestSession {
 
 				};
 				RestSession.this.session.setResults(results);
+				this.startDeadline();
 				if (this.uri != null) {
 					RestSession.this.session.transcode(this.uri);
 				} else {
 					RestSession.this.session.transcode(this.source);
 				}
+			} catch (TranscoderException e) {
+				this.ex = e = this.endDeadline(e);
+				throw e;
 			} catch (IOException e) {
 				this.ex = e;
 				throw e;
 			} finally {
+				this.endDeadline(null);
 				this.transcoding = false;
 				synchronized (RestSession.this) {
 					RestSession.this.notifyAll();
@@ -294,12 +307,14 @@ public class RestSession {
 
 				RestSession.this.session.setResults(results);
 				RestSession.this.session.setProgressListener(this);
+				this.startDeadline();
 				if (this.uri != null) {
 					RestSession.this.session.transcode(this.uri);
 				} else {
 					RestSession.this.session.transcode(this.source);
 				}
 			} catch (TranscoderException e) {
+				e = this.endDeadline(e);
 				if (e.getState() == TranscoderException.STATE_BROKEN) {
 					this.th = null;
 					this.dispose();
@@ -310,6 +325,7 @@ public class RestSession {
 				this.dispose();
 				this.ex = e;
 			} finally {
+				this.endDeadline(null);
 				this.transcoding = false;
 				synchronized (RestSession.this) {
 					RestSession.this.notifyAll();
@@ -317,6 +333,41 @@ public class RestSession {
 			}
 		}
 
+		/**
+		 * 期限があれば、期限を過ぎていないことを確認して監視を始めます。
+		 * 
+		 * @throws TranscoderException
+		 *             処理を待っている間に期限を過ぎた場合。
+		 */
+		private void startDeadline() throws TranscoderException {
+			if (this.timer == null) {
+				return;
+			}
+			if (this.timer.getRemaining() <= 0L) {
+				throw DeadlineTimer.exceeded(TranscoderException.STATE_BROKEN, null);
+			}
+			this.timer.start();
+		}
+
+		/**
+		 * 期限の監視を終了します。
+		 * 
+		 * @param e
+		 *            変換の中断による例外。 なければnull。
+		 * @return 期限を過ぎて中断した場合は期限切れの例外、そうでなければe。
+		 */
+		private TranscoderException endDeadline(TranscoderException e) {
+			DeadlineTimer timer = this.timer;
+			if (timer == null) {
+				return e;
+			}
+			this.timer = null;
+			if (timer.cancel() && e != null) {
+				return DeadlineTimer.exceeded(e.getState(), e);
+			}
+			return e;
+		}
+
 		public void dispose() {
 			if (this.th != null) {
 				try {
@@ -460,6 +511,15 @@ public class RestSession {
 	}
 
 	private void property(HttpServletRequest req, String name, String value) throws IOException {
+		if (name.equals(CTISession.DEADLINE)) {
+			// 残り時間は受信した時点から数える
+			try {
+				this.deadline = System.currentTimeMillis() + Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				// ignore
+			}
+			return;
+		}
 		if (name.equals("webapp.user-agent")) {
 			String ua = req.getHeader("User-Agent");
 			if (ua != null) {
@@ -1000,7 +1060,7 @@ public class RestSession {
 		RestRequest restReq = RestRequest.getRestRequest(req);
 		byte mode = CTISession.ABORT_NORMAL;
 		String modeStr = restReq.getParameter("rest.mode");
-		if (modeStr != null && modeStr.equals("force")) {
+		if (modeStr != null && (modeStr.equals("force") || modeStr.equals(String.valueOf(CTISession.ABORT_FORCE)))) {
 			mode = CTISession.ABORT_FORCE;
 		}
 		this.session.abort(mode);
@@ -1028,6 +1088,7 @@ public class RestSession {
 			this.transcode.dispose();
 			this.transcode = null;
 		}
+		this.deadline = 0L;
 		this.session.reset();
 	}
 
@@ -40,6 +40,9 @@ public class PluginLoader {
 	private File[] libs = null;
 	private long[] times = null;
 
+	/** プラグインを読み込み直すたびに増える値。 */
+	private volatile long generation = 0L;
+
 	private PluginLoader() {
 		this.reload();
 		Thread th = new Thread(PluginLoader.class.getName()) {
@@ -108,6 +111,17 @@ public class PluginLoader {
 		ClassLoader loader = this.getClass().getClassLoader();
 		this.loader = new URLClassLoader(urls, loader);
 		this.roles = new HashMap<Class<Plugin<?>>, Collection<Plugin<?>>>();
+		this.generation++;
+	}
+
+	/**
+	 * プラグインを読み込み直すか、追加するたびに変わる値を返します。 プラグインの検索結果をキャッシュする場合に、キャッシュが古くなったことを調べるために使います。
+	 * このメソッドは同期化されていません。
+	 * 
+	 * @return 世代を表す値。
+	 */
+	public long getGeneration() {
+		return this.generation;
 	}
 
 	/**
@@ -172,6 +186,7 @@ public class PluginLoader {
 			this.roles.put(role, plugins);
 		}
 		plugins.add(plugin);
+		this.generation++;
 	}
 
 	/**